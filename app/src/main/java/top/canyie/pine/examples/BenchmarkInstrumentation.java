@@ -0,0 +1,90 @@
+package top.canyie.pine.examples;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.util.Log;
+
+import top.canyie.pine.PineConfig;
+import top.canyie.pine.examples.test.ConcurrencyStress;
+import top.canyie.pine.examples.test.ConcurrencyStressTest;
+import top.canyie.pine.examples.test.HookOverheadBenchmark;
+
+import java.io.File;
+
+/**
+ * Runs {@link HookOverheadBenchmark} without the UI:
+ * <pre>
+ * adb shell am instrument -w [-e iterations 200000] [-e threads 4] [-e outputDir /path] \
+ *     [-e typedBridges true] top.canyie.pine.examples/.BenchmarkInstrumentation
+ * </pre>
+ * The paths of the CSV and JSON results are printed when it finishes. {@code typedBridges}
+ * hooks with the experimental {@link PineConfig#useTypedBridges}.
+ * With {@code -e suite stress} it runs {@link ConcurrencyStress} instead, with up to
+ * {@code threads} threads and {@code -e stepMillis 1000} per step, and prints the throughput of
+ * each step; the instrumentation fails if the stress test does.
+ * @author canyie
+ */
+public class BenchmarkInstrumentation extends Instrumentation {
+    private Bundle arguments;
+
+    @Override public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        this.arguments = arguments != null ? arguments : new Bundle();
+        start();
+    }
+
+    @Override public void onStart() {
+        super.onStart();
+        // ExampleApp is created on the main thread after onCreate(), wait for it.
+        waitForIdleSync();
+
+        Bundle results = new Bundle();
+        int resultCode = Activity.RESULT_OK;
+        try {
+            if ("stress".equals(arguments.getString("suite"))) {
+                resultCode = runStress(results);
+                finish(resultCode, results);
+                return;
+            }
+            int iterations = getInt("iterations", HookOverheadBenchmark.DEFAULT_ITERATIONS);
+            int threads = getInt("threads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+            String outputDir = arguments.getString("outputDir");
+            if ("true".equals(arguments.getString("typedBridges")))
+                PineConfig.useTypedBridges = true;
+            HookOverheadBenchmark benchmark = new HookOverheadBenchmark(iterations, threads,
+                    outputDir != null ? new File(outputDir) : null);
+            File[] files = benchmark.runSuite();
+            results.putString("csv", files[0].getPath());
+            results.putString("json", files[1].getPath());
+            results.putString(REPORT_KEY_STREAMRESULT, "Results written to " + files[0]
+                    + " and " + files[1] + "\n");
+        } catch (Throwable e) {
+            Log.e(ExampleApp.TAG, "Benchmark failed", e);
+            results.putString(REPORT_KEY_STREAMRESULT, "Benchmark failed: "
+                    + Log.getStackTraceString(e) + "\n");
+            resultCode = Activity.RESULT_CANCELED;
+        }
+        finish(resultCode, results);
+    }
+
+    private int runStress(Bundle results) {
+        int threads = getInt("threads", ConcurrencyStressTest.getDefaultThreads());
+        int stepMillis = getInt("stepMillis", (int) ConcurrencyStressTest.DEFAULT_STEP_MILLIS);
+        ConcurrencyStress stress = ConcurrencyStressTest.runStress(threads, stepMillis);
+        StringBuilder report = new StringBuilder();
+        for (ConcurrencyStress.Result result : stress.getResults())
+            report.append(result).append('\n');
+        if (stress.getFailureCount() != 0) {
+            report.append(stress.getFailureCount()).append(" failures:\n");
+            for (String failure : stress.getFailures()) report.append(failure).append('\n');
+        }
+        results.putString(REPORT_KEY_STREAMRESULT, report.toString());
+        return stress.getFailureCount() == 0 ? Activity.RESULT_OK : Activity.RESULT_CANCELED;
+    }
+
+    private int getInt(String key, int defaultValue) {
+        String value = arguments.getString(key);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
@@ -3,6 +3,7 @@ package top.canyie.pine.examples;
 import android.annotation.SuppressLint;
 import android.app.Application;
 import android.content.Context;
+import android.os.Build;
 import android.util.Log;
 
 import java.io.File;
@@ -61,8 +62,11 @@ public class ExampleApp extends Application {
 
         PineConfig.debug = true;
         PineConfig.debuggable = BuildConfig.DEBUG;
+        PineConfig.cacheDir = getCacheDir().getPath();
 
-        Pine.disableJitInline();
+        // The JIT compiler of Android 11+ does not inline hooked methods, only disable
+        // inlining for the whole process on older versions.
+        if (Build.VERSION.SDK_INT < 30) Pine.disableJitInline();
     }
 
     public static ExampleApp getInstance() {
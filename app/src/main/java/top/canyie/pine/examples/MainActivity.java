@@ -54,7 +54,12 @@ public class MainActivity extends Activity implements AdapterView.OnItemClickLis
             new TestItem("Arg8884 Hook", new Arg8884Test()),
             new TestItem("Arg8888 Hook", new Arg8888Test()),
             new TestItem("Toast.makeText Hook", new ToastHookTest()),
-            new TestItem("Run GC", new GCTest())
+            new TestItem("Run GC", new GCTest()),
+            new TestItem("GC Stress", new GCStressTest()),
+            new TestItem("Mass Hook Benchmark", new MassHookBenchmark()),
+            new TestItem("Throw Exception Benchmark", new ThrowExceptionBenchmark()),
+            new TestItem("Hook Overhead Benchmark", new HookOverheadBenchmark()),
+            new TestItem("Concurrency Stress", new ConcurrencyStressTest())
     };
 
     private TextView output;
@@ -0,0 +1,431 @@
+package top.canyie.pine.examples.test;
+
+import android.util.Log;
+
+import top.canyie.pine.Pine;
+import top.canyie.pine.callback.MethodHook;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls hooked methods of several argument shapes from 1..N threads at once and reports calls
+ * per second for each thread count, first with a fixed set of callbacks, then while another
+ * thread keeps adding and removing callbacks on the same methods. It fails on wrong arguments
+ * seen by a callback, wrong return values seen by a caller, calls that missed their callback
+ * and threads that do not finish (deadlock).
+ * All arguments of a call are derived from the seed passed as the first one, so callbacks and
+ * callers can check them without sharing any state with each other.
+ * <p>
+ * On ART the hooked methods are called directly, see {@link ConcurrencyStressTest}. The benchmark
+ * module runs the same code on the host JVM with an {@link Invoker} calling through its backend.
+ * Hooks cannot be removed, so it only runs once per process.
+ * </p>
+ * @author canyie
+ */
+public final class ConcurrencyStress {
+    private static final String TAG = "ConcurrencyStress";
+    public static final String[] SHAPES = {"s4", "s48", "s4848", "s4L", "s4FD", "i4888", "s4L8D4"};
+    private static final Class<?>[][] SHAPE_PARAMS = {
+            {int.class},
+            {int.class, long.class},
+            {int.class, long.class, int.class, long.class},
+            {int.class, Object.class},
+            {int.class, float.class, double.class},
+            {int.class, long.class, long.class, long.class},
+            {int.class, Object.class, long.class, double.class, int.class}
+    };
+    private static final int MAX_REPORTED_FAILURES = 20;
+    private static final Object[] OBJECTS = new Object[64];
+    private static boolean executed;
+
+    static {
+        for (int i = 0;i < OBJECTS.length;i++) OBJECTS[i] = "object" + i;
+    }
+
+    private final int maxThreads;
+    private final long stepMillis;
+    private final Invoker invoker;
+    private final Targets targets = new Targets();
+    private final Method[] methods = new Method[SHAPES.length];
+    private final List<Result> results = new ArrayList<>();
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicLong failureCount = new AtomicLong();
+    private long totalCalls;
+    private volatile boolean stop;
+
+    /**
+     * @param maxThreads threads of the last step, the number of threads doubles from 1 up to it
+     * @param stepMillis how long each step calls the methods
+     * @param invoker calls the hooked methods, or {@code null} to call them directly
+     */
+    public ConcurrencyStress(int maxThreads, long stepMillis, Invoker invoker) {
+        this.maxThreads = maxThreads;
+        this.stepMillis = stepMillis;
+        this.invoker = invoker;
+        for (int shape = 0;shape < SHAPES.length;shape++) {
+            try {
+                methods[shape] = Targets.class.getDeclaredMethod(SHAPES[shape], SHAPE_PARAMS[shape]);
+            } catch (NoSuchMethodException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /** Hooks the targets and runs all steps, returns whether there was no failure. */
+    public boolean run() {
+        synchronized (ConcurrencyStress.class) {
+            if (executed) throw new IllegalStateException("Already executed, restart the process to run again");
+            executed = true;
+        }
+        for (int shape = 0;shape < SHAPES.length;shape++) {
+            Pine.hook(methods[shape], new VerifyingHook(shape, true));
+        }
+
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int n = 1;n < maxThreads;n <<= 1) threadCounts.add(n);
+        threadCounts.add(maxThreads);
+
+        // Warm up so the first step does not include JIT compilation, still checked.
+        if (runStep(1, false) == null) return false;
+
+        for (boolean churn : new boolean[] {false, true}) {
+            double base = 0;
+            for (int threads : threadCounts) {
+                Result result = runStep(threads, churn);
+                if (result == null) return false; // Deadlocked, the threads are still stuck.
+                if (threads == 1) base = result.callsPerSecond;
+                result.speedup = base > 0 ? result.callsPerSecond / base : 0;
+                results.add(result);
+                Log.i(TAG, result.toString());
+            }
+        }
+        Log.i(TAG, failureCount.get() == 0 ? "No failures" : failureCount.get() + " failures: " + failures);
+        return failureCount.get() == 0;
+    }
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    /** The first failures, {@link #getFailureCount()} tells how many there were. */
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /** Returns the number of calls of all steps, including the warm up. */
+    public long getTotalCalls() {
+        return totalCalls;
+    }
+
+    /** Returns the hooked methods, one for each of {@link #SHAPES}. */
+    public Method[] getTargets() {
+        return methods.clone();
+    }
+
+    /** Whether args are the arguments of a call of the method, e.g. for callbacks of other hooks. */
+    public boolean checkArgs(Method method, Object[] args) {
+        for (int shape = 0;shape < SHAPES.length;shape++) {
+            if (methods[shape].equals(method)) return checkArgs(shape, args);
+        }
+        return false;
+    }
+
+    private Result runStep(int threads, boolean churn) {
+        stop = false;
+        Worker[] workers = new Worker[threads];
+        for (int i = 0;i < threads;i++) workers[i] = new Worker(i);
+        Churner churner = churn ? new Churner() : null;
+
+        long start = System.nanoTime();
+        for (Worker worker : workers) worker.start();
+        if (churner != null) churner.start();
+        try {
+            Thread.sleep(stepMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stop = true;
+
+        // A healthy step ends within a few calls, give slow devices plenty of time anyway.
+        long deadline = System.currentTimeMillis() + Math.max(10000, stepMillis * 5);
+        List<Thread> stuck = new ArrayList<>();
+        List<Thread> all = new ArrayList<Thread>(Arrays.asList(workers));
+        if (churner != null) all.add(churner);
+        for (Thread thread : all) {
+            try {
+                thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) stuck.add(thread);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (!stuck.isEmpty()) {
+            StringBuilder sb = new StringBuilder("Threads did not finish, deadlock?");
+            for (Thread thread : stuck) {
+                sb.append("\n").append(thread.getName()).append(" (").append(thread.getState()).append(")");
+                for (StackTraceElement element : thread.getStackTrace())
+                    sb.append("\n    at ").append(element);
+            }
+            fail(sb.toString());
+            return null;
+        }
+
+        long calls = 0;
+        for (Worker worker : workers) {
+            for (int shape = 0;shape < SHAPES.length;shape++) {
+                calls += worker.calls[shape];
+                if (worker.calls[shape] != worker.callbackCalls[shape]) {
+                    fail(worker.getName() + " called " + SHAPES[shape] + " " + worker.calls[shape]
+                            + " times but the callback ran " + worker.callbackCalls[shape] + " times");
+                }
+            }
+        }
+        totalCalls += calls;
+        return new Result(threads, churn, calls, calls * 1e9 / elapsed,
+                churner != null ? churner.operations : 0);
+    }
+
+    private void fail(String message) {
+        if (failureCount.incrementAndGet() <= MAX_REPORTED_FAILURES) {
+            failures.add(message);
+            Log.e(TAG, message);
+        }
+    }
+
+    private long call(int shape, int k) throws Throwable {
+        if (invoker == null) {
+            switch (shape) {
+                case 0: return Targets.s4(k);
+                case 1: return Targets.s48(k, l(k, 1));
+                case 2: return Targets.s4848(k, l(k, 1), i(k, 2), l(k, 3));
+                case 3: return Targets.s4L(k, o(k));
+                case 4: return Targets.s4FD(k, f(k), d(k));
+                case 5: return targets.i4888(k, l(k, 1), l(k, 2), l(k, 3));
+                case 6: return Targets.s4L8D4(k, o(k), l(k, 2), d(k), i(k, 4));
+                default: throw new IllegalArgumentException("Unknown shape " + shape);
+            }
+        }
+        Object[] args;
+        switch (shape) {
+            case 0: args = new Object[] {k}; break;
+            case 1: args = new Object[] {k, l(k, 1)}; break;
+            case 2: args = new Object[] {k, l(k, 1), i(k, 2), l(k, 3)}; break;
+            case 3: args = new Object[] {k, o(k)}; break;
+            case 4: args = new Object[] {k, f(k), d(k)}; break;
+            case 5: args = new Object[] {k, l(k, 1), l(k, 2), l(k, 3)}; break;
+            case 6: args = new Object[] {k, o(k), l(k, 2), d(k), i(k, 4)}; break;
+            default: throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+        return (Long) invoker.call(methods[shape], shape == 5 ? targets : null, args);
+    }
+
+    /** The value the target of the shape returns for seed k, computed without calling it. */
+    private long expected(int shape, int k) {
+        switch (shape) {
+            case 0: return k;
+            case 1: return k + l(k, 1);
+            case 2: return k + l(k, 1) * 3 + i(k, 2) * 5 + l(k, 3) * 7;
+            case 3: return k + o(k).hashCode();
+            case 4: return k + Float.floatToIntBits(f(k)) + Double.doubleToLongBits(d(k));
+            case 5: return k + l(k, 1) * 3 + l(k, 2) * 5 + l(k, 3) * 7 + targets.id;
+            case 6: return k + o(k).hashCode() * 3 + l(k, 2) * 5
+                    + Double.doubleToLongBits(d(k)) * 7 + i(k, 4) * 11;
+            default: throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+
+    private boolean checkArgs(int shape, Object[] args) {
+        if (args.length != SHAPE_PARAMS[shape].length || !(args[0] instanceof Integer)) return false;
+        int k = (Integer) args[0];
+        switch (shape) {
+            case 0: return true;
+            case 1: return args[1].equals(l(k, 1));
+            case 2: return args[1].equals(l(k, 1)) && args[2].equals(i(k, 2))
+                    && args[3].equals(l(k, 3));
+            case 3: return args[1] == o(k);
+            case 4: return args[1].equals(f(k)) && args[2].equals(d(k));
+            case 5: return args[1].equals(l(k, 1)) && args[2].equals(l(k, 2))
+                    && args[3].equals(l(k, 3));
+            case 6: return args[1] == o(k) && args[2].equals(l(k, 2)) && args[3].equals(d(k))
+                    && args[4].equals(i(k, 4));
+            default: return false;
+        }
+    }
+
+    // Argument j of a call with seed k, different for each position so swapped arguments show.
+    private static int i(int k, int j) {
+        return k ^ (j * 0x9E3779B9);
+    }
+
+    private static long l(int k, int j) {
+        return ((long) k << 32) ^ (0xC2B2AE3D27D4EB4FL * (j + 1));
+    }
+
+    private static float f(int k) {
+        return (k & 0xffff) + 0.5f;
+    }
+
+    private static double d(int k) {
+        return k * 0.25 - 1;
+    }
+
+    private static Object o(int k) {
+        return OBJECTS[k & (OBJECTS.length - 1)];
+    }
+
+    private final class Worker extends Thread {
+        final long[] calls = new long[SHAPES.length];
+        // Only written by the callback running on this thread.
+        final long[] callbackCalls = new long[SHAPES.length];
+        private final int index;
+
+        Worker(int index) {
+            super("ConcurrencyStress-" + index);
+            this.index = index;
+            setDaemon(true);
+        }
+
+        @Override public void run() {
+            // Seeds of different threads do not overlap until they wrap around.
+            int k = index << 24;
+            while (!stop) {
+                for (int shape = 0;shape < SHAPES.length;shape++, k++) {
+                    long result;
+                    try {
+                        result = call(shape, k);
+                    } catch (Throwable e) {
+                        fail(getName() + ": " + SHAPES[shape] + "(" + k + ") threw " + e);
+                        continue;
+                    } finally {
+                        calls[shape]++;
+                    }
+                    if (result != expected(shape, k)) {
+                        fail(getName() + ": " + SHAPES[shape] + "(" + k + ") returned " + result
+                                + ", expected " + expected(shape, k));
+                    }
+                }
+            }
+        }
+    }
+
+    /** Keeps adding and removing an extra callback on each target. */
+    private final class Churner extends Thread {
+        volatile long operations;
+
+        Churner() {
+            super("ConcurrencyStress-churn");
+            setDaemon(true);
+        }
+
+        @Override public void run() {
+            long count = 0;
+            while (!stop) {
+                for (int shape = 0;shape < SHAPES.length;shape++) {
+                    MethodHook.Unhook unhook = Pine.hook(methods[shape], new VerifyingHook(shape, false));
+                    Thread.yield();
+                    unhook.unhook();
+                    count += 2;
+                }
+            }
+            operations = count;
+        }
+    }
+
+    private final class VerifyingHook extends MethodHook {
+        private final int shape;
+        private final boolean counting;
+
+        VerifyingHook(int shape, boolean counting) {
+            this.shape = shape;
+            this.counting = counting;
+        }
+
+        @Override public void beforeCall(Pine.CallFrame callFrame) {
+            if (!checkArgs(shape, callFrame.args)) {
+                fail(Thread.currentThread().getName() + ": callback of " + SHAPES[shape]
+                        + " got wrong arguments " + Arrays.toString(callFrame.args));
+            }
+            if (shape == 5 && callFrame.thisObject != targets)
+                fail("callback of " + SHAPES[shape] + " got wrong this " + callFrame.thisObject);
+            if (counting) {
+                Thread thread = Thread.currentThread();
+                if (thread instanceof Worker) ((Worker) thread).callbackCalls[shape]++;
+            }
+        }
+    }
+
+    /** Calls a hooked method, for environments where calling it directly does not enter the hook. */
+    public interface Invoker {
+        Object call(Method method, Object thisObject, Object[] args) throws Throwable;
+    }
+
+    public static final class Result {
+        public final int threads;
+        /** Whether callbacks were added and removed during the step */
+        public final boolean churn;
+        public final long calls;
+        public final double callsPerSecond;
+        /** Hooks and unhooks done during the step */
+        public final long churnOperations;
+        /** callsPerSecond relative to the step with one thread */
+        public double speedup;
+
+        Result(int threads, boolean churn, long calls, double callsPerSecond, long churnOperations) {
+            this.threads = threads;
+            this.churn = churn;
+            this.calls = calls;
+            this.callsPerSecond = callsPerSecond;
+            this.churnOperations = churnOperations;
+        }
+
+        @Override public String toString() {
+            return String.format(Locale.US, "%s threads=%d: %d calls, %.0f calls/s, speedup %.2fx%s",
+                    churn ? "churn" : "steady", threads, calls, callsPerSecond, speedup,
+                    churn ? ", " + churnOperations + " hook/unhook" : "");
+        }
+    }
+
+    /** Hooked targets, one method per shape. Each returns a checksum of its arguments. */
+    static final class Targets {
+        final long id = 0x1234567;
+
+        static long s4(int k) {
+            return k;
+        }
+
+        static long s48(int k, long a) {
+            return k + a;
+        }
+
+        static long s4848(int k, long a, int b, long c) {
+            return k + a * 3 + b * 5 + c * 7;
+        }
+
+        static long s4L(int k, Object o) {
+            return k + o.hashCode();
+        }
+
+        static long s4FD(int k, float f, double d) {
+            return k + Float.floatToIntBits(f) + Double.doubleToLongBits(d);
+        }
+
+        long i4888(int k, long a, long b, long c) {
+            return k + a * 3 + b * 5 + c * 7 + id;
+        }
+
+        static long s4L8D4(int k, Object o, long a, double d, int b) {
+            return k + o.hashCode() * 3 + a * 5 + Double.doubleToLongBits(d) * 7 + b * 11;
+        }
+    }
+}
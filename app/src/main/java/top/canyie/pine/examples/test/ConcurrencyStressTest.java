@@ -0,0 +1,68 @@
+package top.canyie.pine.examples.test;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import top.canyie.pine.Pine;
+import top.canyie.pine.PineConfig;
+import top.canyie.pine.examples.ExampleApp;
+
+/**
+ * Runs {@link ConcurrencyStress} on a background thread, the result is shown as a Toast and
+ * the throughput of each step is logged. See
+ * {@link top.canyie.pine.examples.BenchmarkInstrumentation} to run it without the UI.
+ * @author canyie
+ */
+public class ConcurrencyStressTest extends Test {
+    public static final long DEFAULT_STEP_MILLIS = 1000;
+
+    public static int getDefaultThreads() {
+        return Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /** Runs the stress test on the calling thread, returns it to read the results. */
+    public static ConcurrencyStress runStress(int threads, long stepMillis) {
+        // Otherwise every call of the hooked methods will be logged.
+        boolean debug = PineConfig.debug;
+        PineConfig.debug = false;
+        try {
+            Pine.ensureInitialized();
+            ConcurrencyStress stress = new ConcurrencyStress(threads, stepMillis, null);
+            stress.run();
+            return stress;
+        } finally {
+            PineConfig.debug = debug;
+        }
+    }
+
+    @Override public int run() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        new Thread("ConcurrencyStressTest") {
+            @Override public void run() {
+                String report;
+                try {
+                    ConcurrencyStress stress = runStress(getDefaultThreads(), DEFAULT_STEP_MILLIS);
+                    report = stress.getFailureCount() == 0
+                            ? "Concurrency stress passed, see logcat for throughput"
+                            : stress.getFailureCount() + " failures, first: " + stress.getFailures().get(0);
+                } catch (Exception e) {
+                    Log.e(ExampleApp.TAG, "Concurrency stress failed", e);
+                    report = "Concurrency stress failed: " + e;
+                }
+                final String text = report;
+                handler.post(new Runnable() {
+                    @Override public void run() {
+                        Toast.makeText(ExampleApp.getInstance(), text, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }.start();
+        return IGNORED;
+    }
+
+    @Override protected int testImpl() {
+        throw new UnsupportedOperationException();
+    }
+}
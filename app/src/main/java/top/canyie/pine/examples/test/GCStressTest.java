@@ -0,0 +1,144 @@
+package top.canyie.pine.examples.test;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import top.canyie.pine.Pine;
+import top.canyie.pine.PineConfig;
+import top.canyie.pine.callback.MethodHook;
+import top.canyie.pine.examples.ExampleApp;
+import top.canyie.pine.utils.GcEpoch;
+import top.canyie.pine.utils.ReflectionHelper;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Like {@link GCTest}, but forces collections over and over while other threads keep calling
+ * hooked methods, whose original code is called both through {@link Pine.CallFrame#invokeOriginalMethod()}
+ * and the default path. The declaring class of the targets is loaded by the app, so moving
+ * collectors relocate it, and Pine must notice the GC (see {@link GcEpoch}) before calling a
+ * backup method again. Reports how often the class moved; a missed update usually crashes.
+ * @author canyie
+ */
+public class GCStressTest extends Test {
+    private static final long DURATION_MILLIS = 5000;
+    private static final int THREADS = 3;
+    private static boolean hooked;
+    /** Keeps the garbage reachable for a moment so collections have something to move. */
+    static volatile Object sink;
+
+    @Override public int run() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        new Thread("GCStressTest") {
+            @Override public void run() {
+                final String report = runStress();
+                handler.post(new Runnable() {
+                    @Override public void run() {
+                        Toast.makeText(ExampleApp.getInstance(), report, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }.start();
+        return IGNORED;
+    }
+
+    @Override protected int testImpl() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static synchronized String runStress() {
+        boolean debug = PineConfig.debug;
+        PineConfig.debug = false;
+        try {
+            hookTargets();
+            final AtomicLong calls = new AtomicLong();
+            final AtomicLong failures = new AtomicLong();
+            final long end = System.currentTimeMillis() + DURATION_MILLIS;
+            Thread[] workers = new Thread[THREADS];
+            for (int i = 0;i < THREADS;i++) {
+                workers[i] = new Thread("GCStressTest-" + i) {
+                    @Override public void run() {
+                        Movable movable = new Movable(7);
+                        long count = 0;
+                        for (int k = 0;System.currentTimeMillis() < end;k++, count++) {
+                            if (movable.instance(k, k * 3L) != 7 + k + k * 3L
+                                    || Movable.sum(k, -k, "s" + (k & 7)) != 2 + (k & 7))
+                                failures.incrementAndGet();
+                        }
+                        calls.addAndGet(count);
+                    }
+                };
+                workers[i].start();
+            }
+
+            int gcs = 0;
+            int moves = 0;
+            int startEpoch = GcEpoch.get();
+            long thread = Pine.currentArtThread0();
+            long address = Pine.getAddress(thread, Movable.class);
+            while (System.currentTimeMillis() < end) {
+                Object[] garbage = new Object[4096];
+                for (int i = 0;i < garbage.length;i++) garbage[i] = new byte[64];
+                sink = garbage;
+                sink = null;
+                Runtime.getRuntime().gc();
+                gcs++;
+                long current = Pine.getAddress(thread, Movable.class);
+                if (current != address) {
+                    moves++;
+                    address = current;
+                }
+            }
+            for (Thread worker : workers) worker.join();
+
+            String report = String.format(Locale.US, "%d calls, %d failures, %d GCs (%d epochs), class moved %d times",
+                    calls.get(), failures.get(), gcs, GcEpoch.get() - startEpoch, moves);
+            Log.i(ExampleApp.TAG, "GCStressTest: " + report);
+            return report;
+        } catch (Exception e) {
+            Log.e(ExampleApp.TAG, "GC stress test failed", e);
+            return "GC stress test failed: " + e;
+        } finally {
+            PineConfig.debug = debug;
+        }
+    }
+
+    private static void hookTargets() {
+        if (hooked) return;
+        hooked = true;
+        // Through CallFrame.invokeOriginalMethod(), i.e. reflection on the backup.
+        Method instance = ReflectionHelper.getMethod(Movable.class, "instance", int.class, long.class);
+        Pine.hook(instance, new MethodHook() {
+            @Override public void beforeCall(Pine.CallFrame callFrame) throws Throwable {
+                callFrame.setResult(callFrame.invokeOriginalMethod());
+            }
+        });
+        // Through the default path, calling the backup with JNI.
+        Method sum = ReflectionHelper.getMethod(Movable.class, "sum", int.class, int.class, Object.class);
+        Pine.hook(sum, new MethodHook() {
+            @Override public void afterCall(Pine.CallFrame callFrame) {
+                callFrame.setResult((Long) callFrame.getResult() + 2);
+            }
+        });
+    }
+
+    static final class Movable {
+        private final int base;
+
+        Movable(int base) {
+            this.base = base;
+        }
+
+        long instance(int a, long b) {
+            return base + a + b;
+        }
+
+        static long sum(int a, int b, Object o) {
+            return a + b + o.toString().charAt(1) - '0';
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package top.canyie.pine.examples.test;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+import android.widget.Toast;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import top.canyie.pine.Pine;
+import top.canyie.pine.PineConfig;
+import top.canyie.pine.callback.MethodHook;
+import top.canyie.pine.examples.ExampleApp;
+import top.canyie.pine.utils.ReflectionHelper;
+import top.canyie.pine.utils.StripedCounters;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures ns/call and allocations/call of the same methods unhooked, hooked with one callback
+ * and hooked with no callbacks left (all unhooked), for several argument shapes, static and
+ * instance methods, inline and replacement {@link Pine.HookMode}, on one and several threads.
+ * The callers of a hooked method are deoptimized so the JIT cannot bypass the hook by inlining,
+ * and the run fails if the callback does not see every call.
+ * A method stays hooked in the mode it was hooked with, so each mode has its own copy of the
+ * targets, and the suite can only run once per process.
+ * Results are written to a CSV and a JSON file, see
+ * {@link top.canyie.pine.examples.BenchmarkInstrumentation} to run it without the UI.
+ * @author canyie
+ */
+public class HookOverheadBenchmark extends Test {
+    public static final int DEFAULT_ITERATIONS = 200000;
+    private static final String[] SHAPES = {"s0", "s4", "s8", "s4848", "sL", "i0", "i8888"};
+    private static final Class<?>[][] SHAPE_PARAMS = {
+            {},
+            {int.class},
+            {long.class},
+            {int.class, long.class, int.class, long.class},
+            {Object.class},
+            {},
+            {long.class, long.class, long.class, long.class}
+    };
+    private static final String[] HOOK_STATES = {"unhooked", "callback", "no_callbacks"};
+    private static boolean executed;
+    /** Keeps the results of the calls alive so they are not optimized out. */
+    static volatile long sink;
+    /** Calls of the callback, checked so a row cannot pass with the hook bypassed. */
+    static final StripedCounters callbackCalls = new StripedCounters(1);
+
+    private final int iterations;
+    private final int threads;
+    private final File outputDir;
+    private final List<Result> results = new ArrayList<>();
+
+    public HookOverheadBenchmark() {
+        this(DEFAULT_ITERATIONS, Math.max(2, Runtime.getRuntime().availableProcessors()), null);
+    }
+
+    /**
+     * @param outputDir where to write results, or {@code null} for the external files dir of
+     *                  the app ({@code Android/data/<package>/files/benchmarks}).
+     */
+    public HookOverheadBenchmark(int iterations, int threads, File outputDir) {
+        this.iterations = iterations;
+        this.threads = threads;
+        this.outputDir = outputDir;
+    }
+
+    @Override public int run() {
+        String report;
+        try {
+            File[] files = runSuite();
+            report = "Results written to " + files[0] + " and " + files[1];
+        } catch (Exception e) {
+            Log.e(ExampleApp.TAG, "Hook overhead benchmark failed", e);
+            report = "Hook overhead benchmark failed: " + e;
+        }
+        Toast.makeText(ExampleApp.getInstance(), report, Toast.LENGTH_LONG).show();
+        return IGNORED;
+    }
+
+    @Override protected int testImpl() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Runs all benchmarks on the calling thread and writes the results.
+     * @return the CSV and the JSON file
+     */
+    public synchronized File[] runSuite() throws IOException, JSONException {
+        if (executed) throw new IllegalStateException("Already executed, restart the process to run again");
+        executed = true;
+
+        // Otherwise every call of the hooked methods will be logged.
+        boolean debug = PineConfig.debug;
+        PineConfig.debug = false;
+        try {
+            Pine.ensureInitialized();
+            runMode("inline", Pine.HookMode.INLINE, new InlineTargets());
+            runMode("replacement", Pine.HookMode.REPLACEMENT, new ReplacementTargets());
+        } finally {
+            Pine.setHookMode(Pine.HookMode.AUTO);
+            PineConfig.debug = debug;
+        }
+        return writeResults();
+    }
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    private void runMode(String modeName, int hookMode, Targets targets) {
+        Pine.setHookMode(hookMode);
+        MethodHook callback = new MethodHook() {
+            @Override public void beforeCall(Pine.CallFrame callFrame) {
+                callbackCalls.add(0, 1);
+            }
+        };
+        Method run = ReflectionHelper.getMethod(targets.getClass(), "run", int.class, int.class);
+
+        for (int shape = 0;shape < SHAPES.length;shape++) {
+            measureAll(modeName, HOOK_STATES[0], targets, shape);
+
+            Method target = ReflectionHelper.getMethod(targets.getClass(), SHAPES[shape],
+                    SHAPE_PARAMS[shape]);
+            MethodHook.Unhook unhook = Pine.hook(target, callback);
+            // The warm-up may have inlined the target into run(), which would bypass the hook.
+            Pine.deoptimizeCallers(run);
+            long before = callbackCalls.get(0);
+            measureAll(modeName, HOOK_STATES[1], targets, shape);
+            checkCalls(target + " with a callback", callbackCalls.get(0) - before,
+                    getCallsPerMeasurement());
+
+            unhook.unhook();
+            before = callbackCalls.get(0);
+            measureAll(modeName, HOOK_STATES[2], targets, shape);
+            checkCalls(target + " without callbacks", callbackCalls.get(0) - before, 0);
+        }
+    }
+
+    private static void checkCalls(String what, long calls, long expected) {
+        if (calls != expected)
+            throw new IllegalStateException(what + " made " + calls + " callback calls, expected "
+                    + expected);
+    }
+
+    /** Returns how many times measureAll() calls the target. */
+    private long getCallsPerMeasurement() {
+        long callsPerThread = iterations / 10 + iterations;
+        return threads > 1 ? callsPerThread * (1 + threads) : callsPerThread;
+    }
+
+    private void measureAll(String mode, String hookState, Targets targets, int shape) {
+        Result result = measure(targets, shape);
+        result.fill(mode, hookState, shape, 1, iterations);
+        results.add(result);
+        Log.i(ExampleApp.TAG, result.toString());
+
+        if (threads > 1) {
+            result = measureConcurrently(targets, shape);
+            result.fill(mode, hookState, shape, threads, iterations);
+            results.add(result);
+            Log.i(ExampleApp.TAG, result.toString());
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private Result measure(Targets targets, int shape) {
+        // Warm up so the results do not include resolution and JIT compilation.
+        sink = targets.run(shape, iterations / 10);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        sink = targets.run(shape, iterations);
+        long elapsed = System.nanoTime() - start;
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        return new Result((double) elapsed / iterations, (double) allocations / iterations);
+    }
+
+    @SuppressWarnings("deprecation")
+    private Result measureConcurrently(final Targets targets, final int shape) {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0;i < threads;i++) {
+            new Thread("HookOverheadBenchmark-" + i) {
+                @Override public void run() {
+                    sink = targets.run(shape, iterations / 10);
+                    ready.countDown();
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    sink = targets.run(shape, iterations);
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        try {
+            ready.await();
+            Debug.startAllocCounting();
+            Debug.resetGlobalAllocCount();
+            long start = System.nanoTime();
+            go.countDown();
+            done.await();
+            long elapsed = System.nanoTime() - start;
+            int allocations = Debug.getGlobalAllocCount();
+            Debug.stopAllocCounting();
+            // Wall time per call of each thread, all threads call at the same time.
+            return new Result((double) elapsed / iterations,
+                    (double) allocations / ((long) iterations * threads));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private File[] writeResults() throws IOException, JSONException {
+        File dir = outputDir;
+        if (dir == null) {
+            dir = ExampleApp.getInstance().getExternalFilesDir("benchmarks");
+            if (dir == null) dir = new File(ExampleApp.getInstance().getFilesDir(), "benchmarks");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+
+        @SuppressLint("SimpleDateFormat") String name = "hook-overhead-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File csv = new File(dir, name + ".csv");
+        File json = new File(dir, name + ".json");
+
+        try (Writer writer = new FileWriter(csv)) {
+            writer.write("mode,hook_state,shape,static,threads,iterations,ns_per_call,allocs_per_call\n");
+            for (Result result : results) {
+                writer.write(String.format(Locale.US, "%s,%s,%s,%b,%d,%d,%.2f,%.4f\n", result.mode,
+                        result.hookState, result.shape, result.isStatic, result.threads,
+                        result.iterations, result.nsPerCall, result.allocationsPerCall));
+            }
+        }
+
+        JSONObject root = new JSONObject();
+        root.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        root.put("sdk", Build.VERSION.SDK_INT);
+        root.put("arch", System.getProperty("os.arch"));
+        root.put("fingerprint", Build.FINGERPRINT);
+        root.put("typedBridges", PineConfig.useTypedBridges);
+        JSONArray array = new JSONArray();
+        for (Result result : results) {
+            JSONObject o = new JSONObject();
+            o.put("mode", result.mode);
+            o.put("hookState", result.hookState);
+            o.put("shape", result.shape);
+            o.put("static", result.isStatic);
+            o.put("threads", result.threads);
+            o.put("iterations", result.iterations);
+            o.put("nsPerCall", result.nsPerCall);
+            o.put("allocsPerCall", result.allocationsPerCall);
+            array.put(o);
+        }
+        root.put("results", array);
+        try (Writer writer = new FileWriter(json)) {
+            writer.write(root.toString(2));
+        }
+
+        Log.i(ExampleApp.TAG, "Hook overhead results written to " + csv + " and " + json);
+        return new File[] {csv, json};
+    }
+
+    public static final class Result {
+        public String mode;
+        public String hookState;
+        public String shape;
+        public boolean isStatic;
+        public int threads;
+        public int iterations;
+        public final double nsPerCall;
+        public final double allocationsPerCall;
+
+        Result(double nsPerCall, double allocationsPerCall) {
+            this.nsPerCall = nsPerCall;
+            this.allocationsPerCall = allocationsPerCall;
+        }
+
+        void fill(String mode, String hookState, int shape, int threads, int iterations) {
+            this.mode = mode;
+            this.hookState = hookState;
+            this.shape = SHAPES[shape];
+            this.isStatic = SHAPES[shape].charAt(0) == 's';
+            this.threads = threads;
+            this.iterations = iterations;
+        }
+
+        @Override public String toString() {
+            return String.format(Locale.US, "%s %s %s threads=%d: %.2f ns/call, %.4f allocs/call",
+                    mode, hookState, shape, threads, nsPerCall, allocationsPerCall);
+        }
+    }
+
+    interface Targets {
+        /** Calls the method of the shape n times. */
+        long run(int shape, int n);
+    }
+
+    static final class InlineTargets implements Targets {
+        static int s0() { return 1; }
+        static int s4(int a) { return a; }
+        static int s8(long a) { return (int) a; }
+        static int s4848(int a, long b, int c, long d) { return a + c + (int) (b ^ d); }
+        static int sL(Object o) { return o == null ? 0 : 1; }
+        int i0() { return 1; }
+        int i8888(long a, long b, long c, long d) { return (int) (a + b + c + d); }
+
+        @Override public long run(int shape, int n) {
+            long sum = 0;
+            switch (shape) {
+                case 0: for (int i = 0;i < n;i++) sum += s0(); break;
+                case 1: for (int i = 0;i < n;i++) sum += s4(i); break;
+                case 2: for (int i = 0;i < n;i++) sum += s8(i); break;
+                case 3: for (int i = 0;i < n;i++) sum += s4848(i, n, i, sum); break;
+                case 4: for (int i = 0;i < n;i++) sum += sL(this); break;
+                case 5: for (int i = 0;i < n;i++) sum += i0(); break;
+                case 6: for (int i = 0;i < n;i++) sum += i8888(i, n, i, sum); break;
+                default: throw new IllegalArgumentException("Unknown shape " + shape);
+            }
+            return sum;
+        }
+    }
+
+    /** Same as {@link InlineTargets}, hooked in replacement mode. */
+    static final class ReplacementTargets implements Targets {
+        static int s0() { return 1; }
+        static int s4(int a) { return a; }
+        static int s8(long a) { return (int) a; }
+        static int s4848(int a, long b, int c, long d) { return a + c + (int) (b ^ d); }
+        static int sL(Object o) { return o == null ? 0 : 1; }
+        int i0() { return 1; }
+        int i8888(long a, long b, long c, long d) { return (int) (a + b + c + d); }
+
+        @Override public long run(int shape, int n) {
+            long sum = 0;
+            switch (shape) {
+                case 0: for (int i = 0;i < n;i++) sum += s0(); break;
+                case 1: for (int i = 0;i < n;i++) sum += s4(i); break;
+                case 2: for (int i = 0;i < n;i++) sum += s8(i); break;
+                case 3: for (int i = 0;i < n;i++) sum += s4848(i, n, i, sum); break;
+                case 4: for (int i = 0;i < n;i++) sum += sL(this); break;
+                case 5: for (int i = 0;i < n;i++) sum += i0(); break;
+                case 6: for (int i = 0;i < n;i++) sum += i8888(i, n, i, sum); break;
+                default: throw new IllegalArgumentException("Unknown shape " + shape);
+            }
+            return sum;
+        }
+    }
+}
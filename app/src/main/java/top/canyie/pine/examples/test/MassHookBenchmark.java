@@ -0,0 +1,160 @@
+package top.canyie.pine.examples.test;
+
+import android.os.Debug;
+import android.util.Log;
+import android.widget.Toast;
+
+import top.canyie.pine.Pine;
+import top.canyie.pine.PineConfig;
+import top.canyie.pine.callback.MethodHook;
+import top.canyie.pine.examples.ExampleApp;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hooks up to {@link #MAX_METHODS} framework methods with {@link Pine#hookAll} and one shared
+ * callback, then reports the time taken and the growth of RSS, native and java heap.
+ * Methods are collected by walking the types referenced from a few seed classes, restricted to
+ * packages which Pine itself does not use when handling a call.
+ * The hooks stay installed until the process dies, so it only runs once.
+ * @author canyie
+ */
+public class MassHookBenchmark extends Test {
+    private static final int MAX_METHODS = 20000;
+    private static final String[] PACKAGES = {"android.icu.", "android.text."};
+    private static final String[] SEEDS = {
+            "android.icu.text.DateFormat",
+            "android.icu.text.NumberFormat",
+            "android.icu.util.Calendar",
+            "android.text.SpannableStringBuilder",
+            "android.text.StaticLayout",
+            "android.text.TextUtils"
+    };
+    private static boolean executed;
+
+    @Override public int run() {
+        if (executed) {
+            Toast.makeText(ExampleApp.getInstance(), "Already executed, restart the app to run again",
+                    Toast.LENGTH_SHORT).show();
+            return IGNORED;
+        }
+        executed = true;
+
+        // Otherwise every call of the hooked methods will be logged.
+        PineConfig.debug = false;
+        Pine.ensureInitialized();
+
+        Member[] methods = collectMethods();
+        final AtomicLong calls = new AtomicLong();
+        MethodHook callback = new MethodHook() {
+            @Override public void beforeCall(Pine.CallFrame callFrame) {
+                calls.incrementAndGet();
+            }
+        };
+
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        long rssBefore = readRssKb();
+        long nativeBefore = Debug.getNativeHeapAllocatedSize();
+        long javaBefore = runtime.totalMemory() - runtime.freeMemory();
+
+        long start = System.nanoTime();
+        int hooked = Pine.hookAll(methods, callback);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        runtime.gc();
+        long rssDelta = readRssKb() - rssBefore;
+        long nativeDelta = Debug.getNativeHeapAllocatedSize() - nativeBefore;
+        long javaDelta = runtime.totalMemory() - runtime.freeMemory() - javaBefore;
+        Pine.MemoryStats stats = Pine.getMemoryStats();
+
+        String report = "Hooked " + hooked + "/" + methods.length + " methods in " + elapsedMs + "ms"
+                + ", RSS +" + rssDelta + "KB (" + (hooked == 0 ? 0 : rssDelta * 1024 / hooked)
+                + " bytes/hook), native heap +" + nativeDelta + ", java heap +" + javaDelta
+                + ", calls so far " + calls.get();
+        Log.i(ExampleApp.TAG, report);
+        Log.i(ExampleApp.TAG, stats.toString());
+        Toast.makeText(ExampleApp.getInstance(), report, Toast.LENGTH_LONG).show();
+        return IGNORED;
+    }
+
+    @Override protected int testImpl() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static Member[] collectMethods() {
+        List<Member> methods = new ArrayList<>();
+        Set<Class<?>> visited = new HashSet<>();
+        Queue<Class<?>> queue = new ArrayDeque<>();
+        for (String seed : SEEDS) {
+            try {
+                queue.add(Class.forName(seed));
+            } catch (ClassNotFoundException ignored) {
+                // android.icu is only available on Android 7.0+
+            }
+        }
+
+        Class<?> c;
+        while (methods.size() < MAX_METHODS && (c = queue.poll()) != null) {
+            if (!visited.add(c)) continue;
+            try {
+                for (Method method : c.getDeclaredMethods()) {
+                    methods.add(method);
+                    enqueue(queue, method.getReturnType());
+                    for (Class<?> type : method.getParameterTypes())
+                        enqueue(queue, type);
+                }
+                methods.addAll(Arrays.asList(c.getDeclaredConstructors()));
+                enqueue(queue, c.getSuperclass());
+                for (Class<?> type : c.getInterfaces())
+                    enqueue(queue, type);
+                for (Class<?> type : c.getDeclaredClasses())
+                    enqueue(queue, type);
+            } catch (Throwable e) {
+                // Missing classes referenced by hidden APIs etc.
+                Log.w(ExampleApp.TAG, "Skipping class " + c, e);
+            }
+        }
+
+        int size = Math.min(methods.size(), MAX_METHODS);
+        return methods.subList(0, size).toArray(new Member[size]);
+    }
+
+    private static void enqueue(Queue<Class<?>> queue, Class<?> type) {
+        if (type == null) return;
+        while (type.isArray()) type = type.getComponentType();
+        String name = type.getName();
+        for (String prefix : PACKAGES) {
+            if (name.startsWith(prefix)) {
+                queue.add(type);
+                return;
+            }
+        }
+    }
+
+    private static long readRssKb() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.e(ExampleApp.TAG, "Cannot read VmRSS", e);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,85 @@
+package top.canyie.pine.examples.test;
+
+import android.util.Log;
+import android.widget.Toast;
+
+import top.canyie.pine.Pine;
+import top.canyie.pine.callback.MethodHook;
+import top.canyie.pine.examples.ExampleApp;
+import top.canyie.pine.utils.ReflectionHelper;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Measures the cost of a hooked method that throws on every call, like a parser fed bad input.
+ * Compares calling it with a callback that lets Pine call the original method (exceptions
+ * propagate unchanged) against a callback that calls it through
+ * {@link Pine.CallFrame#invokeOriginalMethod()} (exceptions are wrapped in an
+ * InvocationTargetException and unwrapped again).
+ * @author canyie
+ */
+public class ThrowExceptionBenchmark extends Test {
+    private static final int ITERATIONS = 20000;
+
+    @Override public int run() {
+        Method target = ReflectionHelper.getMethod(ThrowExceptionBenchmark.class, "parse", String.class);
+        String baselineName = Pine.isHooked(target) ? "hooked without callbacks" : "not hooked";
+        long baseline = measure();
+
+        MethodHook.Unhook unhook = Pine.hook(target, new MethodHook() {
+        });
+        long unwrapped = measure();
+        unhook.unhook();
+
+        unhook = Pine.hook(target, new MethodHook() {
+            @Override public void beforeCall(Pine.CallFrame callFrame) {
+                try {
+                    callFrame.setResult(callFrame.invokeOriginalMethod());
+                } catch (InvocationTargetException e) {
+                    callFrame.setThrowable(e.getTargetException());
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        long wrapped = measure();
+        unhook.unhook();
+
+        String report = "Throwing method, ns/call: " + baselineName + " " + baseline
+                + ", hooked " + unwrapped + ", hooked with invokeOriginalMethod() " + wrapped;
+        Log.i(ExampleApp.TAG, report);
+        Toast.makeText(ExampleApp.getInstance(), report, Toast.LENGTH_LONG).show();
+        return IGNORED;
+    }
+
+    @Override protected int testImpl() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static long measure() {
+        // Warm up so the results do not include resolution and JIT compilation.
+        callParse(ITERATIONS / 10);
+        long start = System.nanoTime();
+        int thrown = callParse(ITERATIONS);
+        long elapsed = System.nanoTime() - start;
+        if (thrown != ITERATIONS) throw new AssertionError("Only " + thrown + " calls threw");
+        return elapsed / ITERATIONS;
+    }
+
+    private static int callParse(int times) {
+        int thrown = 0;
+        for (int i = 0;i < times;i++) {
+            try {
+                parse("not a number");
+            } catch (NumberFormatException e) {
+                thrown++;
+            }
+        }
+        return thrown;
+    }
+
+    private static int parse(String s) {
+        return Integer.parseInt(s);
+    }
+}
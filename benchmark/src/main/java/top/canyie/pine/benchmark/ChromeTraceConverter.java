@@ -0,0 +1,161 @@
+package top.canyie.pine.benchmark;
+
+import top.canyie.pine.trace.MethodTracer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts a trace file written by {@link MethodTracer} into Chrome trace JSON, which can be
+ * opened in chrome://tracing or ui.perfetto.dev:
+ * <pre>
+ * ./gradlew :benchmark:traceToJson -Ptrace=pine.trace [-Pout=pine.json]
+ * </pre>
+ * Events are emitted per thread as begin/end pairs. Events may be dropped when the ring buffer
+ * of a thread is full, so depths are used to keep pairs matched: an exit whose entry was dropped
+ * is skipped, and a slice whose exit was dropped is ended when its caller exits or another call
+ * starts at its depth.
+ * @author canyie
+ */
+public final class ChromeTraceConverter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int PID = 1;
+
+    private final Writer out;
+    private final Map<Integer, String> hookNames;
+    private long written;
+
+    private ChromeTraceConverter(Writer out, Map<Integer, String> hookNames) {
+        this.out = out;
+        this.hookNames = hookNames;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ChromeTraceConverter <trace> [<output json>]");
+            System.exit(1);
+        }
+        File output = new File(args.length > 1 ? args[1] : args[0] + ".json");
+        long events = convert(new File(args[0]), output);
+        System.out.println(events + " events written to " + output);
+    }
+
+    /** Converts trace into JSON written to output, returns the number of events written. */
+    public static long convert(File trace, File output) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(trace, "r");
+             Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), UTF_8), 1 << 16)) {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getLong() != MethodTracer.MAGIC)
+                throw new IOException("Not a Pine trace file: " + trace);
+            int version = buffer.getInt();
+            if (version != MethodTracer.VERSION)
+                throw new IOException("Unsupported trace version " + version);
+            int recordSize = buffer.getInt();
+            long recordCount = buffer.getLong();
+            long namesOffset = buffer.getLong();
+            if (namesOffset == 0)
+                throw new IOException("Incomplete trace, MethodTracer.stop() was not called");
+
+            buffer.position((int) namesOffset);
+            Map<Integer, String> hookNames = new HashMap<>();
+            for (int i = buffer.getInt();i > 0;i--) {
+                int id = buffer.getInt();
+                hookNames.put(id, getString(buffer));
+            }
+            Map<Long, String> threadNames = new HashMap<>();
+            for (int i = buffer.getInt();i > 0;i--) {
+                long id = buffer.getLong();
+                threadNames.put(id, getString(buffer));
+            }
+
+            // Every event after the first one is prefixed by a comma.
+            out.write("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[\n{\"ph\":\"M\","
+                    + "\"name\":\"process_name\",\"pid\":" + PID + ",\"args\":{\"name\":\"pine\"}}");
+            for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+                out.write(",\n{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":" + PID + ",\"tid\":"
+                        + thread.getKey() + ",\"args\":{\"name\":");
+                writeString(out, thread.getValue());
+                out.write("}}");
+            }
+
+            ChromeTraceConverter converter = new ChromeTraceConverter(out, hookNames);
+            // Open slices of each thread, depth << 32 | hookId.
+            Map<Long, Deque<Long>> stacks = new HashMap<>();
+            for (long i = 0;i < recordCount;i++) {
+                int start = MethodTracer.HEADER_SIZE + (int) (i * recordSize);
+                long timestamp = buffer.getLong(start);
+                long tid = buffer.getLong(start + 8);
+                int hookId = buffer.getInt(start + 16);
+                int depth = buffer.getShort(start + 20) & 0xffff;
+                byte type = buffer.get(start + 22);
+
+                Deque<Long> stack = stacks.get(tid);
+                if (stack == null) stacks.put(tid, stack = new ArrayDeque<>());
+                if (type == MethodTracer.TYPE_ENTER) {
+                    // Slices at the same depth or deeper have ended, their exits were dropped.
+                    while (!stack.isEmpty() && (stack.peek() >>> 32) >= depth)
+                        converter.writeEvent("E", tid, timestamp, (int) (long) stack.pop());
+                    stack.push(((long) depth << 32) | (hookId & 0xffffffffL));
+                    converter.writeEvent("B", tid, timestamp, hookId);
+                } else {
+                    while (!stack.isEmpty() && (stack.peek() >>> 32) > depth)
+                        converter.writeEvent("E", tid, timestamp, (int) (long) stack.pop());
+                    // Otherwise its entry was dropped.
+                    if (!stack.isEmpty() && (stack.peek() >>> 32) == depth) {
+                        stack.pop();
+                        converter.writeEvent("E", tid, timestamp, hookId);
+                    }
+                }
+            }
+            out.write("\n]}\n");
+            return converter.written;
+        }
+    }
+
+    private void writeEvent(String phase, long tid, long timestamp, int hookId) throws IOException {
+        out.write(",\n{\"ph\":\"" + phase + "\",\"pid\":" + PID + ",\"tid\":" + tid
+                + ",\"ts\":" + timestamp / 1000 + "." + String.format("%03d", timestamp % 1000)
+                + ",\"name\":");
+        String name = hookNames.get(hookId);
+        writeString(out, name != null ? name : "hook#" + hookId);
+        out.write("}");
+        written++;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeString(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0;i < value.length();i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,114 @@
+package top.canyie.pine.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import top.canyie.pine.Pine;
+import top.canyie.pine.callback.MethodHook;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a call of a hooked method in the java side of Pine: boxing the arguments,
+ * Pine.handleCall with 0 (all unhooked) to 16 callbacks, calling the original method and
+ * unboxing the result, as a typed bridge does. Compared with calling the method directly and
+ * with reflection, which is how the original method is called here.
+ * @author canyie
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+    int a = 2001361295;
+    long b = 6477721089490648113L;
+    private Method target;
+
+    public static int target(int a, long b) {
+        return a ^ (int) b;
+    }
+
+    public static int returnEarlyTarget(int a, long b) {
+        return a ^ (int) b;
+    }
+
+    @Setup public void setUp() throws Exception {
+        InMemoryBackend.install();
+        target = DispatchBenchmark.class.getDeclaredMethod("target", int.class, long.class);
+    }
+
+    @Benchmark public int direct() {
+        return target(a, b);
+    }
+
+    @Benchmark public int reflection() throws Exception {
+        return (Integer) target.invoke(null, a, b);
+    }
+
+    @Benchmark public int hooked(HookedState state) throws Throwable {
+        return (Integer) Pine.handleCall(state.record, null, new Object[] {a, b});
+    }
+
+    @Benchmark public int returnEarly(ReturnEarlyState state) throws Throwable {
+        return (Integer) Pine.handleCall(state.record, null, new Object[] {a, b});
+    }
+
+    @State(Scope.Benchmark)
+    public static class HookedState {
+        @Param({"0", "1", "4", "16"}) public int callbacks;
+        Pine.HookRecord record;
+
+        @Setup public void setUp() throws Exception {
+            InMemoryBackend backend = InMemoryBackend.install();
+            Method method = DispatchBenchmark.class.getDeclaredMethod("target", int.class, long.class);
+            if (callbacks == 0) {
+                // Hooked, but with no callbacks left.
+                Pine.hook(method, new CountingHook()).unhook();
+            } else {
+                for (int i = 0;i < callbacks;i++) Pine.hook(method, new CountingHook());
+            }
+            record = Pine.getHookRecord(backend.getArtMethod(method));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ReturnEarlyState {
+        Pine.HookRecord record;
+
+        @Setup public void setUp() throws Exception {
+            InMemoryBackend backend = InMemoryBackend.install();
+            Method method = DispatchBenchmark.class.getDeclaredMethod("returnEarlyTarget",
+                    int.class, long.class);
+            Pine.hook(method, new MethodHook() {
+                @Override public void beforeCall(Pine.CallFrame callFrame) {
+                    callFrame.setResult(0);
+                }
+            });
+            record = Pine.getHookRecord(backend.getArtMethod(method));
+        }
+    }
+
+    static final class CountingHook extends MethodHook {
+        int before, after;
+
+        @Override public void beforeCall(Pine.CallFrame callFrame) {
+            before++;
+        }
+
+        @Override public void afterCall(Pine.CallFrame callFrame) {
+            after++;
+        }
+    }
+}
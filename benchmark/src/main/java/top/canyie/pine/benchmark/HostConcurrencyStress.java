@@ -0,0 +1,64 @@
+package top.canyie.pine.benchmark;
+
+import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.XposedBridge;
+import top.canyie.pine.examples.test.ConcurrencyStress;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link ConcurrencyStress} of the example app on the host JVM against
+ * {@link InMemoryBackend}, with an extra Xposed callback on every target to cover the Xposed
+ * adapter too. Exits with status 1 if it fails:
+ * <pre>
+ * ./gradlew :benchmark:stress [-Pthreads=8] [-PstepMillis=1000]
+ * </pre>
+ * @author canyie
+ */
+public final class HostConcurrencyStress {
+    private HostConcurrencyStress() {
+    }
+
+    public static void main(String[] args) {
+        int threads = args.length > 0 ? Integer.parseInt(args[0])
+                : Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        long stepMillis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+        final InMemoryBackend backend = InMemoryBackend.install();
+        final ConcurrencyStress stress = new ConcurrencyStress(threads, stepMillis,
+                new ConcurrencyStress.Invoker() {
+                    @Override public Object call(Method method, Object thisObject, Object[] args)
+                            throws Throwable {
+                        return backend.call(method, thisObject, args);
+                    }
+                });
+
+        final AtomicLong xposedCalls = new AtomicLong();
+        final AtomicLong xposedWrongArgs = new AtomicLong();
+        for (Method target : stress.getTargets()) {
+            XposedBridge.hookMethod(target, new XC_MethodHook() {
+                @Override protected void beforeHookedMethod(MethodHookParam param) {
+                    xposedCalls.incrementAndGet();
+                    if (!stress.checkArgs((Method) param.method, param.args))
+                        xposedWrongArgs.incrementAndGet();
+                }
+            });
+        }
+
+        boolean passed = stress.run();
+        for (ConcurrencyStress.Result result : stress.getResults()) System.out.println(result);
+        long calls = stress.getTotalCalls();
+        if (xposedCalls.get() != calls) {
+            System.out.println("Xposed callbacks ran " + xposedCalls.get() + " times for " + calls + " calls");
+            passed = false;
+        }
+        if (xposedWrongArgs.get() != 0) {
+            System.out.println("Xposed callbacks got wrong arguments " + xposedWrongArgs.get() + " times");
+            passed = false;
+        }
+        for (String failure : stress.getFailures()) System.out.println(failure);
+        System.out.println(passed ? "PASSED" : "FAILED (" + stress.getFailureCount() + " failures)");
+        System.exit(passed ? 0 : 1);
+    }
+}
@@ -0,0 +1,160 @@
+package top.canyie.pine.benchmark;
+
+import top.canyie.pine.NativeBackend;
+import top.canyie.pine.Pine;
+import top.canyie.pine.PineConfig;
+import top.canyie.pine.utils.Primitives;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for libpine on a plain JVM. Nothing is patched: a "hooked" method still runs its own
+ * code when called directly, calls go through Pine only via {@link #call}, which does what a
+ * bridge method does on ART. The original method is called with reflection.
+ * Only methods can be hooked, constructors cannot be called as a backup method here.
+ * @author canyie
+ */
+public final class InMemoryBackend implements NativeBackend {
+    private final ConcurrentMap<Member, Long> ids = new ConcurrentHashMap<>();
+    private final AtomicLong lastId = new AtomicLong();
+    // Backups returned by hookBatch() by handle
+    private final ConcurrentMap<Long, Method> backups = new ConcurrentHashMap<>();
+    // Ids of the hooked methods, in hook order
+    private long[] hooked = new long[16];
+    private int hookedCount;
+
+    /**
+     * Installs an instance as the backend of Pine and initializes Pine, or returns the installed
+     * one if called again.
+     */
+    public static synchronized InMemoryBackend install() {
+        if (Pine.getBackend() instanceof InMemoryBackend) return (InMemoryBackend) Pine.getBackend();
+        InMemoryBackend backend = new InMemoryBackend();
+        Pine.setBackend(backend);
+        Pine.ensureInitialized();
+        // Otherwise every call of the hooked methods will be formatted for logging.
+        PineConfig.debug = false;
+        return backend;
+    }
+
+    /** Calls a hooked method the way its bridge does: boxed arguments through Pine.handleCall. */
+    public Object call(Member target, Object thisObject, Object... args) throws Throwable {
+        return Pine.handleCall(Pine.getHookRecord(getArtMethod(target)), thisObject, args);
+    }
+
+    @Override public void init() {
+    }
+
+    @Override public long currentThread() {
+        return Thread.currentThread().getId() + 1;
+    }
+
+    @Override public long getArtMethod(Member method) {
+        Long id = ids.get(method);
+        if (id == null) {
+            // Methods returned by reflection are copies, they are equal but not the same.
+            Long newId = lastId.addAndGet(8);
+            id = ids.putIfAbsent(method, newId);
+            if (id == null) id = newId;
+        }
+        return id;
+    }
+
+    @Override public Method hook(long thread, Class<?> declaring, Member target, Method bridge,
+                                 boolean isInlineHook, boolean isNativeOrProxy,
+                                 int artMethodRegister, int[] fallbackReason) {
+        // The target itself still runs the original code.
+        if (!(target instanceof Method)) return null;
+        synchronized (this) {
+            if (hookedCount == hooked.length) hooked = Arrays.copyOf(hooked, hookedCount * 2);
+            hooked[hookedCount++] = getArtMethod(target);
+        }
+        return (Method) target;
+    }
+
+    @Override public void hookBatch(long thread, int count, Class<?>[] declarings,
+                                    Member[] targets, Method[] bridges, byte[] flags,
+                                    long[] out, Method[] outMethods, int[] fallbackReasons) {
+        for (int i = 0;i < count;i++) {
+            Method backup = hook(thread, declarings[i], targets[i], bridges[i],
+                    (flags[i] & Pine.BATCH_FLAG_INLINE) != 0,
+                    (flags[i] & Pine.BATCH_FLAG_NATIVE_OR_PROXY) != 0, -1, null);
+            // The backup is the target itself, so is its handle.
+            if (backup != null) {
+                backups.put(getArtMethod(backup), backup);
+                out[i] = getArtMethod(backup);
+            }
+        }
+    }
+
+    @Override public Method getBackupMethod(Class<?> declaring, long backup) {
+        return backups.get(backup);
+    }
+
+    @Override public boolean compile(long thread, Member method) {
+        return true;
+    }
+
+    @Override public boolean decompile(Member method, boolean disableJit) {
+        return false;
+    }
+
+    @Override public boolean prepareJit() {
+        return false;
+    }
+
+    @Override public boolean disableJitInline() {
+        return false;
+    }
+
+    @Override public int checkHooks() {
+        return 0;
+    }
+
+    @Override public boolean disableProfileSaver() {
+        return false;
+    }
+
+    @Override public void updateDeclaringClass(Member origin, Method backup) {
+    }
+
+    @Override public void getMemoryStats(long[] out) {
+    }
+
+    @Override public Object invokeBackupObject(Member origin, Method backup, Class<?> declaring,
+                                               Object thisObject, Object[] args, long[] rawArgs,
+                                               String shorty) throws Throwable {
+        return invoke(backup, thisObject, args);
+    }
+
+    @Override public long invokeBackupPrimitive(Member origin, Method backup, Class<?> declaring,
+                                                Object thisObject, Object[] args, long[] rawArgs,
+                                                String shorty) throws Throwable {
+        return Primitives.unboxToRawBits(backup.getReturnType(), invoke(backup, thisObject, args));
+    }
+
+    @Override public Member getCallerMethod(long pc, long sp, boolean[] stable) {
+        return null;
+    }
+
+    /** Reports every hook in replacement mode without any trampoline. */
+    @Override public synchronized long[] getInstalledHooks() {
+        long[] out = new long[hookedCount * 8];
+        for (int i = 0;i < hookedCount;i++) out[i * 8] = hooked[i];
+        return out;
+    }
+
+    private static Object invoke(Method method, Object thisObject, Object[] args) throws Throwable {
+        try {
+            return method.invoke(thisObject, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package top.canyie.pine.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.robv.android.xposed.XC_MethodHook;
+import de.robv.android.xposed.XposedBridge;
+import top.canyie.pine.Pine;
+import top.canyie.pine.callback.MethodHook;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the Xposed adapter: the same number of callbacks, which read the first argument and
+ * replace the result after the call, registered through XposedBridge.hookMethod and as plain
+ * Pine MethodHooks on two identical methods.
+ * @author canyie
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XposedBenchmark {
+    @Param({"1", "4"}) public int callbacks;
+    String arg = "arg";
+    private Pine.HookRecord xposedRecord;
+    private Pine.HookRecord pineRecord;
+
+    public static String xposedTarget(String s) {
+        return s;
+    }
+
+    public static String pineTarget(String s) {
+        return s;
+    }
+
+    @Setup public void setUp() throws Exception {
+        InMemoryBackend backend = InMemoryBackend.install();
+        Method xposedTarget = XposedBenchmark.class.getDeclaredMethod("xposedTarget", String.class);
+        Method pineTarget = XposedBenchmark.class.getDeclaredMethod("pineTarget", String.class);
+        for (int i = 0;i < callbacks;i++) {
+            XposedBridge.hookMethod(xposedTarget, new XC_MethodHook() {
+                @Override protected void beforeHookedMethod(MethodHookParam param) {
+                    if (param.args[0] == null) param.setResult(null);
+                }
+
+                @Override protected void afterHookedMethod(MethodHookParam param) {
+                    param.setResult(param.getResult());
+                }
+            });
+            Pine.hook(pineTarget, new MethodHook() {
+                @Override public void beforeCall(Pine.CallFrame callFrame) {
+                    if (callFrame.args[0] == null) callFrame.setResult(null);
+                }
+
+                @Override public void afterCall(Pine.CallFrame callFrame) {
+                    callFrame.setResult(callFrame.getResult());
+                }
+            });
+        }
+        xposedRecord = Pine.getHookRecord(backend.getArtMethod(xposedTarget));
+        pineRecord = Pine.getHookRecord(backend.getArtMethod(pineTarget));
+    }
+
+    @Benchmark public Object xposed() throws Throwable {
+        return Pine.handleCall(xposedRecord, null, new Object[] {arg});
+    }
+
+    @Benchmark public Object pine() throws Throwable {
+        return Pine.handleCall(pineRecord, null, new Object[] {arg});
+    }
+}
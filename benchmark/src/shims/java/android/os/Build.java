@@ -0,0 +1,30 @@
+package android.os;
+
+/**
+ * Host stand-in for android.os.Build. SDK_INT is 0, so no version specific path is taken.
+ * @author canyie
+ */
+public final class Build {
+    private Build() {
+    }
+
+    public static final class VERSION {
+        public static final int SDK_INT = 0;
+        public static final int PREVIEW_SDK_INT = 0;
+
+        private VERSION() {
+        }
+    }
+
+    public static final class VERSION_CODES {
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+        public static final int M = 23;
+        public static final int N = 24;
+        public static final int O = 26;
+        public static final int Q = 29;
+
+        private VERSION_CODES() {
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package android.os;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Host stand-in for android.os.Bundle, only the methods used by XCallback.Param.
+ * @author canyie
+ */
+public final class Bundle {
+    private final Map<String, Serializable> values = new HashMap<>();
+
+    public Serializable getSerializable(String key) {
+        return values.get(key);
+    }
+
+    public void putSerializable(String key, Serializable value) {
+        values.put(key, value);
+    }
+}
@@ -0,0 +1,15 @@
+package dalvik.system;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Host stand-in for dalvik.system.InMemoryDexClassLoader. Typed bridges are never generated on
+ * the host (Build.VERSION.SDK_INT is 0), so it cannot load anything.
+ * @author canyie
+ */
+public class InMemoryDexClassLoader extends ClassLoader {
+    public InMemoryDexClassLoader(ByteBuffer dexBuffer, ClassLoader parent) {
+        super(parent);
+        throw new UnsupportedOperationException("No dex on the host");
+    }
+}
@@ -0,0 +1,14 @@
+package top.canyie.pine.xposed;
+
+/**
+ * Host stand-in for the parts of PineXposed used by XposedBridge, the real one loads modules
+ * through Android APIs.
+ * @author canyie
+ */
+public final class PineXposed {
+    public static final String TAG = "PineXposed";
+    public static boolean disableHooks = false;
+
+    private PineXposed() {
+    }
+}
@@ -6,8 +6,11 @@
 #include <string>
 #include "android.h"
 #include "utils/well_known_classes.h"
+#include "utils/elf_img_registry.h"
+#include "utils/offset_cache.h"
 #include "art/art_method.h"
 #include "art/jit.h"
+#include "art/instrumentation.h"
 #include "trampoline/trampoline_installer.h"
 
 using namespace pine;
@@ -19,8 +22,9 @@ void (*Android::suspend_vm)() = nullptr;
 
 void (*Android::resume_vm)() = nullptr;
 
-void Android::Init(JNIEnv* env, int sdk_version) {
+void Android::Init(JNIEnv* env, int sdk_version, const char* cache_dir) {
     Android::version = sdk_version;
+    OffsetCache::Load(cache_dir);
     if (UNLIKELY(env->GetJavaVM(&jvm) != JNI_OK)) {
         LOGF("Cannot get java vm");
         env->FatalError("Cannot get java vm");
@@ -28,21 +32,24 @@ void Android::Init(JNIEnv* env, int sdk_version) {
     }
 
     {
-        ElfImg art_lib_handle("libart.so");
-        suspend_vm = reinterpret_cast<void (*)()>(
-                art_lib_handle.GetSymbolAddress(
-                        "_ZN3art3Dbg9SuspendVMEv")); // art::Dbg::SuspendVM()
-        resume_vm = reinterpret_cast<void (*)()>(
-                art_lib_handle.GetSymbolAddress("_ZN3art3Dbg8ResumeVMEv")); // art::Dbg::ResumeVM()
+        ScopedElfImg art_lib_handle("libart.so", true, true);
+        const char* vm_symbols[] = {
+                "_ZN3art3Dbg9SuspendVMEv", // art::Dbg::SuspendVM()
+                "_ZN3art3Dbg8ResumeVMEv" // art::Dbg::ResumeVM()
+        };
+        void* vm_functions[NELEM(vm_symbols)];
+        art_lib_handle->GetSymbolAddresses(vm_symbols, vm_functions, NELEM(vm_symbols));
+        suspend_vm = reinterpret_cast<void (*)()>(vm_functions[0]);
+        resume_vm = reinterpret_cast<void (*)()>(vm_functions[1]);
 
         if (Android::version >= Android::VERSION_P)
-            DisableHiddenApiPolicy(&art_lib_handle);
+            DisableHiddenApiPolicy(art_lib_handle.Get());
 
-        art::Thread::Init(&art_lib_handle);
-        art::ArtMethod::Init(&art_lib_handle);
+        art::Thread::Init(art_lib_handle.Get());
+        art::ArtMethod::Init(art_lib_handle.Get());
         if (sdk_version >= VERSION_N) {
-            ElfImg jit_lib_handle("libart-compiler.so", false);
-            art::Jit::Init(&art_lib_handle, &jit_lib_handle);
+            art::Jit::Init(art_lib_handle.Get());
+            art::Instrumentation::Init(art_lib_handle.Get());
         }
     }
 
@@ -93,15 +100,15 @@ static bool FakeProcessProfilingInfo() {
 }
 
 bool Android::DisableProfileSaver() {
-    // If the user needs this feature very much,
-    // we may find these symbols during initialization in the future to reduce time consumption.
     void* process_profiling_info;
     {
-        ElfImg handle("libart.so");
+        // Reuses the image mapped in Init()
+        ScopedElfImg handle("libart.so", true, true);
         const char* symbol = version < VERSION_O ? "_ZN3art12ProfileSaver20ProcessProfilingInfoEPt"
                                                  : "_ZN3art12ProfileSaver20ProcessProfilingInfoEbPt";
-        process_profiling_info = handle.GetSymbolAddress(symbol);
+        process_profiling_info = handle->GetSymbolAddress(symbol);
     }
+    OffsetCache::Save();
 
     if (UNLIKELY(!process_profiling_info)) {
         LOGE("Failed to disable ProfileSaver: art::ProfileSaver::ProcessProfilingInfo not found");
@@ -16,7 +16,7 @@ namespace pine {
             return sizeof(void*) == 8;
         }
 
-        static void Init(JNIEnv* env, int sdk_version);
+        static void Init(JNIEnv* env, int sdk_version, const char* cache_dir);
 
         static bool DisableProfileSaver();
 
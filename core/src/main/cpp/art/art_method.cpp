@@ -9,6 +9,7 @@
 #include "../utils/well_known_classes.h"
 #include "../utils/scoped_local_ref.h"
 #include "../utils/memory.h"
+#include "../utils/offset_cache.h"
 
 using namespace pine::art;
 
@@ -103,86 +104,135 @@ static inline uint32_t Align(uint32_t offset, uint32_t align_with) {
     return offset;
 }
 
-void ArtMethod::InitMembers(ArtMethod* m1, ArtMethod* m2, uint32_t access_flags) {
-    if (Android::version >= Android::VERSION_N) {
-        kAccCompileDontBother = (Android::version >= Android::VERSION_O_MR1)
-                                ? AccessFlags::kCompileDontBother_O_MR1
-                                : AccessFlags::kCompileDontBother_N;
-    }
+bool ArtMethod::ApplyCachedLayout(ArtMethod* m1) {
+    ArtMethodLayout layout;
+    if (!OffsetCache::GetArtMethodLayout(&layout)) return false;
+
+    // Cheap sanity checks, just probe again if anything looks wrong.
+    if (UNLIKELY(layout.size != size || layout.compile_dont_bother != kAccCompileDontBother))
+        return false;
+    if (UNLIKELY(layout.access_flags_offset < 0 || layout.entry_point_from_jni_offset < 0
+                 || static_cast<uint32_t>(layout.access_flags_offset) + sizeof(uint32_t) > size
+                 || static_cast<uint32_t>(layout.entry_point_from_jni_offset) + sizeof(void*) > size))
+        return false;
+
+    auto base = reinterpret_cast<uintptr_t>(m1);
+    if (*reinterpret_cast<uint32_t*>(base + layout.access_flags_offset) != layout.access_flags)
+        return false;
+    if (*reinterpret_cast<void**>(base + layout.entry_point_from_jni_offset) != Ruler_m1)
+        return false;
+
+    access_flags_.SetOffset(layout.access_flags_offset);
+    entry_point_from_jni_.SetOffset(layout.entry_point_from_jni_offset);
+    entry_point_from_compiled_code_.SetOffset(layout.entry_point_from_compiled_code_offset);
+    return true;
+}
 
-    size = Difference(reinterpret_cast<intptr_t>(m1), reinterpret_cast<intptr_t>(m2));
+void ArtMethod::ProbeMembers(ArtMethod* m1, uint32_t access_flags) {
     int android_version = Android::version;
-    if (LIKELY(android_version >= Android::VERSION_L)) {
-        for (uint32_t offset = 0; offset < size; offset += 2) {
-            void* ptr = reinterpret_cast<void*>(reinterpret_cast<uintptr_t>(m1) + offset);
-            if ((*static_cast<uint32_t*>(ptr)) == access_flags) {
-                access_flags_.SetOffset(offset);
-            } else if (UNLIKELY(android_version == Android::VERSION_L)) {
-                // On Android 5.0, type of entry_point_from_jni_ is uint64_t
-                if ((*static_cast<uint64_t*>(ptr)) == reinterpret_cast<uint64_t>(Ruler_m1))
-                    entry_point_from_jni_.SetOffset(offset);
-            } else if ((*static_cast<void**>(ptr)) == Ruler_m1) {
+    bool found = true;
+    for (uint32_t offset = 0; offset < size; offset += 2) {
+        void* ptr = reinterpret_cast<void*>(reinterpret_cast<uintptr_t>(m1) + offset);
+        if ((*static_cast<uint32_t*>(ptr)) == access_flags) {
+            access_flags_.SetOffset(offset);
+        } else if (UNLIKELY(android_version == Android::VERSION_L)) {
+            // On Android 5.0, type of entry_point_from_jni_ is uint64_t
+            if ((*static_cast<uint64_t*>(ptr)) == reinterpret_cast<uint64_t>(Ruler_m1))
                 entry_point_from_jni_.SetOffset(offset);
-            }
-
-            bool done = access_flags_.IsValid() && entry_point_from_jni_.IsValid();
-            if (UNLIKELY(done)) break;
+        } else if ((*static_cast<void**>(ptr)) == Ruler_m1) {
+            entry_point_from_jni_.SetOffset(offset);
         }
 
-        if (UNLIKELY(!access_flags_.IsValid())) {
-            do {
-                if (LIKELY(Android::version >= Android::VERSION_N)) {
+        bool done = access_flags_.IsValid() && entry_point_from_jni_.IsValid();
+        if (UNLIKELY(done)) break;
+    }
+
+    if (UNLIKELY(!access_flags_.IsValid())) {
+        do {
+            if (LIKELY(Android::version >= Android::VERSION_N)) {
+                // TODO: Is this really possible?
+                LOGW("failed to find access_flags_ with default access flags, try again with kAccCompileDontBother");
+                access_flags |= kAccCompileDontBother;
+                int offset = Memory::FindOffset(m1, access_flags, size, 2);
+                if (LIKELY(offset >= 0)) {
+                    LOGW("Found access_flags_ with kAccCompileDontBother, offset %d", offset);
+                    access_flags_.SetOffset(offset);
+                    break;
+                }
+
+                if (LIKELY(Android::version >= Android::VERSION_R)) {
+                    // Android R has a new access flags: kAccPreCompiled
                     // TODO: Is this really possible?
-                    LOGW("failed to find access_flags_ with default access flags, try again with kAccCompileDontBother");
-                    access_flags |= kAccCompileDontBother;
-                    int offset = Memory::FindOffset(m1, access_flags, size, 2);
+                    LOGW("failed to find access_flags_ with default access flags, try again with kAccPreCompiled");
+                    access_flags |= AccessFlags::kPreCompiled;
+                    // Don't clear kAccCompileDontBother.
+                    offset = Memory::FindOffset(m1, access_flags, size, 2);
                     if (LIKELY(offset >= 0)) {
-                        LOGW("Found access_flags_ with kAccCompileDontBother, offset %d", offset);
+                        LOGW("Found access_flags_ with kAccPreCompiled, offset %d", offset);
                         access_flags_.SetOffset(offset);
                         break;
                     }
-
-                    if (LIKELY(Android::version >= Android::VERSION_R)) {
-                        // Android R has a new access flags: kAccPreCompiled
-                        // TODO: Is this really possible?
-                        LOGW("failed to find access_flags_ with default access flags, try again with kAccPreCompiled");
-                        access_flags |= AccessFlags::kPreCompiled;
-                        // Don't clear kAccCompileDontBother.
-                        offset = Memory::FindOffset(m1, access_flags, size, 2);
-                        if (LIKELY(offset >= 0)) {
-                            LOGW("Found access_flags_ with kAccPreCompiled, offset %d", offset);
-                            access_flags_.SetOffset(offset);
-                            break;
-                        }
-                    }
                 }
-                LOGE("Member access_flags_ not found in ArtMethod, use default.");
-                access_flags_.SetOffset(GetDefaultAccessFlagsOffset());
-            } while (false);
+            }
+            LOGE("Member access_flags_ not found in ArtMethod, use default.");
+            found = false;
+            access_flags_.SetOffset(GetDefaultAccessFlagsOffset());
+        } while (false);
+    }
+
+    uint32_t entry_point_member_size = Android::version == Android::VERSION_L
+                                       ? sizeof(uint64_t) : sizeof(void*);
+
+    if (LIKELY(entry_point_from_jni_.IsValid())) {
+        uint32_t compiled_code_entry_offset = entry_point_from_jni_.GetOffset()
+                                              + entry_point_member_size;
+
+        if (Android::version >= Android::VERSION_O) {
+            // Only align offset on Android O+ (PtrSizedFields is PACKED(4) in Android N or lower.)
+            compiled_code_entry_offset = Align(compiled_code_entry_offset,
+                                               entry_point_member_size);
         }
 
-        uint32_t entry_point_member_size = Android::version == Android::VERSION_L
-                                           ? sizeof(uint64_t) : sizeof(void*);
+        entry_point_from_compiled_code_.SetOffset(compiled_code_entry_offset);
 
-        if (LIKELY(entry_point_from_jni_.IsValid())) {
-            uint32_t compiled_code_entry_offset = entry_point_from_jni_.GetOffset()
-                                                  + entry_point_member_size;
+    } else {
+        LOGE("Member entry_point_from_jni_ not found in ArtMethod, use default.");
+        found = false;
+        entry_point_from_jni_.SetOffset(GetDefaultEntryPointFromJniOffset());
+        entry_point_from_compiled_code_.SetOffset(
+                GetDefaultEntryPointFromQuickCompiledCodeOffset());
+    }
 
-            if (Android::version >= Android::VERSION_O) {
-                // Only align offset on Android O+ (PtrSizedFields is PACKED(4) in Android N or lower.)
-                compiled_code_entry_offset = Align(compiled_code_entry_offset,
-                                                   entry_point_member_size);
-            }
+    // On Android 5.0 entry_point_from_jni_ is uint64_t, skip caching to keep validation simple.
+    if (LIKELY(found && android_version > Android::VERSION_L)) {
+        ArtMethodLayout layout;
+        layout.size = static_cast<uint32_t>(size);
+        layout.access_flags_offset = access_flags_.GetOffset();
+        layout.entry_point_from_jni_offset = entry_point_from_jni_.GetOffset();
+        layout.entry_point_from_compiled_code_offset = entry_point_from_compiled_code_.GetOffset();
+        layout.access_flags = access_flags_.Get(m1);
+        layout.compile_dont_bother = kAccCompileDontBother;
+        OffsetCache::PutArtMethodLayout(layout);
+    }
+}
 
-            entry_point_from_compiled_code_.SetOffset(compiled_code_entry_offset);
+void ArtMethod::InitMembers(ArtMethod* m1, ArtMethod* m2, uint32_t access_flags) {
+    if (Android::version >= Android::VERSION_N) {
+        kAccCompileDontBother = (Android::version >= Android::VERSION_O_MR1)
+                                ? AccessFlags::kCompileDontBother_O_MR1
+                                : AccessFlags::kCompileDontBother_N;
+    }
 
-        } else {
-            LOGE("Member entry_point_from_jni_ not found in ArtMethod, use default.");
-            entry_point_from_jni_.SetOffset(GetDefaultEntryPointFromJniOffset());
-            entry_point_from_compiled_code_.SetOffset(
-                    GetDefaultEntryPointFromQuickCompiledCodeOffset());
+    size = Difference(reinterpret_cast<intptr_t>(m1), reinterpret_cast<intptr_t>(m2));
+    int android_version = Android::version;
+    if (LIKELY(android_version >= Android::VERSION_L)) {
+        if (!ApplyCachedLayout(m1)) {
+            ProbeMembers(m1, access_flags);
         }
 
+        uint32_t entry_point_member_size = Android::version == Android::VERSION_L
+                                           ? sizeof(uint64_t) : sizeof(void*);
+
         if (Android::version < Android::VERSION_N) {
             // Not align: PtrSizedFields is PACKED(4) in the android version.
             entry_point_from_interpreter_ = new Member<ArtMethod, void*>(
@@ -250,6 +300,8 @@ void ArtMethod::AfterHook(bool is_inline_hook, bool debuggable, bool is_native_o
     uint32_t access_flags = GetAccessFlags();
 
     if (Android::version >= Android::VERSION_N) {
+        // Also makes the method non-inlinable on Android 11+, see HInliner::TryBuildAndInline.
+        // Callers compiled before we hook it need Pine.deoptimizeCallers().
         access_flags |= kAccCompileDontBother;
     }
 
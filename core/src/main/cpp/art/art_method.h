@@ -293,6 +293,9 @@ namespace pine::art {
             }
         }
 
+        static bool ApplyCachedLayout(ArtMethod* m1);
+        static void ProbeMembers(ArtMethod* m1, uint32_t access_flags);
+
         void* GetInterpreterBridge() {
             return UNLIKELY(IsNative()) ? art_quick_generic_jni_trampoline
                                         : art_quick_to_interpreter_bridge;
@@ -0,0 +1,125 @@
+#include "instrumentation.h"
+#include "../android.h"
+#include "../trampoline/trampoline_installer.h"
+
+using namespace pine;
+using namespace pine::art;
+
+void* Instrumentation::update_methods_code = nullptr;
+void (*Instrumentation::backup_update_methods_code)(void*, ArtMethod*, const void*) = nullptr;
+std::atomic<bool> Instrumentation::hooked {false};
+std::atomic<Instrumentation::WatchTable*> Instrumentation::watched {nullptr};
+std::mutex Instrumentation::mutex;
+
+void Instrumentation::Init(const ElfImg* art_lib_handle) {
+    // art::instrumentation::Instrumentation::UpdateMethodsCode(art::ArtMethod*, void const*)
+    update_methods_code = art_lib_handle->GetSymbolAddress(
+            "_ZN3art15instrumentation15Instrumentation17UpdateMethodsCodeEPNS_9ArtMethodEPKv");
+    if (UNLIKELY(!update_methods_code))
+        LOGW("UpdateMethodsCode not found, only Pine.checkHooks() can restore overwritten hooks.");
+}
+
+void Instrumentation::EnsureHooked() {
+    if (LIKELY(hooked.load(std::memory_order_acquire))) return;
+    if (Android::version < Android::VERSION_N) return;
+    std::lock_guard<std::mutex> lock(mutex);
+    if (hooked.load(std::memory_order_relaxed) || !update_methods_code) return;
+    void* backup = TrampolineInstaller::GetDefault()->NativeHook(update_methods_code,
+            reinterpret_cast<void*>(FakeUpdateMethodsCode));
+    hooked.store(true, std::memory_order_release);
+    if (UNLIKELY(!backup)) {
+        LOGE("Failed to hook UpdateMethodsCode, JIT may overwrite replacement mode hooks.");
+        return;
+    }
+    backup_update_methods_code = reinterpret_cast<void (*)(void*, ArtMethod*, const void*)>(backup);
+}
+
+static size_t HashOf(ArtMethod* method) {
+    // ArtMethods are aligned and close to each other.
+    uint64_t address = reinterpret_cast<uintptr_t>(method);
+    return static_cast<size_t>((address * 0x9E3779B97F4A7C15ULL) >> 32);
+}
+
+Instrumentation::WatchTable* Instrumentation::NewWatchTable(size_t capacity) {
+    auto table = new WatchTable;
+    table->capacity = capacity;
+    table->size = 0;
+    table->entries = new WatchTable::Entry[capacity]();
+    return table;
+}
+
+Instrumentation::WatchTable::Entry* Instrumentation::FindSlot(WatchTable* table,
+                                                              ArtMethod* method) {
+    size_t mask = table->capacity - 1;
+    for (size_t i = HashOf(method) & mask;;i = (i + 1) & mask) {
+        WatchTable::Entry* slot = &table->entries[i];
+        ArtMethod* current = slot->method.load(std::memory_order_acquire);
+        if (current == method || current == nullptr) return slot;
+    }
+}
+
+void Instrumentation::Watch(ArtMethod* method, void* entry) {
+    if (Android::version < Android::VERSION_N) return;
+    std::lock_guard<std::mutex> lock(mutex);
+    WatchTable* table = watched.load(std::memory_order_relaxed);
+    if (UNLIKELY(!table || (table->size + 1) * 4 > table->capacity * 3)) {
+        WatchTable* old_table = table;
+        table = NewWatchTable(old_table ? old_table->capacity * 2 : kMinWatchTableCapacity);
+        if (old_table) {
+            for (size_t i = 0;i < old_table->capacity;i++) {
+                WatchTable::Entry& old_slot = old_table->entries[i];
+                ArtMethod* old_method = old_slot.method.load(std::memory_order_relaxed);
+                if (!old_method) continue;
+                WatchTable::Entry* slot = FindSlot(table, old_method);
+                slot->entry.store(old_slot.entry.load(std::memory_order_relaxed),
+                                  std::memory_order_relaxed);
+                slot->method.store(old_method, std::memory_order_relaxed);
+            }
+            table->size = old_table->size;
+        }
+        // Publishes the copied entries too. The old table is leaked, see WatchTable.
+        watched.store(table, std::memory_order_release);
+    }
+
+    WatchTable::Entry* slot = FindSlot(table, method);
+    slot->entry.store(entry, std::memory_order_relaxed);
+    if (slot->method.load(std::memory_order_relaxed) != method) {
+        slot->method.store(method, std::memory_order_release);
+        table->size++;
+    }
+}
+
+bool Instrumentation::IsWatched(ArtMethod* method) {
+    WatchTable* table = watched.load(std::memory_order_acquire);
+    return table && FindSlot(table, method)->method.load(std::memory_order_relaxed) == method;
+}
+
+int Instrumentation::Verify() {
+    std::lock_guard<std::mutex> lock(mutex);
+    WatchTable* table = watched.load(std::memory_order_relaxed);
+    if (!table) return 0;
+    int restored = 0;
+    for (size_t i = 0;i < table->capacity;i++) {
+        WatchTable::Entry& slot = table->entries[i];
+        ArtMethod* method = slot.method.load(std::memory_order_relaxed);
+        if (!method) continue;
+        void* entry = slot.entry.load(std::memory_order_relaxed);
+        if (UNLIKELY(method->GetEntryPointFromCompiledCode() != entry)) {
+            LOGW("Entry of hooked method %p changed to %p, restoring it.", method,
+                 method->GetEntryPointFromCompiledCode());
+            method->SetEntryPointFromCompiledCode(entry);
+            restored++;
+        }
+    }
+    return restored;
+}
+
+void Instrumentation::FakeUpdateMethodsCode(void* instrumentation, ArtMethod* method,
+                                            const void* quick_code) {
+    if (UNLIKELY(IsWatched(method))) {
+        // Cannot be given to the backup either, see the comment of this class.
+        LOGW("Ignoring request to update the entry of hooked method %p to %p.", method, quick_code);
+        return;
+    }
+    backup_update_methods_code(instrumentation, method, quick_code);
+}
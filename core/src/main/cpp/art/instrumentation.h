@@ -0,0 +1,78 @@
+#ifndef PINE_INSTRUMENTATION_H
+#define PINE_INSTRUMENTATION_H
+
+#include <atomic>
+#include <mutex>
+#include "art_method.h"
+#include "../utils/macros.h"
+#include "../utils/elf_img.h"
+
+namespace pine::art {
+    /**
+     * Keeps the entry point of methods hooked in replacement mode pointing to our trampoline.
+     * ART updates the entry of a method when the JIT commits new code for it or its class gets
+     * initialized, both through Instrumentation::UpdateMethodsCode, which we hook to drop updates
+     * for watched methods. Other paths (e.g. JIT code cache collection) are only caught by
+     * Verify(). Android 7.0+ only, older versions have no JIT that may overwrite the entry.
+     * UpdateMethodsCode is only hooked once a replacement mode hook exists, and only looks up
+     * the watched methods without locking, so it costs nothing to apps using inline hooks only.
+     *
+     * This only keeps the hook alive, the dropped code is not used: the backup of a replacement
+     * mode hook stays interpreted (see ArtMethod::BackupFrom), because JIT code cache collection
+     * only keeps code alive for methods known to ART, and hooked methods keep
+     * kAccCompileDontBother so they are neither JIT compiled nor inlined into their callers.
+     * So replacement mode targets do not run JIT code, only inline hooks keep it.
+     */
+    class Instrumentation final {
+    public:
+        static void Init(const ElfImg* art_lib_handle);
+
+        // Installs the hook on UpdateMethodsCode if it has not been installed yet, call it when
+        // hooking a method in replacement mode. Must be called while other threads are running.
+        static void EnsureHooked();
+
+        static void Watch(ArtMethod* method, void* entry);
+
+        // Restores the entry of watched methods that have been changed, returns the number of them.
+        // Other threads must be suspended (art::ScopedSuspendVM) when calling this.
+        static int Verify();
+
+    private:
+        /**
+         * Watched methods and their entries, open addressing and insert only. Looked up without
+         * locking, modified with mutex held. When full it is replaced by a bigger copy, the old
+         * one is never freed because a lookup may still be reading it.
+         */
+        struct WatchTable {
+            struct Entry {
+                std::atomic<ArtMethod*> method;
+                std::atomic<void*> entry;
+            };
+
+            size_t capacity; // Power of two
+            size_t size;
+            Entry* entries;
+        };
+
+        static constexpr size_t kMinWatchTableCapacity = 64;
+
+        static void FakeUpdateMethodsCode(void* instrumentation, ArtMethod* method,
+                                          const void* quick_code);
+
+        static bool IsWatched(ArtMethod* method);
+
+        static WatchTable::Entry* FindSlot(WatchTable* table, ArtMethod* method);
+
+        static WatchTable* NewWatchTable(size_t capacity);
+
+        static void* update_methods_code;
+        static void (*backup_update_methods_code)(void*, ArtMethod*, const void*);
+        static std::atomic<bool> hooked;
+        static std::atomic<WatchTable*> watched;
+        static std::mutex mutex;
+
+        DISALLOW_IMPLICIT_CONSTRUCTORS(Instrumentation);
+    };
+}
+
+#endif //PINE_INSTRUMENTATION_H
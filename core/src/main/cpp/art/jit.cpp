@@ -4,11 +4,15 @@
 
 #include "jit.h"
 #include "../android.h"
+#include "../utils/elf_img_registry.h"
+#include "../utils/offset_cache.h"
 
 using namespace pine::art;
 
 JitCompiler* Jit::self_compiler = nullptr;
 
+std::once_flag Jit::load_compiler_once;
+
 bool (*Jit::jit_compile_method)(void*, void*, void*, bool) = nullptr;
 
 bool (*Jit::jit_compile_method_q)(void*, void*, void*, bool, bool) = nullptr;
@@ -19,30 +23,15 @@ JitCompiler** Jit::global_compiler_ptr = nullptr;
 
 Member<void, size_t>* Jit::CompilerOptions_inline_max_code_units = nullptr;
 
-void Jit::Init(const ElfImg* art_lib_handle, const ElfImg* jit_lib_handle) {
+void Jit::Init(const ElfImg* art_lib_handle) {
     global_compiler_ptr = static_cast<JitCompiler**>(art_lib_handle->GetSymbolAddress(
             "_ZN3art3jit3Jit20jit_compiler_handle_E"));
 
-    auto jit_load = reinterpret_cast<JitCompiler* (*)(bool*)>(jit_lib_handle->GetSymbolAddress(
-            "jit_load"));
-
-    if (LIKELY(jit_load)) {
-        bool generate_debug_info = false;
-        self_compiler = jit_load(&generate_debug_info);
-    } else {
-        LOGW("Failed to create new JitCompiler: jit_load not found");
-    }
-
-    void* jit_compile_method = jit_lib_handle->GetSymbolAddress("jit_compile_method");
-
     if (Android::version >= Android::VERSION_Q) {
-        Jit::jit_compile_method_q = reinterpret_cast<bool (*)(void*, void*, void*, bool, bool)>(jit_compile_method);
         // Android Q, ART may update CompilerOptions and the value we set will be overwritten.
         // the function pointer saved in art::jit::Jit::jit_update_options_ .
         Jit::jit_update_options_ptr = static_cast<void**>(art_lib_handle->GetSymbolAddress(
                 "_ZN3art3jit3Jit19jit_update_options_E"));
-    } else {
-        Jit::jit_compile_method = reinterpret_cast<bool (*)(void*, void*, void*, bool)>(jit_compile_method);
     }
 
     // fields count from compiler_filter_ (not included) to inline_max_code_units_ (not included)
@@ -54,7 +43,39 @@ void Jit::Init(const ElfImg* art_lib_handle, const ElfImg* jit_lib_handle) {
             sizeof(void*) + thresholds_count * sizeof(size_t));
 }
 
+bool Jit::EnsureCompilerLoaded() {
+    if (UNLIKELY(Android::version < Android::VERSION_N)) return false;
+    std::call_once(load_compiler_once, LoadCompiler);
+    return jit_compile_method || jit_compile_method_q;
+}
+
+void Jit::LoadCompiler() {
+    {
+        ScopedElfImg jit_lib_handle("libart-compiler.so", false, true);
+
+        auto jit_load = reinterpret_cast<JitCompiler* (*)(bool*)>(jit_lib_handle->GetSymbolAddress(
+                "jit_load"));
+
+        if (LIKELY(jit_load)) {
+            bool generate_debug_info = false;
+            self_compiler = jit_load(&generate_debug_info);
+        } else {
+            LOGW("Failed to create new JitCompiler: jit_load not found");
+        }
+
+        void* jit_compile_method = jit_lib_handle->GetSymbolAddress("jit_compile_method");
+
+        if (Android::version >= Android::VERSION_Q) {
+            Jit::jit_compile_method_q = reinterpret_cast<bool (*)(void*, void*, void*, bool, bool)>(jit_compile_method);
+        } else {
+            Jit::jit_compile_method = reinterpret_cast<bool (*)(void*, void*, void*, bool)>(jit_compile_method);
+        }
+    }
+    OffsetCache::Save();
+}
+
 bool Jit::CompileMethod(Thread* thread, void* method) {
+    EnsureCompilerLoaded();
     void* compiler = GetCompiler();
     if (UNLIKELY(!compiler)) {
         LOGE("No JitCompiler available for JIT compilation!");
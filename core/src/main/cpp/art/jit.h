@@ -6,6 +6,7 @@
 #define PINE_JIT_H
 
 #include <memory>
+#include <mutex>
 #include "../utils/macros.h"
 #include "thread.h"
 #include "../utils/log.h"
@@ -22,7 +23,13 @@ namespace pine::art {
 
     class Jit final {
     public:
-        static void Init(const ElfImg* art_lib_handle, const ElfImg* jit_lib_handle);
+        // Only resolves what is in libart, libart-compiler is loaded by EnsureCompilerLoaded().
+        static void Init(const ElfImg* art_lib_handle);
+
+        // Opens libart-compiler and creates our own JitCompiler the first time it is called,
+        // which is expensive (jit_load sets up a whole compiler). Thread safe.
+        // Returns false if methods cannot be compiled.
+        static bool EnsureCompilerLoaded();
 
         static JitCompiler* GetCompiler() {
             return LIKELY(self_compiler) ? self_compiler : GetGlobalCompiler();
@@ -37,8 +44,12 @@ namespace pine::art {
         static bool DisableInline();
 
     private:
+        static void LoadCompiler();
+
         static JitCompiler* self_compiler;
 
+        static std::once_flag load_compiler_once;
+
         static bool (*jit_compile_method)(void*, void*, void*, bool);
 
         static bool (*jit_compile_method_q)(void*, void*, void*, bool, bool);
@@ -3,14 +3,21 @@
 //
 
 #include <elf.h>
+#include <cstring>
+#include <vector>
 #include "jni_bridge.h"
 #include "art/art_method.h"
+#include "art/instrumentation.h"
 #include "utils/macros.h"
 #include "utils/scoped_local_ref.h"
 #include "utils/log.h"
 #include "utils/jni_helper.h"
 #include "trampoline/extras.h"
+#include "trampoline/hook_registry.h"
 #include "utils/memory.h"
+#include "utils/memory_maps.h"
+#include "utils/elf_img_registry.h"
+#include "utils/offset_cache.h"
 #include "utils/well_known_classes.h"
 #include "trampoline/trampoline_installer.h"
 
@@ -18,10 +25,19 @@ using namespace pine;
 
 bool debuggable = false;
 
-void Pine_init0(JNIEnv* env, jclass Pine, jint androidVersion, jboolean isDebuggable) {
+// Keep in sync with Pine.BATCH_FLAG_*
+static constexpr jbyte kBatchFlagInline = 1;
+static constexpr jbyte kBatchFlagNativeOrProxy = 1 << 1;
+
+void Pine_init0(JNIEnv* env, jclass Pine, jint androidVersion, jboolean isDebuggable,
+        jstring javaCacheDir) {
     LOGI("Pine native init...");
     TrampolineInstaller::GetOrInitDefault(); // trigger TrampolineInstaller::default_ initialize
-    Android::Init(env, androidVersion);
+    {
+        const char* cache_dir = javaCacheDir ? env->GetStringUTFChars(javaCacheDir, nullptr) : nullptr;
+        Android::Init(env, androidVersion, cache_dir);
+        if (cache_dir) env->ReleaseStringUTFChars(javaCacheDir, cache_dir);
+    }
     {
         ScopedLocalClassRef Ruler(env, "top/canyie/pine/Ruler");
         auto m1 = art::ArtMethod::Require(env, Ruler.Get(), "m1", "()V", true);
@@ -76,43 +92,72 @@ void Pine_init0(JNIEnv* env, jclass Pine, jint androidVersion, jboolean isDebugg
 
     env->SetStaticBooleanField(Pine, env->GetStaticFieldID(Pine, "is64Bit", "Z"),
                                static_cast<jboolean>(Android::Is64Bit()));
+
+    OffsetCache::Save();
 }
 
-jobject Pine_hook0(JNIEnv* env, jclass, jlong threadAddress, jclass declaring, jobject javaTarget,
-            jobject javaBridge, jboolean isInlineHook, jboolean isNativeOrProxy) {
-    auto thread = reinterpret_cast<art::Thread*>(threadAddress);
+struct HookRequest {
+    art::ArtMethod* target;
+    art::ArtMethod* bridge;
+    art::ArtMethod* backup;
+    // Only used when ArtMethod has a mirror class in java, backup is decoded from it after
+    // other threads are suspended (the object may move before that).
+    jobject java_backup;
+    bool is_inline_hook;
+    bool is_native_or_proxy;
+    // Argument register the typed bridge takes the ArtMethod in, -1 for the generic bridge.
+    int art_method_register;
+    bool inline_requested;
+    uint32_t fallback_reason;
+    TrampolineLayout layout;
+};
+
+// Everything that can be done before suspending other threads. Throws on failure.
+static bool PrepareHook(JNIEnv* env, art::Thread* thread, jobject javaTarget, jobject javaBridge,
+                        bool is_inline_hook, bool is_native_or_proxy, int art_method_register,
+                        HookRequest* request) {
     auto target = art::ArtMethod::FromReflectedMethod(env, javaTarget);
     auto bridge = art::ArtMethod::FromReflectedMethod(env, javaBridge);
 
     // The bridge method entry will be hardcoded in the trampoline, subsequent optimization
     // operations that require modification of the bridge method entry will not take effect.
-    // Try to do JIT compilation first to get the best performance.
+    // Try to do JIT compilation first to get the best performance. This loads the JIT compiler
+    // if no one did yet (e.g. Pine.initializeInBackground()).
     bridge->Compile(thread);
 
-    bool is_inline_hook = static_cast<bool>(isInlineHook);
-    bool is_native_or_proxy = static_cast<bool>(isNativeOrProxy);
-
     TrampolineInstaller* trampoline_installer = TrampolineInstaller::GetDefault();
 
+    request->inline_requested = is_inline_hook;
+    request->fallback_reason = HookRegistry::kFallbackNone;
     if (UNLIKELY(is_inline_hook && trampoline_installer->CannotSafeInlineHook(target))) {
         LOGW("Cannot safe inline hook the target method, force replacement mode.");
         is_inline_hook = false;
+        request->fallback_reason = HookRegistry::kFallbackCannotSafeInline;
     }
 
-    ScopedLocalRef<jobject> java_new_art_method(env);
-    art::ArtMethod* backup;
+    request->target = target;
+    request->bridge = bridge;
+    request->backup = nullptr;
+    request->java_backup = nullptr;
+    request->is_inline_hook = is_inline_hook;
+    request->is_native_or_proxy = is_native_or_proxy;
+    request->art_method_register = art_method_register;
+
+    // Inline hooks only need it if they fall back to replacement mode when installing,
+    // see EnsureInstrumentationHooked().
+    if (!is_inline_hook) art::Instrumentation::EnsureHooked();
+
     if (WellKnownClasses::java_lang_reflect_ArtMethod) {
         // If ArtMethod has mirror class in java, we cannot use malloc to direct
         // allocate a instance because it must has a record in Runtime.
-        java_new_art_method.Reset(env->AllocObject(WellKnownClasses::java_lang_reflect_ArtMethod));
+        request->java_backup = env->AllocObject(WellKnownClasses::java_lang_reflect_ArtMethod);
         if (UNLIKELY(env->ExceptionCheck())) {
             LOGE("Cannot allocate backup ArtMethod object!");
-            return nullptr;
+            return false;
         }
-        backup = static_cast<art::ArtMethod*>(thread->DecodeJObject(java_new_art_method.Get()));
     } else {
-        backup = art::ArtMethod::New();
-        if (UNLIKELY(!backup)) {
+        request->backup = art::ArtMethod::New();
+        if (UNLIKELY(!request->backup)) {
             int local_errno = errno;
             LOGE("Cannot allocate backup ArtMethod, errno %d(%s)", errno, strerror(errno));
             if (local_errno == ENOMEM) {
@@ -122,39 +167,211 @@ jobject Pine_hook0(JNIEnv* env, jclass, jlong threadAddress, jclass declaring, j
                 JNIHelper::Throw(env, "java/lang/RuntimeException",
                                  "hook failed: cannot allocate backup method");
             }
-            return nullptr;
+            return false;
         }
     }
+    return true;
+}
 
-    bool success;
+// An ArtMethod is a very important object. Many threads depend on their values,
+// so other threads must be suspended (art::ScopedSuspendVM) when calling this.
+static bool InstallHook(art::Thread* thread, HookRequest* request) {
+    TrampolineInstaller* trampoline_installer = TrampolineInstaller::GetDefault();
+    art::ArtMethod* target = request->target;
+    art::ArtMethod* bridge = request->bridge;
 
-    {
-        // An ArtMethod is a very important object. Many threads depend on their values,
-        // so we need to suspend other threads to avoid errors when hooking.
-        art::ScopedSuspendVM suspend_vm;
+    if (request->java_backup) {
+        request->backup = static_cast<art::ArtMethod*>(thread->DecodeJObject(request->java_backup));
+    }
 
-        void* call_origin = is_inline_hook
-                            ? trampoline_installer->InstallInlineTrampoline(target, bridge)
-                            : trampoline_installer->InstallReplacementTrampoline(target, bridge);
-
-        if (LIKELY(call_origin)) {
-            backup->BackupFrom(target, call_origin, is_inline_hook, is_native_or_proxy);
-            target->AfterHook(is_inline_hook, debuggable, is_native_or_proxy);
-            success = true;
-        } else {
-            LOGE("Failed to hook the method!");
-            success = false;
+    void* call_origin = nullptr;
+    if (request->is_inline_hook) {
+        call_origin = trampoline_installer->InstallInlineTrampoline(target, bridge,
+                                                                    request->art_method_register,
+                                                                    &request->layout);
+        if (UNLIKELY(!call_origin)) {
+            // Nothing in the target code has been touched yet, it is safe to fall back.
+            LOGW("Failed to install inline trampoline, fall back to replacement mode.");
+            request->is_inline_hook = false;
+            request->fallback_reason = HookRegistry::kFallbackInstallFailed;
         }
     }
+    if (!request->is_inline_hook) {
+        call_origin = trampoline_installer->InstallReplacementTrampoline(target, bridge,
+                                                                         request->art_method_register,
+                                                                         &request->layout);
+    }
+
+    if (UNLIKELY(!call_origin)) {
+        LOGE("Failed to hook the method!");
+        return false;
+    }
+
+    request->backup->BackupFrom(target, call_origin, request->is_inline_hook,
+                                request->is_native_or_proxy);
+    target->AfterHook(request->is_inline_hook, debuggable, request->is_native_or_proxy);
+    if (!request->is_inline_hook) {
+        // ART may still update the entry point (e.g. JIT or OSR compilation), watch it.
+        art::Instrumentation::Watch(target, target->GetEntryPointFromCompiledCode());
+    }
+
+    uint32_t flags = 0;
+    if (request->is_inline_hook) flags |= HookRegistry::kFlagInline;
+    if (request->inline_requested) flags |= HookRegistry::kFlagInlineRequested;
+    if (request->is_native_or_proxy) flags |= HookRegistry::kFlagNativeOrProxy;
+    HookRegistry::Add({target, flags, request->fallback_reason, request->layout});
+    return true;
+}
+
+// Called after installing with other threads resumed, for inline hooks that fell back to
+// replacement mode. Entry updates in between are only caught by Pine.checkHooks().
+static void EnsureInstrumentationHooked(const HookRequest* request, bool success) {
+    if (success && !request->is_inline_hook) art::Instrumentation::EnsureHooked();
+}
+
+static void ReleaseHookRequest(JNIEnv* env, HookRequest* request, bool success) {
+    if (request->java_backup) {
+        env->DeleteLocalRef(request->java_backup);
+        request->java_backup = nullptr;
+    } else if (!success) {
+        free(request->backup);
+    }
+}
+
+jobject Pine_hook0(JNIEnv* env, jclass, jlong threadAddress, jclass declaring, jobject javaTarget,
+            jobject javaBridge, jboolean isInlineHook, jboolean isNativeOrProxy,
+            jint artMethodRegister, jintArray javaFallbackReason) {
+    auto thread = reinterpret_cast<art::Thread*>(threadAddress);
+    HookRequest request;
+    if (UNLIKELY(!PrepareHook(env, thread, javaTarget, javaBridge, static_cast<bool>(isInlineHook),
+                              static_cast<bool>(isNativeOrProxy), static_cast<int>(artMethodRegister),
+                              &request))) {
+        return nullptr;
+    }
 
+    bool success;
+    {
+        art::ScopedSuspendVM suspend_vm;
+        MemoryMaps::ScopedSnapshot maps_snapshot;
+        success = InstallHook(thread, &request);
+    }
+    EnsureInstrumentationHooked(&request, success);
+
+    jobject result = nullptr;
     if (LIKELY(success)) {
-        return env->ToReflectedMethod(declaring, backup->ToMethodID(),
-                                      static_cast<jboolean>(backup->IsStatic()));
+        if (javaFallbackReason) {
+            auto reason = static_cast<jint>(request.fallback_reason);
+            env->SetIntArrayRegion(javaFallbackReason, 0, 1, &reason);
+        }
+        result = env->ToReflectedMethod(declaring, request.backup->ToMethodID(),
+                                        static_cast<jboolean>(request.backup->IsStatic()));
     } else {
         // TODO Throw exception has detailed error message
         JNIHelper::Throw(env, "java/lang/RuntimeException", "hook failed");
-        return nullptr;
     }
+    ReleaseHookRequest(env, &request, success);
+    return result;
+}
+
+void Pine_hookBatch0(JNIEnv* env, jclass, jlong threadAddress, jint count,
+                     jobjectArray javaDeclarings, jobjectArray javaTargets,
+                     jobjectArray javaBridges, jbyteArray javaFlags, jlongArray javaOut,
+                     jobjectArray javaOutMethods, jintArray javaFallbackReasons) {
+    auto thread = reinterpret_cast<art::Thread*>(threadAddress);
+    // One local reference for each backup of the mirror ArtMethod, plus a few temporary ones.
+    if (UNLIKELY(env->EnsureLocalCapacity(count + 4) != JNI_OK)) return;
+
+    std::vector<jbyte> flags(static_cast<size_t>(count));
+    env->GetByteArrayRegion(javaFlags, 0, count, flags.data());
+
+    std::vector<HookRequest> requests(static_cast<size_t>(count));
+    jint prepared = 0;
+    for (;prepared < count;prepared++) {
+        ScopedLocalRef<jobject> target(env, env->GetObjectArrayElement(javaTargets, prepared));
+        ScopedLocalRef<jobject> bridge(env, env->GetObjectArrayElement(javaBridges, prepared));
+        jbyte flag = flags[prepared];
+        // Compiling tens of thousands of methods is not an option, only use inline hook for
+        // the ones already have compiled code.
+        bool inline_requested = (flag & kBatchFlagInline) != 0;
+        bool is_inline_hook = inline_requested
+                && art::ArtMethod::FromReflectedMethod(env, target.Get())->IsCompiled();
+        if (UNLIKELY(!PrepareHook(env, thread, target.Get(), bridge.Get(), is_inline_hook,
+                                  (flag & kBatchFlagNativeOrProxy) != 0, -1,
+                                  &requests[prepared]))) {
+            break;
+        }
+        if (inline_requested && !is_inline_hook) {
+            requests[prepared].inline_requested = true;
+            requests[prepared].fallback_reason = HookRegistry::kFallbackNotCompiled;
+        }
+    }
+
+    if (UNLIKELY(prepared != count)) {
+        // Exception pending, nothing installed.
+        for (jint i = 0;i < prepared;i++) ReleaseHookRequest(env, &requests[i], false);
+        return;
+    }
+
+    std::vector<bool> success(static_cast<size_t>(count));
+    {
+        // Suspend other threads only once for the whole batch, this is the most expensive
+        // part of hooking a method when there are many threads running. Placing trampolines
+        // near their targets reads /proc/self/maps, also do that only once.
+        art::ScopedSuspendVM suspend_vm;
+        MemoryMaps::ScopedSnapshot maps_snapshot;
+        for (jint i = 0;i < count;i++) {
+            success[i] = InstallHook(thread, &requests[i]);
+        }
+    }
+    for (jint i = 0;i < count;i++) EnsureInstrumentationHooked(&requests[i], success[i]);
+
+    // Backups allocated with malloc() live as long as the hook, java only gets their address and
+    // creates the reflected methods when they are needed. Mirror ArtMethods can be moved by the GC,
+    // the reflected method is what keeps them alive.
+    std::vector<jlong> backups(static_cast<size_t>(count));
+    for (jint i = 0;i < count;i++) {
+        HookRequest* request = &requests[i];
+        if (LIKELY(success[i] && !env->ExceptionCheck())) {
+            if (request->java_backup) {
+                ScopedLocalRef<jobject> declaring(env, env->GetObjectArrayElement(javaDeclarings, i));
+                ScopedLocalRef<jobject> backup(env, env->ToReflectedMethod(
+                        static_cast<jclass>(declaring.Get()), request->backup->ToMethodID(),
+                        static_cast<jboolean>(request->backup->IsStatic())));
+                if (LIKELY(backup.Get())) env->SetObjectArrayElement(javaOutMethods, i, backup.Get());
+            } else {
+                backups[i] = static_cast<jlong>(reinterpret_cast<intptr_t>(request->backup));
+            }
+        }
+        ReleaseHookRequest(env, request, success[i]);
+    }
+    if (LIKELY(!env->ExceptionCheck())) env->SetLongArrayRegion(javaOut, 0, count, backups.data());
+
+    if (javaFallbackReasons && LIKELY(!env->ExceptionCheck())) {
+        std::vector<jint> reasons(static_cast<size_t>(count));
+        for (jint i = 0;i < count;i++) reasons[i] = static_cast<jint>(requests[i].fallback_reason);
+        env->SetIntArrayRegion(javaFallbackReasons, 0, count, reasons.data());
+    }
+}
+
+jobject Pine_getBackupMethod0(JNIEnv* env, jclass, jclass declaring, jlong javaBackup) {
+    auto backup = reinterpret_cast<art::ArtMethod*>(javaBackup);
+    return env->ToReflectedMethod(declaring, backup->ToMethodID(),
+                                  static_cast<jboolean>(backup->IsStatic()));
+}
+
+void Pine_getMemoryStats0(JNIEnv* env, jclass, jlongArray javaOut) {
+    // Indexes are the constants of Pine.MemoryStats
+    MemoryStats stats[2];
+    Memory::GetStats(&stats[0], &stats[1]);
+    jlong out[10];
+    for (int i = 0; i < 2; i++) {
+        out[i * 5] = static_cast<jlong>(stats[i].bytes_mapped);
+        out[i * 5 + 1] = static_cast<jlong>(stats[i].bytes_carved);
+        out[i * 5 + 2] = static_cast<jlong>(stats[i].bytes_in_use);
+        out[i * 5 + 3] = static_cast<jlong>(stats[i].bytes_free);
+        out[i * 5 + 4] = static_cast<jlong>(stats[i].large_allocations);
+    }
+    env->SetLongArrayRegion(javaOut, 0, NELEM(out), out);
 }
 
 jlong Pine_getArtMethod(JNIEnv* env, jclass, jobject javaMethod) {
@@ -172,6 +389,37 @@ jboolean Pine_decompile0(JNIEnv* env, jclass, jobject javaMethod, jboolean disab
             disableJit));
 }
 
+jint Pine_checkHooks0(JNIEnv*, jclass) {
+    art::ScopedSuspendVM suspend_vm;
+    return static_cast<jint>(art::Instrumentation::Verify());
+}
+
+jlongArray Pine_getInstalledHooks0(JNIEnv* env, jclass) {
+    // Keep in sync with Pine.HOOK_INFO_SIZE
+    constexpr size_t kSize = 8;
+    std::vector<HookRegistry::Entry> entries = HookRegistry::Snapshot();
+    std::vector<jlong> out(entries.size() * kSize);
+    for (size_t i = 0;i < entries.size();i++) {
+        const HookRegistry::Entry& entry = entries[i];
+        jlong* values = &out[i * kSize];
+        values[0] = reinterpret_cast<jlong>(entry.target);
+        values[1] = static_cast<jlong>(entry.flags);
+        values[2] = static_cast<jlong>(entry.fallback_reason);
+        values[3] = reinterpret_cast<jlong>(entry.layout.bridge_jump);
+        values[4] = static_cast<jlong>(entry.layout.bridge_jump_size);
+        values[5] = reinterpret_cast<jlong>(entry.layout.backup);
+        values[6] = static_cast<jlong>(entry.layout.backup_size);
+        values[7] = static_cast<jlong>(entry.layout.patch_size);
+    }
+    jlongArray result = env->NewLongArray(static_cast<jsize>(out.size()));
+    if (LIKELY(result)) env->SetLongArrayRegion(result, 0, static_cast<jsize>(out.size()), out.data());
+    return result;
+}
+
+jboolean Pine_prepareJit0(JNIEnv*, jclass) {
+    return static_cast<jboolean>(art::Jit::EnsureCompilerLoaded());
+}
+
 jboolean Pine_disableJitInline0(JNIEnv*, jclass) {
     return static_cast<jboolean>(art::Jit::DisableInline());
 }
@@ -188,9 +436,58 @@ jlong Pine_getAddress0(JNIEnv*, jclass, jlong thread, jobject o) {
     return reinterpret_cast<jlong>(reinterpret_cast<art::Thread*>(thread)->DecodeJObject(o));
 }
 
+static bool EndsWith(const std::string& s, const char* suffix) {
+    size_t length = strlen(suffix);
+    return s.size() >= length && s.compare(s.size() - length, length, suffix) == 0;
+}
+
+/**
+ * Returns whether pc is in the AOT compiled code of method, so it will always belong to method.
+ * JIT code may be collected and its memory reused by other methods, and shared stubs
+ * (e.g. nterp, instrumentation exit) are returned to on behalf of many methods.
+ */
+static bool IsStableCallSite(art::ArtMethod* method, uintptr_t pc) {
+    if (UNLIKELY(!method->IsCompiled())) return false;
+#ifdef __arm__
+    pc &= ~1;
+#endif
+    auto code = reinterpret_cast<uintptr_t>(method->GetCompiledCodeAddr());
+    if (pc < code) return false;
+
+    MemoryMapping mapping;
+    if (!MemoryMaps::FindMapping(pc, &mapping)) return false;
+    if (code < mapping.start + sizeof(uint32_t) || !(mapping.prot & PROT_EXEC)) return false;
+    if (!(EndsWith(mapping.path, ".oat") || EndsWith(mapping.path, ".odex")
+            || EndsWith(mapping.path, ".dex"))) return false;
+    return pc - code < method->GetCompiledCodeSize();
+}
+
+jobject Pine_getCallerMethod0(JNIEnv* env, jclass Pine, jlong pc, jlong sp,
+        jbooleanArray javaStable) {
+    if (UNLIKELY(Android::version < Android::VERSION_N)) return nullptr;
+    // Compiled code and nterp keep the ArtMethod of a frame at its bottom, where sp still points
+    // when entering the callee. Invoke stubs (used by the interpreter, reflection and JNI) store
+    // nullptr there instead. The caller frame is below us on this thread's stack, so the ArtMethod
+    // stays alive, but we are not runnable here and its declaring class may be moved by GC at any
+    // time: never decode it ourselves, ToReflectedMethod() does it in runnable state.
+    auto caller = *reinterpret_cast<art::ArtMethod**>(static_cast<uintptr_t>(sp));
+    if (caller == nullptr) return nullptr;
+    // Only compared with null, a moved class is never null.
+    if (UNLIKELY(caller->GetDeclaringClass() == 0)) return nullptr; // Runtime method
+
+    // ART finds the class from the jmethodID, the class argument only needs to pass CheckJNI.
+    jobject result = env->ToReflectedMethod(Pine, caller->ToMethodID(),
+            static_cast<jboolean>(caller->IsStatic()));
+    if (result && pc != 0 && IsStableCallSite(caller, static_cast<uintptr_t>(pc))) {
+        jboolean stable = JNI_TRUE;
+        env->SetBooleanArrayRegion(javaStable, 0, 1, &stable);
+    }
+    return result;
+}
+
 #ifdef __LP64__
 
-void Pine_getArgs64(JNIEnv* env, jclass, jlong javaExtras, jlongArray javaArray, jlong sp) {
+jlong Pine_getArgs64(JNIEnv* env, jclass, jlong javaExtras, jlongArray javaArray, jlong sp) {
     auto extras = reinterpret_cast<Extras*>(javaExtras);
     jint length = env->GetArrayLength(javaArray);
     if (LIKELY(length > 0)) {
@@ -218,11 +515,13 @@ void Pine_getArgs64(JNIEnv* env, jclass, jlong javaExtras, jlongArray javaArray,
 
         env->ReleasePrimitiveArrayCritical(javaArray, array, JNI_ABORT);
     }
+    auto lr = reinterpret_cast<jlong>(extras->lr);
     extras->ReleaseLock();
+    return lr;
 }
 
 #else
-void Pine_getArgs32(JNIEnv *env, jclass, jint javaExtras, jintArray javaArray, jint sp, jboolean skipR1) {
+jint Pine_getArgs32(JNIEnv *env, jclass, jint javaExtras, jintArray javaArray, jint sp, jboolean skipR1) {
     auto extras = reinterpret_cast<Extras*>(javaExtras);
     jint length = env->GetArrayLength(javaArray);
     if (LIKELY(length > 0)) {
@@ -263,13 +562,13 @@ void Pine_getArgs32(JNIEnv *env, jclass, jint javaExtras, jintArray javaArray, j
 
         env->ReleasePrimitiveArrayCritical(javaArray, array, JNI_ABORT);
     }
+    auto lr = reinterpret_cast<jint>(extras->lr);
     extras->ReleaseLock();
+    return lr;
 }
 #endif
 
-void Pine_updateDeclaringClass(JNIEnv* env, jclass, jobject javaOrigin, jobject javaBackup) {
-    auto origin = art::ArtMethod::FromReflectedMethod(env, javaOrigin);
-    auto backup = art::ArtMethod::FromReflectedMethod(env, javaBackup);
+static void UpdateDeclaringClass(art::ArtMethod* origin, art::ArtMethod* backup) {
     uint32_t declaring_class = origin->GetDeclaringClass();
     if (declaring_class != backup->GetDeclaringClass()) {
         LOGI("The declaring_class of method has moved by gc, update its reference in backup method.");
@@ -277,6 +576,111 @@ void Pine_updateDeclaringClass(JNIEnv* env, jclass, jobject javaOrigin, jobject
     }
 }
 
+void Pine_updateDeclaringClass(JNIEnv* env, jclass, jobject javaOrigin, jobject javaBackup) {
+    UpdateDeclaringClass(art::ArtMethod::FromReflectedMethod(env, javaOrigin),
+            art::ArtMethod::FromReflectedMethod(env, javaBackup));
+}
+
+/**
+ * Calls the backup method with JNI. Primitive arguments are read from javaRawArgs as raw bits and
+ * references from javaArgs, as described by javaShorty (return type first, without the receiver).
+ * Any exception thrown by the backup stays pending and is rethrown unchanged in java.
+ * Returns the raw bits of a primitive result, references are stored in object_result.
+ */
+static jlong InvokeBackup(JNIEnv* env, jobject javaOrigin, jobject javaBackup, jclass declaring,
+        jobject receiver, jobjectArray javaArgs, jlongArray javaRawArgs, jstring javaShorty,
+        jobject* object_result) {
+    // The shorty of a java method has at most 255 parameters.
+    constexpr jsize kMaxShortyLength = 256;
+    jchar shorty[kMaxShortyLength];
+    jsize shorty_length = env->GetStringLength(javaShorty);
+    if (UNLIKELY(shorty_length > kMaxShortyLength)) {
+        JNIHelper::Throw(env, "java/lang/IllegalArgumentException", "Too many arguments");
+        return 0;
+    }
+    env->GetStringRegion(javaShorty, 0, shorty_length, shorty);
+
+    jsize arg_count = shorty_length - 1;
+    jlong raw_args[kMaxShortyLength];
+    if (javaRawArgs) env->GetLongArrayRegion(javaRawArgs, 0, arg_count, raw_args);
+    if (UNLIKELY(env->EnsureLocalCapacity(arg_count) != JNI_OK)) return 0;
+
+    jvalue values[kMaxShortyLength];
+    for (jsize i = 0;i < arg_count;i++) {
+        jlong raw = raw_args[i];
+        switch (shorty[i + 1]) {
+            case 'Z': values[i].z = static_cast<jboolean>(raw); break;
+            case 'B': values[i].b = static_cast<jbyte>(raw); break;
+            case 'C': values[i].c = static_cast<jchar>(raw); break;
+            case 'S': values[i].s = static_cast<jshort>(raw); break;
+            case 'I': values[i].i = static_cast<jint>(raw); break;
+            case 'J': values[i].j = raw; break;
+            case 'F': {
+                auto bits = static_cast<jint>(raw);
+                memcpy(&values[i].f, &bits, sizeof(jfloat));
+                break;
+            }
+            case 'D': memcpy(&values[i].d, &raw, sizeof(jdouble)); break;
+            default: values[i].l = env->GetObjectArrayElement(javaArgs, i); break;
+        }
+    }
+
+    auto backup = art::ArtMethod::FromReflectedMethod(env, javaBackup);
+    if (javaOrigin && Android::version >= Android::VERSION_N) {
+        // The declaring class may be moved by gc, see Pine.callBackupMethod()
+        // Pine passes nullptr if it is known to be up to date.
+        UpdateDeclaringClass(art::ArtMethod::FromReflectedMethod(env, javaOrigin), backup);
+    }
+    jmethodID method = backup->ToMethodID();
+    bool is_static = backup->IsStatic();
+
+#define CALL_BACKUP(type) (is_static \
+        ? env->CallStatic##type##MethodA(declaring, method, values) \
+        : env->CallNonvirtual##type##MethodA(receiver, declaring, method, values))
+
+    switch (shorty[0]) {
+        case 'V': CALL_BACKUP(Void); return 0;
+        case 'Z': return CALL_BACKUP(Boolean);
+        case 'B': return CALL_BACKUP(Byte);
+        case 'C': return CALL_BACKUP(Char);
+        case 'S': return CALL_BACKUP(Short);
+        case 'I': return CALL_BACKUP(Int);
+        case 'J': return CALL_BACKUP(Long);
+        case 'F': {
+            jfloat result = CALL_BACKUP(Float);
+            jint bits;
+            memcpy(&bits, &result, sizeof(jint));
+            return bits;
+        }
+        case 'D': {
+            jdouble result = CALL_BACKUP(Double);
+            jlong bits;
+            memcpy(&bits, &result, sizeof(jlong));
+            return bits;
+        }
+        default:
+            *object_result = CALL_BACKUP(Object);
+            return 0;
+    }
+#undef CALL_BACKUP
+}
+
+jobject Pine_invokeBackupObject0(JNIEnv* env, jclass, jobject javaOrigin, jobject javaBackup,
+        jclass declaring, jobject receiver, jobjectArray javaArgs, jlongArray javaRawArgs,
+        jstring javaShorty) {
+    jobject result = nullptr;
+    InvokeBackup(env, javaOrigin, javaBackup, declaring, receiver, javaArgs, javaRawArgs,
+            javaShorty, &result);
+    return result;
+}
+
+jlong Pine_invokeBackupPrimitive0(JNIEnv* env, jclass, jobject javaOrigin, jobject javaBackup,
+        jclass declaring, jobject receiver, jobjectArray javaArgs, jlongArray javaRawArgs,
+        jstring javaShorty) {
+    return InvokeBackup(env, javaOrigin, javaBackup, declaring, receiver, javaArgs, javaRawArgs,
+            javaShorty, nullptr);
+}
+
 jlong Pine_currentArtThread0(JNIEnv*, jclass) {
     return reinterpret_cast<jlong>(art::Thread::Current());
 }
@@ -294,9 +698,9 @@ static const struct {
         {"getAddress0", "(JLjava/lang/Object;)J"},
         {"currentArtThread0", "()J"},
 #ifdef __LP64__
-        {"getArgs64", "(J[JJ)V"}
+        {"getArgs64", "(J[JJ)J"}
 #else
-        {"getArgs32", "(I[IIZ)V"}
+        {"getArgs32", "(I[IIZ)I"}
 #endif
 };
 
@@ -310,23 +714,32 @@ void Pine_enableFastNative(JNIEnv* env, jclass Pine) {
 }
 
 static const JNINativeMethod gMethods[] = {
-        {"init0", "(IZ)V", (void*) Pine_init0},
+        {"init0", "(IZLjava/lang/String;)V", (void*) Pine_init0},
         {"enableFastNative", "()V", (void*) Pine_enableFastNative},
         {"getArtMethod", "(Ljava/lang/reflect/Member;)J", (void*) Pine_getArtMethod},
-        {"hook0", "(JLjava/lang/Class;Ljava/lang/reflect/Member;Ljava/lang/reflect/Method;ZZ)Ljava/lang/reflect/Method;", (void*) Pine_hook0},
+        {"hook0", "(JLjava/lang/Class;Ljava/lang/reflect/Member;Ljava/lang/reflect/Method;ZZI[I)Ljava/lang/reflect/Method;", (void*) Pine_hook0},
+        {"hookBatch0", "(JI[Ljava/lang/Class;[Ljava/lang/reflect/Member;[Ljava/lang/reflect/Method;[B[J[Ljava/lang/reflect/Method;[I)V", (void*) Pine_hookBatch0},
+        {"getBackupMethod0", "(Ljava/lang/Class;J)Ljava/lang/reflect/Method;", (void*) Pine_getBackupMethod0},
         {"compile0", "(JLjava/lang/reflect/Member;)Z", (void*) Pine_compile0},
         {"decompile0", "(Ljava/lang/reflect/Member;Z)Z", (void*) Pine_decompile0},
+        {"prepareJit0", "()Z", (void*) Pine_prepareJit0},
         {"disableJitInline0", "()Z", (void*) Pine_disableJitInline0},
+        {"checkHooks0", "()I", (void*) Pine_checkHooks0},
         {"disableProfileSaver0", "()Z", (void*) Pine_disableProfileSaver0},
         {"updateDeclaringClass", "(Ljava/lang/reflect/Member;Ljava/lang/reflect/Method;)V", (void*) Pine_updateDeclaringClass},
         {"getObject0", "(JJ)Ljava/lang/Object;", (void*) Pine_getObject0},
         {"getAddress0", "(JLjava/lang/Object;)J", (void*) Pine_getAddress0},
         {"currentArtThread0", "()J", (void*) Pine_currentArtThread0},
+        {"getMemoryStats0", "([J)V", (void*) Pine_getMemoryStats0},
+        {"getCallerMethod0", "(JJ[Z)Ljava/lang/reflect/Member;", (void*) Pine_getCallerMethod0},
+        {"getInstalledHooks0", "()[J", (void*) Pine_getInstalledHooks0},
+        {"invokeBackupObject0", "(Ljava/lang/reflect/Member;Ljava/lang/reflect/Method;Ljava/lang/Class;Ljava/lang/Object;[Ljava/lang/Object;[JLjava/lang/String;)Ljava/lang/Object;", (void*) Pine_invokeBackupObject0},
+        {"invokeBackupPrimitive0", "(Ljava/lang/reflect/Member;Ljava/lang/reflect/Method;Ljava/lang/Class;Ljava/lang/Object;[Ljava/lang/Object;[JLjava/lang/String;)J", (void*) Pine_invokeBackupPrimitive0},
 
 #ifdef __LP64__
-        {"getArgs64", "(J[JJ)V", (void*) Pine_getArgs64}
+        {"getArgs64", "(J[JJ)J", (void*) Pine_getArgs64}
 #else
-        {"getArgs32", "(I[IIZ)V", (void*) Pine_getArgs32}
+        {"getArgs32", "(I[IIZ)I", (void*) Pine_getArgs32}
 #endif
 };
 
@@ -339,11 +752,16 @@ EXPORT_C void PineSetAndroidVersion(int version) {
 }
 
 EXPORT_C void* PineOpenElf(const char* elf) {
-    return new ElfImg(elf);
+    return ElfImgRegistry::Acquire(elf);
 }
 
 EXPORT_C void PineCloseElf(void* handle) {
-    delete static_cast<ElfImg*>(handle);
+    // The image is kept cached for later opens, use PineEvictElf to unmap it.
+    ElfImgRegistry::Release(static_cast<ElfImg*>(handle));
+}
+
+EXPORT_C bool PineEvictElf(const char* elf) {
+    return ElfImgRegistry::Evict(elf);
 }
 
 EXPORT_C void* PineGetElfSymbolAddress(void* handle, const char* symbol) {
@@ -351,8 +769,8 @@ EXPORT_C void* PineGetElfSymbolAddress(void* handle, const char* symbol) {
 }
 
 EXPORT_C bool PineNativeInlineHookSymbolNoBackup(const char* elf, const char* symbol, void* replace) {
-    ElfImg handle(elf);
-    void* addr = handle.GetSymbolAddress(symbol);
+    ScopedElfImg handle(elf);
+    void* addr = handle->GetSymbolAddress(symbol);
     if (UNLIKELY(!addr)) return false;
     TrampolineInstaller::GetOrInitDefault()->NativeHookNoBackup(addr, replace);
     return true;
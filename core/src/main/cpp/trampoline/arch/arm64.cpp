@@ -2,7 +2,10 @@
 // Created by canyie on 2020/4/7.
 //
 
+#include <cstring>
 #include "arm64.h"
+#include "arm64_relocator.h"
+#include "../../utils/memory.h"
 
 using namespace pine;
 
@@ -23,6 +26,18 @@ void Arm64TrampolineInstaller::InitTrampolines() {
     kBridgeJumpTrampolineOriginCodeEntryOffset = BridgeJumpTrampolineOffset(
             AS_VOID_PTR(pine_bridge_jump_trampoline_call_origin_entry));
 
+    kTypedBridgeJumpTrampoline = AS_VOID_PTR(pine_typed_bridge_jump_trampoline);
+    kTypedBridgeJumpTrampolineTargetMethodOffset = TypedBridgeJumpTrampolineOffset(
+            AS_VOID_PTR(pine_typed_bridge_jump_trampoline_target_method));
+    kTypedBridgeJumpTrampolineBridgeMethodOffset = TypedBridgeJumpTrampolineOffset(
+            AS_VOID_PTR(pine_typed_bridge_jump_trampoline_bridge_method));
+    kTypedBridgeJumpTrampolineBridgeEntryOffset = TypedBridgeJumpTrampolineOffset(
+            AS_VOID_PTR(pine_typed_bridge_jump_trampoline_bridge_entry));
+    kTypedBridgeJumpTrampolineOriginCodeEntryOffset = TypedBridgeJumpTrampolineOffset(
+            AS_VOID_PTR(pine_typed_bridge_jump_trampoline_call_origin_entry));
+    kTypedBridgeJumpTrampolineArtMethodRegisterOffset = TypedBridgeJumpTrampolineOffset(
+            AS_VOID_PTR(pine_typed_bridge_jump_trampoline_art_method_register));
+
     kCallOriginTrampoline = AS_VOID_PTR(pine_call_origin_trampoline);
     kCallOriginTrampolineOriginMethodOffset = CallOriginTrampolineOffset(
             AS_VOID_PTR(pine_call_origin_trampoline_origin_method));
@@ -39,26 +54,103 @@ void Arm64TrampolineInstaller::InitTrampolines() {
 
     kTrampolinesEnd = AS_VOID_PTR(pine_trampolines_end);
 
+    kBackupTrampolineOverrideSpaceSize = 16;
+
     kDirectJumpTrampolineSize = 16;
+
+    // b <label>: imm26 * 4, i.e. +-128MB
+    kNearJumpSize = 4;
+    kNearJumpRange = 128 * 1024 * 1024 - 4;
 }
 
-bool Arm64TrampolineInstaller::IsPCRelatedInst(uint32_t inst) {
-    INST_CASE(0xff000010, 0x54000000); // b <label>
-    INST_CASE(0x7c000000, 0x14000000); // bl <label>
-    INST_CASE(0x7e000000, 0x34000000); // cb{n}z Rn, <label>
-    INST_CASE(0x7e000000, 0x36000000); // tb{n}z Rt, #<imm>, <label>
-    INST_CASE(0x3b000000, 0x18000000); // ldr
-    INST_CASE(0x1f000000, 0x10000000); // adr/adrp Rd, <label>
-    return false;
+bool Arm64TrampolineInstaller::CanNearJump(void* from, void* to) {
+    intptr_t offset = reinterpret_cast<intptr_t>(to) - reinterpret_cast<intptr_t>(from);
+    return (offset & 3) == 0 && offset >= -(1LL << 27) && offset < (1LL << 27);
 }
 
-bool Arm64TrampolineInstaller::CannotBackup(art::ArtMethod* target) {
-    uintptr_t entry = reinterpret_cast<uintptr_t>(target->GetEntryPointFromCompiledCode());
-    for (uint32_t index = 0;index < kDirectJumpTrampolineSize;index += 4) {
-        uint32_t* p = reinterpret_cast<uint32_t*>(entry + index);
-        if (UNLIKELY(IsPCRelatedInst(*p))) {
+void Arm64TrampolineInstaller::WriteNearJumpTo(void* from, void* to) {
+    intptr_t offset = reinterpret_cast<intptr_t>(to) - reinterpret_cast<intptr_t>(from);
+    uint32_t inst = 0x14000000 | (static_cast<uint32_t>(offset >> 2) & 0x03ffffff);
+    // Single aligned word store, other cores never see a half written instruction.
+    *reinterpret_cast<volatile uint32_t*>(from) = inst;
+    Memory::FlushCache(from, kNearJumpSize);
+}
+
+void Arm64TrampolineInstaller::WriteNops(void* mem, size_t size) {
+    const uint32_t nop = 0xd503201f;
+    for (size_t offset = 0;offset < size;offset += 4) {
+        memcpy(AS_VOID_PTR(reinterpret_cast<uintptr_t>(mem) + offset), &nop, 4);
+    }
+}
+
+bool Arm64TrampolineInstaller::HasPCRelatedInst(void* code, size_t size) {
+    for (size_t index = 0;index < size;index += 4) {
+        uint32_t* p = reinterpret_cast<uint32_t*>(reinterpret_cast<uintptr_t>(code) + index);
+        if (UNLIKELY(Arm64Relocator::IsPCRelated(*p))) {
             return true;
         }
     }
     return false;
 }
+
+bool Arm64TrampolineInstaller::CannotBackup(art::ArtMethod* target, size_t patch_size) {
+    void* entry = target->GetEntryPointFromCompiledCode();
+    if (LIKELY(!HasPCRelatedInst(entry, patch_size))) return false;
+    // Dry run, fails if e.g. there is a branch into the overwritten instructions.
+    Arm64Relocator relocator;
+    return !relocator.Relocate(entry, AS_PTR_NUM(entry), patch_size);
+}
+
+void* Arm64TrampolineInstaller::Backup(art::ArtMethod* target, size_t patch_size,
+                                       size_t* trampoline_size) {
+    void* target_addr = target->GetEntryPointFromCompiledCode();
+    if (LIKELY(!HasPCRelatedInst(target_addr, patch_size))) {
+        return TrampolineInstaller::Backup(target, patch_size, trampoline_size);
+    }
+
+    // ldr x0, =target; <relocated instructions>; ldr x17, =remaining code; br x17
+    Arm64Relocator relocator;
+    relocator.LoadLiteral(0, AS_PTR_NUM(target));
+    if (UNLIKELY(!relocator.Relocate(target_addr, AS_PTR_NUM(target_addr), patch_size))) {
+        LOGE("Failed to relocate the code of target method!");
+        return nullptr;
+    }
+    relocator.Jump(AS_PTR_NUM(target_addr) + patch_size);
+
+    size_t size = relocator.GetSize();
+    void* mem = Memory::AllocUnprotected(size);
+    if (UNLIKELY(!mem)) {
+        LOGE("Failed to allocate executable memory for backup!");
+        return nullptr;
+    }
+    relocator.CopyTo(Memory::GetWritable(mem));
+    Memory::FlushCache(mem, size);
+    *trampoline_size = size;
+    return mem;
+}
+
+void* Arm64TrampolineInstaller::NativeHook(void* target, void* to) {
+    // <relocated instructions>; ldr x17, =remaining code; br x17
+    // x16 and x17 are intra-procedure-call scratch registers, free to clobber at function entry.
+    Arm64Relocator relocator;
+    if (UNLIKELY(!relocator.Relocate(target, AS_PTR_NUM(target), kDirectJumpTrampolineSize))) {
+        LOGE("Failed to relocate the code of native function %p!", target);
+        return nullptr;
+    }
+    relocator.Jump(AS_PTR_NUM(target) + kDirectJumpTrampolineSize);
+
+    size_t size = relocator.GetSize();
+    void* mem = Memory::AllocUnprotected(size);
+    if (UNLIKELY(!mem)) {
+        LOGE("Failed to allocate executable memory for backup!");
+        return nullptr;
+    }
+    relocator.CopyTo(Memory::GetWritable(mem));
+    Memory::FlushCache(mem, size);
+
+    if (UNLIKELY(!NativeHookNoBackup(target, to))) {
+        Memory::FreeUnprotected(mem, size);
+        return nullptr;
+    }
+    return mem;
+}
@@ -12,10 +12,17 @@ namespace pine {
     class Arm64TrampolineInstaller final : public TrampolineInstaller {
     protected:
         virtual void InitTrampolines() override ;
-        virtual bool CannotBackup(art::ArtMethod* target) override ;
+        virtual bool CanNearJump(void* from, void* to) override ;
+        virtual void WriteNearJumpTo(void* from, void* to) override ;
+        virtual void WriteNops(void* mem, size_t size) override ;
+        virtual bool CannotBackup(art::ArtMethod* target, size_t patch_size) override ;
+        virtual void* Backup(art::ArtMethod* target, size_t patch_size,
+                             size_t* trampoline_size) override ;
+    public:
+        virtual void* NativeHook(void* target, void* to) override ;
 
     private:
-        static bool IsPCRelatedInst(uint32_t inst);
+        static bool HasPCRelatedInst(void* code, size_t size);
     };
 }
 
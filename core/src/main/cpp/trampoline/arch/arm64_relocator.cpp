@@ -0,0 +1,155 @@
+#include <cstring>
+#include "arm64_relocator.h"
+#include "../../utils/log.h"
+
+using namespace pine;
+
+static constexpr uint32_t kScratchRegister = 17; // x17 (ip1), free at method entry in ART
+static constexpr uint32_t kBrX17 = 0xD61F0000 | (kScratchRegister << 5);
+static constexpr uint32_t kBlrX17 = 0xD63F0000 | (kScratchRegister << 5);
+
+bool Arm64Relocator::IsPCRelated(uint32_t inst) {
+    return (inst & 0xFF000010) == 0x54000000 // b.cond <label>
+           || (inst & 0x7C000000) == 0x14000000 // b/bl <label>
+           || (inst & 0x7E000000) == 0x34000000 // cb{n}z Rt, <label>
+           || (inst & 0x7E000000) == 0x36000000 // tb{n}z Rt, #<imm>, <label>
+           || (inst & 0x3B000000) == 0x18000000 // ldr{sw} / prfm / ldr (simd) <label>
+           || (inst & 0x1F000000) == 0x10000000; // adr/adrp Rd, <label>
+}
+
+void Arm64Relocator::EmitLiteralLoad(uint32_t inst, uint64_t value) {
+    size_t literal_index = 0;
+    while (literal_index < literals.size() && literals[literal_index] != value) literal_index++;
+    if (literal_index == literals.size()) literals.push_back(value);
+    literal_refs.push_back({code.size(), literal_index});
+    Emit(inst);
+}
+
+void Arm64Relocator::LoadLiteral(uint32_t reg, uint64_t value) {
+    EmitLiteralLoad(0x58000000 | reg, value); // ldr X<reg>, <literal>
+}
+
+void Arm64Relocator::Jump(uint64_t target) {
+    LoadLiteral(kScratchRegister, target);
+    Emit(kBrX17);
+}
+
+void Arm64Relocator::EmitConditionalJump(uint32_t inverted_branch, uint64_t target) {
+    // inverted_branch skips the jump below when the original condition does not hold.
+    Emit(inverted_branch);
+    Jump(target);
+}
+
+bool Arm64Relocator::RelocateOne(uint32_t inst, uint64_t pc, uint64_t start, uint64_t end) {
+    if (!IsPCRelated(inst)) {
+        Emit(inst);
+        return true;
+    }
+
+    uint64_t target;
+    if ((inst & 0x1F000000) == 0x10000000) {
+        // adr/adrp only compute an address, it's fine even if it points into the copied range.
+        LoadLiteral(inst & 0x1F, DecodeAdrTarget(inst, pc));
+        return true;
+    }
+
+    if ((inst & 0x7C000000) == 0x14000000) {
+        target = pc + DecodeImm26(inst);
+    } else if ((inst & 0x7E000000) == 0x36000000) {
+        target = pc + DecodeImm14(inst);
+    } else {
+        target = pc + DecodeImm19(inst);
+    }
+
+    if (UNLIKELY(target >= start && target < end)) {
+        LOGW("Cannot relocate instruction %08x at %p: target %p is inside the relocated code",
+             inst, reinterpret_cast<void*>(pc), reinterpret_cast<void*>(target));
+        return false;
+    }
+
+    if ((inst & 0x7C000000) == 0x14000000) {
+        if (inst & 0x80000000) {
+            // bl: lr will point into our code and the call returns here, as it should.
+            LoadLiteral(kScratchRegister, target);
+            Emit(kBlrX17);
+        } else {
+            Jump(target);
+        }
+    } else if ((inst & 0xFF000010) == 0x54000000) {
+        uint32_t cond = inst & 0xF;
+        if (cond >= 0xE) {
+            // al / nv: always taken
+            Jump(target);
+        } else {
+            // b.<!cond> +12
+            EmitConditionalJump(0x54000000 | (3 << 5) | (cond ^ 1), target);
+        }
+    } else if ((inst & 0x7E000000) == 0x34000000) {
+        // cb<!n>z Rt, +12
+        EmitConditionalJump(((inst ^ 0x01000000) & ~(0x7FFFFu << 5)) | (3 << 5), target);
+    } else if ((inst & 0x7E000000) == 0x36000000) {
+        // tb<!n>z Rt, #bit, +12
+        EmitConditionalJump(((inst ^ 0x01000000) & ~(0x3FFFu << 5)) | (3 << 5), target);
+    } else {
+        // Load from literal: materialize the address, then load with an immediate offset of 0.
+        uint32_t rt = inst & 0x1F;
+        uint32_t opc = inst >> 30;
+        bool simd = (inst >> 26) & 1;
+        static constexpr uint32_t kGprLoads[] = {
+                0xB9400000, // ldr Wt, [Xn]
+                0xF9400000, // ldr Xt, [Xn]
+                0xB9800000, // ldrsw Xt, [Xn]
+                0 // prfm, just a hint
+        };
+        static constexpr uint32_t kSimdLoads[] = {
+                0xBD400000, // ldr St, [Xn]
+                0xFD400000, // ldr Dt, [Xn]
+                0x3DC00000, // ldr Qt, [Xn]
+                0 // unallocated
+        };
+        uint32_t load = simd ? kSimdLoads[opc] : kGprLoads[opc];
+        if (load == 0) {
+            if (simd) {
+                LOGW("Cannot relocate unallocated instruction %08x", inst);
+                return false;
+            }
+            return true; // Dropping a prfm does not change behavior.
+        }
+        LoadLiteral(kScratchRegister, target);
+        Emit(load | (kScratchRegister << 5) | rt);
+    }
+    return true;
+}
+
+bool Arm64Relocator::Relocate(const void* src, uintptr_t pc, size_t size) {
+    const uint64_t start = pc;
+    const uint64_t end = pc + size;
+    for (size_t offset = 0;offset < size;offset += 4) {
+        uint32_t inst;
+        memcpy(&inst, static_cast<const uint8_t*>(src) + offset, sizeof(inst));
+        if (UNLIKELY(!RelocateOne(inst, pc + offset, start, end))) return false;
+    }
+    return true;
+}
+
+size_t Arm64Relocator::GetPoolOffset() const {
+    return (code.size() * 4 + 7) & ~static_cast<size_t>(7);
+}
+
+size_t Arm64Relocator::GetSize() const {
+    return GetPoolOffset() + literals.size() * 8;
+}
+
+void Arm64Relocator::CopyTo(void* out) const {
+    auto insts = static_cast<uint32_t*>(out);
+    memcpy(insts, code.data(), code.size() * 4);
+    if (code.size() & 1) insts[code.size()] = 0xD503201F; // nop as padding
+
+    const size_t pool_offset = GetPoolOffset();
+    memcpy(static_cast<uint8_t*>(out) + pool_offset, literals.data(), literals.size() * 8);
+
+    for (const LiteralRef& ref : literal_refs) {
+        size_t offset = pool_offset + ref.literal_index * 8 - ref.inst_index * 4;
+        insts[ref.inst_index] |= static_cast<uint32_t>(offset / 4) << 5;
+    }
+}
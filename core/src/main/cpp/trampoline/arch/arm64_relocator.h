@@ -0,0 +1,92 @@
+#ifndef PINE_ARM64_RELOCATOR_H
+#define PINE_ARM64_RELOCATOR_H
+
+#include <cstddef>
+#include <cstdint>
+#include <vector>
+#include "../../utils/macros.h"
+
+namespace pine {
+    /**
+     * Rewrites A64 instructions copied out of their original location, so that pc relative
+     * ones (b, bl, b.cond, cb{n}z, tb{n}z, ldr literal, adr, adrp) keep their meaning.
+     * Absolute values are loaded from a literal pool placed right after the code, through x17.
+     * The generated code is position independent and can be copied to any 8 bytes aligned address.
+     */
+    class Arm64Relocator {
+    public:
+        Arm64Relocator() {}
+
+        // Relocates size bytes of instructions originally located at pc.
+        // Returns false if something cannot be relocated, e.g. a branch into the copied range.
+        bool Relocate(const void* src, uintptr_t pc, size_t size);
+
+        // ldr X<reg>, =value
+        void LoadLiteral(uint32_t reg, uint64_t value);
+
+        // ldr x17, =target; br x17
+        void Jump(uint64_t target);
+
+        void Emit(uint32_t inst) {
+            code.push_back(inst);
+        }
+
+        size_t GetSize() const;
+
+        void CopyTo(void* out) const;
+
+        static bool IsPCRelated(uint32_t inst);
+
+        // Decoders, return the pc relative offset of the instruction.
+        static int64_t DecodeImm26(uint32_t inst) {
+            return SignExtend(inst & 0x3FFFFFF, 26) * 4;
+        }
+
+        static int64_t DecodeImm19(uint32_t inst) {
+            return SignExtend((inst >> 5) & 0x7FFFF, 19) * 4;
+        }
+
+        static int64_t DecodeImm14(uint32_t inst) {
+            return SignExtend((inst >> 5) & 0x3FFF, 14) * 4;
+        }
+
+        static int64_t DecodeAdrImm(uint32_t inst) {
+            return SignExtend((((inst >> 5) & 0x7FFFF) << 2) | ((inst >> 29) & 3), 21);
+        }
+
+        static uint64_t DecodeAdrTarget(uint32_t inst, uint64_t pc) {
+            if (inst & 0x80000000) // adrp
+                return (pc & ~UINT64_C(0xFFF)) + (static_cast<uint64_t>(DecodeAdrImm(inst)) << 12);
+            return pc + DecodeAdrImm(inst);
+        }
+
+    private:
+        struct LiteralRef {
+            size_t inst_index;
+            size_t literal_index;
+        };
+
+        static int64_t SignExtend(uint64_t value, unsigned bits) {
+            uint64_t sign = UINT64_C(1) << (bits - 1);
+            return static_cast<int64_t>((value ^ sign) - sign);
+        }
+
+        // ldr X<reg>, <literal> with the offset fixed up in CopyTo()
+        void EmitLiteralLoad(uint32_t inst, uint64_t value);
+
+        // Emits inverted_branch (already pointing past the next two instructions), then a jump.
+        void EmitConditionalJump(uint32_t inverted_branch, uint64_t target);
+
+        bool RelocateOne(uint32_t inst, uint64_t pc, uint64_t start, uint64_t end);
+
+        size_t GetPoolOffset() const;
+
+        std::vector<uint32_t> code;
+        std::vector<uint64_t> literals;
+        std::vector<LiteralRef> literal_refs;
+
+        DISALLOW_COPY_AND_ASSIGN(Arm64Relocator);
+    };
+}
+
+#endif //PINE_ARM64_RELOCATOR_H
@@ -41,47 +41,55 @@ void Thumb2TrampolineInstaller::InitTrampolines() {
 
     kTrampolinesEnd = ToAddress(AS_VOID_PTR(pine_thumb_trampolines_end));
 
+    kBackupTrampolineOverrideSpaceSize = 10;
+
     kDirectJumpTrampolineSize = 8; // Hardcoded size of pine_thumb_direct_jump_trampoline now :)
+
+    // b.w <label> (encoding T4): +-16MB, not the 128MB of arm64
+    kNearJumpSize = 4;
+    kNearJumpRange = 16 * 1024 * 1024 - 4;
 }
 
-bool Thumb2TrampolineInstaller::IsThumb32PCRelatedInst(uint32_t inst) {
-    INST_CASE(0xF800D000, 0xF800D000); // blx <label>
-    INST_CASE(0xF800D000, 0xF000D000); // bl <label>
-    INST_CASE(0xF800D000, 0xF0008000); // b.w <label>
-    INST_CASE(0xF800D000, 0xF0009000); // b.w <label>
-    INST_CASE(0xFBFF8000, 0xF2AF0000); // adr.w Rd, <label>
-    INST_CASE(0xFBFF8000, 0xF20F0000); // adr.w Rd, <label>
-    INST_CASE(0xFF7F0000, 0xF85F0000); // ldr.w Rt, <label>
-    INST_CASE(0xFFFF00F0, 0xE8DF0000); // tbb [pc, Rm]
-    INST_CASE(0xFFFF00F0, 0xE8DF0010); // tbh [pc, Rm, LSL #1]
-    return false;
+bool Thumb2TrampolineInstaller::CanNearJump(void* from, void* to) {
+    intptr_t offset = NearJumpOffset(from, to);
+    return offset >= -(1 << 24) && offset < (1 << 24);
 }
 
-bool Thumb2TrampolineInstaller::IsThumb16PCRelatedInst(uint16_t inst) {
-    INST_CASE(0xF000, 0xD000); // b <label>
-    INST_CASE(0xF800, 0xE000); // b <label>
-    INST_CASE(0xFFF8, 0x4778); // bx Rn
-    INST_CASE(0xFF78, 0x4478); // add <Rdn>, pc (Rd != pc, Rn != pc)
-    INST_CASE(0xFF78, 0x4678); // mov Rd, pc
-    INST_CASE(0xF800, 0xA000); // adr Rd, <label>
-    INST_CASE(0xF800, 0x4800); // ldr Rt, <label>
-    INST_CASE(0xF500, 0xB100); // cb{n}z <Rn>, <label>
-    return false;
+void Thumb2TrampolineInstaller::WriteNearJumpTo(void* from, void* to) {
+    uint32_t imm = static_cast<uint32_t>(NearJumpOffset(from, to));
+    uint32_t s = (imm >> 24) & 1;
+    uint32_t j1 = (~(imm >> 23) ^ s) & 1; // I1 = NOT(J1 XOR S)
+    uint32_t j2 = (~(imm >> 22) ^ s) & 1; // I2 = NOT(J2 XOR S)
+    uint16_t insts[2] = {
+            static_cast<uint16_t>(0xF000 | (s << 10) | ((imm >> 12) & 0x3FF)),
+            static_cast<uint16_t>(0x9000 | (j1 << 13) | (j2 << 11) | ((imm >> 1) & 0x7FF))
+    };
+    void* addr = ToAddress(from);
+    memcpy(addr, insts, sizeof(insts));
+    Memory::FlushCache(addr, kNearJumpSize);
+}
+
+void Thumb2TrampolineInstaller::WriteNops(void* mem, size_t size) {
+    const uint16_t nop = 0xBF00;
+    for (size_t offset = 0;offset < size;offset += 2) {
+        memcpy(AS_VOID_PTR(reinterpret_cast<uintptr_t>(mem) + offset), &nop, 2);
+    }
 }
 
-bool Thumb2TrampolineInstaller::CannotBackup(art::ArtMethod* target) {
-    uintptr_t entry = reinterpret_cast<uintptr_t>(target->GetCompiledCodeAddr());
+bool Thumb2TrampolineInstaller::HasPCRelatedInst(void* code, size_t size) {
+    uintptr_t entry = reinterpret_cast<uintptr_t>(code);
     uint32_t index = 0;
-    while (index < kDirectJumpTrampolineSize) {
+    while (index < size) {
         uint16_t* ptr16 = reinterpret_cast<uint16_t*>(entry + index);
-        uint32_t* ptr32 = reinterpret_cast<uint32_t*>(entry + index);
         if (LIKELY(IsThumb32(*ptr16))) {
-            if (UNLIKELY(IsThumb32PCRelatedInst(*ptr32))) {
+            // The first half is the most significant one, not the lower address one
+            uint32_t inst = (static_cast<uint32_t>(ptr16[0]) << 16) | ptr16[1];
+            if (UNLIKELY(Thumb2Relocator::IsPCRelated32(inst))) {
                 return true;
             }
             index += 4;
         } else {
-            if (UNLIKELY(IsThumb16PCRelatedInst(*ptr16))) {
+            if (UNLIKELY(Thumb2Relocator::IsPCRelated16(*ptr16))) {
                 return true;
             }
             index += 2;
@@ -90,10 +98,19 @@ bool Thumb2TrampolineInstaller::CannotBackup(art::ArtMethod* target) {
     return false;
 }
 
-size_t Thumb2TrampolineInstaller::GetBackupCodeSize(art::ArtMethod* target) {
-    uintptr_t entry = reinterpret_cast<uintptr_t>(target->GetCompiledCodeAddr());
+bool Thumb2TrampolineInstaller::CannotBackup(art::ArtMethod* target, size_t patch_size) {
+    void* code = target->GetCompiledCodeAddr();
+    size_t backup_size = GetBackupCodeSize(target->GetCompiledCodeAddr(), patch_size);
+    if (LIKELY(!HasPCRelatedInst(code, backup_size))) return false;
+    // Dry run, fails on it blocks, tbb/tbh, branches into the overwritten instructions etc.
+    Thumb2Relocator relocator;
+    return !relocator.Relocate(code, AS_PTR_NUM(code), backup_size);
+}
+
+size_t Thumb2TrampolineInstaller::GetBackupCodeSize(void* code, size_t patch_size) {
+    uintptr_t entry = reinterpret_cast<uintptr_t>(code);
     size_t size = 0;
-    while (size < kDirectJumpTrampolineSize) {
+    while (size < patch_size) {
         if (LIKELY(IsThumb32(*reinterpret_cast<uint16_t*>(entry + size)))) {
             size += 4;
         } else {
@@ -104,22 +121,29 @@ size_t Thumb2TrampolineInstaller::GetBackupCodeSize(art::ArtMethod* target) {
 }
 
 
-void* Thumb2TrampolineInstaller::Backup(art::ArtMethod* target) {
+void* Thumb2TrampolineInstaller::Backup(art::ArtMethod* target, size_t patch_size,
+                                        size_t* trampoline_size) {
+    size_t backup_size = GetBackupCodeSize(target->GetCompiledCodeAddr(), patch_size);
+    if (UNLIKELY(HasPCRelatedInst(target->GetCompiledCodeAddr(), backup_size))) {
+        return RelocateBackup(target, backup_size, trampoline_size);
+    }
+
     void* mem = Memory::AllocUnprotected(kBackupTrampolineSize);
     if (UNLIKELY(!mem)) {
         LOGE("Failed to allocate executable memory for backup!");
         return nullptr;
     }
-    size_t backup_size = GetBackupCodeSize(target);
-    memcpy(mem, kBackupTrampoline, kBackupTrampolineSize);
-
-    uintptr_t addr = reinterpret_cast<uintptr_t>(mem);
+    *trampoline_size = kBackupTrampolineSize;
+    uintptr_t addr = reinterpret_cast<uintptr_t>(Memory::GetWritable(mem));
+    memcpy(AS_VOID_PTR(addr), kBackupTrampoline, kBackupTrampolineSize);
 
     auto origin_out = reinterpret_cast<art::ArtMethod**>(addr + kBackupTrampolineOriginMethodOffset);
     *origin_out = target;
 
     void* target_addr = target->GetCompiledCodeAddr();
     memcpy(AS_VOID_PTR(addr + kBackupTrampolineOverrideSpaceOffset), target_addr, backup_size);
+    WriteNops(AS_VOID_PTR(addr + kBackupTrampolineOverrideSpaceOffset + backup_size),
+              kBackupTrampolineOverrideSpaceSize - backup_size);
 
     if (LIKELY(target->GetCompiledCodeSize() != backup_size)) {
         // has remaining code
@@ -130,3 +154,62 @@ void* Thumb2TrampolineInstaller::Backup(art::ArtMethod* target) {
     Memory::FlushCache(mem, kBackupTrampolineSize);
     return ToPC(mem);
 }
+
+void* Thumb2TrampolineInstaller::RelocateBackup(art::ArtMethod* target, size_t backup_size,
+                                                size_t* trampoline_size) {
+    // ldr.w r0, =target; <relocated instructions>; ldr.w pc, =remaining code
+    void* target_addr = target->GetCompiledCodeAddr();
+    Thumb2Relocator relocator;
+    relocator.LoadLiteral(0, static_cast<uint32_t>(AS_PTR_NUM(target)));
+    if (UNLIKELY(!relocator.Relocate(target_addr, AS_PTR_NUM(target_addr), backup_size))) {
+        LOGE("Failed to relocate the code of target method!");
+        return nullptr;
+    }
+    relocator.Jump(static_cast<uint32_t>(AS_PTR_NUM(ToPC(AS_VOID_PTR(
+            AS_PTR_NUM(target_addr) + backup_size)))));
+
+    size_t size = relocator.GetSize();
+    void* mem = Memory::AllocUnprotected(size);
+    if (UNLIKELY(!mem)) {
+        LOGE("Failed to allocate executable memory for backup!");
+        return nullptr;
+    }
+    relocator.CopyTo(Memory::GetWritable(mem));
+    Memory::FlushCache(mem, size);
+    *trampoline_size = size;
+    return ToPC(mem);
+}
+
+void* Thumb2TrampolineInstaller::NativeHook(void* target, void* to) {
+    void* code = ToAddress(target);
+    if (UNLIKELY(AS_PTR_NUM(code) & 2)) {
+        // The literal of the direct jump trampoline is loaded relative to Align(pc, 4).
+        LOGE("Cannot hook native function %p: not 4 bytes aligned", target);
+        return nullptr;
+    }
+
+    // <relocated instructions>; ldr.w pc, =remaining code
+    size_t backup_size = GetBackupCodeSize(code, kDirectJumpTrampolineSize);
+    Thumb2Relocator relocator;
+    if (UNLIKELY(!relocator.Relocate(code, AS_PTR_NUM(code), backup_size))) {
+        LOGE("Failed to relocate the code of native function %p!", target);
+        return nullptr;
+    }
+    relocator.Jump(static_cast<uint32_t>(AS_PTR_NUM(ToPC(AS_VOID_PTR(
+            AS_PTR_NUM(code) + backup_size)))));
+
+    size_t size = relocator.GetSize();
+    void* mem = Memory::AllocUnprotected(size);
+    if (UNLIKELY(!mem)) {
+        LOGE("Failed to allocate executable memory for backup!");
+        return nullptr;
+    }
+    relocator.CopyTo(Memory::GetWritable(mem));
+    Memory::FlushCache(mem, size);
+
+    if (UNLIKELY(!NativeHookNoBackup(target, to))) {
+        Memory::FreeUnprotected(mem, size);
+        return nullptr;
+    }
+    return ToPC(mem);
+}
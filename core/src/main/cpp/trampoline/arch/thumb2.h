@@ -6,6 +6,7 @@
 #define PINE_THUMB2_H
 
 #include "trampolines.h"
+#include "thumb2_relocator.h"
 #include "../trampoline_installer.h"
 
 namespace pine {
@@ -13,29 +14,39 @@ namespace pine {
     protected:
         virtual void InitTrampolines() override;
 
-        virtual bool CannotBackup(art::ArtMethod* target) override;
+        virtual bool CanNearJump(void* from, void* to) override;
+
+        virtual void WriteNearJumpTo(void* from, void* to) override;
+
+        virtual void WriteNops(void* mem, size_t size) override;
+
+        virtual bool CannotBackup(art::ArtMethod* target, size_t patch_size) override;
 
         virtual void* CreateDirectJumpTrampoline(void* to) override {
             return ToPC(TrampolineInstaller::CreateDirectJumpTrampoline(to));
         }
 
-        virtual void* CreateBridgeJumpTrampoline(art::ArtMethod* target, art::ArtMethod* bridge, void* origin_code_entry) override {
-            return ToPC(TrampolineInstaller::CreateBridgeJumpTrampoline(target, bridge, origin_code_entry));
+        virtual void* CreateBridgeJumpTrampoline(art::ArtMethod* target, art::ArtMethod* bridge, void* origin_code_entry, void* mem) override {
+            return ToPC(TrampolineInstaller::CreateBridgeJumpTrampoline(target, bridge, origin_code_entry, mem));
         }
 
         virtual void* CreateCallOriginTrampoline(art::ArtMethod* origin, void* original_code_entry) override {
             return ToPC(TrampolineInstaller::CreateCallOriginTrampoline(origin, original_code_entry));
         }
 
-        virtual void* Backup(art::ArtMethod* target) override;
+        virtual void* Backup(art::ArtMethod* target, size_t patch_size,
+                             size_t* trampoline_size) override;
 
         virtual bool NativeHookNoBackup(void* target, void* to) override {
             return TrampolineInstaller::NativeHookNoBackup(ToAddress(target), to);
         }
 
+    public:
+        virtual void* NativeHook(void* target, void* to) override;
+
     private:
         static inline bool IsThumb32(uint16_t inst) {
-            return ((inst & 0xF000) == 0xF000) || ((inst & 0xF800) == 0xE800);
+            return Thumb2Relocator::IsThumb32(inst);
         }
 
         static inline void* ToPC(void* addr) {
@@ -46,11 +57,18 @@ namespace pine {
             return AS_VOID_PTR(reinterpret_cast<uintptr_t>(pc) & ~1);
         }
 
-        static bool IsThumb32PCRelatedInst(uint32_t inst);
+        static bool HasPCRelatedInst(void* code, size_t size);
+
+        void* RelocateBackup(art::ArtMethod* target, size_t backup_size, size_t* trampoline_size);
 
-        static bool IsThumb16PCRelatedInst(uint16_t inst);
+        static intptr_t NearJumpOffset(void* from, void* to) {
+            // pc reads as the address of the current instruction + 4 in thumb state
+            return reinterpret_cast<intptr_t>(ToAddress(to))
+                   - (reinterpret_cast<intptr_t>(ToAddress(from)) + 4);
+        }
 
-        size_t GetBackupCodeSize(art::ArtMethod* target);
+        // Size of the whole instructions covering the first patch_size bytes of code.
+        static size_t GetBackupCodeSize(void* code, size_t patch_size);
     };
 }
 
@@ -0,0 +1,208 @@
+#include <cstring>
+#include "thumb2_relocator.h"
+#include "../../utils/log.h"
+
+using namespace pine;
+
+static constexpr uint32_t kScratchRegister = 12; // ip
+static constexpr uint16_t kBlxIp = 0x4780 | (kScratchRegister << 3);
+static constexpr uint32_t kPC = 15;
+
+static inline uint32_t LoadImmediate(uint32_t rt, uint32_t rn) {
+    // ldr.w Rt, [Rn, #0]
+    return ((0xF8D0 | rn) << 16) | (rt << 12);
+}
+
+bool Thumb2Relocator::IsPCRelated16(uint16_t inst) {
+    return ((inst & 0xFF00) == 0xBF00 && (inst & 0xF) != 0) // it (not a pc related one, but
+                                                              // the condition can't move with the
+                                                              // code it applies to)
+           || ((inst & 0xF000) == 0xD000 && ((inst >> 8) & 0xF) < 0xE) // b<c> <label>
+           || (inst & 0xF800) == 0xE000 // b <label>
+           || (inst & 0xFF7F) == 0x4778 // bx/blx pc
+           || (inst & 0xFF78) == 0x4478 // add <Rdn>, pc
+           || (inst & 0xFF78) == 0x4678 // mov Rd, pc
+           || (inst & 0xF800) == 0xA000 // adr Rd, <label>
+           || (inst & 0xF800) == 0x4800 // ldr Rt, <label>
+           || (inst & 0xF500) == 0xB100; // cb{n}z <Rn>, <label>
+}
+
+bool Thumb2Relocator::IsPCRelated32(uint32_t inst) {
+    return (inst & 0xF800D000) == 0xF0009000 // b.w <label>
+           || (inst & 0xF800D000) == 0xF000D000 // bl <label>
+           || (inst & 0xF800D001) == 0xF000C000 // blx <label>
+           || ((inst & 0xF800D000) == 0xF0008000 && ((inst >> 22) & 0xF) < 0xE) // b<c>.w <label>
+           || (inst & 0xFBFF8000) == 0xF20F0000 // adr.w Rd, <label> (add)
+           || (inst & 0xFBFF8000) == 0xF2AF0000 // adr.w Rd, <label> (sub)
+           || (inst & 0xFE1F0000) == 0xF81F0000 // ldr{b,h,sb,sh}.w / pld <label>
+           || (inst & 0xFE5F0000) == 0xE85F0000 // ldrd Rt, Rt2, <label>
+           || (inst & 0xFF3F0000) == 0xED1F0000 // vldr <Sd|Dd>, <label>
+           || (inst & 0xFFF0FFE0) == 0xE8D0F000; // tbb/tbh
+}
+
+void Thumb2Relocator::LoadLiteral(uint32_t reg, uint32_t value) {
+    size_t literal_index = 0;
+    while (literal_index < literals.size() && literals[literal_index] != value) literal_index++;
+    if (literal_index == literals.size()) literals.push_back(value);
+    literal_refs.push_back({code.size(), literal_index});
+    Emit32(0xF8DF0000 | (reg << 12)); // ldr.w R<reg>, [pc, #+<imm12>]
+}
+
+void Thumb2Relocator::Jump(uint32_t target) {
+    LoadLiteral(kPC, target);
+}
+
+bool Thumb2Relocator::CheckTarget(uint32_t target, uint32_t pc, uint32_t start, uint32_t end) {
+    if (UNLIKELY(target >= start && target < end)) {
+        LOGW("Cannot relocate instruction at %#x: target %#x is inside the relocated code",
+             pc, target);
+        return false;
+    }
+    return true;
+}
+
+bool Thumb2Relocator::RelocateOne16(uint16_t inst, uint32_t pc, uint32_t start, uint32_t end) {
+    if (!IsPCRelated16(inst)) {
+        Emit16(inst);
+        return true;
+    }
+
+    if ((inst & 0xF000) == 0xD000) {
+        uint32_t target = pc + 4 + SignExtend((inst & 0xFF) << 1, 9);
+        if (UNLIKELY(!CheckTarget(target, pc, start, end))) return false;
+        uint32_t cond = (inst >> 8) & 0xF;
+        Emit16(static_cast<uint16_t>(0xD000 | ((cond ^ 1) << 8) | 1)); // b<!c> over the ldr.w below
+        Jump(target | 1);
+    } else if ((inst & 0xF800) == 0xE000) {
+        uint32_t target = pc + 4 + SignExtend((inst & 0x7FF) << 1, 12);
+        if (UNLIKELY(!CheckTarget(target, pc, start, end))) return false;
+        Jump(target | 1);
+    } else if ((inst & 0xF500) == 0xB100) {
+        uint32_t target = pc + 4 + ((((inst >> 9) & 1) << 6) | (((inst >> 3) & 0x1F) << 1));
+        if (UNLIKELY(!CheckTarget(target, pc, start, end))) return false;
+        // cb<!n>z Rn over the ldr.w below
+        Emit16(static_cast<uint16_t>(((inst ^ 0x0800) & ~0x02F8) | (1 << 3)));
+        Jump(target | 1);
+    } else if ((inst & 0xF800) == 0xA000) {
+        LoadLiteral((inst >> 8) & 7, Align4(pc + 4) + (inst & 0xFF) * 4);
+    } else if ((inst & 0xF800) == 0x4800) {
+        uint32_t rt = (inst >> 8) & 7;
+        LoadLiteral(rt, Align4(pc + 4) + (inst & 0xFF) * 4);
+        Emit32(LoadImmediate(rt, rt));
+    } else if ((inst & 0xFF78) == 0x4678) {
+        uint32_t rd = (inst & 7) | ((inst >> 4) & 8);
+        if (UNLIKELY(rd == kPC)) return false;
+        LoadLiteral(rd, pc + 4);
+    } else if ((inst & 0xFF78) == 0x4478) {
+        uint32_t rdn = (inst & 7) | ((inst >> 4) & 8);
+        if (UNLIKELY(rdn == kScratchRegister || rdn == 13 || rdn == kPC)) return false;
+        LoadLiteral(kScratchRegister, pc + 4);
+        // add Rdn, ip
+        Emit16(static_cast<uint16_t>(0x4400 | ((rdn & 8) << 4) | (kScratchRegister << 3) | (rdn & 7)));
+    } else {
+        // it, bx/blx pc
+        LOGW("Cannot relocate instruction %04x at %#x", inst, pc);
+        return false;
+    }
+    return true;
+}
+
+bool Thumb2Relocator::RelocateOne32(uint32_t inst, uint32_t pc, uint32_t start, uint32_t end) {
+    if (!IsPCRelated32(inst)) {
+        Emit32(inst);
+        return true;
+    }
+
+    if ((inst & 0xF800D000) == 0xF0009000) {
+        uint32_t target = pc + 4 + DecodeBranchT4(inst);
+        if (UNLIKELY(!CheckTarget(target, pc, start, end))) return false;
+        Jump(target | 1);
+    } else if ((inst & 0xF800D000) == 0xF000D000) {
+        uint32_t target = pc + 4 + DecodeBranchT4(inst);
+        if (UNLIKELY(!CheckTarget(target, pc, start, end))) return false;
+        LoadLiteral(kScratchRegister, target | 1);
+        Emit16(kBlxIp);
+    } else if ((inst & 0xF800D001) == 0xF000C000) {
+        // blx switches to arm state, the target is word aligned.
+        uint32_t target = Align4(pc + 4) + DecodeBranchT4(inst);
+        LoadLiteral(kScratchRegister, target);
+        Emit16(kBlxIp);
+    } else if ((inst & 0xF800D000) == 0xF0008000) {
+        uint32_t target = pc + 4 + DecodeBranchT3(inst);
+        if (UNLIKELY(!CheckTarget(target, pc, start, end))) return false;
+        uint32_t cond = (inst >> 22) & 0xF;
+        Emit16(static_cast<uint16_t>(0xD000 | ((cond ^ 1) << 8) | 1)); // b<!c> over the ldr.w below
+        Jump(target | 1);
+    } else if ((inst & 0xFBFF8000) == 0xF20F0000 || (inst & 0xFBFF8000) == 0xF2AF0000) {
+        uint32_t rd = (inst >> 8) & 0xF;
+        if (UNLIKELY(rd == kPC)) return false;
+        uint32_t imm = DecodeImm12(inst);
+        bool sub = (inst & 0x00A00000) == 0x00A00000;
+        LoadLiteral(rd, sub ? Align4(pc + 4) - imm : Align4(pc + 4) + imm);
+    } else if ((inst & 0xFF7F0000) == 0xF85F0000) {
+        uint32_t rt = (inst >> 12) & 0xF;
+        uint32_t imm = inst & 0xFFF;
+        bool add = (inst >> 23) & 1;
+        uint32_t addr = add ? Align4(pc + 4) + imm : Align4(pc + 4) - imm;
+        if (rt == kPC) {
+            LoadLiteral(kScratchRegister, addr);
+            Emit32(LoadImmediate(kPC, kScratchRegister));
+        } else {
+            LoadLiteral(rt, addr);
+            Emit32(LoadImmediate(rt, rt));
+        }
+    } else {
+        // tbb/tbh, other pc based loads
+        LOGW("Cannot relocate instruction %08x at %#x", inst, pc);
+        return false;
+    }
+    return true;
+}
+
+bool Thumb2Relocator::Relocate(const void* src, uintptr_t pc, size_t size) {
+    const uint32_t start = static_cast<uint32_t>(pc);
+    const uint32_t end = static_cast<uint32_t>(pc + size);
+    auto bytes = static_cast<const uint8_t*>(src);
+    size_t offset = 0;
+    while (offset < size) {
+        uint16_t first;
+        memcpy(&first, bytes + offset, sizeof(first));
+        uint32_t current = static_cast<uint32_t>(start + offset);
+        if (IsThumb32(first)) {
+            if (UNLIKELY(offset + 4 > size)) return false;
+            uint16_t second;
+            memcpy(&second, bytes + offset + 2, sizeof(second));
+            uint32_t inst = (static_cast<uint32_t>(first) << 16) | second;
+            if (UNLIKELY(!RelocateOne32(inst, current, start, end))) return false;
+            offset += 4;
+        } else {
+            if (UNLIKELY(!RelocateOne16(first, current, start, end))) return false;
+            offset += 2;
+        }
+    }
+    return true;
+}
+
+size_t Thumb2Relocator::GetPoolOffset() const {
+    return (code.size() * 2 + 3) & ~static_cast<size_t>(3);
+}
+
+size_t Thumb2Relocator::GetSize() const {
+    return GetPoolOffset() + literals.size() * 4;
+}
+
+void Thumb2Relocator::CopyTo(void* out) const {
+    auto halves = static_cast<uint16_t*>(out);
+    memcpy(halves, code.data(), code.size() * 2);
+    if (code.size() & 1) halves[code.size()] = 0xBF00; // nop as padding
+
+    const size_t pool_offset = GetPoolOffset();
+    memcpy(static_cast<uint8_t*>(out) + pool_offset, literals.data(), literals.size() * 4);
+
+    for (const LiteralRef& ref : literal_refs) {
+        // The base of a literal load is Align(pc, 4), pc being the ldr.w address + 4.
+        size_t base = (ref.half_index * 2 + 4) & ~static_cast<size_t>(3);
+        size_t offset = pool_offset + ref.literal_index * 4 - base;
+        halves[ref.half_index + 1] |= static_cast<uint16_t>(offset);
+    }
+}
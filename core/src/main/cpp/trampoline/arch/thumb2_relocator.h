@@ -0,0 +1,105 @@
+#ifndef PINE_THUMB2_RELOCATOR_H
+#define PINE_THUMB2_RELOCATOR_H
+
+#include <cstddef>
+#include <cstdint>
+#include <vector>
+#include "../../utils/macros.h"
+
+namespace pine {
+    /**
+     * Thumb-2 counterpart of Arm64Relocator. Handles b/b.w/b<c>{.w}, bl, blx, cb{n}z, adr{.w},
+     * ldr{.w} literal and mov/add with pc; refuses IT blocks, tbb/tbh and other pc based loads.
+     * Literals are loaded with ldr.w <Rt>, [pc, #imm], ip (r12) is used as scratch register.
+     * The generated code can be copied to any 4 bytes aligned address.
+     */
+    class Thumb2Relocator {
+    public:
+        Thumb2Relocator() {}
+
+        // Relocates size bytes of instructions originally located at pc (without the thumb bit).
+        bool Relocate(const void* src, uintptr_t pc, size_t size);
+
+        // ldr.w R<reg>, =value
+        void LoadLiteral(uint32_t reg, uint32_t value);
+
+        // ldr.w pc, =target (target should have the thumb bit set if it's thumb code)
+        void Jump(uint32_t target);
+
+        void Emit16(uint16_t inst) {
+            code.push_back(inst);
+        }
+
+        void Emit32(uint32_t inst) {
+            code.push_back(static_cast<uint16_t>(inst >> 16));
+            code.push_back(static_cast<uint16_t>(inst));
+        }
+
+        size_t GetSize() const;
+
+        void CopyTo(void* out) const;
+
+        static bool IsThumb32(uint16_t first_half) {
+            return ((first_half & 0xF000) == 0xF000) || ((first_half & 0xF800) == 0xE800);
+        }
+
+        // 32-bit instructions are passed as first_half << 16 | second_half.
+        static bool IsPCRelated16(uint16_t inst);
+
+        static bool IsPCRelated32(uint32_t inst);
+
+        // Offset of b.w (T4), bl (T1) and blx (T2), relative to pc + 4.
+        static int32_t DecodeBranchT4(uint32_t inst) {
+            uint32_t s = (inst >> 26) & 1;
+            uint32_t i1 = ~((inst >> 13) ^ s) & 1;
+            uint32_t i2 = ~((inst >> 11) ^ s) & 1;
+            uint32_t imm = (s << 24) | (i1 << 23) | (i2 << 22) | (((inst >> 16) & 0x3FF) << 12)
+                           | ((inst & 0x7FF) << 1);
+            return SignExtend(imm, 25);
+        }
+
+        // Offset of b<c>.w (T3), relative to pc + 4.
+        static int32_t DecodeBranchT3(uint32_t inst) {
+            uint32_t imm = (((inst >> 26) & 1) << 20) | (((inst >> 11) & 1) << 19)
+                           | (((inst >> 13) & 1) << 18) | (((inst >> 16) & 0x3F) << 12)
+                           | ((inst & 0x7FF) << 1);
+            return SignExtend(imm, 21);
+        }
+
+        // i:imm3:imm8 of adr.w
+        static uint32_t DecodeImm12(uint32_t inst) {
+            return (((inst >> 26) & 1) << 11) | (((inst >> 12) & 7) << 8) | (inst & 0xFF);
+        }
+
+        static uint32_t Align4(uint32_t value) {
+            return value & ~3u;
+        }
+
+    private:
+        struct LiteralRef {
+            size_t half_index; // index of the first half of the ldr.w
+            size_t literal_index;
+        };
+
+        static int32_t SignExtend(uint32_t value, unsigned bits) {
+            uint32_t sign = 1u << (bits - 1);
+            return static_cast<int32_t>((value ^ sign) - sign);
+        }
+
+        bool RelocateOne16(uint16_t inst, uint32_t pc, uint32_t start, uint32_t end);
+
+        bool RelocateOne32(uint32_t inst, uint32_t pc, uint32_t start, uint32_t end);
+
+        static bool CheckTarget(uint32_t target, uint32_t pc, uint32_t start, uint32_t end);
+
+        size_t GetPoolOffset() const;
+
+        std::vector<uint16_t> code;
+        std::vector<uint32_t> literals;
+        std::vector<LiteralRef> literal_refs;
+
+        DISALLOW_COPY_AND_ASSIGN(Thumb2Relocator);
+    };
+}
+
+#endif //PINE_THUMB2_RELOCATOR_H
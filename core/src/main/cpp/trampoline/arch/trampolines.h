@@ -38,6 +38,13 @@ void pine_bridge_jump_trampoline_bridge_method();
 void pine_bridge_jump_trampoline_bridge_entry();
 void pine_bridge_jump_trampoline_call_origin_entry();
 
+void pine_typed_bridge_jump_trampoline();
+void pine_typed_bridge_jump_trampoline_target_method();
+void pine_typed_bridge_jump_trampoline_bridge_method();
+void pine_typed_bridge_jump_trampoline_bridge_entry();
+void pine_typed_bridge_jump_trampoline_call_origin_entry();
+void pine_typed_bridge_jump_trampoline_art_method_register();
+
 void pine_call_origin_trampoline();
 void pine_call_origin_trampoline_origin_method();
 void pine_call_origin_trampoline_origin_code_entry();
@@ -8,6 +8,7 @@
 #include <cstdint>
 #include "arch/arch.h"
 #include "../utils/macros.h"
+#include "../utils/memory.h"
 
 namespace pine {
     /** Hook extras data. DO NOT modify the member layout of this class because it is hard-coded in trampolines. */
@@ -16,6 +17,17 @@ namespace pine {
         Extras() {
         }
 
+        // Allocated from a dedicated non-executable pool, so freed extras are reused.
+        static void* operator new(size_t size) {
+            void* ptr = Memory::AllocData(size);
+            CHECK(ptr, "Failed to allocate memory for Extras");
+            return ptr;
+        }
+
+        static void operator delete(void* ptr, size_t size) {
+            Memory::FreeData(ptr, size);
+        }
+
         void ReleaseLock() {
             CHECK(lock_flag == 0, "Unexpected lock_flag %d", lock_flag);
 
@@ -33,6 +45,8 @@ namespace pine {
         void* r2 = nullptr;
         /** r3(32 bit) or x3(64 bit) register */
         void* r3 = nullptr;
+        /** lr register, the return address into the caller */
+        void* lr = nullptr;
 
     private:
         DISALLOW_COPY_AND_ASSIGN(Extras);
@@ -0,0 +1,17 @@
+#include "hook_registry.h"
+#include "../utils/lock.h"
+
+using namespace pine;
+
+std::vector<HookRegistry::Entry> HookRegistry::entries;
+std::mutex HookRegistry::mutex;
+
+void HookRegistry::Add(const Entry& entry) {
+    ScopedLock lock(mutex);
+    entries.push_back(entry);
+}
+
+std::vector<HookRegistry::Entry> HookRegistry::Snapshot() {
+    ScopedLock lock(mutex);
+    return entries;
+}
@@ -0,0 +1,48 @@
+#ifndef PINE_HOOK_REGISTRY_H
+#define PINE_HOOK_REGISTRY_H
+
+#include <cstdint>
+#include <mutex>
+#include <vector>
+#include "../utils/macros.h"
+#include "../art/art_method.h"
+#include "trampoline_installer.h"
+
+namespace pine {
+    /**
+     * What was installed for each hooked method, for diagnostics. Entries are only
+     * added: like hooks, trampolines are never removed.
+     */
+    class HookRegistry {
+    public:
+        // Keep in sync with Pine.HookInfo
+        static constexpr uint32_t kFlagInline = 1;
+        static constexpr uint32_t kFlagInlineRequested = 1 << 1;
+        static constexpr uint32_t kFlagNativeOrProxy = 1 << 2;
+
+        static constexpr uint32_t kFallbackNone = 0;
+        static constexpr uint32_t kFallbackCannotSafeInline = 1;
+        static constexpr uint32_t kFallbackInstallFailed = 2;
+        static constexpr uint32_t kFallbackNotCompiled = 3;
+
+        struct Entry {
+            art::ArtMethod* target;
+            uint32_t flags;
+            uint32_t fallback_reason;
+            TrampolineLayout layout;
+        };
+
+        // Safe to call with other threads suspended, it does not wait for any of them.
+        static void Add(const Entry& entry);
+
+        static std::vector<Entry> Snapshot();
+
+    private:
+        static std::vector<Entry> entries;
+        static std::mutex mutex;
+
+        DISALLOW_IMPLICIT_CONSTRUCTORS(HookRegistry);
+    };
+}
+
+#endif //PINE_HOOK_REGISTRY_H
@@ -42,22 +42,23 @@ void* TrampolineInstaller::CreateDirectJumpTrampoline(void* to) {
 }
 
 void TrampolineInstaller::WriteDirectJumpTrampolineTo(void* mem, void* jump_to) {
-    memcpy(mem, kDirectJumpTrampoline, kDirectJumpTrampolineSize);
-    void* to_out = AS_VOID_PTR(reinterpret_cast<uintptr_t>(mem) + kDirectJumpTrampolineEntryOffset);
+    void* writable = Memory::GetWritable(mem);
+    memcpy(writable, kDirectJumpTrampoline, kDirectJumpTrampolineSize);
+    void* to_out = AS_VOID_PTR(reinterpret_cast<uintptr_t>(writable) + kDirectJumpTrampolineEntryOffset);
     memcpy(to_out, &jump_to, PTR_SIZE);
     Memory::FlushCache(mem, kDirectJumpTrampolineSize);
 }
 
 void*
 TrampolineInstaller::CreateBridgeJumpTrampoline(art::ArtMethod* target, art::ArtMethod* bridge,
-                                                void* origin_code_entry) {
-    void* mem = Memory::AllocUnprotected(kBridgeJumpTrampolineSize);
+                                                void* origin_code_entry, void* mem) {
+    if (!mem) mem = Memory::AllocUnprotected(kBridgeJumpTrampolineSize);
     if (UNLIKELY(!mem)) {
         LOGE("Failed to allocate bridge jump trampoline!");
         return nullptr;
     }
-    memcpy(mem, kBridgeJumpTrampoline, kBridgeJumpTrampolineSize);
-    uintptr_t addr = reinterpret_cast<uintptr_t>(mem);
+    uintptr_t addr = reinterpret_cast<uintptr_t>(Memory::GetWritable(mem));
+    memcpy(AS_VOID_PTR(addr), kBridgeJumpTrampoline, kBridgeJumpTrampolineSize);
 
     auto target_out = reinterpret_cast<art::ArtMethod**>(addr +
                                                          kBridgeJumpTrampolineTargetMethodOffset);
@@ -81,6 +82,46 @@ TrampolineInstaller::CreateBridgeJumpTrampoline(art::ArtMethod* target, art::Art
     return mem;
 }
 
+void*
+TrampolineInstaller::CreateTypedBridgeJumpTrampoline(art::ArtMethod* target, art::ArtMethod* bridge,
+                                                     int art_method_register,
+                                                     void* origin_code_entry, void* mem) {
+    if (UNLIKELY(!kTypedBridgeJumpTrampoline)) {
+        LOGE("Typed bridges are not supported on this architecture!");
+        return nullptr;
+    }
+    if (!mem) mem = Memory::AllocUnprotected(kTypedBridgeJumpTrampolineSize);
+    if (UNLIKELY(!mem)) {
+        LOGE("Failed to allocate typed bridge jump trampoline!");
+        return nullptr;
+    }
+    uintptr_t addr = reinterpret_cast<uintptr_t>(Memory::GetWritable(mem));
+    memcpy(AS_VOID_PTR(addr), kTypedBridgeJumpTrampoline, kTypedBridgeJumpTrampolineSize);
+
+    auto target_out = reinterpret_cast<art::ArtMethod**>(addr +
+                                                         kTypedBridgeJumpTrampolineTargetMethodOffset);
+    *target_out = target;
+
+    auto bridge_out = reinterpret_cast<art::ArtMethod**>(addr +
+                                                         kTypedBridgeJumpTrampolineBridgeMethodOffset);
+    *bridge_out = bridge;
+
+    auto bridge_entry_out = reinterpret_cast<void**>(addr +
+                                                     kTypedBridgeJumpTrampolineBridgeEntryOffset);
+    *bridge_entry_out = bridge->GetEntryPointFromCompiledCode();
+
+    auto origin_entry_out = reinterpret_cast<void**>(addr +
+                                                     kTypedBridgeJumpTrampolineOriginCodeEntryOffset);
+    *origin_entry_out = origin_code_entry;
+
+    auto art_method_register_out = reinterpret_cast<uintptr_t*>(addr +
+            kTypedBridgeJumpTrampolineArtMethodRegisterOffset);
+    *art_method_register_out = static_cast<uintptr_t>(art_method_register);
+
+    Memory::FlushCache(mem, kTypedBridgeJumpTrampolineSize);
+    return mem;
+}
+
 void*
 TrampolineInstaller::CreateCallOriginTrampoline(art::ArtMethod* origin, void* original_code_entry) {
     void* mem = Memory::AllocUnprotected(kCallOriginTrampolineSize);
@@ -88,8 +129,8 @@ TrampolineInstaller::CreateCallOriginTrampoline(art::ArtMethod* origin, void* or
         LOGE("Failed to allocate call origin trampoline!");
         return nullptr;
     }
-    memcpy(mem, kCallOriginTrampoline, kCallOriginTrampolineSize);
-    uintptr_t addr = reinterpret_cast<uintptr_t>(mem);
+    uintptr_t addr = reinterpret_cast<uintptr_t>(Memory::GetWritable(mem));
+    memcpy(AS_VOID_PTR(addr), kCallOriginTrampoline, kCallOriginTrampolineSize);
 
     auto origin_method_out = reinterpret_cast<art::ArtMethod**>(addr +
                                                                 kCallOriginTrampolineOriginMethodOffset);
@@ -103,15 +144,17 @@ TrampolineInstaller::CreateCallOriginTrampoline(art::ArtMethod* origin, void* or
     return mem;
 }
 
-void* TrampolineInstaller::Backup(art::ArtMethod* target) {
-    const size_t backup_size = kDirectJumpTrampolineSize;
+void* TrampolineInstaller::Backup(art::ArtMethod* target, size_t patch_size,
+                                  size_t* trampoline_size) {
+    const size_t backup_size = patch_size;
     void* mem = Memory::AllocUnprotected(kBackupTrampolineSize);
     if (UNLIKELY(!mem)) {
         LOGE("Failed to allocate executable memory for backup!");
         return nullptr;
     }
-    memcpy(mem, kBackupTrampoline, kBackupTrampolineSize);
-    uintptr_t addr = reinterpret_cast<uintptr_t>(mem);
+    *trampoline_size = kBackupTrampolineSize;
+    uintptr_t addr = reinterpret_cast<uintptr_t>(Memory::GetWritable(mem));
+    memcpy(AS_VOID_PTR(addr), kBackupTrampoline, kBackupTrampolineSize);
 
     auto origin_out = reinterpret_cast<art::ArtMethod**>(addr +
                                                          kBackupTrampolineOriginMethodOffset);
@@ -119,6 +162,9 @@ void* TrampolineInstaller::Backup(art::ArtMethod* target) {
 
     void* target_addr = target->GetEntryPointFromCompiledCode();
     memcpy(AS_VOID_PTR(addr + kBackupTrampolineOverrideSpaceOffset), target_addr, backup_size);
+    // Unused override space falls through to the jump to remaining code.
+    WriteNops(AS_VOID_PTR(addr + kBackupTrampolineOverrideSpaceOffset + backup_size),
+              kBackupTrampolineOverrideSpaceSize - backup_size);
 
     if (LIKELY(target->GetCompiledCodeSize() != backup_size)) {
         // has remaining code
@@ -132,9 +178,12 @@ void* TrampolineInstaller::Backup(art::ArtMethod* target) {
 }
 
 void*
-TrampolineInstaller::InstallReplacementTrampoline(art::ArtMethod* target, art::ArtMethod* bridge) {
+TrampolineInstaller::InstallReplacementTrampoline(art::ArtMethod* target, art::ArtMethod* bridge,
+                                                  int art_method_register,
+                                                  TrampolineLayout* layout) {
     void* origin_code_entry = target->GetEntryPointFromCompiledCode();
-    void* bridge_jump_trampoline = CreateBridgeJumpTrampoline(target, bridge, origin_code_entry);
+    void* bridge_jump_trampoline = CreateBridgeJumpTrampoline(target, bridge, art_method_register,
+                                                              origin_code_entry, nullptr);
     if (UNLIKELY(!bridge_jump_trampoline)) return nullptr;
 
     // Unknown bug:
@@ -149,40 +198,87 @@ TrampolineInstaller::InstallReplacementTrampoline(art::ArtMethod* target, art::A
     target->SetEntryPointFromCompiledCode(bridge_jump_trampoline);
     // return call_origin_trampoline;
 
+    if (layout) {
+        layout->bridge_jump = bridge_jump_trampoline;
+        layout->bridge_jump_size = GetBridgeJumpTrampolineSize(art_method_register);
+    }
+
     LOGD("InstallReplacementTrampoline: origin_entry %p bridge_jump %p",
          origin_code_entry, bridge_jump_trampoline);
 
     return origin_code_entry;
 }
 
-void* TrampolineInstaller::InstallInlineTrampoline(art::ArtMethod* target, art::ArtMethod* bridge) {
+void* TrampolineInstaller::InstallInlineTrampoline(art::ArtMethod* target, art::ArtMethod* bridge,
+                                                   int art_method_register,
+                                                   TrampolineLayout* layout) {
     void* target_code_addr = target->GetCompiledCodeAddr();
-    bool target_code_writable = Memory::Unprotect(target_code_addr);
-    if (UNLIKELY(!target_code_writable)) {
+    // Covers the longest patch, original protection is restored when we return.
+    ScopedUnprotect unprotect(target_code_addr, kDirectJumpTrampolineSize);
+    if (UNLIKELY(!unprotect.IsSuccess())) {
         LOGE("Failed to make target code writable!");
         return nullptr;
     }
 
-    void* backup = Backup(target);
-    if (UNLIKELY(!backup)) return nullptr;
+    // Prefer placing the bridge jump trampoline within branch range of the target code,
+    // then the patch is a single instruction: fewer bytes to back up and to overwrite.
+    size_t patch_size = kNearJumpSize;
+    const size_t bridge_size = GetBridgeJumpTrampolineSize(art_method_register);
+    void* bridge_mem = Memory::AllocUnprotectedNear(target_code_addr, bridge_size, kNearJumpRange);
+    if (UNLIKELY(bridge_mem && !CanNearJump(target_code_addr, bridge_mem))) {
+        Memory::FreeUnprotected(bridge_mem, bridge_size);
+        bridge_mem = nullptr;
+    }
+    if (UNLIKELY(!bridge_mem)) {
+        if (UNLIKELY(!CanDirectJumpInline(target))) {
+            LOGE("No trampoline memory near %p and the code cannot hold a direct jump!",
+                 target_code_addr);
+            return nullptr;
+        }
+        patch_size = kDirectJumpTrampolineSize;
+    }
 
-    void* bridge_jump_trampoline = CreateBridgeJumpTrampoline(target, bridge, backup);
-    if (UNLIKELY(!bridge_jump_trampoline)) return nullptr;
+    size_t backup_trampoline_size = 0;
+    void* backup = Backup(target, patch_size, &backup_trampoline_size);
+    if (UNLIKELY(!backup)) {
+        if (bridge_mem) Memory::FreeUnprotected(bridge_mem, bridge_size);
+        return nullptr;
+    }
+
+    void* bridge_jump_trampoline = CreateBridgeJumpTrampoline(target, bridge, art_method_register,
+                                                              backup, bridge_mem);
+    if (UNLIKELY(!bridge_jump_trampoline)) {
+        // Clear the thumb bit if any
+        Memory::FreeUnprotected(AS_VOID_PTR(AS_PTR_NUM(backup) & ~1), backup_trampoline_size);
+        return nullptr;
+    }
 
     {
-        ScopedMemoryAccessProtection protection(target_code_addr, kDirectJumpTrampolineSize);
-        WriteDirectJumpTrampolineTo(target_code_addr, bridge_jump_trampoline);
+        ScopedMemoryAccessProtection protection(target_code_addr, patch_size);
+        if (bridge_mem) {
+            WriteNearJumpTo(target_code_addr, bridge_mem);
+        } else {
+            WriteDirectJumpTrampolineTo(target_code_addr, bridge_jump_trampoline);
+        }
     }
 
-    LOGD("InstallInlineTrampoline: target_code_addr %p backup %p bridge_jump %p",
-         target_code_addr, backup, bridge_jump_trampoline);
+    LOGD("InstallInlineTrampoline: target_code_addr %p backup %p bridge_jump %p patch size %zu",
+         target_code_addr, backup, bridge_jump_trampoline, patch_size);
+
+    if (layout) {
+        layout->bridge_jump = bridge_jump_trampoline;
+        layout->bridge_jump_size = bridge_size;
+        layout->backup = AS_VOID_PTR(AS_PTR_NUM(backup) & ~1);
+        layout->backup_size = backup_trampoline_size;
+        layout->patch_size = patch_size;
+    }
 
     return backup;
 }
 
 bool TrampolineInstaller::NativeHookNoBackup(void* target, void* to) {
-    bool target_code_writable = Memory::Unprotect(target);
-    if (UNLIKELY(!target_code_writable)) {
+    ScopedUnprotect unprotect(target, kDirectJumpTrampolineSize);
+    if (UNLIKELY(!unprotect.IsSuccess())) {
         LOGE("Failed to make target code %p writable!", target);
         return false;
     }
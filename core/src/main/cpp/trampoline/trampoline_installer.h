@@ -18,6 +18,18 @@ if (UNLIKELY(((inst) & (mask)) == op)) return true
 #define PTR_SIZE (sizeof(void *))
 
 namespace pine {
+    // Where the trampolines of a hook are, for diagnostics (see HookRegistry).
+    struct TrampolineLayout {
+        // The trampoline entering the bridge.
+        void* bridge_jump = nullptr;
+        size_t bridge_jump_size = 0;
+        // Holds the overwritten instructions of an inline hook.
+        void* backup = nullptr;
+        size_t backup_size = 0;
+        // Bytes overwritten in the target code, 0 if it is not patched.
+        size_t patch_size = 0;
+    };
+
     class TrampolineInstaller {
     public:
         static TrampolineInstaller* GetOrInitDefault();
@@ -30,32 +42,52 @@ namespace pine {
 
         void Init() {
             InitTrampolines();
-            kBridgeJumpTrampolineSize = SubAsSize(kCallOriginTrampoline, kBridgeJumpTrampoline);
+            if (kTypedBridgeJumpTrampoline) {
+                kBridgeJumpTrampolineSize = SubAsSize(kTypedBridgeJumpTrampoline,
+                                                      kBridgeJumpTrampoline);
+                kTypedBridgeJumpTrampolineSize = SubAsSize(kCallOriginTrampoline,
+                                                           kTypedBridgeJumpTrampoline);
+            } else {
+                kBridgeJumpTrampolineSize = SubAsSize(kCallOriginTrampoline, kBridgeJumpTrampoline);
+            }
             kCallOriginTrampolineSize = SubAsSize(kBackupTrampoline, kCallOriginTrampoline);
             kBackupTrampolineSize = SubAsSize(kTrampolinesEnd, kBackupTrampoline);
         }
 
         bool CannotSafeInlineHook(art::ArtMethod* target) {
+            // The shortest patch is a single branch, which needs a trampoline placed near the
+            // target; if that fails InstallInlineTrampoline() falls back to the direct jump.
             size_t target_code_size = target->GetCompiledCodeSize();
-            size_t direct_jump_size = kDirectJumpTrampolineSize;
-            if (UNLIKELY(target_code_size < direct_jump_size)) {
+            if (UNLIKELY(target_code_size < kNearJumpSize)) {
                 LOGW("Cannot safe inline hook method: code size of target method too small (size %u)!",
                      target_code_size);
                 return true;
             }
-            if (UNLIKELY(CannotBackup(target))) {
+            if (UNLIKELY(CannotBackup(target, kNearJumpSize))) {
                 LOGW("Cannot safe inline hook method: code of target method has pc register related instruction!");
                 return true;
             }
             return false;
         }
 
-        void* InstallReplacementTrampoline(art::ArtMethod* target, art::ArtMethod* bridge);
+        // art_method_register: -1 for a generic bridge. Otherwise the bridge is generated with
+        // the same signature as target (see top.canyie.pine.entry.TypedBridges) followed by the
+        // ArtMethod of target, lr and sp, so arguments are passed through untouched and these
+        // three are moved into this argument register and the next two.
+        // The installed trampolines are stored to layout if it is not nullptr.
+        void* InstallReplacementTrampoline(art::ArtMethod* target, art::ArtMethod* bridge,
+                                           int art_method_register,
+                                           TrampolineLayout* layout = nullptr);
 
-        void* InstallInlineTrampoline(art::ArtMethod* target, art::ArtMethod* bridge);
+        void* InstallInlineTrampoline(art::ArtMethod* target, art::ArtMethod* bridge,
+                                      int art_method_register, TrampolineLayout* layout = nullptr);
 
         virtual bool NativeHookNoBackup(void* target, void* to);
 
+        // Redirects the native function target to to, returns the address to call the original
+        // function with, or nullptr on failure.
+        virtual void* NativeHook(void* target, void* to) = 0;
+
     protected:
         static inline size_t SubAsSize(void* a, void* b) {
             return AS_SIZE_T(reinterpret_cast<uintptr_t>(a) - reinterpret_cast<uintptr_t>(b));
@@ -69,6 +101,10 @@ namespace pine {
             return SubAsSize(ptr, kBridgeJumpTrampoline);
         }
 
+        inline size_t TypedBridgeJumpTrampolineOffset(void* ptr) {
+            return SubAsSize(ptr, kTypedBridgeJumpTrampoline);
+        }
+
         inline size_t CallOriginTrampolineOffset(void* ptr) {
             return SubAsSize(ptr, kCallOriginTrampoline);
         }
@@ -83,14 +119,50 @@ namespace pine {
 
         void WriteDirectJumpTrampolineTo(void* mem, void* jump_to);
 
+        // mem may be preallocated by the caller (e.g. near the target code), or nullptr.
         virtual void* CreateBridgeJumpTrampoline(art::ArtMethod* target, art::ArtMethod* bridge,
-                                                 void* origin_code_entry);
+                                                 void* origin_code_entry, void* mem);
+
+        virtual void* CreateTypedBridgeJumpTrampoline(art::ArtMethod* target, art::ArtMethod* bridge,
+                                                      int art_method_register,
+                                                      void* origin_code_entry, void* mem);
+
+        // Creates the bridge jump trampoline matching art_method_register, see
+        // InstallReplacementTrampoline().
+        void* CreateBridgeJumpTrampoline(art::ArtMethod* target, art::ArtMethod* bridge,
+                                         int art_method_register, void* origin_code_entry,
+                                         void* mem) {
+            return art_method_register < 0
+                   ? CreateBridgeJumpTrampoline(target, bridge, origin_code_entry, mem)
+                   : CreateTypedBridgeJumpTrampoline(target, bridge, art_method_register,
+                                                     origin_code_entry, mem);
+        }
+
+        size_t GetBridgeJumpTrampolineSize(int art_method_register) {
+            return art_method_register < 0 ? kBridgeJumpTrampolineSize
+                                           : kTypedBridgeJumpTrampolineSize;
+        }
 
         virtual void* CreateCallOriginTrampoline(art::ArtMethod* origin, void* original_code_entry);
 
-        virtual bool CannotBackup(art::ArtMethod* target) = 0;
+        bool CanDirectJumpInline(art::ArtMethod* target) {
+            return target->GetCompiledCodeSize() >= kDirectJumpTrampolineSize
+                   && !CannotBackup(target, kDirectJumpTrampolineSize);
+        }
+
+        // Whether a single branch instruction placed at from can reach to.
+        virtual bool CanNearJump(void* from, void* to) = 0;
+
+        virtual void WriteNearJumpTo(void* from, void* to) = 0;
 
-        virtual void* Backup(art::ArtMethod* target);
+        virtual void WriteNops(void* mem, size_t size) = 0;
+
+        // Whether the instructions overwritten by a patch of patch_size bytes cannot be moved,
+        // pc relative ones are fine as long as the relocator can rewrite them.
+        virtual bool CannotBackup(art::ArtMethod* target, size_t patch_size) = 0;
+
+        // Size of the allocated trampoline is stored to trampoline_size.
+        virtual void* Backup(art::ArtMethod* target, size_t patch_size, size_t* trampoline_size);
 
         static TrampolineInstaller* default_;
 
@@ -98,6 +170,9 @@ namespace pine {
         size_t kDirectJumpTrampolineEntryOffset;
         size_t kDirectJumpTrampolineSize;
 
+        size_t kNearJumpSize;
+        size_t kNearJumpRange;
+
         void* kBridgeJumpTrampoline;
         size_t kBridgeJumpTrampolineTargetMethodOffset;
         size_t kBridgeJumpTrampolineExtrasOffset;
@@ -106,6 +181,15 @@ namespace pine {
         size_t kBridgeJumpTrampolineOriginCodeEntryOffset;
         size_t kBridgeJumpTrampolineSize;
 
+        // nullptr if this architecture has no typed bridges.
+        void* kTypedBridgeJumpTrampoline = nullptr;
+        size_t kTypedBridgeJumpTrampolineTargetMethodOffset;
+        size_t kTypedBridgeJumpTrampolineBridgeMethodOffset;
+        size_t kTypedBridgeJumpTrampolineBridgeEntryOffset;
+        size_t kTypedBridgeJumpTrampolineOriginCodeEntryOffset;
+        size_t kTypedBridgeJumpTrampolineArtMethodRegisterOffset;
+        size_t kTypedBridgeJumpTrampolineSize;
+
         void* kCallOriginTrampoline;
         size_t kCallOriginTrampolineOriginMethodOffset;
         size_t kCallOriginTrampolineOriginalEntryOffset;
@@ -113,6 +197,7 @@ namespace pine {
 
         void* kBackupTrampoline;
         size_t kBackupTrampolineOverrideSpaceOffset;
+        size_t kBackupTrampolineOverrideSpaceSize;
         size_t kBackupTrampolineOriginMethodOffset;
         size_t kBackupTrampolineRemainingCodeEntryOffset;
         size_t kBackupTrampolineSize;
@@ -15,6 +15,9 @@
 #include "io_wrapper.h"
 #include "log.h"
 #include "macros.h"
+#include "memory_maps.h"
+#include "offset_cache.h"
+#include "xz_decoder.h"
 #include "../android.h"
 
 // Pine changed: namespace
@@ -25,6 +28,18 @@ inline bool CanRead(const char* file) {
 }
 
 void ElfImg::Open(const char* path, bool warn_if_symtab_not_found) {
+    // Pine changed: Defer mapping the file until a symbol is not found in the offset cache
+    this->path = path;
+    this->warn_if_symtab_not_found = warn_if_symtab_not_found;
+
+    //load module base
+    base = GetModuleBase(path);
+
+    if (!use_offset_cache) EnsureLoaded();
+}
+
+void ElfImg::Load() {
+    const char* path = this->path.c_str();
     //load elf
     int fd = WrappedOpen(path, O_RDONLY | O_CLOEXEC); // Pine changed: add O_CLOEXEC to flags
     if (UNLIKELY(fd == -1)) {
@@ -52,10 +67,17 @@ void ElfImg::Open(const char* path, bool warn_if_symtab_not_found) {
                                                 // ((size_t) header)
                                                 ((uintptr_t) header));
 
+    // Pine added: Hash sections, only used if they are linked to the dynsym we pick
+    Elf_Shdr* gnu_hash_section = nullptr;
+    Elf_Shdr* sysv_hash_section = nullptr;
+
     for (int i = 0; i < header->e_shnum; i++, shoff += header->e_shentsize) {
         Elf_Shdr* section_h = (Elf_Shdr*) shoff;
         char* sname = section_h->sh_name + section_str;
         Elf_Off entsize = section_h->sh_entsize;
+        // Pine added: MiniDebugInfo
+        if (section_h->sh_type == SHT_PROGBITS && strcmp(sname, ".gnu_debugdata") == 0)
+            gnu_debugdata = section_h;
         switch (section_h->sh_type) {
             case SHT_DYNSYM:
                 if (bias == -4396) {
@@ -94,44 +116,61 @@ void ElfImg::Open(const char* path, bool warn_if_symtab_not_found) {
                     bias = (off_t) section_h->sh_addr - (off_t) section_h->sh_offset;
                 }
                 break;
+            // BEGIN Pine added: Hash sections
+            case SHT_GNU_HASH:
+                gnu_hash_section = section_h;
+                break;
+            case SHT_HASH:
+                sysv_hash_section = section_h;
+                break;
+            // END Pine added: Hash sections
+        }
+    }
+
+    // BEGIN Pine added: Hash sections
+    if (dynsym != nullptr) {
+        if (gnu_hash_section && &section_header[gnu_hash_section->sh_link] == dynsym) {
+            gnu_hash = reinterpret_cast<const uint32_t*>(
+                    (uintptr_t) header + gnu_hash_section->sh_offset);
+        }
+        if (sysv_hash_section && &section_header[sysv_hash_section->sh_link] == dynsym) {
+            sysv_hash = reinterpret_cast<const uint32_t*>(
+                    (uintptr_t) header + sysv_hash_section->sh_offset);
         }
     }
+    // END Pine added: Hash sections
 
-    if (UNLIKELY(!symtab_offset && warn_if_symtab_not_found)) {
+    if (!symtab_offset && gnu_debugdata) {
+        // Pine added: MiniDebugInfo
+        LOGI("can't find symtab from sections in %s, will use .gnu_debugdata", path);
+    } else if (UNLIKELY(!symtab_offset && warn_if_symtab_not_found)) {
         // Pine changed: print log with filename
         // LOGW("can't find symtab from sections\n");
         LOGW("can't find symtab from sections in %s\n", path);
     }
-
-    //load module base
-    base = GetModuleBase(path);
 }
 
-void ElfImg::RelativeOpen(const char* elf, bool warn_if_symtab_not_found) {
-    char buffer[64] = {0}; // We assume that the path length doesn't exceed 64 bytes.
+void ElfImg::ResolvePath(const char* elf, char* buffer, size_t buffer_size) {
+    if (elf[0] == '/') {
+        snprintf(buffer, buffer_size, "%s", elf);
+        return;
+    }
+
     if (Android::version >= Android::VERSION_Q) {
         // Android R: com.android.art
-        strcpy(buffer, kApexArtLibDir);
-        strcat(buffer, elf);
-        if (CanRead(buffer)) {
-            Open(buffer, warn_if_symtab_not_found);
-            return;
-        }
-
-        memset(buffer, 0, sizeof(buffer));
+        snprintf(buffer, buffer_size, "%s%s", kApexArtLibDir, elf);
+        if (CanRead(buffer)) return;
 
         // Android Q: com.android.runtime
-        strcpy(buffer, kApexRuntimeLibDir);
-        strcat(buffer, elf);
-        if (CanRead(buffer)) {
-            Open(buffer, warn_if_symtab_not_found);
-            return;
-        }
-
-        memset(buffer, 0, sizeof(buffer));
+        snprintf(buffer, buffer_size, "%s%s", kApexRuntimeLibDir, elf);
+        if (CanRead(buffer)) return;
     }
-    strcpy(buffer, kSystemLibDir);
-    strcat(buffer, elf);
+    snprintf(buffer, buffer_size, "%s%s", kSystemLibDir, elf);
+}
+
+void ElfImg::RelativeOpen(const char* elf, bool warn_if_symtab_not_found) {
+    char buffer[64] = {0}; // We assume that the path length doesn't exceed 64 bytes.
+    ResolvePath(elf, buffer, sizeof(buffer));
     Open(buffer, warn_if_symtab_not_found);
 }
 
@@ -148,49 +187,232 @@ ElfImg::~ElfImg() {
     }
 }
 
+// BEGIN Pine added: Hash table lookup
+static uint32_t GnuHash(const char* name) {
+    uint32_t h = 5381;
+    for (auto p = reinterpret_cast<const uint8_t*>(name); *p; p++) {
+        h = (h << 5) + h + *p;
+    }
+    return h;
+}
+
+static uint32_t SysvHash(const char* name) {
+    uint32_t h = 0;
+    for (auto p = reinterpret_cast<const uint8_t*>(name); *p; p++) {
+        h = (h << 4) + *p;
+        uint32_t g = h & 0xf0000000;
+        h ^= g;
+        h ^= g >> 24;
+    }
+    return h;
+}
+
+const Elf_Sym* ElfImg::GnuHashLookup(const char* name) const {
+    uint32_t nbuckets = gnu_hash[0];
+    uint32_t symoffset = gnu_hash[1];
+    uint32_t bloom_size = gnu_hash[2];
+    uint32_t bloom_shift = gnu_hash[3];
+    if (UNLIKELY(nbuckets == 0 || bloom_size == 0)) return nullptr;
+
+    // Bloom filter words have the same size as Elf_Addr
+    auto bloom = reinterpret_cast<const Elf_Addr*>(&gnu_hash[4]);
+    auto buckets = reinterpret_cast<const uint32_t*>(&bloom[bloom_size]);
+    const uint32_t* chain = &buckets[nbuckets];
+    constexpr uint32_t kBloomBits = sizeof(Elf_Addr) * 8;
+
+    uint32_t hash = GnuHash(name);
+    Elf_Addr word = bloom[(hash / kBloomBits) % bloom_size];
+    Elf_Addr mask = (Elf_Addr(1) << (hash % kBloomBits))
+                    | (Elf_Addr(1) << ((hash >> bloom_shift) % kBloomBits));
+    if ((word & mask) != mask) return nullptr;
+
+    uint32_t index = buckets[hash % nbuckets];
+    if (index < symoffset) return nullptr;
+
+    const char* strings = reinterpret_cast<const char*>(strtab_start);
+    for (;; index++) {
+        if (UNLIKELY(index >= dynsym_count)) return nullptr;
+        const Elf_Sym* sym = &dynsym_start[index];
+        uint32_t chain_hash = chain[index - symoffset];
+        if ((hash | 1) == (chain_hash | 1) && strcmp(strings + sym->st_name, name) == 0)
+            return sym;
+        if (chain_hash & 1) return nullptr; // End of the chain
+    }
+}
+
+const Elf_Sym* ElfImg::SysvHashLookup(const char* name) const {
+    uint32_t nbucket = sysv_hash[0];
+    if (UNLIKELY(nbucket == 0)) return nullptr;
+    const uint32_t* bucket = &sysv_hash[2];
+    const uint32_t* chain = &bucket[nbucket];
+
+    const char* strings = reinterpret_cast<const char*>(strtab_start);
+    for (uint32_t index = bucket[SysvHash(name) % nbucket]; index != 0; index = chain[index]) {
+        if (UNLIKELY(index >= dynsym_count)) return nullptr;
+        const Elf_Sym* sym = &dynsym_start[index];
+        if (strcmp(strings + sym->st_name, name) == 0) return sym;
+    }
+    return nullptr;
+}
+
+const Elf_Sym* ElfImg::LinearDynsymLookup(const char* name) const {
+    Elf_Sym* sym = dynsym_start;
+    char* strings = (char*) strtab_start;
+    for (Elf_Off k = 0; k < dynsym_count; k++, sym++)
+        if (strcmp(strings + sym->st_name, name) == 0)
+            return sym;
+    return nullptr;
+}
+
+void ElfImg::BuildSymtabIndex() {
+    symtab_index.reserve(symtab_count);
+    const char* strings = reinterpret_cast<const char*>((uintptr_t) header + symstr_offset_for_symtab);
+    for (Elf_Off i = 0; i < symtab_count; i++) {
+        const Elf_Sym& sym = symtab_start[i];
+        if (ELF_ST_TYPE(sym.st_info) == STT_FUNC && sym.st_size) {
+            // Keep the first definition, same as the linear scan did.
+            symtab_index.emplace(std::string_view(strings + sym.st_name), sym.st_value);
+        }
+    }
+}
+
+Elf_Addr ElfImg::SymtabLookup(const char* name) const {
+    std::call_once(symtab_index_once, [this]() { const_cast<ElfImg*>(this)->BuildSymtabIndex(); });
+    auto it = symtab_index.find(std::string_view(name));
+    return it != symtab_index.end() ? it->second : 0;
+}
+// END Pine added: Hash table lookup
+
+// BEGIN Pine added: MiniDebugInfo
+// .gnu_debugdata is a xz-compressed ELF file that only contains a .symtab with function symbols
+// not exported in .dynsym, see https://sourceware.org/gdb/onlinedocs/gdb/MiniDebugInfo.html
+static bool ParseDebugDataSymbols(const std::vector<uint8_t>& image,
+                                  std::vector<std::pair<std::string, uint64_t>>* out) {
+    if (UNLIKELY(image.size() < sizeof(Elf_Ehdr))) return false;
+    auto ehdr = reinterpret_cast<const Elf_Ehdr*>(image.data());
+    if (UNLIKELY(memcmp(ehdr->e_ident, ELFMAG, SELFMAG) != 0
+                 || ehdr->e_shentsize != sizeof(Elf_Shdr)
+                 || ehdr->e_shoff > image.size()
+                 || ehdr->e_shnum > (image.size() - ehdr->e_shoff) / sizeof(Elf_Shdr))) {
+        return false;
+    }
+
+    auto sections = reinterpret_cast<const Elf_Shdr*>(image.data() + ehdr->e_shoff);
+    for (int i = 0; i < ehdr->e_shnum; i++) {
+        const Elf_Shdr& symtab = sections[i];
+        if (symtab.sh_type != SHT_SYMTAB || symtab.sh_link >= ehdr->e_shnum) continue;
+        const Elf_Shdr& strtab = sections[symtab.sh_link];
+        if (UNLIKELY(symtab.sh_offset > image.size()
+                     || symtab.sh_size > image.size() - symtab.sh_offset
+                     || strtab.sh_offset > image.size()
+                     || strtab.sh_size > image.size() - strtab.sh_offset)) {
+            return false;
+        }
+
+        auto symbols = reinterpret_cast<const Elf_Sym*>(image.data() + symtab.sh_offset);
+        auto strings = reinterpret_cast<const char*>(image.data() + strtab.sh_offset);
+        size_t count = symtab.sh_size / sizeof(Elf_Sym);
+        out->reserve(count);
+        for (size_t j = 0; j < count; j++) {
+            const Elf_Sym& sym = symbols[j];
+            if (ELF_ST_TYPE(sym.st_info) != STT_FUNC || !sym.st_size) continue;
+            if (UNLIKELY(sym.st_name >= strtab.sh_size)) continue;
+            const char* sym_name = strings + sym.st_name;
+            out->emplace_back(std::string(sym_name, strnlen(sym_name, strtab.sh_size - sym.st_name)),
+                              sym.st_value);
+        }
+        return true;
+    }
+    return false;
+}
+
+void ElfImg::BuildDebugDataIndex() {
+    std::vector<std::pair<std::string, uint64_t>> entries;
+    if (!OffsetCache::LoadSymbolIndex(path.c_str(), &entries)) {
+        if (UNLIKELY(gnu_debugdata->sh_offset > static_cast<Elf_Off>(size)
+                     || gnu_debugdata->sh_size > static_cast<Elf_Off>(size) - gnu_debugdata->sh_offset)) {
+            LOGE("Invalid .gnu_debugdata section in %s", path.c_str());
+            return;
+        }
+        std::vector<uint8_t> image;
+        auto compressed = reinterpret_cast<const uint8_t*>((uintptr_t) header + gnu_debugdata->sh_offset);
+        if (UNLIKELY(!XzDecoder::Decode(compressed, gnu_debugdata->sh_size, &image)
+                     || !ParseDebugDataSymbols(image, &entries))) {
+            LOGE("Failed to parse .gnu_debugdata in %s", path.c_str());
+            return;
+        }
+        OffsetCache::SaveSymbolIndex(path.c_str(), entries);
+    }
+
+    debugdata_index.reserve(entries.size());
+    for (auto& entry : entries) {
+        debugdata_index.emplace(std::move(entry.first), static_cast<Elf_Addr>(entry.second));
+    }
+}
+
+Elf_Addr ElfImg::DebugDataLookup(const char* name) const {
+    std::call_once(debugdata_index_once, [this]() { const_cast<ElfImg*>(this)->BuildDebugDataIndex(); });
+    auto it = debugdata_index.find(name);
+    return it != debugdata_index.end() ? it->second : 0;
+}
+// END Pine added: MiniDebugInfo
+
 Elf_Addr ElfImg::GetSymbolOffset(const char* name) const {
-    Elf_Addr _offset = 0;
+    EnsureLoaded();
 
     //search dynmtab
     if (dynsym_start != nullptr && strtab_start != nullptr) {
-        Elf_Sym* sym = dynsym_start;
-        char* strings = (char*) strtab_start;
-        int k;
-        for (k = 0; k < dynsym_count; k++, sym++)
-            if (strcmp(strings + sym->st_name, name) == 0) {
-                _offset = sym->st_value;
-                // BEGIN Pine changed: Remove log
-                // LOGD("find %s: %x\n", elf, _offset);
-                // END Pine changed: Remove log
-                return _offset;
-            }
+        // Pine changed: Use hash tables if possible
+        const Elf_Sym* sym;
+        if (gnu_hash) {
+            sym = GnuHashLookup(name);
+        } else if (sysv_hash) {
+            sym = SysvHashLookup(name);
+        } else {
+            sym = LinearDynsymLookup(name);
+        }
+        if (sym != nullptr) {
+            // BEGIN Pine changed: Remove log
+            // LOGD("find %s: %x\n", elf, _offset);
+            // END Pine changed: Remove log
+            return sym->st_value;
+        }
     }
 
     //search symtab
     if (symtab_start != nullptr && symstr_offset_for_symtab != 0) {
-        for (int i = 0; i < symtab_count; i++) {
-            unsigned int st_type = ELF_ST_TYPE(symtab_start[i].st_info);
-            // char *st_name = reinterpret_cast<char *>(((size_t) header) + symstr_offset_for_symtab +
-            char* st_name = reinterpret_cast<char*>(((uintptr_t) header) +
-                                                    symstr_offset_for_symtab +
-                                                    symtab_start[i].st_name);
-            if (st_type == STT_FUNC && symtab_start[i].st_size) {
-                if (strcmp(st_name, name) == 0) {
-                    _offset = symtab_start[i].st_value;
-                    // BEGIN Pine changed: Remove log
-                    // LOGD("find %s: %x\n", elf, _offset);
-                    // END Pine changed: Remove log
-                    return _offset;
-                }
-            }
-        }
+        // Pine changed: Use a hash index built on first use instead of linear scan
+        Elf_Addr offset = SymtabLookup(name);
+        if (offset != 0) return offset;
+    } else if (gnu_debugdata != nullptr) {
+        // Pine added: MiniDebugInfo
+        Elf_Addr offset = DebugDataLookup(name);
+        if (offset != 0) return offset;
     }
     LOGE("Symbol %s not found in elf %s", name, elf);
     return 0;
 }
 
 void* ElfImg::GetSymbolAddress(const char* name) const {
+    // BEGIN Pine added: Try offset cache first, the value is relative to the module base.
+    if (use_offset_cache) {
+        uint64_t cached;
+        if (OffsetCache::GetSymbol(elf, name, &cached)) {
+            if (LIKELY(cached != 0 && base != nullptr))
+                return reinterpret_cast<void*>((uintptr_t) base + cached);
+            return nullptr;
+        }
+    }
+    // END Pine added: Try offset cache first
+
     Elf_Addr offset = GetSymbolOffset(name);
+
+    // BEGIN Pine added: Record the result (negative results too) if the file is parsed successfully.
+    if (use_offset_cache && header != nullptr) {
+        OffsetCache::PutSymbol(elf, name, offset > 0 ? static_cast<uint64_t>(offset - bias) : 0);
+    }
+    // END Pine added: Record the result
+
     if (LIKELY(offset > 0 && base != nullptr)) {
         // Pine changed: Use uintptr_t instead of size_t
         // return reinterpret_cast<void *>((size_t) base + offset - bias);
@@ -201,32 +423,15 @@ void* ElfImg::GetSymbolAddress(const char* name) const {
 }
 
 void* ElfImg::GetModuleBase(const char* name) {
-    FILE* maps;
-    char buff[256];
-    off_t load_addr;
-    // Pine changed: Use bool to instead of int
-    bool found = false;
-    // Pine changed: add "e" to mode
-    maps = WrappedFOpen("/proc/self/maps", "re");
-    while (fgets(buff, sizeof(buff), maps)) {
-        if (strstr(buff, name) && (strstr(buff, "r-xp") || strstr(buff, "r--p"))) {
-            found = true;
-            break;
-        }
-    }
+    // Pine changed: Use the process-wide snapshot of /proc/self/maps instead of reading it every time
+    void* load_addr = MemoryMaps::FindModuleBase(name);
+    if (LIKELY(load_addr))
+        LOGD("get module base %s: %p", name, load_addr);
+    return load_addr;
+}
 
-    if (UNLIKELY(!found)) {
-        LOGE("failed to read load address for %s", name);
-        fclose(maps);
-        return nullptr;
+void ElfImg::GetSymbolAddresses(const char* const* names, void** out, size_t count) const {
+    for (size_t i = 0; i < count; i++) {
+        out[i] = GetSymbolAddress(names[i]);
     }
-
-    if (UNLIKELY(sscanf(buff, "%lx", &load_addr) != 1))
-        LOGE("failed to read load address for %s", name);
-
-    fclose(maps);
-
-    LOGD("get module base %s: %lu", name, load_addr);
-
-    return reinterpret_cast<void*>(load_addr);
 }
@@ -11,6 +11,10 @@
 
 #include <linux/elf.h>
 #include <stdio.h>
+#include <mutex>
+#include <string>
+#include <string_view>
+#include <unordered_map>
 #include "macros.h"
 
 #if defined(__LP64__)
@@ -35,11 +39,18 @@ typedef Elf32_Off Elf_Off;
 #define ELF_R_SYM(i) ELF32_R_SYM(i)
 #endif
 
+// Pine added: Not defined in linux/elf.h
+#ifndef SHT_GNU_HASH
+#define SHT_GNU_HASH 0x6ffffff6
+#endif
+
 // Pine changed: namespace
 namespace pine {
     class ElfImg {
     public:
-        ElfImg(const char* elf, bool warn_if_symtab_not_found = true) {
+        // Pine changed: Offset cache support, the file is only mapped when the cache misses.
+        ElfImg(const char* elf, bool warn_if_symtab_not_found = true, bool use_offset_cache = false)
+                : use_offset_cache(use_offset_cache) {
             // Pine changed: Relative path support
             this->elf = elf;
             if (elf[0] == '/') {
@@ -53,11 +64,33 @@ namespace pine {
         Elf_Addr GetSymbolOffset(const char* name) const;
         void* GetSymbolAddress(const char* name) const;
 
+        // Pine added: Resolve multiple symbols at once, out[i] is nullptr if names[i] is not found.
+        void GetSymbolAddresses(const char* const* names, void** out, size_t count) const;
+
+        // Pine added: Resolve library name to the path it is loaded from.
+        static void ResolvePath(const char* elf, char* buffer, size_t buffer_size);
+
         ~ElfImg();
 
     private:
         void Open(const char* path, bool warn_if_symtab_not_found);
         void RelativeOpen(const char* elf, bool warn_if_symtab_not_found);
+        // Pine added: Map and parse the file, called lazily when the offset cache is used.
+        void Load();
+        void EnsureLoaded() const {
+            std::call_once(load_once, [this]() { const_cast<ElfImg*>(this)->Load(); });
+        }
+        // Pine added: Hash table lookup for .dynsym, and a lazily built index for .symtab
+        const Elf_Sym* GnuHashLookup(const char* name) const;
+        const Elf_Sym* SysvHashLookup(const char* name) const;
+        const Elf_Sym* LinearDynsymLookup(const char* name) const;
+        Elf_Addr SymtabLookup(const char* name) const;
+        void BuildSymtabIndex();
+
+        // Pine added: MiniDebugInfo support, used when .symtab is stripped
+        Elf_Addr DebugDataLookup(const char* name) const;
+        void BuildDebugDataIndex();
+
         // Pine changed: GetModuleBase is private
         void* GetModuleBase(const char* name);
 
@@ -72,6 +105,10 @@ namespace pine {
 #endif
 
         const char* elf = nullptr;
+        std::string path;
+        bool warn_if_symtab_not_found = true;
+        bool use_offset_cache = false;
+        mutable std::once_flag load_once;
         void* base = nullptr;
         char* buffer = nullptr;
         off_t size = 0;
@@ -92,6 +129,17 @@ namespace pine {
         Elf_Off dynsym_offset = 0;
         Elf_Off symtab_size = 0;
         Elf_Off dynsym_size = 0;
+
+        // Pine added: Hash tables
+        const uint32_t* gnu_hash = nullptr;
+        const uint32_t* sysv_hash = nullptr;
+        mutable std::once_flag symtab_index_once;
+        std::unordered_map<std::string_view, Elf_Addr> symtab_index;
+
+        // Pine added: MiniDebugInfo
+        Elf_Shdr* gnu_debugdata = nullptr;
+        mutable std::once_flag debugdata_index_once;
+        std::unordered_map<std::string, Elf_Addr> debugdata_index;
     };
 }
 
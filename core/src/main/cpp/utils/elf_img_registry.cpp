@@ -0,0 +1,61 @@
+#include "elf_img_registry.h"
+#include "lock.h"
+#include "log.h"
+#include "memory_maps.h"
+
+using namespace pine;
+
+std::map<std::string, ElfImgRegistry::Entry> ElfImgRegistry::images;
+std::mutex ElfImgRegistry::mutex;
+
+ElfImg* ElfImgRegistry::Acquire(const char* elf, bool warn_if_symtab_not_found,
+                                bool use_offset_cache) {
+    ScopedLock lock(mutex);
+    auto result = images.emplace(elf, Entry {nullptr, 0});
+    Entry& entry = result.first->second;
+    if (result.second) {
+        // Use the key as name, ElfImg doesn't copy it and the caller's string may not live long enough.
+        entry.image.reset(new ElfImg(result.first->first.c_str(), warn_if_symtab_not_found,
+                                     use_offset_cache));
+    }
+    entry.refs++;
+    return entry.image.get();
+}
+
+void ElfImgRegistry::Release(ElfImg* image) {
+    if (UNLIKELY(!image)) return;
+    ScopedLock lock(mutex);
+    for (auto& pair : images) {
+        if (pair.second.image.get() == image) {
+            if (LIKELY(pair.second.refs > 0)) pair.second.refs--;
+            return;
+        }
+    }
+    LOGW("Releasing unknown ElfImg %p", image);
+}
+
+bool ElfImgRegistry::Evict(const char* elf) {
+    ScopedLock lock(mutex);
+    auto it = images.find(elf);
+    if (it == images.end()) return true;
+    if (it->second.refs > 0) {
+        LOGW("ElfImg %s is still in use, cannot evict it", elf);
+        return false;
+    }
+    images.erase(it);
+    // The library may be reloaded at a different address.
+    MemoryMaps::Invalidate();
+    return true;
+}
+
+void ElfImgRegistry::EvictAll() {
+    ScopedLock lock(mutex);
+    for (auto it = images.begin(); it != images.end();) {
+        if (it->second.refs == 0) {
+            it = images.erase(it);
+        } else {
+            ++it;
+        }
+    }
+    MemoryMaps::Invalidate();
+}
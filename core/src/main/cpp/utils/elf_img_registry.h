@@ -0,0 +1,69 @@
+#ifndef PINE_ELF_IMG_REGISTRY_H
+#define PINE_ELF_IMG_REGISTRY_H
+
+#include <map>
+#include <memory>
+#include <mutex>
+#include <string>
+#include "elf_img.h"
+#include "macros.h"
+
+namespace pine {
+    /**
+     * Keeps one parsed ElfImg per library for the whole process, so the file is mapped
+     * and indexed only once no matter how many times it is opened.
+     * Released images stay cached until they are evicted explicitly.
+     */
+    class ElfImgRegistry {
+    public:
+        // Options only take effect when the image is created, i.e. the first acquire wins.
+        static ElfImg* Acquire(const char* elf, bool warn_if_symtab_not_found = true,
+                               bool use_offset_cache = false);
+
+        static void Release(ElfImg* image);
+
+        // Unmaps the image if nobody holds it. Returns false if it is still in use.
+        static bool Evict(const char* elf);
+
+        // Unmaps all images that are not in use.
+        static void EvictAll();
+
+    private:
+        struct Entry {
+            std::unique_ptr<ElfImg> image;
+            int refs;
+        };
+
+        static std::map<std::string, Entry> images;
+        static std::mutex mutex;
+
+        DISALLOW_IMPLICIT_CONSTRUCTORS(ElfImgRegistry);
+    };
+
+    class ScopedElfImg {
+    public:
+        ScopedElfImg(const char* elf, bool warn_if_symtab_not_found = true,
+                     bool use_offset_cache = false)
+                : image(ElfImgRegistry::Acquire(elf, warn_if_symtab_not_found, use_offset_cache)) {
+        }
+
+        ~ScopedElfImg() {
+            ElfImgRegistry::Release(image);
+        }
+
+        ElfImg* Get() const {
+            return image;
+        }
+
+        ElfImg* operator->() const {
+            return image;
+        }
+
+    private:
+        ElfImg* image;
+
+        DISALLOW_COPY_AND_ASSIGN(ScopedElfImg);
+    };
+}
+
+#endif //PINE_ELF_IMG_REGISTRY_H
@@ -6,17 +6,18 @@
 #define PINE_IO_WRAPPER_H
 
 #include <cstdio>
+#include <cstring>
 #include <fcntl.h>
 #include <cerrno>
 #include "macros.h"
 #include "log.h"
 
 namespace pine {
-    static bool CanRetry(int error) {
+    static inline bool CanRetry(int error) {
         return error == EINTR || error == EIO;
     }
 
-    int WrappedOpen(const char* pathname, int flags, int max_retries = 2) {
+    inline int WrappedOpen(const char* pathname, int flags, int max_retries = 2) {
         for (;;) {
             int fd = open(pathname, flags);
             if (LIKELY(fd != -1)) {
@@ -34,7 +35,7 @@ namespace pine {
         }
     }
 
-    FILE* WrappedFOpen(const char* pathname, const char* mode, int max_retries = 2) {
+    inline FILE* WrappedFOpen(const char* pathname, const char* mode, int max_retries = 2) {
         for (;;) {
             FILE* file = fopen(pathname, mode);
             if (LIKELY(file)) {
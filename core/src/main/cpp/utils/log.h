@@ -5,16 +5,35 @@
 #ifndef PINE_LOG_H
 #define PINE_LOG_H
 
-#include <android/log.h>
-
 #define LOG_TAG "Pine"
 
+#ifdef __ANDROID__
+#include <android/log.h>
+
 #define LOGV(...) __android_log_print(ANDROID_LOG_VERBOSE, LOG_TAG, __VA_ARGS__)
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 #define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 #define LOGF(...) __android_log_print(ANDROID_LOG_FATAL, LOG_TAG, __VA_ARGS__)
+#else
+// Host build (e.g. testing ElfImg against ELF files on a Linux machine)
+#include <cstdio>
+#include <cstdlib>
+
+#define HOST_LOG(level, ...) do { \
+fprintf(stderr, "%s/" LOG_TAG ": ", level); \
+fprintf(stderr, __VA_ARGS__); \
+fputc('\n', stderr); \
+} while(false)
+
+#define LOGV(...) HOST_LOG("V", __VA_ARGS__)
+#define LOGD(...) HOST_LOG("D", __VA_ARGS__)
+#define LOGI(...) HOST_LOG("I", __VA_ARGS__)
+#define LOGW(...) HOST_LOG("W", __VA_ARGS__)
+#define LOGE(...) HOST_LOG("E", __VA_ARGS__)
+#define LOGF(...) HOST_LOG("F", __VA_ARGS__)
+#endif
 
 #define FATAL(...) \
 do {\
@@ -4,46 +4,124 @@
 
 #include <sys/user.h>
 #include <sys/mman.h>
-#include <sys/prctl.h>
 #include <bits/sysconf.h>
 #include "memory.h"
+#include "memory_maps.h"
 #include "lock.h"
 
 using namespace pine;
 
 const size_t Memory::page_size = static_cast<const size_t>(sysconf(_SC_PAGESIZE));
 
-uintptr_t Memory::address = 0;
-size_t Memory::offset = 0;
-std::mutex Memory::mutex;
+SlabAllocator Memory::code_allocator("pine codes", PROT_READ | PROT_EXEC, true);
+SlabAllocator Memory::data_allocator("pine data", PROT_READ | PROT_WRITE);
+std::map<uintptr_t, Memory::PageState> Memory::unprotected_pages;
+std::mutex Memory::pages_mutex;
+
+static constexpr int kProtAll = PROT_READ | PROT_WRITE | PROT_EXEC;
 
 void* Memory::AllocUnprotected(size_t size) {
-    if (UNLIKELY(size > page_size)) {
-        LOGE("Attempting to allocate too much memory space (%x bytes)", size);
-        errno = ENOMEM;
-        return nullptr;
+    void* ptr = code_allocator.Alloc(size);
+    if (UNLIKELY(!ptr)) {
+        LOGE("Unable to allocate %zu bytes executable memory", size);
     }
+    return ptr;
+}
+
+void* Memory::AllocUnprotectedNear(const void* near, size_t size, size_t range) {
+    return code_allocator.AllocNear(near, size, range);
+}
+
+void Memory::FreeUnprotected(void* ptr, size_t size) {
+    code_allocator.Free(ptr, size);
+}
 
-    ScopedLock lock(mutex);
+void* Memory::AllocData(size_t size) {
+    return data_allocator.Alloc(size);
+}
+
+void Memory::FreeData(void* ptr, size_t size) {
+    data_allocator.Free(ptr, size);
+}
+
+void Memory::GetStats(MemoryStats* code_stats, MemoryStats* data_stats) {
+    code_allocator.GetStats(code_stats);
+    data_allocator.GetStats(data_stats);
+}
 
-    if (LIKELY(address)) {
-        size_t next_offset = offset + size;
-        if (LIKELY(next_offset <= page_size)) {
-            void* ptr = reinterpret_cast<void*>(address + offset);
-            offset = next_offset;
-            return ptr;
+bool Memory::ProtectPages(const std::vector<std::pair<uintptr_t, int>>& pages, bool restore) {
+    size_t i = 0;
+    while (i < pages.size()) {
+        // Coalesce adjacent pages that end up with the same protection.
+        uintptr_t start = pages[i].first;
+        int prot = restore ? pages[i].second : kProtAll;
+        size_t j = i + 1;
+        while (j < pages.size() && pages[j].first == pages[j - 1].first + page_size
+               && (restore ? pages[j].second : kProtAll) == prot) {
+            j++;
         }
+        size_t size = (j - i) * page_size;
+        if (UNLIKELY(mprotect(reinterpret_cast<void*>(start), size, prot) == -1)) {
+            LOGE("mprotect(%p, %zu, %d) failed: %s (%d)", reinterpret_cast<void*>(start), size,
+                 prot, strerror(errno), errno);
+            if (!restore) {
+                // Roll back what we have changed so far.
+                std::vector<std::pair<uintptr_t, int>> changed(pages.begin(), pages.begin() + i);
+                ProtectPages(changed, true);
+            }
+            return false;
+        }
+        MemoryMaps::NoteProtection(start, size, prot);
+        i = j;
+    }
+    return true;
+}
+
+bool Memory::UnprotectRange(void* addr, size_t size) {
+    uintptr_t start = reinterpret_cast<uintptr_t>(addr) & ~(page_size - 1);
+    uintptr_t end = (reinterpret_cast<uintptr_t>(addr) + size + page_size - 1) & ~(page_size - 1);
+
+    ScopedLock lock(pages_mutex);
+    std::vector<std::pair<uintptr_t, int>> pages;
+    std::vector<std::pair<uintptr_t, int>> to_change;
+    bool fresh = true;
+    for (uintptr_t page = start; page < end; page += page_size) {
+        if (unprotected_pages.count(page)) continue;
+        // ART may have changed the protection since the snapshot was taken, read the maps again
+        // once for the whole range. Inside a MemoryMaps::ScopedSnapshot (e.g. a batch of hooks
+        // installed with the VM suspended) they are read only once for the whole scope.
+        MemoryMapping mapping;
+        int prot = MemoryMaps::FindMapping(page, &mapping, fresh) ? mapping.prot
+                                                                  : (PROT_READ | PROT_EXEC);
+        fresh = false;
+        pages.emplace_back(page, prot);
+        if (prot != kProtAll) to_change.emplace_back(page, prot);
     }
 
-    void* mapped = mmap(nullptr, page_size, PROT_READ | PROT_WRITE | PROT_EXEC, MAP_ANONYMOUS | MAP_PRIVATE, -1, 0);
+    if (UNLIKELY(!ProtectPages(to_change, false))) return false;
 
-    if (UNLIKELY(mapped == MAP_FAILED)) {
-        LOGE("Unable to allocate executable memory: %s (%d)", strerror(errno), errno);
-        return nullptr;
+    for (auto& page : pages) unprotected_pages[page.first] = {page.second, 0};
+    for (uintptr_t page = start; page < end; page += page_size) unprotected_pages[page].refs++;
+    return true;
+}
+
+void Memory::RestoreProtection(void* addr, size_t size) {
+    uintptr_t start = reinterpret_cast<uintptr_t>(addr) & ~(page_size - 1);
+    uintptr_t end = (reinterpret_cast<uintptr_t>(addr) + size + page_size - 1) & ~(page_size - 1);
+
+    ScopedLock lock(pages_mutex);
+    std::vector<std::pair<uintptr_t, int>> to_restore;
+    for (uintptr_t page = start; page < end; page += page_size) {
+        auto it = unprotected_pages.find(page);
+        if (UNLIKELY(it == unprotected_pages.end())) {
+            LOGW("RestoreProtection: page %p was not unprotected", reinterpret_cast<void*>(page));
+            continue;
+        }
+        if (--it->second.refs == 0) {
+            if (it->second.original_prot != kProtAll)
+                to_restore.emplace_back(page, it->second.original_prot);
+            unprotected_pages.erase(it);
+        }
     }
-    prctl(PR_SET_VMA, PR_SET_VMA_ANON_NAME, mapped, size, "pine codes");
-    memset(mapped, 0, page_size);
-    address = reinterpret_cast<uintptr_t>(mapped);
-    offset = size;
-    return mapped;
+    ProtectPages(to_restore, true);
 }
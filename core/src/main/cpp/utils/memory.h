@@ -6,27 +6,47 @@
 #define PINE_MEMORY_H
 
 #include <cerrno>
+#include <map>
 #include <mutex>
 #include <sys/mman.h>
 #include "macros.h"
 #include "log.h"
+#include <vector>
+#include "slab_allocator.h"
 
 namespace pine {
     class Memory {
     public:
+        // Executable memory for trampolines. When dual mapping is available it is read-execute
+        // only, write to it through GetWritable().
         static void* AllocUnprotected(size_t size);
 
-        static inline bool Unprotect(void* ptr) {
-            size_t alignment = (uintptr_t) ptr % page_size;
-            void *aligned_ptr = (void*) ((uintptr_t) ptr - alignment);
-            int result = mprotect(aligned_ptr, page_size, PROT_READ | PROT_WRITE | PROT_EXEC);
-            if (UNLIKELY(result == -1)) {
-                LOGE("mprotect failed for %p: %s (%d)", ptr, strerror(errno), errno);
-                return false;
-            }
-            return true;
+        // Executable memory within range bytes of near, or nullptr if there is no room there.
+        static void* AllocUnprotectedNear(const void* near, size_t size, size_t range);
+
+        static void FreeUnprotected(void* ptr, size_t size);
+
+        // Address to write the code at ptr through, ptr itself if it has no separate writable view.
+        static void* GetWritable(void* ptr) {
+            return code_allocator.GetWritableAddress(ptr);
         }
 
+        // Non-executable memory for data referenced by trampolines, e.g. hook extras.
+        static void* AllocData(size_t size);
+
+        static void FreeData(void* ptr, size_t size);
+
+        static void GetStats(MemoryStats* code_stats, MemoryStats* data_stats);
+
+        // Makes the pages covering [addr, addr + size) writable (and still executable, other
+        // threads may be running there) until the matching RestoreProtection(). Pages shared
+        // with ranges already unprotected are not touched again, adjacent pages are changed
+        // with a single mprotect.
+        static bool UnprotectRange(void* addr, size_t size);
+
+        // Puts back the protection the pages had before UnprotectRange().
+        static void RestoreProtection(void* addr, size_t size);
+
         template <typename T>
         static int FindOffset(void* start, T value, size_t size, uint step) {
             for (uint32_t offset = 0;offset < size;offset += step) {
@@ -40,12 +60,44 @@ namespace pine {
             __builtin___clear_cache((char*) addr, (char*) ((uintptr_t) addr + size));
         }
     private:
+        struct PageState {
+            int original_prot;
+            uint32_t refs;
+        };
+
+        // Pages to change, sorted by address.
+        static bool ProtectPages(const std::vector<std::pair<uintptr_t, int>>& pages, bool restore);
+
         static const size_t page_size;
-        static uintptr_t address;
-        static size_t offset;
-        static std::mutex mutex;
+        static SlabAllocator code_allocator;
+        static SlabAllocator data_allocator;
+        static std::map<uintptr_t, PageState> unprotected_pages;
+        static std::mutex pages_mutex;
         DISALLOW_IMPLICIT_CONSTRUCTORS(Memory);
     };
+
+    // Unprotects a range of code for the lifetime of this object.
+    class ScopedUnprotect {
+    public:
+        ScopedUnprotect(void* addr, size_t size)
+                : addr(addr), size(size), success(Memory::UnprotectRange(addr, size)) {
+        }
+
+        ~ScopedUnprotect() {
+            if (LIKELY(success)) Memory::RestoreProtection(addr, size);
+        }
+
+        bool IsSuccess() const {
+            return success;
+        }
+
+    private:
+        void* addr;
+        size_t size;
+        bool success;
+
+        DISALLOW_COPY_AND_ASSIGN(ScopedUnprotect);
+    };
 }
 
 #endif //PINE_MEMORY_H
@@ -0,0 +1,228 @@
+#include <cinttypes>
+#include <cstring>
+#include <sys/mman.h>
+#include <unistd.h>
+#include "memory_maps.h"
+#include "io_wrapper.h"
+#include "lock.h"
+#include "log.h"
+
+using namespace pine;
+
+std::vector<MemoryMapping> MemoryMaps::mappings;
+bool MemoryMaps::valid = false;
+uint32_t MemoryMaps::snapshot_depth = 0;
+bool MemoryMaps::snapshot_fresh = false;
+std::mutex MemoryMaps::mutex;
+
+static bool ReadAll(const char* path, std::string& out) {
+    int fd = WrappedOpen(path, O_RDONLY | O_CLOEXEC);
+    if (UNLIKELY(fd == -1)) return false;
+
+    char buffer[4096];
+    for (;;) {
+        ssize_t count = read(fd, buffer, sizeof(buffer));
+        if (count > 0) {
+            out.append(buffer, static_cast<size_t>(count));
+        } else if (count == 0) {
+            break;
+        } else if (errno != EINTR) {
+            LOGE("Failed to read %s: errno %d (%s)", path, errno, strerror(errno));
+            close(fd);
+            return false;
+        }
+    }
+    close(fd);
+    return true;
+}
+
+bool MemoryMaps::RefreshLocked() {
+    std::string content;
+    if (UNLIKELY(!ReadAll("/proc/self/maps", content))) {
+        valid = false;
+        snapshot_fresh = false;
+        return false;
+    }
+
+    mappings.clear();
+    const char* line = content.c_str();
+    while (*line) {
+        const char* line_end = strchr(line, '\n');
+        if (!line_end) line_end = line + strlen(line);
+
+        uintptr_t start, end, offset;
+        char perms[5] = {0};
+        int path_start = 0;
+        // e.g. 7f0e4a2000-7f0e4a4000 r-xp 00000000 fd:00 1234    /system/lib64/libart.so
+        if (LIKELY(sscanf(line, "%" SCNxPTR "-%" SCNxPTR " %4s %" SCNxPTR " %*s %*s %n",
+                          &start, &end, perms, &offset, &path_start) == 4)) {
+            MemoryMapping mapping;
+            mapping.start = start;
+            mapping.end = end;
+            mapping.offset = offset;
+            mapping.prot = (perms[0] == 'r' ? PROT_READ : 0)
+                           | (perms[1] == 'w' ? PROT_WRITE : 0)
+                           | (perms[2] == 'x' ? PROT_EXEC : 0);
+            mapping.shared = perms[3] == 's';
+            if (path_start > 0 && line + path_start < line_end)
+                mapping.path.assign(line + path_start, line_end);
+            mappings.push_back(std::move(mapping));
+        }
+
+        if (!*line_end) break;
+        line = line_end + 1;
+    }
+    valid = true;
+    snapshot_fresh = snapshot_depth != 0;
+    return true;
+}
+
+bool MemoryMaps::EnsureFreshLocked() {
+    if (snapshot_fresh && valid) return true;
+    return RefreshLocked();
+}
+
+const MemoryMapping* MemoryMaps::FindModuleLocked(const char* name) {
+    for (const MemoryMapping& mapping : mappings) {
+        if (mapping.shared || (mapping.prot & PROT_WRITE) || !(mapping.prot & PROT_READ)) continue;
+        if (strstr(mapping.path.c_str(), name)) return &mapping;
+    }
+    return nullptr;
+}
+
+const MemoryMapping* MemoryMaps::FindMappingLocked(uintptr_t addr) {
+    // Mappings are sorted by address in /proc/self/maps
+    size_t low = 0, high = mappings.size();
+    while (low < high) {
+        size_t mid = (low + high) / 2;
+        const MemoryMapping& mapping = mappings[mid];
+        if (addr < mapping.start) {
+            high = mid;
+        } else if (addr >= mapping.end) {
+            low = mid + 1;
+        } else {
+            return &mapping;
+        }
+    }
+    return nullptr;
+}
+
+void* MemoryMaps::FindModuleBase(const char* name) {
+    ScopedLock lock(mutex);
+    const MemoryMapping* mapping = valid ? FindModuleLocked(name) : nullptr;
+    if (!mapping && RefreshLocked()) {
+        // Not found in the snapshot, the module may be loaded after it was taken.
+        mapping = FindModuleLocked(name);
+    }
+
+    if (UNLIKELY(!mapping)) {
+        LOGE("failed to read load address for %s", name);
+        return nullptr;
+    }
+    return reinterpret_cast<void*>(mapping->start);
+}
+
+bool MemoryMaps::FindMapping(uintptr_t addr, MemoryMapping* out, bool fresh) {
+    ScopedLock lock(mutex);
+    if (fresh && UNLIKELY(!EnsureFreshLocked())) return false;
+    const MemoryMapping* mapping = valid ? FindMappingLocked(addr) : nullptr;
+    if (!mapping && RefreshLocked()) {
+        mapping = FindMappingLocked(addr);
+    }
+    if (!mapping) return false;
+    *out = *mapping;
+    return true;
+}
+
+bool MemoryMaps::FindFreeRegion(uintptr_t near, size_t size, size_t range, uintptr_t* out) {
+    ScopedLock lock(mutex);
+    if (UNLIKELY(!EnsureFreshLocked())) return false;
+
+    uintptr_t best = 0;
+    uintptr_t best_distance = UINTPTR_MAX;
+    for (size_t i = 1; i < mappings.size(); i++) {
+        uintptr_t hole_start = mappings[i - 1].end;
+        uintptr_t hole_end = mappings[i].start;
+        if (hole_end - hole_start < size) continue;
+
+        uintptr_t candidate;
+        uintptr_t distance;
+        if (hole_end <= near) {
+            // Hole below near, take its top so the region ends as close as possible.
+            candidate = hole_end - size;
+            distance = near - candidate;
+        } else if (hole_start >= near) {
+            candidate = hole_start;
+            distance = candidate + size - near;
+        } else {
+            // near is not mapped at all, nothing sensible to place next to.
+            continue;
+        }
+        if (distance <= range && distance < best_distance) {
+            best = candidate;
+            best_distance = distance;
+        }
+    }
+
+    if (best == 0) return false;
+    *out = best;
+    return true;
+}
+
+void MemoryMaps::NoteMapped(uintptr_t start, size_t size, int prot) {
+    ScopedLock lock(mutex);
+    if (!valid) return;
+    MemoryMapping mapping;
+    mapping.start = start;
+    mapping.end = start + size;
+    mapping.offset = 0;
+    mapping.prot = prot;
+    mapping.shared = false;
+    auto it = mappings.begin();
+    while (it != mappings.end() && it->start < start) ++it;
+    mappings.insert(it, std::move(mapping));
+}
+
+void MemoryMaps::NoteProtection(uintptr_t start, size_t size, int prot) {
+    ScopedLock lock(mutex);
+    if (!valid) return;
+    uintptr_t end = start + size;
+    size_t i = 0;
+    while (i < mappings.size() && mappings[i].end <= start) i++;
+    // Split the mappings at start and end like the kernel does, then change the ones in between.
+    for (; i < mappings.size() && mappings[i].start < end; i++) {
+        if (mappings[i].prot == prot) continue;
+        if (mappings[i].start < start) {
+            MemoryMapping head = mappings[i];
+            head.end = start;
+            mappings[i].offset += start - mappings[i].start;
+            mappings[i].start = start;
+            mappings.insert(mappings.begin() + i, std::move(head));
+            continue; // Look at the rest again
+        }
+        if (mappings[i].end > end) {
+            MemoryMapping tail = mappings[i];
+            tail.start = end;
+            tail.offset += end - mappings[i].start;
+            mappings[i].end = end;
+            mappings.insert(mappings.begin() + i + 1, std::move(tail));
+        }
+        mappings[i].prot = prot;
+    }
+}
+
+void MemoryMaps::Invalidate() {
+    ScopedLock lock(mutex);
+    valid = false;
+    snapshot_fresh = false;
+}
+
+void MemoryMaps::BeginSnapshot() {
+    ScopedLock lock(mutex);
+    if (snapshot_depth++ == 0) snapshot_fresh = false;
+}
+
+void MemoryMaps::EndSnapshot() {
+    ScopedLock lock(mutex);
+    if (--snapshot_depth == 0) snapshot_fresh = false;
+}
@@ -0,0 +1,85 @@
+#ifndef PINE_MEMORY_MAPS_H
+#define PINE_MEMORY_MAPS_H
+
+#include <cstdint>
+#include <mutex>
+#include <string>
+#include <vector>
+#include "macros.h"
+
+namespace pine {
+    struct MemoryMapping {
+        uintptr_t start;
+        uintptr_t end;
+        uintptr_t offset;
+        int prot;
+        bool shared;
+        std::string path;
+    };
+
+    /**
+     * A parsed snapshot of /proc/self/maps shared by the whole process.
+     * Lookups that miss re-read the file once, since libraries may be loaded after the snapshot.
+     */
+    class MemoryMaps {
+    public:
+        // Returns the lowest r-xp or r--p mapping of the first file whose path contains name.
+        static void* FindModuleBase(const char* name);
+
+        // With fresh, re-reads the maps first instead of trusting the snapshot, e.g. when
+        // the protection is needed (ART changes it at any time). Inside a ScopedSnapshot the
+        // maps are only read once for all fresh lookups.
+        static bool FindMapping(uintptr_t addr, MemoryMapping* out, bool fresh = false);
+
+        // Finds an unmapped, page aligned hole of size bytes as close to near as possible
+        // and entirely within range bytes of it. Re-reads the maps since holes come and go,
+        // except inside a ScopedSnapshot that already read them.
+        static bool FindFreeRegion(uintptr_t near, size_t size, size_t range, uintptr_t* out);
+
+        // Records a mapping we just created, so the snapshot doesn't offer its hole again.
+        static void NoteMapped(uintptr_t start, size_t size, int prot);
+
+        // Records a successful mprotect() of ours, so the snapshot keeps reporting the truth.
+        static void NoteProtection(uintptr_t start, size_t size, int prot);
+
+        static void Invalidate();
+
+        /**
+         * Reads the maps at most once for everything done in the scope, e.g. placing trampolines
+         * for a whole batch of hooks. Only use it while other threads are suspended or otherwise
+         * known not to change the mappings we look at; our own changes are noted in the snapshot.
+         */
+        class ScopedSnapshot {
+        public:
+            ScopedSnapshot() {
+                MemoryMaps::BeginSnapshot();
+            }
+
+            ~ScopedSnapshot() {
+                MemoryMaps::EndSnapshot();
+            }
+
+        private:
+            DISALLOW_COPY_AND_ASSIGN(ScopedSnapshot);
+        };
+
+    private:
+        static void BeginSnapshot();
+        static void EndSnapshot();
+        // Refreshes the maps unless a ScopedSnapshot already did.
+        static bool EnsureFreshLocked();
+        static bool RefreshLocked();
+        static const MemoryMapping* FindModuleLocked(const char* name);
+        static const MemoryMapping* FindMappingLocked(uintptr_t addr);
+
+        static std::vector<MemoryMapping> mappings;
+        static bool valid;
+        static uint32_t snapshot_depth;
+        static bool snapshot_fresh; // Refreshed since the outermost ScopedSnapshot began
+        static std::mutex mutex;
+
+        DISALLOW_IMPLICIT_CONSTRUCTORS(MemoryMaps);
+    };
+}
+
+#endif //PINE_MEMORY_MAPS_H
@@ -0,0 +1,339 @@
+#include <cstdio>
+#include <sys/stat.h>
+#include <sys/system_properties.h>
+#include <unistd.h>
+#include "offset_cache.h"
+#include "elf_img.h"
+#include "io_wrapper.h"
+#include "lock.h"
+#include "log.h"
+#include "../android.h"
+
+using namespace pine;
+
+bool OffsetCache::enabled = false;
+bool OffsetCache::dirty = false;
+bool OffsetCache::has_layout = false;
+ArtMethodLayout OffsetCache::layout {};
+std::string OffsetCache::dir;
+std::string OffsetCache::path;
+std::string OffsetCache::key;
+std::map<std::string, uint64_t> OffsetCache::symbols;
+std::mutex OffsetCache::mutex;
+
+static inline std::string SymbolKey(const char* elf, const char* symbol) {
+    std::string result(elf);
+    result += ':';
+    result += symbol;
+    return result;
+}
+
+static inline bool ReadFully(FILE* file, void* buffer, size_t size) {
+    return fread(buffer, 1, size, file) == size;
+}
+
+static inline bool WriteFully(FILE* file, const void* buffer, size_t size) {
+    return fwrite(buffer, 1, size, file) == size;
+}
+
+static bool ReadString(FILE* file, std::string& out) {
+    uint16_t length;
+    if (UNLIKELY(!ReadFully(file, &length, sizeof(length)))) return false;
+    out.resize(length);
+    return length == 0 || ReadFully(file, &out[0], length);
+}
+
+static bool WriteString(FILE* file, const std::string& str) {
+    if (UNLIKELY(str.size() > UINT16_MAX)) return false;
+    auto length = static_cast<uint16_t>(str.size());
+    return WriteFully(file, &length, sizeof(length)) && WriteFully(file, str.data(), length);
+}
+
+static bool CommitFile(FILE* file, const std::string& tmp_path, const std::string& path,
+                       bool success) {
+    if (fclose(file) != 0) success = false;
+
+    if (UNLIKELY(!success)) {
+        LOGE("Failed to write %s", tmp_path.c_str());
+        unlink(tmp_path.c_str());
+        return false;
+    }
+
+    if (UNLIKELY(rename(tmp_path.c_str(), path.c_str()) != 0)) {
+        LOGE("Failed to rename %s to %s: errno %d (%s)", tmp_path.c_str(), path.c_str(),
+             errno, strerror(errno));
+        unlink(tmp_path.c_str());
+        return false;
+    }
+    return true;
+}
+
+void OffsetCache::AppendIdentity(std::string& key, const char* path) {
+    key += path;
+
+    struct stat st;
+    if (UNLIKELY(stat(path, &st) != 0)) {
+        key += "|missing;";
+        return;
+    }
+    char identity[128];
+    snprintf(identity, sizeof(identity), "|%llu|%llu|%lld|%lld",
+             static_cast<unsigned long long>(st.st_dev),
+             static_cast<unsigned long long>(st.st_ino),
+             static_cast<long long>(st.st_size),
+             static_cast<long long>(st.st_mtime));
+    key += identity;
+    key += ';';
+}
+
+void OffsetCache::AppendFileIdentity(std::string& key, const char* elf) {
+    char buffer[64] = {0};
+    ElfImg::ResolvePath(elf, buffer, sizeof(buffer));
+    AppendIdentity(key, buffer);
+}
+
+std::string OffsetCache::ComputeKey() {
+    std::string result;
+    char fingerprint[PROP_VALUE_MAX] = {0};
+    __system_property_get("ro.build.fingerprint", fingerprint);
+    result += fingerprint;
+
+    char info[32];
+    snprintf(info, sizeof(info), ";%d;%zu;", Android::version, sizeof(void*));
+    result += info;
+
+    AppendFileIdentity(result, "libart.so");
+    if (Android::version >= Android::VERSION_N)
+        AppendFileIdentity(result, "libart-compiler.so");
+    return result;
+}
+
+void OffsetCache::Load(const char* cache_dir) {
+    ScopedLock lock(mutex);
+    if (!cache_dir || !cache_dir[0]) return;
+    dir = cache_dir;
+    path = dir;
+    path += '/';
+    path += kFileName;
+    key = ComputeKey();
+    enabled = true;
+
+    FILE* file = fopen(path.c_str(), "rb");
+    if (!file) {
+        // No cache yet, it will be created when Save() is called.
+        return;
+    }
+
+    bool valid = false;
+    do {
+        uint32_t magic, version;
+        if (!ReadFully(file, &magic, sizeof(magic)) || magic != kMagic) break;
+        if (!ReadFully(file, &version, sizeof(version)) || version != kVersion) break;
+
+        std::string stored_key;
+        if (!ReadString(file, stored_key)) break;
+        if (stored_key != key) {
+            LOGI("Offset cache is outdated, discarding it.");
+            break;
+        }
+
+        uint8_t layout_present;
+        if (!ReadFully(file, &layout_present, sizeof(layout_present))) break;
+        if (layout_present && !ReadFully(file, &layout, sizeof(layout))) break;
+        has_layout = layout_present != 0;
+
+        uint32_t count;
+        if (!ReadFully(file, &count, sizeof(count))) break;
+        bool corrupted = false;
+        for (uint32_t i = 0; i < count; i++) {
+            std::string name;
+            uint64_t value;
+            if (!ReadString(file, name) || !ReadFully(file, &value, sizeof(value))) {
+                corrupted = true;
+                break;
+            }
+            symbols[name] = value;
+        }
+        valid = !corrupted;
+    } while (false);
+
+    fclose(file);
+
+    if (UNLIKELY(!valid)) {
+        has_layout = false;
+        symbols.clear();
+        // Rewrite it with a valid content.
+        dirty = true;
+    } else {
+        LOGI("Loaded %zu cached symbols from %s", symbols.size(), path.c_str());
+    }
+}
+
+void OffsetCache::Save() {
+    ScopedLock lock(mutex);
+    if (!enabled || !dirty) return;
+
+    std::string tmp_path = path + ".tmp";
+    FILE* file = WrappedFOpen(tmp_path.c_str(), "wb");
+    if (UNLIKELY(!file)) return;
+
+    bool success = false;
+    do {
+        if (!WriteFully(file, &kMagic, sizeof(kMagic))) break;
+        if (!WriteFully(file, &kVersion, sizeof(kVersion))) break;
+        if (!WriteString(file, key)) break;
+
+        uint8_t layout_present = has_layout ? 1 : 0;
+        if (!WriteFully(file, &layout_present, sizeof(layout_present))) break;
+        if (has_layout && !WriteFully(file, &layout, sizeof(layout))) break;
+
+        auto count = static_cast<uint32_t>(symbols.size());
+        if (!WriteFully(file, &count, sizeof(count))) break;
+        bool failed = false;
+        for (auto& entry : symbols) {
+            if (!WriteString(file, entry.first)
+                || !WriteFully(file, &entry.second, sizeof(entry.second))) {
+                failed = true;
+                break;
+            }
+        }
+        success = !failed;
+    } while (false);
+
+    if (UNLIKELY(!CommitFile(file, tmp_path, path, success))) return;
+    dirty = false;
+}
+
+bool OffsetCache::GetSymbol(const char* elf, const char* symbol, uint64_t* out) {
+    ScopedLock lock(mutex);
+    if (!enabled) return false;
+    auto it = symbols.find(SymbolKey(elf, symbol));
+    if (it == symbols.end()) return false;
+    *out = it->second;
+    return true;
+}
+
+void OffsetCache::PutSymbol(const char* elf, const char* symbol, uint64_t value) {
+    ScopedLock lock(mutex);
+    if (!enabled) return;
+    auto result = symbols.emplace(SymbolKey(elf, symbol), value);
+    if (!result.second) {
+        if (result.first->second == value) return;
+        result.first->second = value;
+    }
+    dirty = true;
+}
+
+bool OffsetCache::GetArtMethodLayout(ArtMethodLayout* out) {
+    ScopedLock lock(mutex);
+    if (!enabled || !has_layout) return false;
+    *out = layout;
+    return true;
+}
+
+void OffsetCache::PutArtMethodLayout(const ArtMethodLayout& new_layout) {
+    ScopedLock lock(mutex);
+    if (!enabled) return;
+    layout = new_layout;
+    has_layout = true;
+    dirty = true;
+}
+
+std::string OffsetCache::GetSymbolIndexPath(const char* file) {
+    // FNV-1a, just to get a stable file name. The full identity is verified after loading.
+    uint64_t hash = 0xcbf29ce484222325ULL;
+    for (const char* p = file; *p; p++) {
+        hash ^= static_cast<uint8_t>(*p);
+        hash *= 0x100000001b3ULL;
+    }
+    char name[64];
+    snprintf(name, sizeof(name), "/pine_symbols_%016llx.bin", static_cast<unsigned long long>(hash));
+    return dir + name;
+}
+
+bool OffsetCache::LoadSymbolIndex(const char* file,
+                                  std::vector<std::pair<std::string, uint64_t>>* out) {
+    std::string index_path;
+    {
+        ScopedLock lock(mutex);
+        if (!enabled) return false;
+        index_path = GetSymbolIndexPath(file);
+    }
+
+    FILE* index = fopen(index_path.c_str(), "rb");
+    if (!index) return false;
+
+    std::string identity;
+    AppendIdentity(identity, file);
+
+    bool valid = false;
+    do {
+        uint32_t magic, version;
+        if (!ReadFully(index, &magic, sizeof(magic)) || magic != kSymbolIndexMagic) break;
+        if (!ReadFully(index, &version, sizeof(version)) || version != kVersion) break;
+
+        std::string stored_identity;
+        if (!ReadString(index, stored_identity) || stored_identity != identity) break;
+
+        uint32_t count;
+        if (!ReadFully(index, &count, sizeof(count))) break;
+        out->clear();
+        out->reserve(count);
+        bool corrupted = false;
+        for (uint32_t i = 0; i < count; i++) {
+            std::string name;
+            uint64_t value;
+            if (!ReadString(index, name) || !ReadFully(index, &value, sizeof(value))) {
+                corrupted = true;
+                break;
+            }
+            out->emplace_back(std::move(name), value);
+        }
+        valid = !corrupted;
+    } while (false);
+
+    fclose(index);
+    if (UNLIKELY(!valid)) {
+        LOGI("Symbol index %s is outdated or corrupted, ignoring it.", index_path.c_str());
+        out->clear();
+    }
+    return valid;
+}
+
+void OffsetCache::SaveSymbolIndex(const char* file,
+                                  const std::vector<std::pair<std::string, uint64_t>>& entries) {
+    std::string index_path;
+    {
+        ScopedLock lock(mutex);
+        if (!enabled) return;
+        index_path = GetSymbolIndexPath(file);
+    }
+
+    std::string identity;
+    AppendIdentity(identity, file);
+
+    std::string tmp_path = index_path + ".tmp";
+    FILE* index = WrappedFOpen(tmp_path.c_str(), "wb");
+    if (UNLIKELY(!index)) return;
+
+    bool success = false;
+    do {
+        if (!WriteFully(index, &kSymbolIndexMagic, sizeof(kSymbolIndexMagic))) break;
+        if (!WriteFully(index, &kVersion, sizeof(kVersion))) break;
+        if (!WriteString(index, identity)) break;
+
+        auto count = static_cast<uint32_t>(entries.size());
+        if (!WriteFully(index, &count, sizeof(count))) break;
+        bool failed = false;
+        for (auto& entry : entries) {
+            if (!WriteString(index, entry.first)
+                || !WriteFully(index, &entry.second, sizeof(entry.second))) {
+                failed = true;
+                break;
+            }
+        }
+        success = !failed;
+    } while (false);
+
+    CommitFile(index, tmp_path, index_path, success);
+}
@@ -0,0 +1,76 @@
+#ifndef PINE_OFFSET_CACHE_H
+#define PINE_OFFSET_CACHE_H
+
+#include <cstdint>
+#include <map>
+#include <mutex>
+#include <string>
+#include <utility>
+#include <vector>
+#include "macros.h"
+
+namespace pine {
+    struct ArtMethodLayout {
+        uint32_t size;
+        int32_t access_flags_offset;
+        int32_t entry_point_from_jni_offset;
+        int32_t entry_point_from_compiled_code_offset;
+        uint32_t access_flags; // Access flags of Ruler.m1 observed when the layout was probed
+        uint32_t compile_dont_bother;
+    };
+
+    /**
+     * Persists ArtMethod layout and resolved symbol offsets across process launches,
+     * so we don't need to map and scan libart.so every time.
+     * Everything is keyed by build fingerprint and identity of the ART libraries,
+     * any mismatch (e.g. OTA or mainline module update) simply discards the cache.
+     */
+    class OffsetCache {
+    public:
+        static void Load(const char* cache_dir);
+        static void Save();
+
+        static bool IsEnabled() {
+            return enabled;
+        }
+
+        // Symbol values are relative to the module base, 0 means the symbol does not exist.
+        static bool GetSymbol(const char* elf, const char* symbol, uint64_t* out);
+        static void PutSymbol(const char* elf, const char* symbol, uint64_t value);
+
+        static bool GetArtMethodLayout(ArtMethodLayout* out);
+        static void PutArtMethodLayout(const ArtMethodLayout& layout);
+
+        // Symbol index of a whole file (e.g. parsed from .gnu_debugdata), stored in its own file
+        // and keyed by the identity of the indexed file.
+        static bool LoadSymbolIndex(const char* file,
+                                    std::vector<std::pair<std::string, uint64_t>>* out);
+        static void SaveSymbolIndex(const char* file,
+                                    const std::vector<std::pair<std::string, uint64_t>>& entries);
+
+    private:
+        static std::string ComputeKey();
+        static void AppendFileIdentity(std::string& key, const char* elf);
+        static void AppendIdentity(std::string& key, const char* path);
+        static std::string GetSymbolIndexPath(const char* file);
+
+        static constexpr uint32_t kMagic = 0x454e4950; // "PINE"
+        static constexpr uint32_t kVersion = 1;
+        static constexpr const char* kFileName = "pine_offsets.bin";
+        static constexpr uint32_t kSymbolIndexMagic = 0x4d595350; // "PSYM"
+
+        static bool enabled;
+        static bool dirty;
+        static bool has_layout;
+        static ArtMethodLayout layout;
+        static std::string dir;
+        static std::string path;
+        static std::string key;
+        static std::map<std::string, uint64_t> symbols;
+        static std::mutex mutex;
+
+        DISALLOW_IMPLICIT_CONSTRUCTORS(OffsetCache);
+    };
+}
+
+#endif //PINE_OFFSET_CACHE_H
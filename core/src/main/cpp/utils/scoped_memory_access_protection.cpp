@@ -17,8 +17,12 @@ void ScopedMemoryAccessProtection::HandleSignal(int signal, siginfo_t* info, voi
         if (LIKELY(fault_addr >= current->addr && fault_addr <= (current->addr + current->size))) {
             if (LIKELY(current->max_retries-- > 0)) {
                 LOGW("Segmentation fault when trying access %p, unprotect it and try again", (void*) fault_addr);
-                if (LIKELY(Memory::Unprotect(reinterpret_cast<void*>(fault_addr))))
+                // Nothing but mprotect here, we are in a signal handler. The page is inside a
+                // ScopedUnprotect range, which puts back its original protection afterwards.
+                if (LIKELY(mprotect(reinterpret_cast<void*>(fault_addr & ~(current->page_size - 1)),
+                                    current->page_size, PROT_READ | PROT_WRITE | PROT_EXEC) == 0)) {
                     return;
+                }
                 LOGE("Failed to unprotect fault address…");
             } else {
                 LOGE("Retried too many times to access %p", (void*) fault_addr);
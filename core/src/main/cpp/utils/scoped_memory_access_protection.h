@@ -8,6 +8,8 @@
 #include <cstdint>
 #include <cassert>
 #include <signal.h>
+#include <unistd.h>
+#include <sys/mman.h>
 #include "macros.h"
 #include "log.h"
 #include "memory.h"
@@ -15,8 +17,10 @@
 namespace pine {
     class ScopedMemoryAccessProtection {
     public:
+        // [addr, addr + size) must be inside a range made writable by ScopedUnprotect.
         ScopedMemoryAccessProtection(void* addr, size_t size, uint32_t max_retries = 2) :
-                addr(reinterpret_cast<uintptr_t>(addr)), size(size), max_retries(max_retries) {
+                addr(reinterpret_cast<uintptr_t>(addr)), size(size), max_retries(max_retries),
+                page_size(static_cast<uintptr_t>(sysconf(_SC_PAGESIZE))) {
             assert(current == nullptr);
             current = this;
             struct sigaction my;
@@ -38,6 +42,7 @@ namespace pine {
         uintptr_t addr;
         size_t size;
         uint32_t max_retries;
+        uintptr_t page_size;
         struct sigaction def;
 
         DISALLOW_COPY_AND_ASSIGN(ScopedMemoryAccessProtection);
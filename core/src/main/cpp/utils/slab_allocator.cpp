@@ -0,0 +1,289 @@
+#include <cerrno>
+#include <cstring>
+#include <sys/mman.h>
+#include <sys/prctl.h>
+#include <sys/syscall.h>
+#include <unistd.h>
+#include <linux/memfd.h>
+#include "slab_allocator.h"
+#include "memory_maps.h"
+#include "lock.h"
+#include "log.h"
+
+using namespace pine;
+
+constexpr size_t SlabAllocator::kClassSizes[];
+
+static inline size_t PageSize() {
+    static const size_t page_size = static_cast<size_t>(sysconf(_SC_PAGESIZE));
+    return page_size;
+}
+
+static inline size_t RoundUp(size_t value, size_t alignment) {
+    return (value + alignment - 1) & ~(alignment - 1);
+}
+
+static inline uintptr_t Distance(uintptr_t a, uintptr_t b) {
+    return a > b ? a - b : b - a;
+}
+
+void* SlabAllocator::MapPages(size_t size, uintptr_t hint) {
+    if (dual_map && LIKELY(!dual_map_unavailable.load(std::memory_order_relaxed))) {
+        void* mapped = MapDualPages(size, hint);
+        if (LIKELY(mapped)) return mapped;
+        LOGW("Dual mapping is unavailable for %s, falling back to a writable mapping", name);
+        dual_map_unavailable.store(true, std::memory_order_relaxed);
+    }
+
+    int mapping_prot = dual_map ? (prot | PROT_WRITE) : prot;
+    void* mapped = mmap(reinterpret_cast<void*>(hint), size, mapping_prot,
+                        MAP_ANONYMOUS | MAP_PRIVATE, -1, 0);
+    if (UNLIKELY(mapped == MAP_FAILED)) {
+        LOGE("Unable to allocate %zu bytes for %s: %s (%d)", size, name, strerror(errno), errno);
+        return nullptr;
+    }
+    // Name the whole mapping, the name must be a string literal as some kernels keep the pointer.
+    prctl(PR_SET_VMA, PR_SET_VMA_ANON_NAME, mapped, size, name);
+    bytes_mapped.fetch_add(size, std::memory_order_relaxed);
+    return mapped;
+}
+
+void* SlabAllocator::MapDualPages(size_t size, uintptr_t hint) {
+    // memfd_create() is only exposed by bionic since Q, but the syscall exists since Linux 3.17.
+    int fd = static_cast<int>(syscall(__NR_memfd_create, name, MFD_CLOEXEC));
+    if (UNLIKELY(fd == -1)) {
+        LOGW("memfd_create failed: %s (%d)", strerror(errno), errno);
+        return nullptr;
+    }
+    if (UNLIKELY(ftruncate(fd, static_cast<off_t>(size)) == -1)) {
+        LOGW("ftruncate memfd to %zu failed: %s (%d)", size, strerror(errno), errno);
+        close(fd);
+        return nullptr;
+    }
+
+    void* executable = mmap(reinterpret_cast<void*>(hint), size, prot, MAP_SHARED, fd, 0);
+    if (UNLIKELY(executable == MAP_FAILED)) {
+        LOGW("Unable to map %zu bytes of memfd with prot %d: %s (%d)", size, prot,
+             strerror(errno), errno);
+        close(fd);
+        return nullptr;
+    }
+    void* writable = mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    // The mappings keep the file alive.
+    close(fd);
+    if (UNLIKELY(writable == MAP_FAILED)) {
+        LOGW("Unable to map writable view of memfd: %s (%d)", strerror(errno), errno);
+        munmap(executable, size);
+        return nullptr;
+    }
+
+    auto view = new WritableView;
+    view->start = reinterpret_cast<uintptr_t>(executable);
+    view->end = view->start + size;
+    view->writable = reinterpret_cast<uintptr_t>(writable);
+    {
+        ScopedLock lock(views_mutex);
+        view->next = writable_views;
+        writable_views = view;
+    }
+    bytes_mapped.fetch_add(size, std::memory_order_relaxed);
+    return executable;
+}
+
+bool SlabAllocator::UnmapPages(void* ptr, size_t size) {
+    uintptr_t start = reinterpret_cast<uintptr_t>(ptr);
+    WritableView* view = nullptr;
+    {
+        ScopedLock lock(views_mutex);
+        for (WritableView** p = &writable_views; *p; p = &(*p)->next) {
+            if ((*p)->start == start) {
+                view = *p;
+                *p = view->next;
+                break;
+            }
+        }
+    }
+    if (view) {
+        munmap(reinterpret_cast<void*>(view->writable), size);
+        delete view;
+    }
+    if (UNLIKELY(munmap(ptr, size) != 0)) {
+        LOGE("Failed to unmap %p (%zu bytes): %s (%d)", ptr, size, strerror(errno), errno);
+        return false;
+    }
+    bytes_mapped.fetch_sub(size, std::memory_order_relaxed);
+    return true;
+}
+
+void* SlabAllocator::GetWritableAddress(void* ptr) {
+    if (!dual_map) return ptr;
+    uintptr_t addr = reinterpret_cast<uintptr_t>(ptr);
+    ScopedLock lock(views_mutex);
+    for (WritableView* view = writable_views; view; view = view->next) {
+        if (addr >= view->start && addr < view->end)
+            return reinterpret_cast<void*>(view->writable + (addr - view->start));
+    }
+    return ptr;
+}
+
+void* SlabAllocator::MapPagesNear(uintptr_t near, size_t size, size_t range) {
+    uintptr_t hint;
+    if (UNLIKELY(!MemoryMaps::FindFreeRegion(near, size, range, &hint))) {
+        LOGW("No free region of %zu bytes within %zu bytes of %p", size, range,
+             reinterpret_cast<void*>(near));
+        return nullptr;
+    }
+    // Just a hint: MAP_FIXED could clobber a mapping created after we read the maps, and
+    // MAP_FIXED_NOREPLACE is not understood by older kernels. Check where we actually landed.
+    void* mapped = MapPages(size, hint);
+    if (UNLIKELY(!mapped)) return nullptr;
+    uintptr_t start = reinterpret_cast<uintptr_t>(mapped);
+    if (UNLIKELY(Distance(start, near) > range || Distance(start + size, near) > range)) {
+        LOGW("Kernel placed near mapping at %p instead of %p, discarding it", mapped,
+             reinterpret_cast<void*>(hint));
+        UnmapPages(mapped, size);
+        // Someone else took the hole, don't trust the snapshot for the next one.
+        MemoryMaps::Invalidate();
+        return nullptr;
+    }
+    MemoryMaps::NoteMapped(start, size, prot);
+    return mapped;
+}
+
+void* SlabAllocator::AllocLarge(size_t size) {
+    size_t mapping_size = RoundUp(size, PageSize());
+    void* mapped = MapPages(mapping_size);
+    if (UNLIKELY(!mapped)) return nullptr;
+    bytes_carved.fetch_add(mapping_size, std::memory_order_relaxed);
+    bytes_in_use.fetch_add(size, std::memory_order_relaxed);
+    large_allocations.fetch_add(1, std::memory_order_relaxed);
+    return mapped;
+}
+
+void SlabAllocator::FreeLarge(void* ptr, size_t size) {
+    size_t mapping_size = RoundUp(size, PageSize());
+    if (UNLIKELY(!UnmapPages(ptr, mapping_size))) return;
+    bytes_carved.fetch_sub(mapping_size, std::memory_order_relaxed);
+    bytes_in_use.fetch_sub(size, std::memory_order_relaxed);
+    large_allocations.fetch_sub(1, std::memory_order_relaxed);
+}
+
+void* SlabAllocator::Alloc(size_t size) {
+    if (UNLIKELY(size == 0)) size = 1;
+    int index = ClassIndexFor(size);
+    if (UNLIKELY(index < 0)) return AllocLarge(size);
+
+    SizeClass& size_class = classes[index];
+    const size_t slot_size = kClassSizes[index];
+
+    // Reuse freed blocks first. Only take the lock if there is something to take.
+    if (size_class.free_count.load(std::memory_order_acquire) != 0) {
+        ScopedLock lock(size_class.mutex);
+        FreeNode* node = size_class.free_list;
+        if (LIKELY(node)) {
+            size_class.free_list = node->next;
+            size_class.free_count.fetch_sub(1, std::memory_order_relaxed);
+            bytes_free.fetch_sub(slot_size, std::memory_order_relaxed);
+            bytes_in_use.fetch_add(size, std::memory_order_relaxed);
+            memset(GetWritableAddress(node), 0, slot_size);
+            return node;
+        }
+    }
+
+    for (;;) {
+        // Fast path: lock-free bump allocation from the current chunk.
+        Chunk* chunk = size_class.current.load(std::memory_order_acquire);
+        if (LIKELY(chunk)) {
+            size_t offset = chunk->used.fetch_add(slot_size, std::memory_order_relaxed);
+            if (LIKELY(offset + slot_size <= chunk->capacity)) {
+                bytes_carved.fetch_add(slot_size, std::memory_order_relaxed);
+                bytes_in_use.fetch_add(size, std::memory_order_relaxed);
+                return reinterpret_cast<void*>(chunk->base + offset);
+            }
+        }
+
+        // Slow path: the chunk is exhausted, map a new one unless another thread already did.
+        ScopedLock lock(size_class.mutex);
+        if (size_class.current.load(std::memory_order_relaxed) != chunk) continue;
+
+        size_t capacity = RoundUp(slot_size * 8 > PageSize() ? slot_size * 8 : PageSize(), PageSize());
+        void* mapped = MapPages(capacity);
+        if (UNLIKELY(!mapped)) {
+            errno = ENOMEM;
+            return nullptr;
+        }
+        // Chunks are never unmapped since other threads may still be reading them.
+        auto new_chunk = new Chunk;
+        new_chunk->base = reinterpret_cast<uintptr_t>(mapped);
+        new_chunk->capacity = capacity;
+        new_chunk->used.store(0, std::memory_order_relaxed);
+        new_chunk->next = nullptr;
+        size_class.current.store(new_chunk, std::memory_order_release);
+    }
+}
+
+void* SlabAllocator::AllocNear(const void* near, size_t size, size_t range) {
+    if (UNLIKELY(size == 0)) size = 1;
+    int index = ClassIndexFor(size);
+    if (UNLIKELY(index < 0)) return nullptr;
+    // Hand out whole slots so Free() can put the block on the normal free list of its class.
+    const size_t slot_size = kClassSizes[index];
+    const uintptr_t near_addr = reinterpret_cast<uintptr_t>(near);
+
+    ScopedLock lock(near_mutex);
+    Chunk* chunk = near_chunks;
+    for (; chunk; chunk = chunk->next) {
+        if (Distance(chunk->base, near_addr) > range
+                || Distance(chunk->base + chunk->capacity, near_addr) > range)
+            continue;
+        if (chunk->used.load(std::memory_order_relaxed) + slot_size <= chunk->capacity) break;
+    }
+
+    if (!chunk) {
+        // One page serves every hook placed in the same code region, e.g. the same oat file.
+        size_t capacity = RoundUp(slot_size, PageSize());
+        void* mapped = MapPagesNear(near_addr, capacity, range);
+        if (UNLIKELY(!mapped)) return nullptr;
+        chunk = new Chunk;
+        chunk->base = reinterpret_cast<uintptr_t>(mapped);
+        chunk->capacity = capacity;
+        chunk->used.store(0, std::memory_order_relaxed);
+        chunk->next = near_chunks;
+        near_chunks = chunk;
+    }
+
+    size_t offset = chunk->used.fetch_add(slot_size, std::memory_order_relaxed);
+    bytes_carved.fetch_add(slot_size, std::memory_order_relaxed);
+    bytes_in_use.fetch_add(size, std::memory_order_relaxed);
+    return reinterpret_cast<void*>(chunk->base + offset);
+}
+
+void SlabAllocator::Free(void* ptr, size_t size) {
+    if (UNLIKELY(!ptr)) return;
+    if (UNLIKELY(size == 0)) size = 1;
+    int index = ClassIndexFor(size);
+    if (UNLIKELY(index < 0)) {
+        FreeLarge(ptr, size);
+        return;
+    }
+
+    SizeClass& size_class = classes[index];
+    const size_t slot_size = kClassSizes[index];
+    auto node = static_cast<FreeNode*>(ptr);
+    auto writable_node = static_cast<FreeNode*>(GetWritableAddress(ptr));
+
+    ScopedLock lock(size_class.mutex);
+    writable_node->next = size_class.free_list;
+    size_class.free_list = node;
+    size_class.free_count.fetch_add(1, std::memory_order_release);
+    bytes_free.fetch_add(slot_size, std::memory_order_relaxed);
+    bytes_in_use.fetch_sub(size, std::memory_order_relaxed);
+}
+
+void SlabAllocator::GetStats(MemoryStats* out) {
+    out->bytes_mapped = bytes_mapped.load(std::memory_order_relaxed);
+    out->bytes_carved = bytes_carved.load(std::memory_order_relaxed);
+    out->bytes_in_use = bytes_in_use.load(std::memory_order_relaxed);
+    out->bytes_free = bytes_free.load(std::memory_order_relaxed);
+    out->large_allocations = large_allocations.load(std::memory_order_relaxed);
+}
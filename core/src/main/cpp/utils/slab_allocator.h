@@ -0,0 +1,115 @@
+#ifndef PINE_SLAB_ALLOCATOR_H
+#define PINE_SLAB_ALLOCATOR_H
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <mutex>
+#include "macros.h"
+
+namespace pine {
+    struct MemoryStats {
+        size_t bytes_mapped; // Total size of all mappings, including large allocations
+        size_t bytes_carved; // Bytes ever handed out from mappings (slots and large allocations)
+        size_t bytes_in_use; // Bytes requested by callers and not freed yet
+        size_t bytes_free; // Bytes sitting in free lists waiting for reuse
+        size_t large_allocations; // Live allocations that got their own mapping
+    };
+
+    /**
+     * Allocator for small, long-lived blocks (trampolines, hook extras).
+     * Requests are rounded up to a size class, each class bump-allocates from its own chunk
+     * without locking and keeps a free list so released blocks are reused.
+     * Requests larger than the biggest class get their own mapping.
+     *
+     * With dual_map, memory is backed by a memfd mapped twice: the returned addresses are in a
+     * view with prot, and writes must go through GetWritableAddress() which points into a
+     * separate read-write view. If memfd is not usable, falls back to one prot | PROT_WRITE view.
+     */
+    class SlabAllocator {
+    public:
+        constexpr SlabAllocator(const char* name, int prot, bool dual_map = false)
+                : name(name), prot(prot), dual_map(dual_map) {
+        }
+
+        void* Alloc(size_t size);
+
+        // Allocates a block that lies entirely within range bytes of near, so it can be reached
+        // with a single pc-relative branch. Returns nullptr if no such memory can be found.
+        void* AllocNear(const void* near, size_t size, size_t range);
+
+        // size must be the same as the one passed to Alloc() or AllocNear()
+        void Free(void* ptr, size_t size);
+
+        void GetStats(MemoryStats* out);
+
+        // Returns the address to write through for ptr, or ptr itself if it has no separate
+        // writable view (including memory not allocated by this allocator).
+        void* GetWritableAddress(void* ptr);
+
+    private:
+        struct Chunk {
+            uintptr_t base;
+            size_t capacity;
+            std::atomic<size_t> used;
+            Chunk* next; // Only used by chunks placed near a branch source
+        };
+
+        struct FreeNode {
+            FreeNode* next;
+        };
+
+        struct WritableView {
+            uintptr_t start;
+            uintptr_t end;
+            uintptr_t writable;
+            WritableView* next;
+        };
+
+        struct SizeClass {
+            std::atomic<Chunk*> current {nullptr};
+            std::atomic<size_t> free_count {0};
+            FreeNode* free_list = nullptr;
+            std::mutex mutex;
+        };
+
+        static constexpr size_t kClassSizes[] = {
+                16, 32, 48, 64, 96, 128, 192, 256, 384, 512, 768, 1024, 1536, 2048
+        };
+        static constexpr size_t kNumClasses = sizeof(kClassSizes) / sizeof(kClassSizes[0]);
+
+        static int ClassIndexFor(size_t size) {
+            for (size_t i = 0; i < kNumClasses; i++) {
+                if (size <= kClassSizes[i]) return static_cast<int>(i);
+            }
+            return -1;
+        }
+
+        void* MapPages(size_t size, uintptr_t hint = 0);
+        void* MapDualPages(size_t size, uintptr_t hint);
+        bool UnmapPages(void* ptr, size_t size);
+        void* MapPagesNear(uintptr_t near, size_t size, size_t range);
+        void* AllocLarge(size_t size);
+        void FreeLarge(void* ptr, size_t size);
+
+        const char* name;
+        const int prot;
+        const bool dual_map;
+        std::atomic<bool> dual_map_unavailable {false};
+        WritableView* writable_views = nullptr;
+        std::mutex views_mutex;
+        SizeClass classes[kNumClasses];
+        Chunk* near_chunks = nullptr;
+        std::mutex near_mutex;
+
+        std::atomic<size_t> bytes_mapped {0};
+        std::atomic<size_t> bytes_carved {0};
+        std::atomic<size_t> bytes_in_use {0};
+        std::atomic<size_t> bytes_free {0};
+        std::atomic<size_t> large_allocations {0};
+
+        DISALLOW_COPY_AND_ASSIGN(SlabAllocator);
+    };
+}
+
+#endif //PINE_SLAB_ALLOCATOR_H
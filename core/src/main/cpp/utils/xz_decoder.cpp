@@ -0,0 +1,530 @@
+#include <cstring>
+#include <mutex>
+#include "xz_decoder.h"
+#include "log.h"
+
+using namespace pine;
+
+// See https://tukaani.org/xz/xz-file-format.txt and the LZMA specification in the LZMA SDK.
+
+namespace {
+    constexpr unsigned kNumBitModelTotalBits = 11;
+    constexpr uint16_t kBitModelTotal = 1 << kNumBitModelTotalBits;
+    constexpr unsigned kNumMoveBits = 5;
+    constexpr uint32_t kTopValue = 1 << 24;
+
+    constexpr unsigned kNumStates = 12;
+    constexpr unsigned kNumPosBitsMax = 4;
+    constexpr unsigned kNumLenToPosStates = 4;
+    constexpr unsigned kNumAlignBits = 4;
+    constexpr unsigned kStartPosModelIndex = 4;
+    constexpr unsigned kEndPosModelIndex = 14;
+    constexpr unsigned kNumFullDistances = 1 << (kEndPosModelIndex >> 1);
+    constexpr unsigned kMatchMinLen = 2;
+
+    inline void InitProbs(uint16_t* probs, size_t count) {
+        for (size_t i = 0; i < count; i++) probs[i] = kBitModelTotal / 2;
+    }
+
+    class RangeDecoder {
+    public:
+        bool Init(const uint8_t* data, size_t size) {
+            if (UNLIKELY(size < 5 || data[0] != 0)) return false;
+            in = data + 1;
+            end = data + size;
+            range = 0xFFFFFFFF;
+            code = 0;
+            for (int i = 0; i < 4; i++) code = (code << 8) | *in++;
+            return code != range;
+        }
+
+        bool IsFinished() const {
+            return !corrupted && in == end && code == 0;
+        }
+
+        bool IsCorrupted() const {
+            return corrupted;
+        }
+
+        unsigned DecodeBit(uint16_t* prob) {
+            uint32_t bound = (range >> kNumBitModelTotalBits) * *prob;
+            unsigned bit;
+            if (code < bound) {
+                range = bound;
+                *prob += (kBitModelTotal - *prob) >> kNumMoveBits;
+                bit = 0;
+            } else {
+                range -= bound;
+                code -= bound;
+                *prob -= *prob >> kNumMoveBits;
+                bit = 1;
+            }
+            Normalize();
+            return bit;
+        }
+
+        uint32_t DecodeDirectBits(unsigned count) {
+            uint32_t result = 0;
+            do {
+                range >>= 1;
+                code -= range;
+                uint32_t t = 0 - (code >> 31);
+                code += range & t;
+                if (UNLIKELY(code == range)) corrupted = true;
+                Normalize();
+                result = (result << 1) + (t + 1);
+            } while (--count);
+            return result;
+        }
+
+        unsigned DecodeTree(uint16_t* probs, unsigned num_bits) {
+            unsigned m = 1;
+            for (unsigned i = 0; i < num_bits; i++)
+                m = (m << 1) + DecodeBit(&probs[m]);
+            return m - (1u << num_bits);
+        }
+
+        unsigned DecodeReverseTree(uint16_t* probs, unsigned num_bits) {
+            unsigned m = 1;
+            unsigned symbol = 0;
+            for (unsigned i = 0; i < num_bits; i++) {
+                unsigned bit = DecodeBit(&probs[m]);
+                m = (m << 1) + bit;
+                symbol |= bit << i;
+            }
+            return symbol;
+        }
+
+    private:
+        void Normalize() {
+            if (range < kTopValue) {
+                range <<= 8;
+                if (LIKELY(in < end)) {
+                    code = (code << 8) | *in++;
+                } else {
+                    code <<= 8;
+                    corrupted = true;
+                }
+            }
+        }
+
+        const uint8_t* in = nullptr;
+        const uint8_t* end = nullptr;
+        uint32_t range = 0;
+        uint32_t code = 0;
+        bool corrupted = false;
+    };
+
+    class LenDecoder {
+    public:
+        void Init() {
+            choice = choice2 = kBitModelTotal / 2;
+            InitProbs(&low[0][0], sizeof(low) / sizeof(uint16_t));
+            InitProbs(&mid[0][0], sizeof(mid) / sizeof(uint16_t));
+            InitProbs(high, sizeof(high) / sizeof(uint16_t));
+        }
+
+        unsigned Decode(RangeDecoder& rc, unsigned pos_state) {
+            if (rc.DecodeBit(&choice) == 0)
+                return rc.DecodeTree(low[pos_state], 3);
+            if (rc.DecodeBit(&choice2) == 0)
+                return 8 + rc.DecodeTree(mid[pos_state], 3);
+            return 16 + rc.DecodeTree(high, 8);
+        }
+
+    private:
+        uint16_t choice;
+        uint16_t choice2;
+        uint16_t low[1 << kNumPosBitsMax][1 << 3];
+        uint16_t mid[1 << kNumPosBitsMax][1 << 3];
+        uint16_t high[1 << 8];
+    };
+
+    class LzmaDecoder {
+    public:
+        bool SetProperties(uint8_t props) {
+            if (UNLIKELY(props >= 9 * 5 * 5)) return false;
+            lc = props % 9;
+            props /= 9;
+            lp = props % 5;
+            pb = props / 5;
+            // LZMA2 requires lc + lp <= 4
+            if (UNLIKELY(lc + lp > 4)) return false;
+            literal_probs.resize(0x300u << (lc + lp));
+            return true;
+        }
+
+        void Reset() {
+            InitProbs(literal_probs.data(), literal_probs.size());
+            InitProbs(&pos_slot[0][0], sizeof(pos_slot) / sizeof(uint16_t));
+            InitProbs(pos_decoders, sizeof(pos_decoders) / sizeof(uint16_t));
+            InitProbs(align, sizeof(align) / sizeof(uint16_t));
+            InitProbs(is_match, sizeof(is_match) / sizeof(uint16_t));
+            InitProbs(is_rep, sizeof(is_rep) / sizeof(uint16_t));
+            InitProbs(is_rep_g0, sizeof(is_rep_g0) / sizeof(uint16_t));
+            InitProbs(is_rep_g1, sizeof(is_rep_g1) / sizeof(uint16_t));
+            InitProbs(is_rep_g2, sizeof(is_rep_g2) / sizeof(uint16_t));
+            InitProbs(is_rep0_long, sizeof(is_rep0_long) / sizeof(uint16_t));
+            len_decoder.Init();
+            rep_len_decoder.Init();
+            state = 0;
+            rep0 = rep1 = rep2 = rep3 = 0;
+        }
+
+        // Decodes exactly unpacked_size bytes, data before dict_start is not part of the dictionary.
+        bool DecodeChunk(RangeDecoder& rc, std::vector<uint8_t>* out, size_t dict_start,
+                         size_t unpacked_size) {
+            const unsigned pb_mask = (1u << pb) - 1;
+            const unsigned lp_mask = (1u << lp) - 1;
+            size_t limit = out->size() + unpacked_size;
+
+            while (out->size() < limit) {
+                if (UNLIKELY(rc.IsCorrupted())) return false;
+                size_t pos = out->size() - dict_start;
+                unsigned pos_state = pos & pb_mask;
+
+                if (rc.DecodeBit(&is_match[(state << kNumPosBitsMax) + pos_state]) == 0) {
+                    DecodeLiteral(rc, out, pos, lp_mask);
+                    continue;
+                }
+
+                unsigned len;
+                if (rc.DecodeBit(&is_rep[state]) != 0) {
+                    if (UNLIKELY(pos == 0)) return false;
+                    if (rc.DecodeBit(&is_rep_g0[state]) == 0) {
+                        if (rc.DecodeBit(&is_rep0_long[(state << kNumPosBitsMax) + pos_state]) == 0) {
+                            // Short rep
+                            state = state < 7 ? 9 : 11;
+                            out->push_back((*out)[out->size() - rep0 - 1]);
+                            continue;
+                        }
+                    } else {
+                        uint32_t dist;
+                        if (rc.DecodeBit(&is_rep_g1[state]) == 0) {
+                            dist = rep1;
+                        } else {
+                            if (rc.DecodeBit(&is_rep_g2[state]) == 0) {
+                                dist = rep2;
+                            } else {
+                                dist = rep3;
+                                rep3 = rep2;
+                            }
+                            rep2 = rep1;
+                        }
+                        rep1 = rep0;
+                        rep0 = dist;
+                    }
+                    len = rep_len_decoder.Decode(rc, pos_state);
+                    state = state < 7 ? 8 : 11;
+                } else {
+                    rep3 = rep2;
+                    rep2 = rep1;
+                    rep1 = rep0;
+                    len = len_decoder.Decode(rc, pos_state);
+                    state = state < 7 ? 7 : 10;
+                    rep0 = DecodeDistance(rc, len);
+                    // LZMA2 never uses the end marker
+                    if (UNLIKELY(rep0 == 0xFFFFFFFF)) return false;
+                }
+
+                len += kMatchMinLen;
+                if (UNLIKELY(rep0 >= pos || len > limit - out->size())) return false;
+                size_t from = out->size() - rep0 - 1;
+                for (unsigned i = 0; i < len; i++) out->push_back((*out)[from + i]);
+            }
+            return !rc.IsCorrupted();
+        }
+
+    private:
+        void DecodeLiteral(RangeDecoder& rc, std::vector<uint8_t>* out, size_t pos,
+                           unsigned lp_mask) {
+            unsigned prev_byte = pos > 0 ? out->back() : 0;
+            uint16_t* probs = &literal_probs[0x300u * (((pos & lp_mask) << lc)
+                                                       + (prev_byte >> (8 - lc)))];
+            unsigned symbol = 1;
+            if (state >= 7) {
+                unsigned match_byte = (*out)[out->size() - rep0 - 1];
+                do {
+                    unsigned match_bit = (match_byte >> 7) & 1;
+                    match_byte <<= 1;
+                    unsigned bit = rc.DecodeBit(&probs[((1 + match_bit) << 8) + symbol]);
+                    symbol = (symbol << 1) | bit;
+                    if (match_bit != bit) break;
+                } while (symbol < 0x100);
+            }
+            while (symbol < 0x100)
+                symbol = (symbol << 1) | rc.DecodeBit(&probs[symbol]);
+            out->push_back(static_cast<uint8_t>(symbol - 0x100));
+
+            if (state < 4) state = 0;
+            else if (state < 10) state -= 3;
+            else state -= 6;
+        }
+
+        uint32_t DecodeDistance(RangeDecoder& rc, unsigned len) {
+            unsigned len_state = len < kNumLenToPosStates - 1 ? len : kNumLenToPosStates - 1;
+            unsigned slot = rc.DecodeTree(pos_slot[len_state], 6);
+            if (slot < kStartPosModelIndex) return slot;
+
+            unsigned num_direct_bits = (slot >> 1) - 1;
+            uint32_t dist = (2 | (slot & 1)) << num_direct_bits;
+            if (slot < kEndPosModelIndex) {
+                return dist + rc.DecodeReverseTree(pos_decoders + dist - slot, num_direct_bits);
+            }
+            dist += rc.DecodeDirectBits(num_direct_bits - kNumAlignBits) << kNumAlignBits;
+            return dist + rc.DecodeReverseTree(align, kNumAlignBits);
+        }
+
+        unsigned lc = 0;
+        unsigned lp = 0;
+        unsigned pb = 0;
+        std::vector<uint16_t> literal_probs;
+        uint16_t pos_slot[kNumLenToPosStates][1 << 6];
+        uint16_t pos_decoders[1 + kNumFullDistances - kEndPosModelIndex];
+        uint16_t align[1 << kNumAlignBits];
+        uint16_t is_match[kNumStates << kNumPosBitsMax];
+        uint16_t is_rep[kNumStates];
+        uint16_t is_rep_g0[kNumStates];
+        uint16_t is_rep_g1[kNumStates];
+        uint16_t is_rep_g2[kNumStates];
+        uint16_t is_rep0_long[kNumStates << kNumPosBitsMax];
+        LenDecoder len_decoder;
+        LenDecoder rep_len_decoder;
+        unsigned state = 0;
+        uint32_t rep0 = 0, rep1 = 0, rep2 = 0, rep3 = 0;
+    };
+
+    bool DecodeLzma2(const uint8_t* in, size_t in_size, std::vector<uint8_t>* out,
+                     size_t* consumed) {
+        LzmaDecoder lzma;
+        bool need_dict_reset = true;
+        bool need_props = true;
+        size_t dict_start = out->size();
+        size_t p = 0;
+
+        for (;;) {
+            if (UNLIKELY(p >= in_size)) return false;
+            uint8_t control = in[p++];
+            if (control == 0x00) {
+                *consumed = p;
+                return true;
+            }
+
+            if (control >= 0xE0 || control == 0x01) {
+                need_dict_reset = false;
+                dict_start = out->size();
+            } else if (UNLIKELY(need_dict_reset)) {
+                return false;
+            }
+
+            if (control >= 0x80) {
+                if (UNLIKELY(p + 4 > in_size)) return false;
+                size_t unpacked_size = (static_cast<size_t>(control & 0x1F) << 16)
+                                       + (static_cast<size_t>(in[p]) << 8) + in[p + 1] + 1;
+                size_t packed_size = (static_cast<size_t>(in[p + 2]) << 8) + in[p + 3] + 1;
+                p += 4;
+
+                if (control >= 0xC0) {
+                    if (UNLIKELY(p >= in_size || !lzma.SetProperties(in[p]))) return false;
+                    p++;
+                    need_props = false;
+                } else if (UNLIKELY(need_props)) {
+                    return false;
+                }
+                if (control >= 0xA0) lzma.Reset();
+
+                if (UNLIKELY(packed_size > in_size - p)) return false;
+                RangeDecoder rc;
+                if (UNLIKELY(!rc.Init(in + p, packed_size))) return false;
+                if (UNLIKELY(!lzma.DecodeChunk(rc, out, dict_start, unpacked_size))) return false;
+                if (UNLIKELY(!rc.IsFinished())) return false;
+                p += packed_size;
+            } else if (control <= 0x02) {
+                // Uncompressed chunk
+                if (UNLIKELY(p + 2 > in_size)) return false;
+                size_t chunk_size = (static_cast<size_t>(in[p]) << 8) + in[p + 1] + 1;
+                p += 2;
+                if (UNLIKELY(chunk_size > in_size - p)) return false;
+                out->insert(out->end(), in + p, in + p + chunk_size);
+                p += chunk_size;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    uint32_t Crc32(const uint8_t* data, size_t size) {
+        static uint32_t table[256];
+        static std::once_flag once;
+        std::call_once(once, []() {
+            for (uint32_t i = 0; i < 256; i++) {
+                uint32_t r = i;
+                for (int j = 0; j < 8; j++) r = (r >> 1) ^ (0xEDB88320 & (0 - (r & 1)));
+                table[i] = r;
+            }
+        });
+        uint32_t crc = 0xFFFFFFFF;
+        for (size_t i = 0; i < size; i++) crc = table[(crc ^ data[i]) & 0xFF] ^ (crc >> 8);
+        return ~crc;
+    }
+
+    uint64_t Crc64(const uint8_t* data, size_t size) {
+        static uint64_t table[256];
+        static std::once_flag once;
+        std::call_once(once, []() {
+            for (uint64_t i = 0; i < 256; i++) {
+                uint64_t r = i;
+                for (int j = 0; j < 8; j++) r = (r >> 1) ^ (0xC96C5795D7870F42ULL & (0 - (r & 1)));
+                table[i] = r;
+            }
+        });
+        uint64_t crc = ~0ULL;
+        for (size_t i = 0; i < size; i++) crc = table[(crc ^ data[i]) & 0xFF] ^ (crc >> 8);
+        return ~crc;
+    }
+
+    inline uint32_t ReadLE32(const uint8_t* p) {
+        return p[0] | (p[1] << 8) | (p[2] << 16) | (static_cast<uint32_t>(p[3]) << 24);
+    }
+
+    inline uint64_t ReadLE64(const uint8_t* p) {
+        return ReadLE32(p) | (static_cast<uint64_t>(ReadLE32(p + 4)) << 32);
+    }
+
+    bool ReadVarInt(const uint8_t* data, size_t size, size_t* pos, uint64_t* out) {
+        uint64_t value = 0;
+        for (unsigned i = 0; i < 9; i++) {
+            if (UNLIKELY(*pos >= size)) return false;
+            uint8_t byte = data[(*pos)++];
+            value |= static_cast<uint64_t>(byte & 0x7F) << (i * 7);
+            if ((byte & 0x80) == 0) {
+                *out = value;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    size_t CheckSize(unsigned check_type) {
+        if (check_type == 0) return 0;
+        return 4u << ((check_type - 1) / 3);
+    }
+}
+
+bool XzDecoder::Decode(const uint8_t* data, size_t size, std::vector<uint8_t>* out) {
+    static const uint8_t kMagic[] = {0xFD, '7', 'z', 'X', 'Z', 0x00};
+    if (UNLIKELY(size < 12 || memcmp(data, kMagic, sizeof(kMagic)) != 0)) {
+        LOGE("Not a xz stream");
+        return false;
+    }
+    if (UNLIKELY(data[6] != 0 || (data[7] & 0xF0) != 0 || Crc32(data + 6, 2) != ReadLE32(data + 8))) {
+        LOGE("Unsupported or corrupted xz stream header");
+        return false;
+    }
+    unsigned check_type = data[7] & 0x0F;
+    size_t check_size = CheckSize(check_type);
+
+    size_t pos = 12;
+    for (;;) {
+        if (UNLIKELY(pos >= size)) return false;
+        if (data[pos] == 0x00) break; // Index indicator, all blocks are decoded
+
+        size_t header_size = (static_cast<size_t>(data[pos]) + 1) * 4;
+        if (UNLIKELY(header_size > size - pos
+                     || Crc32(data + pos, header_size - 4) != ReadLE32(data + pos + header_size - 4))) {
+            LOGE("Corrupted xz block header");
+            return false;
+        }
+
+        const uint8_t* header = data + pos;
+        size_t header_end = header_size - 4;
+        uint8_t flags = header[1];
+        if (UNLIKELY((flags & 0x3C) != 0 || (flags & 0x03) != 0)) {
+            LOGE("Unsupported xz block flags 0x%x (only single LZMA2 filter is supported)", flags);
+            return false;
+        }
+
+        size_t header_pos = 2;
+        uint64_t compressed_size = 0, uncompressed_size = 0;
+        if ((flags & 0x40) && UNLIKELY(!ReadVarInt(header, header_end, &header_pos, &compressed_size)))
+            return false;
+        if ((flags & 0x80) && UNLIKELY(!ReadVarInt(header, header_end, &header_pos, &uncompressed_size)))
+            return false;
+
+        uint64_t filter_id, props_size;
+        if (UNLIKELY(!ReadVarInt(header, header_end, &header_pos, &filter_id)
+                     || !ReadVarInt(header, header_end, &header_pos, &props_size))) {
+            return false;
+        }
+        if (UNLIKELY(filter_id != 0x21 || props_size != 1 || header_pos >= header_end)) {
+            LOGE("Unsupported xz filter 0x%llx", static_cast<unsigned long long>(filter_id));
+            return false;
+        }
+        header_pos++; // Dictionary size, we keep the whole output so it doesn't matter.
+        for (; header_pos < header_end; header_pos++) {
+            if (UNLIKELY(header[header_pos] != 0)) return false;
+        }
+
+        pos += header_size;
+        size_t available = size - pos;
+        if (flags & 0x40) {
+            if (UNLIKELY(compressed_size > available)) return false;
+            available = static_cast<size_t>(compressed_size);
+        }
+        // The size is only a hint, don't let a bogus one make us allocate gigabytes up front.
+        if ((flags & 0x80) && uncompressed_size <= static_cast<uint64_t>(available) * 1024)
+            out->reserve(out->size() + static_cast<size_t>(uncompressed_size));
+
+        size_t block_start = out->size();
+        size_t consumed;
+        if (UNLIKELY(!DecodeLzma2(data + pos, available, out, &consumed))) {
+            LOGE("Corrupted LZMA2 data");
+            return false;
+        }
+        if (UNLIKELY((flags & 0x40) && consumed != compressed_size)) return false;
+        if (UNLIKELY((flags & 0x80) && out->size() - block_start != uncompressed_size)) return false;
+        pos += consumed;
+
+        // Block padding
+        while (consumed % 4 != 0) {
+            if (UNLIKELY(pos >= size || data[pos] != 0)) return false;
+            pos++;
+            consumed++;
+        }
+
+        if (UNLIKELY(check_size > size - pos)) return false;
+        const uint8_t* block_data = out->data() + block_start;
+        size_t block_size = out->size() - block_start;
+        if (check_type == 0x01 && UNLIKELY(Crc32(block_data, block_size) != ReadLE32(data + pos))) {
+            LOGE("xz block CRC32 mismatch");
+            return false;
+        }
+        if (check_type == 0x04 && UNLIKELY(Crc64(block_data, block_size) != ReadLE64(data + pos))) {
+            LOGE("xz block CRC64 mismatch");
+            return false;
+        }
+        pos += check_size;
+    }
+
+    // The index is not needed to decode, but it and the stream footer must be intact and agree
+    // with where the blocks ended, otherwise a stream that lost its tail would still be accepted.
+    size_t end = size;
+    while (end - pos > 12 + 8 && ReadLE32(data + end - 4) == 0) end -= 4; // Stream padding
+    if (UNLIKELY(end - pos < 12 + 8)) {
+        LOGE("Truncated xz stream");
+        return false;
+    }
+    const uint8_t* footer = data + end - 12;
+    if (UNLIKELY(footer[10] != 'Y' || footer[11] != 'Z' || footer[8] != 0 || footer[9] != data[7]
+                 || Crc32(footer + 4, 6) != ReadLE32(footer))) {
+        LOGE("Corrupted xz stream footer");
+        return false;
+    }
+    size_t index_size = (static_cast<size_t>(ReadLE32(footer + 4)) + 1) * 4;
+    if (UNLIKELY(index_size != end - 12 - pos
+                 || Crc32(data + pos, index_size - 4) != ReadLE32(data + pos + index_size - 4))) {
+        LOGE("Corrupted xz index");
+        return false;
+    }
+    return true;
+}
@@ -0,0 +1,23 @@
+#ifndef PINE_XZ_DECODER_H
+#define PINE_XZ_DECODER_H
+
+#include <cstddef>
+#include <cstdint>
+#include <vector>
+#include "macros.h"
+
+namespace pine {
+    /**
+     * Minimal single-call .xz decoder, just enough for MiniDebugInfo (.gnu_debugdata):
+     * LZMA2 filter only, CRC32 and CRC64 checks are verified, other checks are skipped.
+     */
+    class XzDecoder {
+    public:
+        static bool Decode(const uint8_t* data, size_t size, std::vector<uint8_t>* out);
+
+    private:
+        DISALLOW_IMPLICIT_CONSTRUCTORS(XzDecoder);
+    };
+}
+
+#endif //PINE_XZ_DECODER_H
@@ -0,0 +1,144 @@
+package top.canyie.pine;
+
+import top.canyie.pine.callback.MethodHook;
+
+import java.lang.reflect.Member;
+
+/**
+ * Hook metadata of the methods hooked by {@link Pine#hookAll}, kept in parallel arrays of one
+ * open-addressing table keyed by ArtMethod until the method is first called or hooked again.
+ * Only then a {@link Pine.HookRecord}, with its parameter types and reflected backup method,
+ * is created for it and the entry is removed from here. Most methods of a mass hook are never
+ * called, this keeps them at a table slot each instead of several objects.
+ * <p>
+ * Not thread safe, all access is guarded by the hook lock of {@link Pine}.
+ * </p>
+ * @author canyie
+ */
+final class CompactHooks {
+    private static final long EMPTY = 0;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys = new long[MIN_CAPACITY];
+    // Backup handles from NativeBackend.hookBatch, 0 until the method is installed.
+    private long[] backups = new long[MIN_CAPACITY];
+    // Results of Pine.prepareHook(), set with the backup.
+    private int[] prepared = new int[MIN_CAPACITY];
+    private Member[] targets = new Member[MIN_CAPACITY];
+    // Shared by all methods hooked in one call, never modified.
+    private MethodHook[][] callbacks = new MethodHook[MIN_CAPACITY][];
+    private int size;
+
+    /** Returns the slot of artMethod, or -1 if it is not here. */
+    int indexOf(long artMethod) {
+        int index = slotOf(keys, artMethod);
+        return keys[index] == artMethod ? index : -1;
+    }
+
+    boolean contains(long artMethod) {
+        return indexOf(artMethod) >= 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Adds a method that is not installed yet, the caller checked it is not here. */
+    void add(long artMethod, Member target, MethodHook[] callbacks) {
+        if (artMethod == EMPTY) throw new IllegalArgumentException("artMethod == 0");
+        if ((size + 1) * 4 > keys.length * 3) resize(keys.length * 2);
+        int index = slotOf(keys, artMethod);
+        keys[index] = artMethod;
+        targets[index] = target;
+        this.callbacks[index] = callbacks;
+        size++;
+    }
+
+    void setInstalled(int index, long backup, int prepared) {
+        backups[index] = backup;
+        this.prepared[index] = prepared;
+    }
+
+    long getBackup(int index) {
+        return backups[index];
+    }
+
+    int getPrepared(int index) {
+        return prepared[index];
+    }
+
+    Member getTarget(int index) {
+        return targets[index];
+    }
+
+    MethodHook[] getCallbacks(int index) {
+        return callbacks[index];
+    }
+
+    /** Removes the entry in the slot, moving back the entries probed past it. */
+    void remove(int index) {
+        int mask = keys.length - 1;
+        int hole = index;
+        for (int i = (index + 1) & mask;keys[i] != EMPTY;i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            // The entry can fill the hole if the hole is between its home slot and i.
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                move(i, hole);
+                hole = i;
+            }
+        }
+        keys[hole] = EMPTY;
+        backups[hole] = 0;
+        prepared[hole] = 0;
+        targets[hole] = null;
+        callbacks[hole] = null;
+        size--;
+    }
+
+    private void move(int from, int to) {
+        keys[to] = keys[from];
+        backups[to] = backups[from];
+        prepared[to] = prepared[from];
+        targets[to] = targets[from];
+        callbacks[to] = callbacks[from];
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldBackups = backups;
+        int[] oldPrepared = prepared;
+        Member[] oldTargets = targets;
+        MethodHook[][] oldCallbacks = callbacks;
+        keys = new long[capacity];
+        backups = new long[capacity];
+        prepared = new int[capacity];
+        targets = new Member[capacity];
+        callbacks = new MethodHook[capacity][];
+        for (int i = 0;i < oldKeys.length;i++) {
+            long key = oldKeys[i];
+            if (key == EMPTY) continue;
+            int index = slotOf(keys, key);
+            keys[index] = key;
+            backups[index] = oldBackups[i];
+            prepared[index] = oldPrepared[i];
+            targets[index] = oldTargets[i];
+            callbacks[index] = oldCallbacks[i];
+        }
+    }
+
+    private static int hash(long key) {
+        // Same as LongObjectMap: ArtMethods are close to each other and aligned.
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    /** Returns the slot of key, or the empty slot where it should be inserted. */
+    private static int slotOf(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        for (;;) {
+            long k = keys[index];
+            if (k == key || k == EMPTY) return index;
+            index = (index + 1) & mask;
+        }
+    }
+}
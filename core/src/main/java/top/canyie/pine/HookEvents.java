@@ -0,0 +1,150 @@
+package top.canyie.pine;
+
+import android.util.Log;
+
+import top.canyie.pine.callback.MethodHook;
+
+import java.lang.reflect.Member;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The registered {@link HookObserver}s, kept in a copy-on-write array swapped with CAS, so
+ * dispatching takes no lock. Callers check {@link #hasObservers()} before building an event,
+ * nothing is allocated when no one listens.
+ * @author canyie
+ */
+final class HookEvents {
+    private static final String TAG = "HookEvents";
+    private static final HookObserver[] EMPTY = new HookObserver[0];
+    private static final AtomicReference<HookObserver[]> sObservers = new AtomicReference<>(EMPTY);
+
+    private HookEvents() {
+        throw new RuntimeException("Use static methods");
+    }
+
+    static void add(HookObserver observer) {
+        for (;;) {
+            HookObserver[] current = sObservers.get();
+            for (HookObserver o : current) {
+                if (o == observer) return;
+            }
+            HookObserver[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = observer;
+            if (sObservers.compareAndSet(current, updated)) return;
+        }
+    }
+
+    static void remove(HookObserver observer) {
+        for (;;) {
+            HookObserver[] current = sObservers.get();
+            int index = -1;
+            for (int i = 0;i < current.length;i++) {
+                if (current[i] == observer) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) return;
+            HookObserver[] updated;
+            if (current.length == 1) {
+                updated = EMPTY;
+            } else {
+                updated = new HookObserver[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, updated.length - index);
+            }
+            if (sObservers.compareAndSet(current, updated)) return;
+        }
+    }
+
+    static boolean hasObservers() {
+        return sObservers.get().length != 0;
+    }
+
+    static void beforeHook(Member method, MethodHook callback) {
+        for (HookObserver o : sObservers.get()) {
+            try {
+                o.beforeHook(method, callback);
+            } catch (Throwable e) {
+                onObserverError(o, e);
+            }
+        }
+    }
+
+    static void afterHook(Member method, MethodHook.Unhook unhook) {
+        for (HookObserver o : sObservers.get()) {
+            try {
+                o.afterHook(method, unhook);
+            } catch (Throwable e) {
+                onObserverError(o, e);
+            }
+        }
+    }
+
+    static void hookInstalled(HookObserver.Installation installation) {
+        for (HookObserver o : sObservers.get()) {
+            try {
+                o.onHookInstalled(installation);
+            } catch (Throwable e) {
+                onObserverError(o, e);
+            }
+        }
+    }
+
+    static void hookFailed(Member method, Throwable error) {
+        for (HookObserver o : sObservers.get()) {
+            try {
+                o.onHookFailed(method, error);
+            } catch (Throwable e) {
+                onObserverError(o, e);
+            }
+        }
+    }
+
+    static void batchInstalled(int count, int installed, long codeBytes, long dataBytes,
+                               long durationNanos) {
+        for (HookObserver o : sObservers.get()) {
+            try {
+                o.onBatchInstalled(count, installed, codeBytes, dataBytes, durationNanos);
+            } catch (Throwable e) {
+                onObserverError(o, e);
+            }
+        }
+    }
+
+    static void callbackAdded(Member method, MethodHook callback) {
+        for (HookObserver o : sObservers.get()) {
+            try {
+                o.onCallbackAdded(method, callback);
+            } catch (Throwable e) {
+                onObserverError(o, e);
+            }
+        }
+    }
+
+    static void callbackRemoved(Member method, MethodHook callback, boolean unhooked) {
+        for (HookObserver o : sObservers.get()) {
+            try {
+                o.onCallbackRemoved(method, callback);
+                if (unhooked) o.onUnhooked(method);
+            } catch (Throwable e) {
+                onObserverError(o, e);
+            }
+        }
+    }
+
+    static void compiled(Member method, boolean success) {
+        for (HookObserver o : sObservers.get()) {
+            try {
+                o.onCompiled(method, success);
+            } catch (Throwable e) {
+                onObserverError(o, e);
+            }
+        }
+    }
+
+    private static void onObserverError(HookObserver observer, Throwable e) {
+        Log.e(TAG, "Unexpected exception occurred in hook observer " + observer, e);
+    }
+}
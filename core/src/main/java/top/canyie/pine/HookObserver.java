@@ -0,0 +1,98 @@
+package top.canyie.pine;
+
+import top.canyie.pine.callback.MethodHook;
+
+import java.lang.reflect.Member;
+
+/**
+ * Receives hook lifecycle events, register it with {@link Pine#addHookObserver(HookObserver)}.
+ * Any number of observers can be registered, each is called on the thread doing the operation,
+ * in registration order. Exceptions thrown by an observer are logged and do not affect the others
+ * or the operation. Override only the events you need.
+ * @author canyie
+ */
+public abstract class HookObserver {
+    /** Called before callback is added to method by {@link Pine#hook} or {@link Pine#hookAll}. */
+    public void beforeHook(Member method, MethodHook callback) {
+    }
+
+    /** Called after callback is added to method, see {@link #beforeHook(Member, MethodHook)}. */
+    public void afterHook(Member method, MethodHook.Unhook unhook) {
+    }
+
+    /** Called after the trampoline of a method is installed, once per hooked method. */
+    public void onHookInstalled(Installation installation) {
+    }
+
+    /** Called when installing the trampoline of a method failed, it is not hooked. */
+    public void onHookFailed(Member method, Throwable error) {
+    }
+
+    /**
+     * Called after {@link Pine#hookAll} installed a batch of methods at once, after the
+     * {@link #onHookInstalled(Installation)} of each of them.
+     * @param codeBytes executable memory newly in use, may include concurrent allocations
+     * @param dataBytes data memory newly in use, may include concurrent allocations
+     */
+    public void onBatchInstalled(int count, int installed, long codeBytes, long dataBytes,
+                                 long durationNanos) {
+    }
+
+    public void onCallbackAdded(Member method, MethodHook callback) {
+    }
+
+    public void onCallbackRemoved(Member method, MethodHook callback) {
+    }
+
+    /**
+     * Called when the last callback of method is removed. Its trampoline stays installed,
+     * calls go to the original code without calling into java callbacks.
+     */
+    public void onUnhooked(Member method) {
+    }
+
+    /** Called after Pine tried to JIT compile method, e.g. before inline hooking it. */
+    public void onCompiled(Member method, boolean success) {
+    }
+
+    /** Details of a method hooked by {@link Pine}. */
+    public static final class Installation {
+        public final Member method;
+        /** Whether an inline hook was requested, following {@link Pine#setHookMode(int)} */
+        public final boolean inlineRequested;
+        /**
+         * Whether the method was passed to the backend as an inline hook. The native side may
+         * still fall back to replacement mode if the code cannot be patched (logged).
+         */
+        public final boolean inline;
+        /** Why replacement mode is used although inline was requested, or {@code null} */
+        public final String fallbackReason;
+        /** Whether it was installed by {@link Pine#hookAll}, see {@link #onBatchInstalled} */
+        public final boolean batch;
+        /** Executable memory newly in use, or -1 for batches */
+        public final long codeBytes;
+        /** Data memory (e.g. hook extras) newly in use, or -1 for batches */
+        public final long dataBytes;
+        /** Time taken to install the hook including compilation, or -1 for batches */
+        public final long durationNanos;
+
+        Installation(Member method, boolean inlineRequested, boolean inline, String fallbackReason,
+                     boolean batch, long codeBytes, long dataBytes, long durationNanos) {
+            this.method = method;
+            this.inlineRequested = inlineRequested;
+            this.inline = inline;
+            this.fallbackReason = fallbackReason;
+            this.batch = batch;
+            this.codeBytes = codeBytes;
+            this.dataBytes = dataBytes;
+            this.durationNanos = durationNanos;
+        }
+
+        @Override public String toString() {
+            return "Installation{" + method + (inline ? " inline" : " replacement")
+                    + (fallbackReason != null ? " (" + fallbackReason + ")" : "")
+                    + (batch ? " batch" : ", code " + codeBytes + " bytes, data " + dataBytes
+                    + " bytes, " + durationNanos + " ns") + "}";
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package top.canyie.pine;
+
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+/**
+ * The runtime operations Pine needs outside of java: installing hooks, calling original methods
+ * and talking to the JIT. The default implementation calls into libpine on ART; others can
+ * stand in for it to run the java side of Pine (dispatch, callbacks, adapters) without a device.
+ * Set it with {@link Pine#setBackend(NativeBackend)} before Pine is initialized.
+ * <p>
+ * The raw entry path ({@link top.canyie.pine.entry.Entry32}/{@link top.canyie.pine.entry.Entry64})
+ * reads registers and stack of the hooked method, so it only exists on ART and is not part of it.
+ * </p>
+ * @author canyie
+ */
+public interface NativeBackend {
+    /** Checks the environment and initializes the backend, called once. */
+    void init();
+
+    /** Returns an opaque handle of the current thread, passed to the other methods. */
+    long currentThread();
+
+    /** Returns a unique non-zero id of the method, e.g. the address of its ArtMethod. */
+    long getArtMethod(Member method);
+
+    /**
+     * Redirects target to bridge. If fallbackReason is not {@code null}, its first element is set
+     * to why replacement mode was used instead of the requested inline hook (a fallback reason of
+     * HookRegistry, hook_registry.h), or 0.
+     * @param artMethodRegister -1 if bridge is a generic bridge method, otherwise bridge is a
+     *                          {@link top.canyie.pine.entry.TypedBridges typed bridge} receiving
+     *                          the ArtMethod of target in this argument register, and the
+     *                          return address and sp in the next two
+     * @return a method calling the original code of target, or {@code null} on failure
+     */
+    Method hook(long thread, Class<?> declaring, Member target, Method bridge,
+                boolean isInlineHook, boolean isNativeOrProxy, int artMethodRegister,
+                int[] fallbackReason);
+
+    /**
+     * Hooks count methods at once, flags are {@link Pine#BATCH_FLAG_INLINE} and
+     * {@link Pine#BATCH_FLAG_NATIVE_OR_PROXY} bits. A non-zero handle of the backup of
+     * targets[i], passed to {@link #getBackupMethod} when it is needed, is stored in out[i].
+     * If the backup cannot be kept as a handle (e.g. ArtMethod is a java object before
+     * Android 6.0), the backup method itself is stored in outMethods[i] instead. Both are left
+     * unset if it fails to hook. fallbackReasons is {@code null} or filled like the one of
+     * {@link #hook}.
+     */
+    void hookBatch(long thread, int count, Class<?>[] declarings, Member[] targets,
+                   Method[] bridges, byte[] flags, long[] out, Method[] outMethods,
+                   int[] fallbackReasons);
+
+    /** Returns the method calling the original code for a backup handle from {@link #hookBatch}. */
+    Method getBackupMethod(Class<?> declaring, long backup);
+
+    boolean compile(long thread, Member method);
+
+    /**
+     * Sets up the JIT compiler ahead of time, {@link #compile} does it the first time it is
+     * called otherwise. Returns {@code false} if methods cannot be compiled.
+     */
+    boolean prepareJit();
+
+    boolean decompile(Member method, boolean disableJit);
+
+    boolean disableJitInline();
+
+    int checkHooks();
+
+    boolean disableProfileSaver();
+
+    void updateDeclaringClass(Member origin, Method backup);
+
+    /**
+     * Fills out with the values of {@link Pine.MemoryStats}, at the indexes of its constants
+     * (e.g. {@link Pine.MemoryStats#CODE_BYTES_IN_USE}).
+     */
+    void getMemoryStats(long[] out);
+
+    /**
+     * Calls the original method and returns its result, anything thrown propagates unchanged.
+     * Primitive arguments are passed as raw bits in rawArgs (see
+     * {@link top.canyie.pine.utils.Primitives#unboxToRawBits}) and references in args.
+     * origin is {@code null} when the declaring class of backup is known to be up to date,
+     * otherwise it is updated from origin first (see {@link #updateDeclaringClass}).
+     */
+    Object invokeBackupObject(Member origin, Method backup, Class<?> declaring, Object thisObject,
+                              Object[] args, long[] rawArgs, String shorty) throws Throwable;
+
+    /** Same as {@link #invokeBackupObject} for primitive return types, returns the raw bits. */
+    long invokeBackupPrimitive(Member origin, Method backup, Class<?> declaring, Object thisObject,
+                               Object[] args, long[] rawArgs, String shorty) throws Throwable;
+
+    /**
+     * Returns the method calling into a hooked method, stable[0] is set to true if the result
+     * can be cached by pc.
+     */
+    Member getCallerMethod(long pc, long sp, boolean[] stable);
+
+    /**
+     * Returns 8 values for each installed hook: its id (see {@link #getArtMethod(Member)}),
+     * HookRegistry flags and fallback reason (hook_registry.h), address and size of the
+     * trampoline entering the bridge, address and size of the
+     * backup trampoline of an inline hook, and the number of bytes patched in the original code.
+     */
+    long[] getInstalledHooks();
+}
@@ -5,21 +5,28 @@ import android.os.Build;
 import android.util.Log;
 
 import top.canyie.pine.callback.MethodHook;
+import top.canyie.pine.entry.TypedBridges;
+import top.canyie.pine.utils.GcEpoch;
+import top.canyie.pine.utils.Histogram;
+import top.canyie.pine.utils.LongObjectMap;
 import top.canyie.pine.utils.Primitives;
+import top.canyie.pine.utils.StripedCounters;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author canyie
@@ -29,12 +36,38 @@ public final class Pine {
     private static final String TAG = "Pine";
     public static final Object[] EMPTY_OBJECT_ARRAY = new Object[0];
     private static volatile boolean initialized;
-    private static final Map<String, Method> sBridgeMethods = new HashMap<>(8, 2f);
-    private static final Map<Long, HookRecord> sHookRecords = new ConcurrentHashMap<>();
+    // Guarded by Pine.class.
+    private static boolean sBackendInitialized;
+    private static boolean sInitializing;
+    private static final String[] BRIDGE_METHOD_NAMES = {"voidBridge", "intBridge", "longBridge",
+            "doubleBridge", "floatBridge", "booleanBridge", "byteBridge", "charBridge", "shortBridge",
+            "objectBridge"};
+    // Filled in on demand, guarded by itself.
+    private static final Map<String, Method> sBridgeMethods = new HashMap<>(16);
+    /** Hooks requested while initializing in background, {@code null} if not doing that. */
+    private static Map<Member, HookRecord> sPendingHooks;
+    private static final Object sPendingLock = new Object();
+    private static final LongObjectMap<HookRecord> sHookRecords = new LongObjectMap<>();
+    /** Methods hooked by hookAll() that have no hook record yet, guarded by sHookLock. */
+    private static final CompactHooks sCompactHooks = new CompactHooks();
+    /** Callers of hooked methods by return address, only for AOT compiled callers. */
+    private static final LongObjectMap<Member> sCallers = new LongObjectMap<>();
     private static final Object sHookLock = new Object();
     private static boolean is64Bit;
     private static volatile int hookMode = HookMode.AUTO;
-    private static HookListener sHookListener;
+    private static HookListenerAdapter sHookListenerAdapter;
+    private static NativeBackend sBackend = new ArtBackend();
+
+    /** Number of methods installed by one native call (and one suspension of all threads) in {@link #hookAll}. */
+    public static final int HOOK_BATCH_SIZE = 256;
+    // Keep in sync with kBatchFlag* in pine.cpp
+    public static final byte BATCH_FLAG_INLINE = 1;
+    public static final byte BATCH_FLAG_NATIVE_OR_PROXY = 1 << 1;
+    // Returned by prepareHook() above the BATCH_FLAG_* bits, for hook observers only.
+    private static final int PREPARED_INLINE_REQUESTED = 1 << 8;
+    private static final int PREPARED_COMPILE_FAILED = 1 << 9;
+    // Longs per method returned by NativeBackend.getInstalledHooks()
+    private static final int HOOK_INFO_SIZE = 8;
 
     private Pine() {
         throw new RuntimeException("Use static methods");
@@ -42,87 +75,230 @@ public final class Pine {
 
     public static void ensureInitialized() {
         if (initialized) return;
-        synchronized (Pine.class) {
-            if (initialized) return;
-            initialize();
-            initialized = true;
+        initialize(false);
+    }
+
+    /**
+     * Initializes Pine on a new daemon thread, instead of on the first call that needs it (usually
+     * on the main thread during startup). Besides loading libpine and resolving ART internals,
+     * the JIT compiler is loaded there, which is otherwise deferred to the first hook.
+     * <p>
+     * Until it is done, {@link #hook} only records the callback and returns, the method is hooked
+     * by the init thread afterwards: calls made before that are not intercepted, and failures are
+     * logged instead of thrown. Other methods wait for the initialization to finish.
+     * Does nothing if Pine is already initialized or initializing in background.
+     * </p>
+     */
+    public static void initializeInBackground() {
+        synchronized (sPendingLock) {
+            if (initialized || sPendingHooks != null) return;
+            sPendingHooks = new LinkedHashMap<>();
         }
+        Thread thread = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    initialize(true);
+                } catch (Throwable e) {
+                    Log.e(TAG, "Pine init in background failed", e);
+                }
+            }
+        }, "Pine-init");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     public static boolean isInitialized() {
         return initialized;
     }
 
-    @SuppressLint("ObsoleteSdkInt") private static void initialize() {
-        int sdkLevel = Build.VERSION.SDK_INT;
-        if (sdkLevel < Build.VERSION_CODES.KITKAT || sdkLevel > Build.VERSION_CODES.Q)
-            throw new RuntimeException("Unsupported android sdk level " + Build.VERSION.SDK_INT);
-        else if (sdkLevel == Build.VERSION_CODES.Q && Build.VERSION.PREVIEW_SDK_INT > 0) {
-            // Android R Preview, not test...
-            Log.w(TAG, "Android R preview, not test.");
-            sdkLevel = 30;
+    /**
+     * Only the backend and hooks queued by {@link #hook} during background init are required, the
+     * JIT compiler and bridge methods are set up on first use unless eager.
+     */
+    private static void initialize(boolean eager) {
+        synchronized (Pine.class) {
+            // Queued hooks run observers and callbacks on this thread before initialization
+            // finishes, calls from them only need the backend, which is ready by then.
+            if (initialized || sInitializing) return;
+            sInitializing = true;
+            try {
+                try {
+                    if (!sBackendInitialized) {
+                        sBackend.init();
+                        sBackendInitialized = true;
+                    }
+                    if (eager) {
+                        if (!sBackend.prepareJit())
+                            Log.w(TAG, "JIT compiler is not available");
+                        initBridgeMethods();
+                    }
+                } catch (RuntimeException | Error e) {
+                    dropPendingHooks();
+                    throw e;
+                }
+                hookPendingMethods();
+                initialized = true;
+            } finally {
+                sInitializing = false;
+            }
         }
+    }
 
-        String vmVersion = System.getProperty("java.vm.version");
-        if (vmVersion == null || !vmVersion.startsWith("2"))
-            throw new RuntimeException("Only supports ART runtime");
+    private static void initBridgeMethods() {
+        for (String bridgeMethodName : BRIDGE_METHOD_NAMES) {
+            getBridgeMethod(bridgeMethodName);
+        }
+    }
 
-        try {
-            LibLoader libLoader = PineConfig.libLoader;
-            if (libLoader != null) libLoader.loadLib();
+    private static Method getBridgeMethod(String bridgeMethodName) {
+        synchronized (sBridgeMethods) {
+            Method bridge = sBridgeMethods.get(bridgeMethodName);
+            if (bridge != null) return bridge;
+            try {
+                String entryClassName;
+                Class<?>[] paramTypes;
+
+                if (is64Bit) {
+                    entryClassName = "top.canyie.pine.entry.Entry64";
+                    paramTypes = new Class<?>[] {long.class, long.class, long.class,
+                            long.class, long.class, long.class, long.class};
+                } else {
+                    entryClassName = "top.canyie.pine.entry.Entry32";
+                    paramTypes = new Class<?>[] {int.class, int.class, int.class};
+                }
 
-            init0(sdkLevel, PineConfig.debuggable);
-            initBridgeMethods();
+                // Use Class.forName() to ensure entry class is initialized.
+                Class<?> entryClass = Class.forName(entryClassName, true, Pine.class.getClassLoader());
+                bridge = entryClass.getDeclaredMethod(bridgeMethodName, paramTypes);
+                bridge.setAccessible(true);
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to init bridge method " + bridgeMethodName, e);
+            }
+            sBridgeMethods.put(bridgeMethodName, bridge);
+            return bridge;
+        }
+    }
 
-            if (PineConfig.useFastNative && sdkLevel >= Build.VERSION_CODES.LOLLIPOP)
-                enableFastNative();
-        } catch (Exception e) {
-            throw new RuntimeException("Pine init error", e);
+    /**
+     * Queues a hook while Pine is initializing in background.
+     * @return {@code null} if Pine is not initializing in background
+     */
+    private static MethodHook.Unhook hookLater(Member method, MethodHook callback) {
+        HookRecord hookRecord;
+        synchronized (sPendingLock) {
+            if (sPendingHooks == null) return null;
+            hookRecord = sPendingHooks.get(method);
+            if (hookRecord == null) {
+                hookRecord = new HookRecord(method);
+                sPendingHooks.put(method, hookRecord);
+            }
         }
+
+        boolean observed = HookEvents.hasObservers();
+        if (observed)
+            HookEvents.beforeHook(method, callback);
+
+        // If the record is hooked by now, this is the same as adding a callback to a hooked method.
+        hookRecord.addCallback(callback);
+        MethodHook.Unhook unhook = callback.new Unhook(hookRecord);
+
+        if (observed)
+            HookEvents.afterHook(method, unhook);
+
+        return unhook;
     }
 
-    private static void initBridgeMethods() {
-        try {
-            String entryClassName;
-            Class<?>[] paramTypes;
+    /**
+     * Called with the lock of Pine.class held, after the backend is initialized. A record stays
+     * queued until it is hooked, so hooks requested meanwhile (e.g. by the observers and callbacks
+     * run here) are added to it or queued behind it.
+     */
+    private static void hookPendingMethods() {
+        for (;;) {
+            HookRecord hookRecord;
+            synchronized (sPendingLock) {
+                if (sPendingHooks == null) return;
+                if (sPendingHooks.isEmpty()) {
+                    sPendingHooks = null;
+                    return;
+                }
+                hookRecord = sPendingHooks.values().iterator().next();
+            }
 
-            if (is64Bit) {
-                entryClassName = "top.canyie.pine.entry.Entry64";
-                paramTypes = new Class<?>[] {long.class, long.class, long.class,
-                        long.class, long.class, long.class, long.class};
-            } else {
-                entryClassName = "top.canyie.pine.entry.Entry32";
-                paramTypes = new Class<?>[] {int.class, int.class, int.class};
+            Member method = hookRecord.target;
+            long artMethod = sBackend.getArtMethod(method);
+            synchronized (sHookLock) {
+                // Nothing else can be hooked before initialization finishes.
+                sHookRecords.put(artMethod, hookRecord);
+            }
+            try {
+                hookNewMethod(hookRecord, method.getModifiers(), method);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to hook queued method " + method, e);
+                removeHookRecord(artMethod);
             }
 
-            // Use Class.forName() to ensure entry class is initialized.
-            Class<?> entryClass = Class.forName(entryClassName, true, Pine.class.getClassLoader());
+            synchronized (sPendingLock) {
+                sPendingHooks.remove(method);
+            }
+        }
+    }
 
-            String[] bridgeMethodNames = {"voidBridge", "intBridge", "longBridge", "doubleBridge", "floatBridge",
-                    "booleanBridge", "byteBridge", "charBridge", "shortBridge", "objectBridge"};
+    private static void dropPendingHooks() {
+        Map<Member, HookRecord> pending;
+        synchronized (sPendingLock) {
+            pending = sPendingHooks;
+            sPendingHooks = null;
+        }
+        if (pending != null && !pending.isEmpty())
+            Log.e(TAG, "Pine init failed, dropping " + pending.size() + " queued hooks");
+    }
 
-            for (String bridgeMethodName : bridgeMethodNames) {
-                Method bridge = entryClass.getDeclaredMethod(bridgeMethodName, paramTypes);
-                bridge.setAccessible(true);
-                sBridgeMethods.put(bridgeMethodName, bridge);
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to init bridge methods", e);
+    /**
+     * Replaces the backend used to install hooks and call original methods, e.g. with a stand-in
+     * to run the java side of Pine on a plain JVM. Must be called before Pine is initialized.
+     */
+    public static void setBackend(NativeBackend backend) {
+        if (backend == null) throw new NullPointerException("backend == null");
+        synchronized (Pine.class) {
+            if (initialized) throw new IllegalStateException("Pine is already initialized");
+            sBackend = backend;
         }
     }
 
+    public static NativeBackend getBackend() {
+        return sBackend;
+    }
+
     public static void setHookMode(int newHookMode) {
         if (newHookMode < HookMode.AUTO || newHookMode > HookMode.REPLACEMENT)
             throw new IllegalArgumentException("Illegal hookMode " + newHookMode);
         hookMode = newHookMode;
     }
 
-    public static void setHookListener(HookListener l) {
-        sHookListener = l;
+    /**
+     * Sets the listener notified before and after adding a hook callback, replacing the one
+     * set before. Prefer {@link #addHookObserver(HookObserver)}, which can have many subscribers
+     * and more events.
+     */
+    public static synchronized void setHookListener(HookListener l) {
+        if (sHookListenerAdapter != null) HookEvents.remove(sHookListenerAdapter);
+        sHookListenerAdapter = l != null ? new HookListenerAdapter(l) : null;
+        if (sHookListenerAdapter != null) HookEvents.add(sHookListenerAdapter);
+    }
+
+    public static synchronized HookListener getHookListener() {
+        return sHookListenerAdapter != null ? sHookListenerAdapter.listener : null;
+    }
+
+    /** Registers an observer of hook lifecycle events, see {@link HookObserver}. */
+    public static void addHookObserver(HookObserver observer) {
+        if (observer == null) throw new NullPointerException("observer == null");
+        HookEvents.add(observer);
     }
 
-    public static HookListener getHookListener() {
-        return sHookListener;
+    public static void removeHookObserver(HookObserver observer) {
+        HookEvents.remove(observer);
     }
 
     public static MethodHook.Unhook hook(Method method, MethodHook callback) {
@@ -152,19 +328,22 @@ public final class Pine {
     private static MethodHook.Unhook hookImpl(int modifiers, Member method, MethodHook callback) {
         if (PineConfig.debug)
             Log.d(TAG, "Hooking " + method + " callback " + callback);
+        if (!initialized) {
+            MethodHook.Unhook unhook = hookLater(method, callback);
+            if (unhook != null) return unhook;
+        }
         ensureInitialized();
 
-        HookListener hookListener = sHookListener;
-
-        if (hookListener != null)
-            hookListener.beforeHook(method, callback);
+        boolean observed = HookEvents.hasObservers();
+        if (observed)
+            HookEvents.beforeHook(method, callback);
 
-        long artMethod = getArtMethod(method);
+        long artMethod = sBackend.getArtMethod(method);
         HookRecord hookRecord;
         boolean newMethod = false;
 
         synchronized (sHookLock) {
-            hookRecord = sHookRecords.get(artMethod);
+            hookRecord = findHookRecordLocked(artMethod);
             if (hookRecord == null) {
                 newMethod = true;
                 hookRecord = new HookRecord(method);
@@ -178,13 +357,349 @@ public final class Pine {
         hookRecord.addCallback(callback);
         MethodHook.Unhook unhook = callback.new Unhook(hookRecord);
 
-        if (hookListener != null)
-            hookListener.afterHook(method, unhook);
+        if (observed)
+            HookEvents.afterHook(method, unhook);
 
         return unhook;
     }
 
+    /**
+     * Hooks all the given methods with one shared callback, for mass instrumentation like tracing
+     * every method of an app. Unlike calling {@link #hook} for each method, target methods are never
+     * JIT compiled (inline hook is only used if a method already has compiled code), no
+     * {@link MethodHook.Unhook} is created unless a {@link HookObserver} is registered (a
+     * {@link HookListener} set with {@link #setHookListener} is one too), and the methods are
+     * installed {@link #HOOK_BATCH_SIZE} at a time, suspending all other threads once per batch.
+     * <p>
+     * Memory target per hooked method, on arm64: at most 512 bytes in total. Native side is about
+     * 265 bytes (bridge trampoline 128, backup trampoline 48, extras 48 (36 rounded up to a size
+     * class), backup ArtMethod ~40 with malloc overhead). Without observers, the java side is one
+     * slot of a table of primitive arrays, about 56 bytes; the hook record with the parameter
+     * types and the reflected backup method is only created when the method is first called or
+     * hooked again. Use {@link #getMemoryStats()} to check the native part.
+     * </p>
+     * Abstract methods and static initializers are skipped, and so are methods that fail to hook
+     * (with a warning logged).
+     * @return the number of methods that are hooked with the callback after this call.
+     */
+    public static int hookAll(Member[] methods, MethodHook callback) {
+        if (methods == null) throw new NullPointerException("methods == null");
+        if (callback == null) throw new NullPointerException("callback == null");
+        ensureInitialized();
+
+        boolean observed = HookEvents.hasObservers();
+        long thread = sBackend.currentThread();
+        int hooked = 0;
+        int count = 0;
+        MethodHook[] callbacks = {callback};
+        // Only filled when observed, hook records of the other methods are created on demand.
+        HookRecord[] records = new HookRecord[HOOK_BATCH_SIZE];
+        long[] artMethods = new long[HOOK_BATCH_SIZE];
+        Class<?>[] declarings = new Class<?>[HOOK_BATCH_SIZE];
+        Member[] targets = new Member[HOOK_BATCH_SIZE];
+        Method[] bridges = new Method[HOOK_BATCH_SIZE];
+        byte[] flags = new byte[HOOK_BATCH_SIZE];
+        int[] prepared = new int[HOOK_BATCH_SIZE];
+        long[] backups = new long[HOOK_BATCH_SIZE];
+        Method[] backupMethods = new Method[HOOK_BATCH_SIZE];
+
+        for (Member method : methods) {
+            int modifiers = method.getModifiers();
+            if (method instanceof Method) {
+                if (Modifier.isAbstract(modifiers)) continue;
+                ((Method) method).setAccessible(true);
+            } else if (method instanceof Constructor) {
+                if (Modifier.isStatic(modifiers)) continue;
+                ((Constructor<?>) method).setAccessible(true);
+            } else {
+                throw new IllegalArgumentException("Only methods and constructors can be hooked: " + method);
+            }
+
+            long artMethod = sBackend.getArtMethod(method);
+
+            if (observed)
+                HookEvents.beforeHook(method, callback);
+
+            HookRecord hookRecord;
+            boolean newMethod = false;
+            synchronized (sHookLock) {
+                hookRecord = findHookRecordLocked(artMethod);
+                if (hookRecord == null) {
+                    newMethod = true;
+                    if (observed) {
+                        hookRecord = new HookRecord(method);
+                        sHookRecords.put(artMethod, hookRecord);
+                    } else {
+                        sCompactHooks.add(artMethod, method, callbacks);
+                    }
+                }
+            }
+
+            if (hookRecord != null) {
+                hookRecord.addCallback(callback);
+                if (observed)
+                    HookEvents.afterHook(method, callback.new Unhook(hookRecord));
+            }
+
+            if (!newMethod) {
+                hooked++;
+                continue;
+            }
+
+            try {
+                int result = prepareHook(modifiers, method, thread, false);
+                flags[count] = (byte) result;
+                prepared[count] = result;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Skipping method " + method, e);
+                removeHookRecord(artMethod);
+                continue;
+            }
+            if (hookRecord != null) hookRecord.initParams();
+            records[count] = hookRecord;
+            artMethods[count] = artMethod;
+            declarings[count] = method.getDeclaringClass();
+            targets[count] = method;
+            bridges[count] = getBridgeMethod(method);
+            if (++count == HOOK_BATCH_SIZE) {
+                hooked += flushHooks(thread, count, records, artMethods, declarings, targets, bridges, flags,
+                        prepared, backups, backupMethods, observed);
+                count = 0;
+            }
+        }
+        if (count != 0)
+            hooked += flushHooks(thread, count, records, artMethods, declarings, targets, bridges, flags,
+                        prepared, backups, backupMethods, observed);
+        return hooked;
+    }
+
+    /**
+     * @param prepared results of prepareHook()
+     * @param observed whether there were observers when the batch was prepared
+     */
+    private static int flushHooks(long thread, int count, HookRecord[] records, long[] artMethods,
+                                  Class<?>[] declarings, Member[] targets, Method[] bridges,
+                                  byte[] flags, int[] prepared, long[] backups,
+                                  Method[] backupMethods, boolean observed) {
+        long start = 0;
+        long[] memoryBefore = null;
+        if (observed) {
+            start = System.nanoTime();
+            memoryBefore = new long[MemoryStats.VALUE_COUNT];
+            sBackend.getMemoryStats(memoryBefore);
+        }
+        int[] fallbackReasons = observed ? new int[count] : null;
+        try {
+            sBackend.hookBatch(thread, count, declarings, targets, bridges, flags, backups,
+                    backupMethods, fallbackReasons);
+        } catch (RuntimeException | Error e) {
+            // Thrown before anything is installed.
+            for (int i = 0;i < count;i++) {
+                removeHookRecord(artMethods[i]);
+                if (observed) HookEvents.hookFailed(targets[i], e);
+            }
+            throw e;
+        }
+
+        int hooked = 0;
+        for (int i = 0;i < count;i++) {
+            if (backups[i] != 0 || backupMethods[i] != null) {
+                setBatchBackup(artMethods[i], prepared[i], backups[i], backupMethods[i]);
+                hooked++;
+                if (observed)
+                    HookEvents.hookInstalled(newInstallation(targets[i], prepared[i],
+                            fallbackReasons[i], true, -1, -1, -1));
+            } else {
+                Log.w(TAG, "Failed to hook method " + targets[i]);
+                removeHookRecord(artMethods[i]);
+                if (observed)
+                    HookEvents.hookFailed(targets[i], new RuntimeException("Failed to hook method " + targets[i]));
+            }
+            // Don't keep the methods reachable from the buffers.
+            records[i] = null;
+            declarings[i] = null;
+            targets[i] = null;
+            backups[i] = 0;
+            backupMethods[i] = null;
+        }
+
+        if (observed) {
+            long elapsed = System.nanoTime() - start;
+            long[] memoryAfter = new long[MemoryStats.VALUE_COUNT];
+            sBackend.getMemoryStats(memoryAfter);
+            HookEvents.batchInstalled(count, hooked,
+                    MemoryStats.codeBytesInUseDelta(memoryAfter, memoryBefore),
+                    MemoryStats.dataBytesInUseDelta(memoryAfter, memoryBefore), elapsed);
+        }
+        return hooked;
+    }
+
+    /**
+     * Stores the backup of a method installed by {@link #hookAll}. It stays a handle in the
+     * compact table unless a hook record exists or the backend could only give a backup method.
+     */
+    private static void setBatchBackup(long artMethod, int prepared, long backup,
+                                       Method backupMethod) {
+        synchronized (sHookLock) {
+            HookRecord hookRecord = sHookRecords.get(artMethod);
+            if (hookRecord == null) {
+                int index = sCompactHooks.indexOf(artMethod);
+                if (backupMethod == null) {
+                    sCompactHooks.setInstalled(index, backup, prepared);
+                    return;
+                }
+                hookRecord = createHookRecordLocked(index, artMethod);
+            }
+            // Created before the method was installed, by the observed path or on demand.
+            hookRecord.prepared = prepared;
+            if (backupMethod == null)
+                backupMethod = sBackend.getBackupMethod(hookRecord.target.getDeclaringClass(), backup);
+            backupMethod.setAccessible(true);
+            hookRecord.backup = backupMethod;
+        }
+    }
+
+    private static HookRecord findHookRecord(long artMethod) {
+        HookRecord hookRecord = sHookRecords.get(artMethod);
+        if (hookRecord != null) return hookRecord;
+        // E.g. the first call of a method hooked by hookAll().
+        synchronized (sHookLock) {
+            return findHookRecordLocked(artMethod);
+        }
+    }
+
+    /**
+     * Returns the hook record of artMethod, creating it if the method is in the compact table,
+     * or {@code null} if the method is not hooked. Must hold the hook lock.
+     */
+    private static HookRecord findHookRecordLocked(long artMethod) {
+        HookRecord hookRecord = sHookRecords.get(artMethod);
+        if (hookRecord != null) return hookRecord;
+        int index = sCompactHooks.indexOf(artMethod);
+        return index >= 0 ? createHookRecordLocked(index, artMethod) : null;
+    }
+
+    /** Moves the method in slot index of the compact table to a hook record. */
+    private static HookRecord createHookRecordLocked(int index, long artMethod) {
+        HookRecord hookRecord = new HookRecord(sCompactHooks.getTarget(index));
+        hookRecord.initParams();
+        hookRecord.prepared = sCompactHooks.getPrepared(index);
+        hookRecord.callbacks = sCompactHooks.getCallbacks(index);
+        long backup = sCompactHooks.getBackup(index);
+        // Otherwise not installed yet, flushHooks() sets it.
+        if (backup != 0) {
+            Method backupMethod = sBackend.getBackupMethod(
+                    hookRecord.target.getDeclaringClass(), backup);
+            backupMethod.setAccessible(true);
+            hookRecord.backup = backupMethod;
+        }
+        sHookRecords.put(artMethod, hookRecord);
+        sCompactHooks.remove(index);
+        return hookRecord;
+    }
+
+    private static boolean isHookedArtMethod(long artMethod) {
+        if (sHookRecords.containsKey(artMethod)) return true;
+        synchronized (sHookLock) {
+            return sCompactHooks.contains(artMethod);
+        }
+    }
+
+    /** nativeReason is the fallback reason the backend reported, see {@link HookInfo}. */
+    private static HookObserver.Installation newInstallation(Member method, int prepared,
+                                                             int nativeReason, boolean batch,
+                                                             long codeBytes, long dataBytes,
+                                                             long durationNanos) {
+        boolean inlineRequested = (prepared & PREPARED_INLINE_REQUESTED) != 0;
+        // Native may still fall back to replacement mode when installing.
+        boolean inline = (prepared & BATCH_FLAG_INLINE) != 0
+                && nativeReason == HookInfo.FALLBACK_NONE;
+        String fallbackReason = inlineRequested && !inline
+                ? getFallbackReason(prepared, nativeReason) : null;
+        return new HookObserver.Installation(method, inlineRequested, inline, fallbackReason,
+                batch, codeBytes, dataBytes, durationNanos);
+    }
+
+    /** Returns why replacement mode is used for an inline hook, decided in java or native. */
+    private static String getFallbackReason(int prepared, int nativeReason) {
+        if ((prepared & BATCH_FLAG_NATIVE_OR_PROXY) != 0) return "native or proxy method";
+        if ((prepared & PREPARED_COMPILE_FAILED) != 0) return "compilation failed";
+        switch (nativeReason) {
+            case HookInfo.FALLBACK_CANNOT_SAFE_INLINE: return "code cannot be patched safely";
+            case HookInfo.FALLBACK_INSTALL_FAILED: return "failed to install inline trampoline";
+            case HookInfo.FALLBACK_NOT_COMPILED: return "not compiled";
+            default: return null;
+        }
+    }
+
+    private static void removeHookRecord(long artMethod) {
+        synchronized (sHookLock) {
+            if (sHookRecords.remove(artMethod) != null) return;
+            int index = sCompactHooks.indexOf(artMethod);
+            if (index >= 0) sCompactHooks.remove(index);
+        }
+    }
+
     private static void hookNewMethod(HookRecord hookRecord, int modifiers, Member method) {
+        boolean observed = HookEvents.hasObservers();
+        long start = 0;
+        long[] memoryBefore = null;
+        if (observed) {
+            start = System.nanoTime();
+            memoryBefore = new long[MemoryStats.VALUE_COUNT];
+            sBackend.getMemoryStats(memoryBefore);
+        }
+
+        long thread = sBackend.currentThread();
+        int prepared = prepareHook(modifiers, method, thread, true);
+        hookRecord.initParams();
+        hookRecord.prepared = prepared;
+        byte flags = (byte) prepared;
+
+        Method bridge = null;
+        int artMethodRegister = -1;
+        // Typed bridges pass the ArtMethod in an argument register, only done for arm64.
+        if (PineConfig.useTypedBridges && is64Bit && TypedBridges.isSupported()) {
+            try {
+                bridge = TypedBridges.getBridge(hookRecord, method);
+                artMethodRegister = TypedBridges.getArtMethodRegister(hookRecord);
+            } catch (Exception e) {
+                Log.w(TAG, "Cannot generate typed bridge for " + method + ", use the generic one", e);
+            }
+        }
+        if (bridge == null) bridge = getBridgeMethod(method);
+
+        Method backup;
+        int[] fallbackReason = observed ? new int[1] : null;
+        try {
+            backup = sBackend.hook(thread, method.getDeclaringClass(), method, bridge,
+                    (flags & BATCH_FLAG_INLINE) != 0, (flags & BATCH_FLAG_NATIVE_OR_PROXY) != 0,
+                    artMethodRegister, fallbackReason);
+            if (backup == null)
+                throw new RuntimeException("Failed to hook method " + method);
+        } catch (RuntimeException | Error e) {
+            if (observed) HookEvents.hookFailed(method, e);
+            throw e;
+        }
+
+        backup.setAccessible(true);
+        hookRecord.backup = backup;
+
+        if (observed) {
+            long elapsed = System.nanoTime() - start;
+            long[] memoryAfter = new long[MemoryStats.VALUE_COUNT];
+            sBackend.getMemoryStats(memoryAfter);
+            HookEvents.hookInstalled(newInstallation(method, prepared, fallbackReason[0], false,
+                    MemoryStats.codeBytesInUseDelta(memoryAfter, memoryBefore),
+                    MemoryStats.dataBytesInUseDelta(memoryAfter, memoryBefore), elapsed));
+        }
+    }
+
+    /**
+     * Decides how to hook the method.
+     * @return BATCH_FLAG_* bits, and PREPARED_* bits above them
+     */
+    private static int prepareHook(int modifiers, Member method, long thread, boolean compile) {
         boolean isInlineHook;
         if (hookMode == HookMode.AUTO) {
             // On Android N or lower, entry_point_from_compiled_code_ may be hard-coded in the machine code
@@ -199,52 +714,51 @@ public final class Pine {
             isInlineHook = hookMode == HookMode.INLINE;
         }
 
-        if (hookRecord.isStatic = Modifier.isStatic(modifiers)) resolve((Method) method);
+        if (Modifier.isStatic(modifiers)) resolve((Method) method);
 
         Class<?> declaring = method.getDeclaringClass();
 
-        long thread = Primitives.currentArtThread();
-
         boolean isNativeOrProxy = Modifier.isNative(modifiers) || Proxy.isProxyClass(declaring);
 
+        boolean inlineRequested = isInlineHook;
+        boolean compileFailed = false;
         // Only try compile target method when trying inline hook.
         if (isInlineHook) {
             // Cannot compile native or proxy methods.
             if (!isNativeOrProxy) {
-                boolean compiled = compile0(thread, method);
-                if (!compiled) {
-                    Log.e(TAG, "Failed to compile target method, force use replacement mode.");
-                    isInlineHook = false;
+                if (compile) {
+                    boolean compiled = sBackend.compile(thread, method);
+                    if (HookEvents.hasObservers()) HookEvents.compiled(method, compiled);
+                    if (!compiled) {
+                        compileFailed = true;
+                        Log.e(TAG, "Failed to compile target method, force use replacement mode.");
+                        isInlineHook = false;
+                    }
                 }
             } else {
                 isInlineHook = false;
             }
         }
 
+        int flags = 0;
+        if (isInlineHook) flags |= BATCH_FLAG_INLINE;
+        if (isNativeOrProxy) flags |= BATCH_FLAG_NATIVE_OR_PROXY;
+        if (inlineRequested) flags |= PREPARED_INLINE_REQUESTED;
+        if (compileFailed) flags |= PREPARED_COMPILE_FAILED;
+        return flags;
+    }
+
+    private static Method getBridgeMethod(Member method) {
         String bridgeMethodName;
         if (method instanceof Method) {
-            hookRecord.paramTypes = ((Method) method).getParameterTypes();
             Class<?> returnType = ((Method) method).getReturnType();
             bridgeMethodName = returnType.isPrimitive() ? returnType.getName() + "Bridge" : "objectBridge";
         } else {
-            hookRecord.paramTypes = ((Constructor) method).getParameterTypes();
             // Constructor is actually a method named <init> and its return type is void.
             bridgeMethodName = "voidBridge";
         }
 
-        hookRecord.paramNumber = hookRecord.paramTypes.length;
-
-        Method bridge = sBridgeMethods.get(bridgeMethodName);
-        if (bridge == null)
-            throw new AssertionError("Cannot find bridge method for " + method);
-
-        Method backup = hook0(thread, declaring, method, bridge, isInlineHook, isNativeOrProxy);
-
-        if (backup == null)
-            throw new RuntimeException("Failed to hook method " + method);
-
-        backup.setAccessible(true);
-        hookRecord.backup = backup;
+        return getBridgeMethod(bridgeMethodName);
     }
 
     private static void resolve(Method method) {
@@ -268,11 +782,11 @@ public final class Pine {
     public static boolean isHooked(Member method) {
         if (!(method instanceof Method || method instanceof Constructor))
             throw new IllegalArgumentException("Only methods and constructors can be hooked: " + method);
-        return sHookRecords.containsKey(getArtMethod(method));
+        return isHookedArtMethod(sBackend.getArtMethod(method));
     }
 
     public static HookRecord getHookRecord(long artMethod) {
-        HookRecord result = sHookRecords.get(artMethod);
+        HookRecord result = findHookRecord(artMethod);
         if (result == null) {
             throw new AssertionError("Not found HookRecord for ArtMethod pointer 0x" + Long.toHexString(artMethod));
         }
@@ -289,12 +803,11 @@ public final class Pine {
         return getAddress0(thread, o);
     }
 
-    static Object callBackupMethod(Member origin, Method backup, Object thisObject, Object[] args) throws InvocationTargetException, IllegalAccessException {
+    static Object callBackupMethod(HookRecord hookRecord, Object thisObject, Object[] args) throws InvocationTargetException, IllegalAccessException {
+        Method backup = hookRecord.backup;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            // On Android 7.0+, java.lang.Class object is movable and may cause crash when
-            // invoke backup method, so we update declaring_class when invoke backup method.
-            Class<?> declaring = origin.getDeclaringClass();
-            updateDeclaringClass(origin, backup);
+            Class<?> declaring = hookRecord.target.getDeclaringClass();
+            updateDeclaringClassIfMoved(hookRecord);
             Object result = backup.invoke(thisObject, args);
 
             // Explicit use declaring_class object to ensure it has reference on stack
@@ -306,6 +819,71 @@ public final class Pine {
         }
     }
 
+    /**
+     * On Android 7.0+, java.lang.Class object is movable and may cause crash when invoke backup
+     * method, because GC does not update the declaring_class copied into the backup ArtMethod.
+     * Update it before calling the backup, but only if a GC ran since the last update of this
+     * record: otherwise the class cannot have moved, and the JNI call is skipped.
+     */
+    private static void updateDeclaringClassIfMoved(HookRecord hookRecord) {
+        int epoch = GcEpoch.get();
+        if (hookRecord.declaringClassEpoch != epoch) {
+            sBackend.updateDeclaringClass(hookRecord.target, hookRecord.backup);
+            // Set after the update, other threads must not skip it before it is done. If a GC
+            // ran since we got the epoch, the next call sees a new one and updates again.
+            hookRecord.declaringClassEpoch = epoch;
+        }
+    }
+
+    /**
+     * Calls the original method of hookRecord through JNI. Unlike Method.invoke(), anything
+     * thrown by the original method propagates unchanged instead of being wrapped in a newly
+     * allocated InvocationTargetException.
+     */
+    static Object invokeBackup(HookRecord hookRecord, Object thisObject, Object[] args)
+            throws Throwable {
+        if (args == null) args = EMPTY_OBJECT_ARRAY;
+        Class<?>[] paramTypes = hookRecord.paramTypes;
+        if (args.length != paramTypes.length)
+            throw new IllegalArgumentException("Wrong number of arguments; expected "
+                    + paramTypes.length + ", got " + args.length);
+
+        Member target = hookRecord.target;
+        Class<?> declaring = target.getDeclaringClass();
+        if (!hookRecord.isStatic) {
+            if (thisObject == null) throw new NullPointerException("null receiver");
+            if (!declaring.isInstance(thisObject))
+                throw new IllegalArgumentException("Expected receiver of type "
+                        + declaring.getName() + ", but got " + thisObject.getClass().getName());
+        }
+
+        // Primitive arguments are passed as raw bits, references in args.
+        long[] rawArgs = null;
+        for (int i = 0;i < args.length;i++) {
+            Class<?> paramType = paramTypes[i];
+            Object arg = args[i];
+            if (paramType.isPrimitive()) {
+                if (rawArgs == null) rawArgs = new long[args.length];
+                rawArgs[i] = Primitives.unboxToRawBits(paramType, arg);
+            } else if (arg != null && !paramType.isInstance(arg)) {
+                throw new IllegalArgumentException("argument " + (i + 1) + " should have type "
+                        + paramType.getName() + ", got " + arg.getClass().getName());
+            }
+        }
+
+        // The declaring class is kept alive on the stack by the declaring argument.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) updateDeclaringClassIfMoved(hookRecord);
+
+        Class<?> returnType = hookRecord.getReturnType();
+        if (returnType.isPrimitive() && returnType != void.class) {
+            long result = sBackend.invokeBackupPrimitive(null, hookRecord.backup, declaring, thisObject,
+                    args, rawArgs, hookRecord.getShorty());
+            return Primitives.boxRawBits(returnType, result);
+        }
+        return sBackend.invokeBackupObject(null, hookRecord.backup, declaring, thisObject, args, rawArgs,
+                hookRecord.getShorty());
+    }
+
     public static Object invokeOriginalMethod(Member method, Object thisObject, Object... args) throws IllegalAccessException, InvocationTargetException {
         if (method == null) throw new NullPointerException("method == null");
         if (method instanceof Method) {
@@ -316,7 +894,7 @@ public final class Pine {
             throw new IllegalArgumentException("method must be of type Method or Constructor");
         }
 
-        HookRecord hookRecord = sHookRecords.get(getArtMethod(method));
+        HookRecord hookRecord = findHookRecord(sBackend.getArtMethod(method));
         if (hookRecord == null) {
             // Not hooked
             if (method instanceof Constructor) {
@@ -334,7 +912,7 @@ public final class Pine {
             }
         }
 
-        return callBackupMethod(hookRecord.target, hookRecord.backup, thisObject, args);
+        return callBackupMethod(hookRecord, thisObject, args);
     }
 
     public static boolean compile(Member method) {
@@ -353,7 +931,9 @@ public final class Pine {
         }
 
         ensureInitialized();
-        return compile0(Primitives.currentArtThread(), method);
+        boolean compiled = sBackend.compile(sBackend.currentThread(), method);
+        if (HookEvents.hasObservers()) HookEvents.compiled(method, compiled);
+        return compiled;
     }
 
     public static boolean decompile(Member method, boolean disableJit) {
@@ -371,7 +951,31 @@ public final class Pine {
             return false;
         }
         ensureInitialized();
-        return decompile0(method, disableJit);
+        return sBackend.decompile(method, disableJit);
+    }
+
+    /**
+     * Discards the compiled code of the given methods, so calls of hooked methods they inlined
+     * when compiled before the hook go through the hook again. Hooked methods are marked
+     * non-compilable, which the JIT compiler of Android 11+ also treats as non-inlinable, so
+     * JIT compiling the callers again later is fine; on older versions only
+     * {@link #disableJitInline()} prevents that, for the whole process.
+     * Hooked, native, abstract and proxy methods are skipped.
+     * @return the number of methods deoptimized
+     */
+    public static int deoptimizeCallers(Member... callers) {
+        ensureInitialized();
+        int deoptimized = 0;
+        for (Member caller : callers) {
+            if (!(caller instanceof Method || caller instanceof Constructor)) continue;
+            int modifiers = caller.getModifiers();
+            if (Modifier.isNative(modifiers) || Modifier.isAbstract(modifiers)
+                    || Proxy.isProxyClass(caller.getDeclaringClass())) continue;
+            // Replacement mode hooks live in the entry of the method.
+            if (isHookedArtMethod(sBackend.getArtMethod(caller))) continue;
+            if (sBackend.decompile(caller, false)) deoptimized++;
+        }
+        return deoptimized;
     }
 
     public static boolean disableJitInline() {
@@ -380,36 +984,159 @@ public final class Pine {
             return false;
         }
         ensureInitialized();
-        return disableJitInline0();
+        return sBackend.disableJitInline();
+    }
+
+    /**
+     * Restores the entry of methods hooked in replacement mode that ART has overwritten since
+     * (e.g. after JIT compilation), which makes the hook stop working.
+     * Updates through the JIT commit path are already blocked when hooking, this catches
+     * the remaining ones. It suspends all threads, call it rarely.
+     * This only keeps hooks working: on Android 7.0+ the original code of a method hooked in
+     * replacement mode is still interpreted, new code ART tried to give it is dropped.
+     * @return the number of hooks restored
+     */
+    public static int checkHooks() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            // No JIT.
+            return 0;
+        }
+        ensureInitialized();
+        return sBackend.checkHooks();
     }
 
     public static boolean disableProfileSaver() {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return false;
         ensureInitialized();
-        return disableProfileSaver0();
+        return sBackend.disableProfileSaver();
+    }
+
+    /**
+     * Returns usage of the memory allocated for trampolines (executable) and hook extras (data).
+     */
+    public static MemoryStats getMemoryStats() {
+        ensureInitialized();
+        long[] values = new long[MemoryStats.VALUE_COUNT];
+        sBackend.getMemoryStats(values);
+        return new MemoryStats(values);
+    }
+
+    /**
+     * Returns what is installed for each hooked method, in installation order.
+     * Methods stay listed after their last callback is removed, their trampolines are kept.
+     */
+    public static List<HookInfo> dumpHooks() {
+        ensureInitialized();
+        long[] values = sBackend.getInstalledHooks();
+        List<HookInfo> result = new ArrayList<>(values.length / HOOK_INFO_SIZE);
+        for (int i = 0;i < values.length;i += HOOK_INFO_SIZE) {
+            long artMethod = values[i];
+            HookRecord hookRecord = sHookRecords.get(artMethod);
+            if (hookRecord != null) {
+                result.add(new HookInfo(hookRecord.target, values, i, hookRecord.prepared,
+                        hookRecord.callbacks.length));
+                continue;
+            }
+            synchronized (sHookLock) {
+                int index = sCompactHooks.indexOf(artMethod);
+                if (index >= 0) {
+                    result.add(new HookInfo(sCompactHooks.getTarget(index), values, i,
+                            sCompactHooks.getPrepared(index), sCompactHooks.getCallbacks(index).length));
+                    continue;
+                }
+            }
+            // Otherwise the hook was installed but getting its backup failed.
+            result.add(new HookInfo(null, values, i, 0, 0));
+        }
+        return result;
+    }
+
+    /**
+     * Writes {@link #dumpHooks()} and {@link #getMemoryStats()} as JSON to fd, e.g. a pipe or
+     * socket of a diagnostics service. fd is not closed.
+     */
+    public static void dumpHooks(FileDescriptor fd) throws IOException {
+        List<HookInfo> hooks = dumpHooks();
+        MemoryStats memory = getMemoryStats();
+        StringBuilder sb = new StringBuilder(128 + hooks.size() * 256);
+        sb.append("{\"version\":1,\"is64Bit\":").append(is64Bit)
+                .append(",\"sdk\":").append(Build.VERSION.SDK_INT)
+                .append(",\"memory\":{\"code\":[").append(memory.codeBytesMapped).append(',')
+                .append(memory.codeBytesCarved).append(',').append(memory.codeBytesInUse).append(',')
+                .append(memory.codeBytesFree).append(',').append(memory.codeLargeAllocations)
+                .append("],\"data\":[").append(memory.dataBytesMapped).append(',')
+                .append(memory.dataBytesCarved).append(',').append(memory.dataBytesInUse).append(',')
+                .append(memory.dataBytesFree).append(',').append(memory.dataLargeAllocations)
+                .append("]},\"hooks\":[");
+        for (int i = 0;i < hooks.size();i++) {
+            if (i != 0) sb.append(',');
+            hooks.get(i).appendJson(sb);
+        }
+        sb.append("]}\n");
+        // Not closed: that would close fd.
+        FileOutputStream out = new FileOutputStream(fd);
+        out.write(sb.toString().getBytes("UTF-8"));
+        out.flush();
+    }
+
+    /**
+     * Returns the stats of the hooked method collected while {@link PineConfig#collectHookStats}
+     * is set, or {@code null} if it is not hooked or has not been called since then.
+     */
+    public static HookStats getHookStats(Member method) {
+        HookRecord hookRecord = sHookRecords.get(sBackend.getArtMethod(method));
+        if (hookRecord == null) return null;
+        Metrics metrics = hookRecord.metrics;
+        return metrics != null ? new HookStats(hookRecord.target, metrics) : null;
+    }
+
+    /** Returns the stats of all hooked methods that have any, see {@link #getHookStats(Member)}. */
+    public static List<HookStats> getAllHookStats() {
+        Object[] records = sHookRecords.values();
+        List<HookStats> result = new ArrayList<>();
+        for (Object o : records) {
+            HookRecord hookRecord = (HookRecord) o;
+            Metrics metrics = hookRecord.metrics;
+            if (metrics != null) result.add(new HookStats(hookRecord.target, metrics));
+        }
+        return result;
     }
 
     public static Object handleCall(HookRecord hookRecord, Object thisObject, Object[] args)
             throws Throwable {
+        return handleCall(hookRecord, thisObject, args, 0, 0);
+    }
+
+    /**
+     * callerPc is the return address into the caller and callerSp is the sp at the entry of the
+     * hooked method, both are 0 if unknown.
+     */
+    public static Object handleCall(HookRecord hookRecord, Object thisObject, Object[] args,
+                                    long callerPc, long callerSp) throws Throwable {
         if (PineConfig.debug)
             Log.d(TAG, "handleCall: target=" + hookRecord.target + " thisObject=" +
                     thisObject + " args=" + Arrays.toString(args));
 
+        Metrics metrics = PineConfig.collectHookStats ? hookRecord.getMetrics() : null;
         if (PineConfig.disableHooks || hookRecord.emptyCallbacks()) {
-            try {
-                return callBackupMethod(hookRecord.target, hookRecord.backup, thisObject, args);
-            } catch (InvocationTargetException e) {
-                throw e.getTargetException();
-            }
+            if (metrics == null) return invokeBackup(hookRecord, thisObject, args);
+            return invokeBackupMeasured(hookRecord, thisObject, args, metrics);
         }
+        // Start of the current span of time spent in callbacks.
+        long start = metrics != null ? System.nanoTime() : 0;
+        long callbackNanos = 0;
 
         CallFrame callFrame = new CallFrame(hookRecord, thisObject, args);
+        callFrame.callerPc = callerPc;
+        callFrame.callerSp = callerSp;
         MethodHook[] callbacks = hookRecord.getCallbacks();
+        callFrame.callbackCount = callbacks.length;
 
         // call before callbacks
         int beforeIdx = 0;
         do {
             MethodHook callback = callbacks[beforeIdx];
+            callFrame.callbackIndex = beforeIdx;
             try {
                 callback.beforeCall(callFrame);
             } catch (Throwable e) {
@@ -426,11 +1153,19 @@ public final class Pine {
         } while (++beforeIdx < callbacks.length);
 
         // call original method if not requested otherwise
-        if (!callFrame.returnEarly) {
+        boolean returnedEarly = callFrame.returnEarly;
+        if (!returnedEarly) {
+            long originalStart = metrics != null ? System.nanoTime() : 0;
             try {
-                callFrame.setResult(callFrame.invokeOriginalMethod());
-            } catch (InvocationTargetException e) {
-                callFrame.setThrowable(e.getTargetException());
+                callFrame.setResult(callFrame.invokeOriginalMethodUnwrapped());
+            } catch (Throwable e) {
+                callFrame.setThrowable(e);
+            }
+            if (metrics != null) {
+                long now = System.nanoTime();
+                metrics.originalTime.record(now - originalStart);
+                callbackNanos = originalStart - start;
+                start = now;
             }
         }
 
@@ -438,6 +1173,7 @@ public final class Pine {
         int afterIdx = beforeIdx - 1;
         do {
             MethodHook callback = callbacks[afterIdx];
+            callFrame.callbackIndex = afterIdx;
             Object lastResult = callFrame.getResult();
             Throwable lastThrowable = callFrame.getThrowable();
             try {
@@ -453,6 +1189,14 @@ public final class Pine {
             }
         } while (--afterIdx >= 0);
 
+        if (metrics != null) {
+            metrics.callbackTime.record(callbackNanos + System.nanoTime() - start);
+            int stripe = StripedCounters.currentStripe();
+            metrics.counters.add(stripe, Metrics.CALLS, 1);
+            if (returnedEarly) metrics.counters.add(stripe, Metrics.EARLY_RETURNS, 1);
+            if (callFrame.hasThrowable()) metrics.counters.add(stripe, Metrics.EXCEPTIONS, 1);
+        }
+
         // return
         if (callFrame.hasThrowable())
             throw callFrame.getThrowable();
@@ -460,6 +1204,78 @@ public final class Pine {
             return callFrame.getResult();
     }
 
+    private static Object invokeBackupMeasured(HookRecord hookRecord, Object thisObject,
+                                               Object[] args, Metrics metrics) throws Throwable {
+        int stripe = StripedCounters.currentStripe();
+        metrics.counters.add(stripe, Metrics.CALLS, 1);
+        long start = System.nanoTime();
+        try {
+            return invokeBackup(hookRecord, thisObject, args);
+        } catch (Throwable e) {
+            metrics.counters.add(stripe, Metrics.EXCEPTIONS, 1);
+            throw e;
+        } finally {
+            metrics.originalTime.record(System.nanoTime() - start);
+        }
+    }
+
+    static Member getCallerMethod(long pc, long sp) {
+        if (pc != 0) {
+            Member caller = sCallers.get(pc);
+            if (caller != null) return caller;
+        }
+        if (sp == 0) return null;
+        boolean[] stable = new boolean[1];
+        Member caller = sBackend.getCallerMethod(pc, sp, stable);
+        if (caller != null && stable[0]) sCallers.put(pc, caller);
+        return caller;
+    }
+
+    /**
+     * Finds the frame of the caller in the stack trace: the first frame below the innermost
+     * Pine.handleCall that belongs to neither Pine.handleCall nor a bridge method.
+     */
+    static StackTraceElement findCallerFrame(StackTraceElement[] stackTrace) {
+        String entryPackage = TypedBridges.class.getPackage().getName() + ".";
+        boolean inHandleCall = false;
+        for (StackTraceElement frame : stackTrace) {
+            boolean isHandleCall = isHandleCall(frame);
+            if (inHandleCall && !isHandleCall && !frame.getClassName().startsWith(entryPackage))
+                return frame;
+            inHandleCall |= isHandleCall;
+        }
+        return null;
+    }
+
+    private static boolean isHandleCall(StackTraceElement frame) {
+        return Pine.class.getName().equals(frame.getClassName())
+                && "handleCall".equals(frame.getMethodName());
+    }
+
+    static Class<?> findClass(String name, ClassLoader... loaders) {
+        for (ClassLoader loader : loaders) {
+            try {
+                return Class.forName(name, false, loader);
+            } catch (ClassNotFoundException ignored) {
+            }
+        }
+        return null;
+    }
+
+    /** Returns the only method or constructor of c named name, or null if not found or overloaded. */
+    static Member findUniqueMember(Class<?> c, String name) {
+        Member[] candidates = "<init>".equals(name) ? c.getDeclaredConstructors()
+                : c.getDeclaredMethods();
+        Member result = null;
+        for (Member candidate : candidates) {
+            if (candidate instanceof Constructor || candidate.getName().equals(name)) {
+                if (result != null) return null;
+                result = candidate;
+            }
+        }
+        return result;
+    }
+
     public static void log(String message) {
         if (PineConfig.debug) {
             Log.i(TAG, message);
@@ -472,35 +1288,169 @@ public final class Pine {
         }
     }
 
-    private static native void init0(int androidVersion, boolean debuggable);
+    private static native void init0(int androidVersion, boolean debuggable, String cacheDir);
 
     private static native void enableFastNative();
 
     private static native long getArtMethod(Member method);
 
     private static native Method hook0(long thread, Class<?> declaring, Member target, Method bridge,
-                                       boolean isInlineHook, boolean isNativeOrProxy);
+                                       boolean isInlineHook, boolean isNativeOrProxy,
+                                       int artMethodRegister, int[] fallbackReason);
+
+    private static native void hookBatch0(long thread, int count, Class<?>[] declarings, Member[] targets,
+                                          Method[] bridges, byte[] flags, long[] out,
+                                          Method[] outMethods, int[] fallbackReasons);
+
+    private static native Method getBackupMethod0(Class<?> declaring, long backup);
 
     private static native boolean compile0(long thread, Member method);
 
     private static native boolean decompile0(Member method, boolean disableJit);
 
+    private static native boolean prepareJit0();
+
     private static native boolean disableJitInline0();
 
+    private static native int checkHooks0();
+
     private static native boolean disableProfileSaver0();
 
     private static native Object getObject0(long thread, long address);
 
     private static native long getAddress0(long thread, Object o);
 
-    public static native void getArgs32(int extras, int[] out, int sp, boolean skipR1);
+    public static native int getArgs32(int extras, int[] out, int sp, boolean skipR1);
 
-    public static native void getArgs64(long extras, long[] out, long sp);
+    public static native long getArgs64(long extras, long[] out, long sp);
 
     private static native void updateDeclaringClass(Member origin, Method backup);
 
     public static native long currentArtThread0();
 
+    private static native void getMemoryStats0(long[] out);
+
+    private static native Object invokeBackupObject0(Member origin, Method backup, Class<?> declaring,
+                                                     Object thisObject, Object[] args,
+                                                     long[] rawArgs, String shorty) throws Throwable;
+
+    private static native long invokeBackupPrimitive0(Member origin, Method backup, Class<?> declaring,
+                                                      Object thisObject, Object[] args,
+                                                      long[] rawArgs, String shorty) throws Throwable;
+
+    private static native Member getCallerMethod0(long pc, long sp, boolean[] stable);
+
+    private static native long[] getInstalledHooks0();
+
+    /** Calls into libpine, the default backend. */
+    private static final class ArtBackend implements NativeBackend {
+        @SuppressLint("ObsoleteSdkInt") @Override public void init() {
+            int sdkLevel = Build.VERSION.SDK_INT;
+            if (sdkLevel < Build.VERSION_CODES.KITKAT || sdkLevel > Build.VERSION_CODES.Q)
+                throw new RuntimeException("Unsupported android sdk level " + Build.VERSION.SDK_INT);
+            else if (sdkLevel == Build.VERSION_CODES.Q && Build.VERSION.PREVIEW_SDK_INT > 0) {
+                // Android R Preview, not test...
+                Log.w(TAG, "Android R preview, not test.");
+                sdkLevel = 30;
+            }
+
+            String vmVersion = System.getProperty("java.vm.version");
+            if (vmVersion == null || !vmVersion.startsWith("2"))
+                throw new RuntimeException("Only supports ART runtime");
+
+            try {
+                LibLoader libLoader = PineConfig.libLoader;
+                if (libLoader != null) libLoader.loadLib();
+
+                init0(sdkLevel, PineConfig.debuggable, PineConfig.cacheDir);
+
+                if (PineConfig.useFastNative && sdkLevel >= Build.VERSION_CODES.LOLLIPOP)
+                    enableFastNative();
+            } catch (Exception e) {
+                throw new RuntimeException("Pine init error", e);
+            }
+        }
+
+        @Override public long currentThread() {
+            return Primitives.currentArtThread();
+        }
+
+        @Override public long getArtMethod(Member method) {
+            return Pine.getArtMethod(method);
+        }
+
+        @Override public Method hook(long thread, Class<?> declaring, Member target, Method bridge,
+                                     boolean isInlineHook, boolean isNativeOrProxy,
+                                     int artMethodRegister, int[] fallbackReason) {
+            return hook0(thread, declaring, target, bridge, isInlineHook, isNativeOrProxy,
+                    artMethodRegister, fallbackReason);
+        }
+
+        @Override public void hookBatch(long thread, int count, Class<?>[] declarings,
+                                        Member[] targets, Method[] bridges, byte[] flags,
+                                        long[] out, Method[] outMethods, int[] fallbackReasons) {
+            hookBatch0(thread, count, declarings, targets, bridges, flags, out, outMethods,
+                    fallbackReasons);
+        }
+
+        @Override public Method getBackupMethod(Class<?> declaring, long backup) {
+            return getBackupMethod0(declaring, backup);
+        }
+
+        @Override public boolean compile(long thread, Member method) {
+            return compile0(thread, method);
+        }
+
+        @Override public boolean decompile(Member method, boolean disableJit) {
+            return decompile0(method, disableJit);
+        }
+
+        @Override public boolean prepareJit() {
+            return prepareJit0();
+        }
+
+        @Override public boolean disableJitInline() {
+            return disableJitInline0();
+        }
+
+        @Override public int checkHooks() {
+            return checkHooks0();
+        }
+
+        @Override public boolean disableProfileSaver() {
+            return disableProfileSaver0();
+        }
+
+        @Override public void updateDeclaringClass(Member origin, Method backup) {
+            Pine.updateDeclaringClass(origin, backup);
+        }
+
+        @Override public void getMemoryStats(long[] out) {
+            getMemoryStats0(out);
+        }
+
+        @Override public Object invokeBackupObject(Member origin, Method backup, Class<?> declaring,
+                                                   Object thisObject, Object[] args,
+                                                   long[] rawArgs, String shorty) throws Throwable {
+            return invokeBackupObject0(origin, backup, declaring, thisObject, args, rawArgs, shorty);
+        }
+
+        @Override public long invokeBackupPrimitive(Member origin, Method backup, Class<?> declaring,
+                                                    Object thisObject, Object[] args,
+                                                    long[] rawArgs, String shorty) throws Throwable {
+            return invokeBackupPrimitive0(origin, backup, declaring, thisObject, args, rawArgs,
+                    shorty);
+        }
+
+        @Override public Member getCallerMethod(long pc, long sp, boolean[] stable) {
+            return getCallerMethod0(pc, sp, stable);
+        }
+
+        @Override public long[] getInstalledHooks() {
+            return getInstalledHooks0();
+        }
+    }
+
 
     public static final class HookRecord {
         public final Member target;
@@ -508,26 +1458,115 @@ public final class Pine {
         public boolean isStatic;
         public int paramNumber;
         public Class<?>[] paramTypes;
-        private Set<MethodHook> callbacks = Collections.synchronizedSet(new HashSet<MethodHook>());
+        // Copy-on-write: read on every call of the hooked method, but rarely changed.
+        private volatile MethodHook[] callbacks = EMPTY_CALLBACKS;
+
+        private static final MethodHook[] EMPTY_CALLBACKS = new MethodHook[0];
+        private static volatile MethodHook[] sLastSingleCallback;
+
+        private Class<?> returnType;
+        private String shorty;
+        /* package */ volatile Metrics metrics;
+        /* package */ int prepared;
+        // GcEpoch when declaring_class of the backup was last updated, see callBackupMethod().
+        /* package */ volatile int declaringClassEpoch = -1;
 
         HookRecord(Member target) {
             this.target = target;
         }
 
+        /** Fills in the fields describing the parameters of target. */
+        void initParams() {
+            isStatic = Modifier.isStatic(target.getModifiers());
+            if (target instanceof Method) {
+                paramTypes = ((Method) target).getParameterTypes();
+            } else {
+                paramTypes = ((Constructor<?>) target).getParameterTypes();
+            }
+            paramNumber = paramTypes.length;
+        }
+
+        Metrics getMetrics() {
+            Metrics m = metrics;
+            if (m == null) {
+                synchronized (this) {
+                    m = metrics;
+                    if (m == null) metrics = m = new Metrics();
+                }
+            }
+            return m;
+        }
+
+        Class<?> getReturnType() {
+            if (returnType == null)
+                returnType = target instanceof Method ? ((Method) target).getReturnType() : void.class;
+            return returnType;
+        }
+
+        /** Returns the shorty of the target, without the receiver. */
+        String getShorty() {
+            if (shorty == null) {
+                StringBuilder sb = new StringBuilder(paramTypes.length + 1)
+                        .append(Primitives.shortyOf(getReturnType()));
+                for (Class<?> paramType : paramTypes) sb.append(Primitives.shortyOf(paramType));
+                shorty = sb.toString();
+            }
+            return shorty;
+        }
+
         public void addCallback(MethodHook callback) {
-            callbacks.add(callback);
+            if (doAddCallback(callback) && HookEvents.hasObservers())
+                HookEvents.callbackAdded(target, callback);
         }
 
         public void removeCallback(MethodHook callback) {
-            callbacks.remove(callback);
+            int remaining = doRemoveCallback(callback);
+            if (remaining >= 0 && HookEvents.hasObservers())
+                HookEvents.callbackRemoved(target, callback, remaining == 0);
+        }
+
+        /** Returns false if the callback is already added. */
+        private synchronized boolean doAddCallback(MethodHook callback) {
+            MethodHook[] current = callbacks;
+            if (current.length == 0) {
+                // The arrays are never modified, so records hooked with the same single callback
+                // can share one.
+                MethodHook[] single = sLastSingleCallback;
+                if (single == null || single[0] != callback)
+                    sLastSingleCallback = single = new MethodHook[] {callback};
+                callbacks = single;
+                return true;
+            }
+            for (MethodHook c : current) {
+                if (c == callback) return false;
+            }
+            MethodHook[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = callback;
+            callbacks = updated;
+            return true;
+        }
+
+        /** Returns the number of remaining callbacks, or -1 if the callback is not found. */
+        private synchronized int doRemoveCallback(MethodHook callback) {
+            MethodHook[] current = callbacks;
+            for (int i = 0;i < current.length;i++) {
+                if (current[i] != callback) continue;
+                MethodHook[] updated = new MethodHook[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, updated.length - i);
+                callbacks = updated;
+                return updated.length;
+            }
+            return -1;
         }
 
         public boolean emptyCallbacks() {
-            return callbacks.isEmpty();
+            return callbacks.length == 0;
         }
 
+        /** Returns the callbacks. The array is shared and must not be modified. */
         public MethodHook[] getCallbacks() {
-            return callbacks.toArray(new MethodHook[callbacks.size()]);
+            return callbacks;
         }
     }
 
@@ -539,6 +1578,15 @@ public final class Pine {
         private Throwable throwable;
         /* package */ boolean returnEarly;
         private HookRecord hookRecord;
+        /* package */ long callerPc;
+        /* package */ long callerSp;
+        private boolean callerResolved;
+        private Member callerMethod;
+        private Class<?> callerClass;
+        /* package */ int callbackIndex;
+        /* package */ int callbackCount = 1;
+        private Object[] objectExtras;
+        private long[] longExtras;
 
         public CallFrame(HookRecord hookRecord, Object thisObject, Object[] args) {
             this.hookRecord = hookRecord;
@@ -583,12 +1631,291 @@ public final class Pine {
             this.returnEarly = false;
         }
 
+        /**
+         * Stores value in the object slot of the running callback. Each callback has its own
+         * slots in each call, so they carry state from {@link MethodHook#beforeCall} to
+         * {@link MethodHook#afterCall} without a ThreadLocal, even if the hooked method
+         * re-enters itself on the same thread.
+         */
+        public void setObjectExtra(Object value) {
+            if (objectExtras == null) objectExtras = new Object[callbackCount];
+            objectExtras[callbackIndex] = value;
+        }
+
+        /** Returns the object slot of the running callback, null if not set in this call. */
+        public Object getObjectExtra() {
+            return objectExtras != null ? objectExtras[callbackIndex] : null;
+        }
+
+        /** Stores value in the long slot of the running callback, e.g. a timestamp. */
+        public void setLongExtra(long value) {
+            if (longExtras == null) longExtras = new long[callbackCount];
+            longExtras[callbackIndex] = value;
+        }
+
+        /** Returns the long slot of the running callback, 0 if not set in this call. */
+        public long getLongExtra() {
+            return longExtras != null ? longExtras[callbackIndex] : 0;
+        }
+
+        /**
+         * Returns the method that called the hooked method, or null if it cannot be determined
+         * (e.g. the caller is overloaded and only known from the stack trace).
+         * Callers running compiled code are found from the return address, and AOT compiled ones
+         * are cached by it, so usually this only costs a hash lookup. Calls from the interpreter,
+         * reflection or JNI fall back to {@link Throwable#getStackTrace()}.
+         * Must be called in {@link MethodHook#beforeCall} or {@link MethodHook#afterCall}.
+         */
+        public Member getCallerMethod() {
+            resolveCaller();
+            return callerMethod;
+        }
+
+        /** Returns the class of the method that called the hooked method, or null if unknown. */
+        public Class<?> getCallerClass() {
+            resolveCaller();
+            return callerClass;
+        }
+
+        private void resolveCaller() {
+            if (callerResolved) return;
+            callerResolved = true;
+            Member caller = Pine.getCallerMethod(callerPc, callerSp);
+            if (caller != null) {
+                callerMethod = caller;
+                callerClass = caller.getDeclaringClass();
+                return;
+            }
+            StackTraceElement frame = findCallerFrame(new Throwable().getStackTrace());
+            if (frame == null) return;
+            callerClass = findClass(frame.getClassName(),
+                    method.getDeclaringClass().getClassLoader(),
+                    Thread.currentThread().getContextClassLoader(),
+                    Pine.class.getClassLoader());
+            if (callerClass != null)
+                callerMethod = findUniqueMember(callerClass, frame.getMethodName());
+        }
+
         public Object invokeOriginalMethod() throws InvocationTargetException, IllegalAccessException {
-            return callBackupMethod(hookRecord.target, hookRecord.backup, thisObject, args);
+            return callBackupMethod(hookRecord, thisObject, args);
         }
 
         public Object invokeOriginalMethod(Object thisObject, Object... args) throws InvocationTargetException, IllegalAccessException {
-            return callBackupMethod(hookRecord.target, hookRecord.backup, thisObject, args);
+            return callBackupMethod(hookRecord, thisObject, args);
+        }
+
+        /**
+         * Like {@link #invokeOriginalMethod()}, but anything thrown by the original method
+         * propagates unchanged instead of being wrapped in an InvocationTargetException.
+         */
+        public Object invokeOriginalMethodUnwrapped() throws Throwable {
+            return invokeBackup(hookRecord, thisObject, args);
+        }
+
+        public Object invokeOriginalMethodUnwrapped(Object thisObject, Object... args) throws Throwable {
+            return invokeBackup(hookRecord, thisObject, args);
+        }
+    }
+
+    /** Live stats of a hooked method, only allocated once it is called with stats enabled. */
+    static final class Metrics {
+        static final int CALLS = 0;
+        static final int EARLY_RETURNS = 1;
+        static final int EXCEPTIONS = 2;
+        final StripedCounters counters = new StripedCounters(3);
+        final Histogram callbackTime = new Histogram();
+        final Histogram originalTime = new Histogram();
+    }
+
+    /** A snapshot of the stats of a hooked method, see {@link Pine#getHookStats(Member)}. */
+    public static final class HookStats {
+        public final Member method;
+        public final long calls;
+        /** Calls where a callback skipped the original method */
+        public final long earlyReturns;
+        /** Calls that ended with an exception thrown to the caller */
+        public final long exceptions;
+        /** Nanoseconds spent in Pine and callbacks per call, excluding the original method */
+        public final Histogram.Snapshot callbackTime;
+        /** Nanoseconds spent in the original method per call */
+        public final Histogram.Snapshot originalTime;
+
+        HookStats(Member method, Metrics metrics) {
+            this.method = method;
+            calls = metrics.counters.get(Metrics.CALLS);
+            earlyReturns = metrics.counters.get(Metrics.EARLY_RETURNS);
+            exceptions = metrics.counters.get(Metrics.EXCEPTIONS);
+            callbackTime = metrics.callbackTime.snapshot();
+            originalTime = metrics.originalTime.snapshot();
+        }
+
+        @Override public String toString() {
+            return "HookStats{" + method + ": calls=" + calls + " earlyReturns=" + earlyReturns
+                    + " exceptions=" + exceptions + ", callbackTime(ns): " + callbackTime
+                    + ", originalTime(ns): " + originalTime + "}";
+        }
+    }
+
+    /** What is installed for a hooked method, see {@link Pine#dumpHooks()}. */
+    public static final class HookInfo {
+        // Keep in sync with HookRegistry in hook_registry.h
+        static final int FLAG_INLINE = 1;
+        static final int FLAG_INLINE_REQUESTED = 1 << 1;
+        static final int FLAG_NATIVE_OR_PROXY = 1 << 2;
+        static final int FALLBACK_NONE = 0;
+        static final int FALLBACK_CANNOT_SAFE_INLINE = 1;
+        static final int FALLBACK_INSTALL_FAILED = 2;
+        static final int FALLBACK_NOT_COMPILED = 3;
+
+        /** The hooked method, or {@code null} if hooking failed after installing the trampoline */
+        public final Member method;
+        /** Whether the original code is patched to jump to the bridge */
+        public final boolean inline;
+        /** Whether an inline hook was requested, following {@link Pine#setHookMode(int)} */
+        public final boolean inlineRequested;
+        /** Why replacement mode is used although inline was requested, or {@code null} */
+        public final String fallbackReason;
+        /** Address of the trampoline entering the bridge */
+        public final long trampoline;
+        public final int trampolineSize;
+        /** Address of the trampoline holding the overwritten instructions, 0 if not inline */
+        public final long backupTrampoline;
+        public final int backupTrampolineSize;
+        /** Bytes overwritten in the original code, 0 if not inline */
+        public final int patchSize;
+        public final int callbacks;
+
+        HookInfo(Member method, long[] values, int offset, int prepared, int callbacks) {
+            this.method = method;
+            int flags = (int) values[offset + 1];
+            inline = (flags & FLAG_INLINE) != 0;
+            // Java asks for replacement mode directly for native and proxy methods.
+            inlineRequested = (flags & FLAG_INLINE_REQUESTED) != 0
+                    || (prepared & PREPARED_INLINE_REQUESTED) != 0;
+            fallbackReason = inlineRequested && !inline
+                    ? getFallbackReason(prepared, (int) values[offset + 2]) : null;
+            trampoline = values[offset + 3];
+            trampolineSize = (int) values[offset + 4];
+            backupTrampoline = values[offset + 5];
+            backupTrampolineSize = (int) values[offset + 6];
+            patchSize = (int) values[offset + 7];
+            this.callbacks = callbacks;
+        }
+
+        /** Executable memory used by the trampolines of this method */
+        public int getCodeBytes() {
+            return trampolineSize + backupTrampolineSize;
+        }
+
+        void appendJson(StringBuilder sb) {
+            sb.append("{\"method\":");
+            if (method != null) {
+                sb.append('"');
+                String name = method.toString();
+                for (int i = 0;i < name.length();i++) {
+                    char c = name.charAt(i);
+                    // Names may contain '$' but never quotes or control characters.
+                    if (c == '"' || c == '\\' || c < 0x20) c = '?';
+                    sb.append(c);
+                }
+                sb.append('"');
+            } else {
+                sb.append("null");
+            }
+            sb.append(",\"mode\":\"").append(inline ? "inline" : "replacement")
+                    .append("\",\"inlineRequested\":").append(inlineRequested)
+                    .append(",\"fallbackReason\":");
+            if (fallbackReason != null)
+                sb.append('"').append(fallbackReason).append('"');
+            else
+                sb.append("null");
+            sb.append(",\"trampoline\":").append(trampoline)
+                    .append(",\"trampolineSize\":").append(trampolineSize)
+                    .append(",\"backupTrampoline\":").append(backupTrampoline)
+                    .append(",\"backupTrampolineSize\":").append(backupTrampolineSize)
+                    .append(",\"patchSize\":").append(patchSize)
+                    .append(",\"callbacks\":").append(callbacks).append('}');
+        }
+
+        @Override public String toString() {
+            return "HookInfo{" + method + " " + (inline ? "inline" : "replacement")
+                    + (fallbackReason != null ? " (" + fallbackReason + ")" : "")
+                    + ", trampoline 0x" + Long.toHexString(trampoline) + " (" + trampolineSize
+                    + " bytes)" + (backupTrampoline != 0 ? ", backup 0x"
+                    + Long.toHexString(backupTrampoline) + " (" + backupTrampolineSize
+                    + " bytes), patched " + patchSize + " bytes" : "")
+                    + ", " + callbacks + " callbacks}";
+        }
+    }
+
+    public static final class MemoryStats {
+        /** Total size of memory mapped for trampolines */
+        public final long codeBytesMapped;
+        /** Bytes of trampoline memory handed out, including unused space of size classes and freed blocks */
+        public final long codeBytesCarved;
+        /** Bytes of trampoline memory actually requested and not freed */
+        public final long codeBytesInUse;
+        /** Bytes of freed trampoline memory waiting for reuse */
+        public final long codeBytesFree;
+        /** Trampolines too large for any size class, each one has its own mapping */
+        public final long codeLargeAllocations;
+        public final long dataBytesMapped;
+        public final long dataBytesCarved;
+        public final long dataBytesInUse;
+        public final long dataBytesFree;
+        public final long dataLargeAllocations;
+
+        // Indexes of the values filled by NativeBackend.getMemoryStats(), keep in sync with
+        // Pine_getMemoryStats0 in pine.cpp
+        public static final int CODE_BYTES_MAPPED = 0;
+        public static final int CODE_BYTES_CARVED = 1;
+        public static final int CODE_BYTES_IN_USE = 2;
+        public static final int CODE_BYTES_FREE = 3;
+        public static final int CODE_LARGE_ALLOCATIONS = 4;
+        public static final int DATA_BYTES_MAPPED = 5;
+        public static final int DATA_BYTES_CARVED = 6;
+        public static final int DATA_BYTES_IN_USE = 7;
+        public static final int DATA_BYTES_FREE = 8;
+        public static final int DATA_LARGE_ALLOCATIONS = 9;
+        /** Length of the array passed to NativeBackend.getMemoryStats() */
+        public static final int VALUE_COUNT = 10;
+
+        MemoryStats(long[] values) {
+            codeBytesMapped = values[CODE_BYTES_MAPPED];
+            codeBytesCarved = values[CODE_BYTES_CARVED];
+            codeBytesInUse = values[CODE_BYTES_IN_USE];
+            codeBytesFree = values[CODE_BYTES_FREE];
+            codeLargeAllocations = values[CODE_LARGE_ALLOCATIONS];
+            dataBytesMapped = values[DATA_BYTES_MAPPED];
+            dataBytesCarved = values[DATA_BYTES_CARVED];
+            dataBytesInUse = values[DATA_BYTES_IN_USE];
+            dataBytesFree = values[DATA_BYTES_FREE];
+            dataLargeAllocations = values[DATA_LARGE_ALLOCATIONS];
+        }
+
+        static long codeBytesInUseDelta(long[] after, long[] before) {
+            return after[CODE_BYTES_IN_USE] - before[CODE_BYTES_IN_USE];
+        }
+
+        static long dataBytesInUseDelta(long[] after, long[] before) {
+            return after[DATA_BYTES_IN_USE] - before[DATA_BYTES_IN_USE];
+        }
+
+        /** Fraction of handed out trampoline memory that is not used by live trampolines */
+        public float getCodeFragmentation() {
+            return codeBytesCarved == 0 ? 0 : (float) (codeBytesCarved - codeBytesInUse) / codeBytesCarved;
+        }
+
+        public float getDataFragmentation() {
+            return dataBytesCarved == 0 ? 0 : (float) (dataBytesCarved - dataBytesInUse) / dataBytesCarved;
+        }
+
+        @Override public String toString() {
+            return "MemoryStats{code: mapped=" + codeBytesMapped + " carved=" + codeBytesCarved
+                    + " inUse=" + codeBytesInUse + " free=" + codeBytesFree
+                    + " large=" + codeLargeAllocations + "; data: mapped=" + dataBytesMapped
+                    + " carved=" + dataBytesCarved + " inUse=" + dataBytesInUse
+                    + " free=" + dataBytesFree + " large=" + dataLargeAllocations + "}";
         }
     }
 
@@ -597,6 +1924,27 @@ public final class Pine {
         void afterHook(Member method, MethodHook.Unhook unhook);
     }
 
+    /** Delivers the events of a {@link HookListener} set with {@link #setHookListener}. */
+    private static final class HookListenerAdapter extends HookObserver {
+        final HookListener listener;
+
+        HookListenerAdapter(HookListener listener) {
+            this.listener = listener;
+        }
+
+        @Override public void beforeHook(Member method, MethodHook callback) {
+            listener.beforeHook(method, callback);
+        }
+
+        @Override public void afterHook(Member method, MethodHook.Unhook unhook) {
+            listener.afterHook(method, unhook);
+        }
+
+        @Override public String toString() {
+            return "HookListener " + listener;
+        }
+    }
+
     public interface LibLoader {
         void loadLib();
     }
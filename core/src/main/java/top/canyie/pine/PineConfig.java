@@ -8,6 +8,26 @@ package top.canyie.pine;
     public static boolean debuggable;
     public static boolean disableHooks;
     public static boolean useFastNative;
+    /**
+     * Count calls, early returns and exceptions of hooked methods and record how long callbacks
+     * and original methods take, see {@link Pine#getHookStats}. Costs two System.nanoTime()
+     * calls and a few atomic adds per call, nothing when disabled.
+     */
+    public static boolean collectHookStats;
+    /**
+     * Experimental, arm64 on Android 8.0+ only: hook with a bridge taking the same arguments as
+     * the hooked method, so they are received directly instead of being read back through JNI.
+     * One bridge class is generated and kept for each distinct signature shape (primitive or
+     * object per argument), shared by all methods hooked with it. Methods with more than four
+     * non floating point arguments use the generic bridge.
+     * Not used by {@link Pine#hookAll}, which needs to stay cheap for every method.
+     */
+    public static boolean useTypedBridges;
+    /**
+     * Directory used to persist resolved ART offsets and symbols across launches, or {@code null}
+     * to disable the cache. Must be private to the app, e.g. {@code Context.getCacheDir()}.
+     */
+    public static String cacheDir;
     public static Pine.LibLoader libLoader = new Pine.LibLoader() {
         @Override public void loadLib() {
             System.loadLibrary("pine");
@@ -0,0 +1,474 @@
+package top.canyie.pine.entry;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.Adler32;
+
+/**
+ * Writes a dex file containing one class with static fields and direct methods, just enough for
+ * the bridges generated by {@link TypedBridges}. Code is given as raw 16-bit code units, where
+ * type, field and method references are resolved to their indexes when the file is built.
+ * @author canyie
+ */
+final class DexBuilder {
+    private static final int NO_INDEX = -1;
+    private static final int HEADER_SIZE = 0x70;
+
+    private static final int TYPE_HEADER_ITEM = 0x0000;
+    private static final int TYPE_STRING_ID_ITEM = 0x0001;
+    private static final int TYPE_TYPE_ID_ITEM = 0x0002;
+    private static final int TYPE_PROTO_ID_ITEM = 0x0003;
+    private static final int TYPE_FIELD_ID_ITEM = 0x0004;
+    private static final int TYPE_METHOD_ID_ITEM = 0x0005;
+    private static final int TYPE_CLASS_DEF_ITEM = 0x0006;
+    private static final int TYPE_MAP_LIST = 0x1000;
+    private static final int TYPE_TYPE_LIST = 0x1001;
+    private static final int TYPE_CLASS_DATA_ITEM = 0x2000;
+    private static final int TYPE_CODE_ITEM = 0x2001;
+    private static final int TYPE_STRING_DATA_ITEM = 0x2002;
+
+    private final String className;
+    private final String superClassName;
+    private final TreeSet<String> strings = new TreeSet<>();
+    private final TreeSet<String> types = new TreeSet<>();
+    private final Map<String, Proto> protos = new HashMap<>();
+    private final Map<String, FieldRef> fields = new HashMap<>();
+    private final Map<String, MethodRef> methods = new HashMap<>();
+    private final List<FieldRef> staticFields = new ArrayList<>();
+    private final List<Integer> staticFieldFlags = new ArrayList<>();
+    private final List<MethodRef> directMethods = new ArrayList<>();
+    private final List<Integer> directMethodFlags = new ArrayList<>();
+    private final List<Code> directMethodCodes = new ArrayList<>();
+
+    DexBuilder(String className, String superClassName) {
+        this.className = type(className).descriptor;
+        this.superClassName = type(superClassName).descriptor;
+    }
+
+    TypeRef type(String descriptor) {
+        strings.add(descriptor);
+        types.add(descriptor);
+        return new TypeRef(descriptor);
+    }
+
+    FieldRef field(String declaring, String name, String type) {
+        String key = declaring + "->" + name + ":" + type;
+        FieldRef field = fields.get(key);
+        if (field == null) {
+            type(declaring);
+            type(type);
+            strings.add(name);
+            field = new FieldRef(declaring, name, type);
+            fields.put(key, field);
+        }
+        return field;
+    }
+
+    MethodRef method(String declaring, String name, String returnType, String... paramTypes) {
+        Proto proto = proto(returnType, paramTypes);
+        String key = declaring + "->" + name + proto.key;
+        MethodRef method = methods.get(key);
+        if (method == null) {
+            type(declaring);
+            strings.add(name);
+            method = new MethodRef(declaring, name, proto);
+            methods.put(key, method);
+        }
+        return method;
+    }
+
+    void addStaticField(FieldRef field, int accessFlags) {
+        staticFields.add(field);
+        staticFieldFlags.add(accessFlags);
+    }
+
+    void addDirectMethod(MethodRef method, int accessFlags, Code code) {
+        directMethods.add(method);
+        directMethodFlags.add(accessFlags);
+        directMethodCodes.add(code);
+    }
+
+    private Proto proto(String returnType, String[] paramTypes) {
+        StringBuilder key = new StringBuilder("(");
+        StringBuilder shorty = new StringBuilder().append(shortyOf(returnType));
+        for (String paramType : paramTypes) {
+            key.append(paramType);
+            shorty.append(shortyOf(paramType));
+        }
+        key.append(')').append(returnType);
+        Proto proto = protos.get(key.toString());
+        if (proto == null) {
+            type(returnType);
+            for (String paramType : paramTypes) type(paramType);
+            strings.add(shorty.toString());
+            proto = new Proto(key.toString(), shorty.toString(), returnType, paramTypes);
+            protos.put(proto.key, proto);
+        }
+        return proto;
+    }
+
+    private static char shortyOf(String descriptor) {
+        char c = descriptor.charAt(0);
+        return c == '[' ? 'L' : c;
+    }
+
+    byte[] build() {
+        // Indexes, every section must be sorted as the dex format requires.
+        final Map<String, Integer> stringIndexes = indexes(new ArrayList<>(strings));
+        final Map<String, Integer> typeIndexes = indexes(new ArrayList<>(types));
+
+        List<Proto> protoList = new ArrayList<>(protos.values());
+        Collections.sort(protoList, new Comparator<Proto>() {
+            @Override public int compare(Proto a, Proto b) {
+                int result = compareInt(typeIndexes.get(a.returnType), typeIndexes.get(b.returnType));
+                for (int i = 0;result == 0 && i < Math.min(a.paramTypes.length, b.paramTypes.length);i++)
+                    result = compareInt(typeIndexes.get(a.paramTypes[i]), typeIndexes.get(b.paramTypes[i]));
+                return result != 0 ? result : compareInt(a.paramTypes.length, b.paramTypes.length);
+            }
+        });
+        final Map<Proto, Integer> protoIndexes = indexes(protoList);
+
+        List<FieldRef> fieldList = new ArrayList<>(fields.values());
+        Collections.sort(fieldList, new Comparator<FieldRef>() {
+            @Override public int compare(FieldRef a, FieldRef b) {
+                int result = compareInt(typeIndexes.get(a.declaring), typeIndexes.get(b.declaring));
+                if (result == 0) result = compareInt(stringIndexes.get(a.name), stringIndexes.get(b.name));
+                if (result == 0) result = compareInt(typeIndexes.get(a.type), typeIndexes.get(b.type));
+                return result;
+            }
+        });
+        final Map<FieldRef, Integer> fieldIndexes = indexes(fieldList);
+
+        List<MethodRef> methodList = new ArrayList<>(methods.values());
+        Collections.sort(methodList, new Comparator<MethodRef>() {
+            @Override public int compare(MethodRef a, MethodRef b) {
+                int result = compareInt(typeIndexes.get(a.declaring), typeIndexes.get(b.declaring));
+                if (result == 0) result = compareInt(stringIndexes.get(a.name), stringIndexes.get(b.name));
+                if (result == 0) result = compareInt(protoIndexes.get(a.proto), protoIndexes.get(b.proto));
+                return result;
+            }
+        });
+        final Map<MethodRef, Integer> methodIndexes = indexes(methodList);
+
+        // Layout
+        int stringIdsOff = HEADER_SIZE;
+        int typeIdsOff = stringIdsOff + strings.size() * 4;
+        int protoIdsOff = typeIdsOff + types.size() * 4;
+        int fieldIdsOff = protoIdsOff + protoList.size() * 12;
+        int methodIdsOff = fieldIdsOff + fieldList.size() * 8;
+        int classDefsOff = methodIdsOff + methodList.size() * 8;
+        int dataOff = classDefsOff + 32;
+
+        Section data = new Section(dataOff);
+
+        // type_list items
+        int typeListsOff = data.offset();
+        int typeListCount = 0;
+        Map<String, Integer> typeListOffsets = new HashMap<>();
+        for (Proto proto : protoList) {
+            if (proto.paramTypes.length == 0) continue;
+            String key = Arrays.toString(proto.paramTypes);
+            if (typeListOffsets.containsKey(key)) continue;
+            data.align(4);
+            typeListOffsets.put(key, data.offset());
+            data.u4(proto.paramTypes.length);
+            for (String paramType : proto.paramTypes) data.u2(typeIndexes.get(paramType));
+            typeListCount++;
+        }
+
+        // code items
+        data.align(4);
+        int codeItemsOff = data.offset();
+        int[] codeOffsets = new int[directMethodCodes.size()];
+        for (int i = 0;i < codeOffsets.length;i++) {
+            Code code = directMethodCodes.get(i);
+            data.align(4);
+            codeOffsets[i] = data.offset();
+            data.u2(code.registers);
+            data.u2(code.ins);
+            data.u2(code.outs);
+            data.u2(0); // tries_size
+            data.u4(0); // debug_info_off
+            data.u4(code.units.size());
+            for (Object unit : code.units) {
+                int value;
+                if (unit instanceof Integer) value = (Integer) unit;
+                else if (unit instanceof TypeRef) value = typeIndexes.get(((TypeRef) unit).descriptor);
+                else if (unit instanceof FieldRef) value = fieldIndexes.get(unit);
+                else value = methodIndexes.get(unit);
+                data.u2(value);
+            }
+        }
+
+        // string_data items
+        int stringDataOff = data.offset();
+        int[] stringOffsets = new int[strings.size()];
+        int stringIndex = 0;
+        for (String string : strings) {
+            stringOffsets[stringIndex++] = data.offset();
+            // All strings are ASCII, so the MUTF-8 form is the same as the string itself.
+            data.uleb128(string.length());
+            for (int i = 0;i < string.length();i++) data.u1(string.charAt(i));
+            data.u1(0);
+        }
+
+        // class_data item
+        int classDataOff = data.offset();
+        data.uleb128(staticFields.size());
+        data.uleb128(0); // instance_fields_size
+        data.uleb128(directMethods.size());
+        data.uleb128(0); // virtual_methods_size
+        writeEncodedMembers(data, staticFields, staticFieldFlags, null, fieldIndexes);
+        writeEncodedMembers(data, directMethods, directMethodFlags, codeOffsets, methodIndexes);
+
+        // map_list
+        data.align(4);
+        int mapOff = data.offset();
+        int[][] map = {
+                {TYPE_HEADER_ITEM, 1, 0},
+                {TYPE_STRING_ID_ITEM, strings.size(), stringIdsOff},
+                {TYPE_TYPE_ID_ITEM, types.size(), typeIdsOff},
+                {TYPE_PROTO_ID_ITEM, protoList.size(), protoIdsOff},
+                {TYPE_FIELD_ID_ITEM, fieldList.size(), fieldIdsOff},
+                {TYPE_METHOD_ID_ITEM, methodList.size(), methodIdsOff},
+                {TYPE_CLASS_DEF_ITEM, 1, classDefsOff},
+                {TYPE_TYPE_LIST, typeListCount, typeListsOff},
+                {TYPE_CODE_ITEM, codeOffsets.length, codeItemsOff},
+                {TYPE_STRING_DATA_ITEM, strings.size(), stringDataOff},
+                {TYPE_CLASS_DATA_ITEM, 1, classDataOff},
+                {TYPE_MAP_LIST, 1, mapOff}
+        };
+        int mapSize = 0;
+        for (int[] entry : map) if (entry[1] != 0) mapSize++;
+        data.u4(mapSize);
+        for (int[] entry : map) {
+            if (entry[1] == 0) continue;
+            data.u2(entry[0]);
+            data.u2(0);
+            data.u4(entry[1]);
+            data.u4(entry[2]);
+        }
+
+        byte[] dataBytes = data.toByteArray();
+        int fileSize = dataOff + dataBytes.length;
+        ByteBuffer out = ByteBuffer.allocate(fileSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        // header, checksum and signature are filled in at last
+        out.put(new byte[] {'d', 'e', 'x', '\n', '0', '3', '5', 0});
+        out.position(32);
+        out.putInt(fileSize);
+        out.putInt(HEADER_SIZE);
+        out.putInt(0x12345678); // endian_tag
+        out.putInt(0).putInt(0); // link_size, link_off
+        out.putInt(mapOff);
+        out.putInt(strings.size()).putInt(stringIdsOff);
+        out.putInt(types.size()).putInt(typeIdsOff);
+        out.putInt(protoList.size()).putInt(protoIdsOff);
+        out.putInt(fieldList.size()).putInt(fieldList.isEmpty() ? 0 : fieldIdsOff);
+        out.putInt(methodList.size()).putInt(methodIdsOff);
+        out.putInt(1).putInt(classDefsOff);
+        out.putInt(dataBytes.length).putInt(dataOff);
+
+        for (int offset : stringOffsets) out.putInt(offset);
+        for (String type : types) out.putInt(stringIndexes.get(type));
+        for (Proto proto : protoList) {
+            out.putInt(stringIndexes.get(proto.shorty));
+            out.putInt(typeIndexes.get(proto.returnType));
+            Integer paramsOff = typeListOffsets.get(Arrays.toString(proto.paramTypes));
+            out.putInt(proto.paramTypes.length == 0 ? 0 : paramsOff);
+        }
+        for (FieldRef field : fieldList) {
+            out.putShort((short) (int) typeIndexes.get(field.declaring));
+            out.putShort((short) (int) typeIndexes.get(field.type));
+            out.putInt(stringIndexes.get(field.name));
+        }
+        for (MethodRef method : methodList) {
+            out.putShort((short) (int) typeIndexes.get(method.declaring));
+            out.putShort((short) (int) protoIndexes.get(method.proto));
+            out.putInt(stringIndexes.get(method.name));
+        }
+
+        // class_def
+        out.putInt(typeIndexes.get(className));
+        out.putInt(0x0011); // ACC_PUBLIC | ACC_FINAL
+        out.putInt(typeIndexes.get(superClassName));
+        out.putInt(0); // interfaces_off
+        out.putInt(NO_INDEX); // source_file_idx
+        out.putInt(0); // annotations_off
+        out.putInt(classDataOff);
+        out.putInt(0); // static_values_off
+
+        out.put(dataBytes);
+
+        byte[] bytes = out.array();
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(bytes, 32, bytes.length - 32);
+            System.arraycopy(sha1.digest(), 0, bytes, 12, 20);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        Adler32 adler32 = new Adler32();
+        adler32.update(bytes, 12, bytes.length - 12);
+        out.putInt(8, (int) adler32.getValue());
+        return bytes;
+    }
+
+    private static <T> void writeEncodedMembers(Section data, List<T> members, List<Integer> flags,
+                                                int[] codeOffsets, Map<T, Integer> indexes) {
+        // Encoded members must be sorted by index and are written as differences.
+        Integer[] order = new Integer[members.size()];
+        for (int i = 0;i < order.length;i++) order[i] = i;
+        final List<Integer> memberIndexes = new ArrayList<>(members.size());
+        for (T member : members) memberIndexes.add(indexes.get(member));
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override public int compare(Integer a, Integer b) {
+                return compareInt(memberIndexes.get(a), memberIndexes.get(b));
+            }
+        });
+        int last = 0;
+        for (int i : order) {
+            int index = memberIndexes.get(i);
+            data.uleb128(index - last);
+            last = index;
+            data.uleb128(flags.get(i));
+            if (codeOffsets != null) data.uleb128(codeOffsets[i]);
+        }
+    }
+
+    private static <T> Map<T, Integer> indexes(List<T> items) {
+        Map<T, Integer> result = new LinkedHashMap<>(items.size() * 2);
+        for (int i = 0;i < items.size();i++) result.put(items.get(i), i);
+        return result;
+    }
+
+    private static int compareInt(int a, int b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    static final class TypeRef {
+        final String descriptor;
+
+        TypeRef(String descriptor) {
+            this.descriptor = descriptor;
+        }
+    }
+
+    static final class FieldRef {
+        final String declaring;
+        final String name;
+        final String type;
+
+        FieldRef(String declaring, String name, String type) {
+            this.declaring = declaring;
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    static final class MethodRef {
+        final String declaring;
+        final String name;
+        final Proto proto;
+
+        MethodRef(String declaring, String name, Proto proto) {
+            this.declaring = declaring;
+            this.name = name;
+            this.proto = proto;
+        }
+    }
+
+    static final class Proto {
+        final String key;
+        final String shorty;
+        final String returnType;
+        final String[] paramTypes;
+
+        Proto(String key, String shorty, String returnType, String[] paramTypes) {
+            this.key = key;
+            this.shorty = shorty;
+            this.returnType = returnType;
+            this.paramTypes = paramTypes;
+        }
+    }
+
+    /** Instructions of a method, as 16-bit code units and references resolved at build time. */
+    static final class Code {
+        final int registers;
+        final int ins;
+        final int outs;
+        final List<Object> units = new ArrayList<>();
+
+        Code(int registers, int ins, int outs) {
+            this.registers = registers;
+            this.ins = ins;
+            this.outs = outs;
+        }
+
+        Code unit(int unit) {
+            units.add(unit & 0xFFFF);
+            return this;
+        }
+
+        Code ref(Object ref) {
+            units.add(ref);
+            return this;
+        }
+    }
+
+    private static final class Section {
+        private final int base;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        Section(int base) {
+            this.base = base;
+        }
+
+        int offset() {
+            return base + bytes.size();
+        }
+
+        void align(int alignment) {
+            while ((offset() & (alignment - 1)) != 0) bytes.write(0);
+        }
+
+        void u1(int value) {
+            bytes.write(value);
+        }
+
+        void u2(int value) {
+            bytes.write(value);
+            bytes.write(value >>> 8);
+        }
+
+        void u4(int value) {
+            u2(value);
+            u2(value >>> 16);
+        }
+
+        void uleb128(int value) {
+            while ((value & ~0x7F) != 0) {
+                bytes.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes.write(value);
+        }
+
+        byte[] toByteArray() {
+            align(4);
+            return bytes.toByteArray();
+        }
+    }
+}
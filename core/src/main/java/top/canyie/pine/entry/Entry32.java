@@ -66,7 +66,8 @@ public final class Entry32 {
     private static Object handleBridge(int artMethod, int extras, int sp) throws Throwable {
         Pine.log("handleBridge: artMethod=%#x extras=%#x sp=%#x", artMethod, extras, sp);
         Pine.HookRecord hookRecord = Pine.getHookRecord(artMethod);
-        int[] argsAsInts = getArgsAsInts(hookRecord, extras, sp);
+        int[] argsAsInts = newArgsArray(hookRecord);
+        int callerPc = getArgsAsInts(hookRecord, extras, sp, argsAsInts);
         long thread = Primitives.currentArtThread();
 
         Object receiver;
@@ -116,16 +117,20 @@ public final class Entry32 {
             args = Pine.EMPTY_OBJECT_ARRAY;
         }
 
-        return Pine.handleCall(hookRecord, receiver, args);
+        return Pine.handleCall(hookRecord, receiver, args, callerPc & 0xffffffffL, sp & 0xffffffffL);
     }
 
-    private static int[] getArgsAsInts(Pine.HookRecord hookRecord, int extras, int sp) {
+    private static int[] newArgsArray(Pine.HookRecord hookRecord) {
         int len = hookRecord.isStatic ? 0 : 1/*this*/;
-        Class<?>[] paramTypes = hookRecord.paramTypes;
-        for (Class<?> paramType : paramTypes) {
+        for (Class<?> paramType : hookRecord.paramTypes) {
             len += paramType == long.class || paramType == double.class ? 2 : 1;
         }
-        int[] array = len != 0 ? new int[len] : EMPTY_INT_ARRAY;
+        return len != 0 ? new int[len] : EMPTY_INT_ARRAY;
+    }
+
+    /** Fills array with the arguments and returns the return address into the caller. */
+    private static int getArgsAsInts(Pine.HookRecord hookRecord, int extras, int sp, int[] array) {
+        Class<?>[] paramTypes = hookRecord.paramTypes;
 
         // For Android 6.0+, if first argument is 8 bytes (long or double), then the r1 register
         // will be skipped, move to r2-r3 instead. Use r2, r3, sp + 12.
@@ -135,7 +140,6 @@ public final class Entry32 {
                 && hookRecord.paramNumber > 0
                 && (paramTypes[0] == long.class || paramTypes[0] == double.class);
 
-        Pine.getArgs32(extras, array, sp, skipR1);
-        return array;
+        return Pine.getArgs32(extras, array, sp, skipR1);
     }
 }
@@ -75,7 +75,9 @@ public final class Entry64 {
                                        long x4, long x5, long x6, long x7) throws Throwable {
         Pine.log("handleBridge: artMethod=%#x extras=%#x sp=%#x", artMethod, extras, sp);
         Pine.HookRecord hookRecord = Pine.getHookRecord(artMethod);
-        long[] argsAsLongs = getArgsAsLongs(hookRecord, extras, sp, x4, x5, x6, x7);
+        int length = (hookRecord.isStatic ? 0 : 1 /*this*/) + hookRecord.paramNumber;
+        long[] argsAsLongs = length != 0 ? new long[length] : EMPTY_LONG_ARRAY;
+        long callerPc = getArgsAsLongs(extras, sp, x4, x5, x6, x7, argsAsLongs);
         long thread = Primitives.currentArtThread();
 
         Object receiver;
@@ -125,14 +127,14 @@ public final class Entry64 {
             args = Pine.EMPTY_OBJECT_ARRAY;
         }
 
-        return Pine.handleCall(hookRecord, receiver, args);
+        return Pine.handleCall(hookRecord, receiver, args, callerPc, sp);
     }
 
-    private static long[] getArgsAsLongs(Pine.HookRecord hookRecord, long extras, long sp,
-                                         long x4, long x5, long x6, long x7) {
-        int length = (hookRecord.isStatic ? 0 : 1 /*this*/) + hookRecord.paramNumber;
-        long[] array = length != 0 ? new long[length] : EMPTY_LONG_ARRAY;
-        Pine.getArgs64(extras, array, sp);
+    /** Fills array with the arguments and returns the return address into the caller. */
+    private static long getArgsAsLongs(long extras, long sp, long x4, long x5, long x6, long x7,
+                                       long[] array) {
+        int length = array.length;
+        long callerPc = Pine.getArgs64(extras, array, sp);
 
         do {
             // x1-x3 are restored in Pine.getArgs64
@@ -147,6 +149,6 @@ public final class Entry64 {
             // remaining args are saved in stack and restored in Pine.getArgs64
         } while(false);
 
-        return array;
+        return callerPc;
     }
 }
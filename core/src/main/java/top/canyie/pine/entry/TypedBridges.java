@@ -0,0 +1,261 @@
+package top.canyie.pine.entry;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import top.canyie.pine.Pine;
+import top.canyie.pine.utils.Primitives;
+
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import dalvik.system.InMemoryDexClassLoader;
+
+/**
+ * Generates static bridge methods whose parameters match the hooked method (the receiver of an
+ * instance method becomes the first parameter), followed by the ArtMethod of the hooked method,
+ * the return address into its caller and the sp at its entry. The hooked method jumps to it
+ * without touching any argument, only moving these three into the next free argument registers,
+ * so arguments arrive as typed java parameters, without the JNI call, stack walking and the
+ * Extras lock of {@link Entry64}/{@link Entry32}.
+ * <p>
+ * A bridge looks like:
+ * <pre>
+ * public static int bridge(Object thisObject, int a, long b, long artMethod, long callerPc,
+ *                          long callerSp) {
+ *     return (Integer) Pine.handleCall(Pine.getHookRecord(artMethod), thisObject,
+ *             new Object[] {a, b}, callerPc, callerSp);
+ * }
+ * </pre>
+ * All references are typed as Object, so a bridge only depends on the shorty, and all hooked
+ * methods with the same shorty share one bridge class (and class loader).
+ * Requires Android 8.0+ for {@link InMemoryDexClassLoader}, and arm64: the three extra values
+ * must fit in x1-x7 after the other integer and reference arguments.
+ * </p>
+ * @author canyie
+ */
+@TargetApi(Build.VERSION_CODES.O)
+public final class TypedBridges {
+    private static final String BRIDGE_CLASS_PREFIX = "top.canyie.pine.entry.TypedBridge_";
+    private static final String BRIDGE_METHOD_NAME = "bridge";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String HOOK_RECORD = "Ltop/canyie/pine/Pine$HookRecord;";
+    // Registers before the parameters: v0 args array, v1-v7 temporaries and handleCall args
+    private static final int LOCALS = 8;
+    private static final int ACC_PUBLIC_STATIC = 0x0009;
+    // x1-x7 on arm64, x0 is the ArtMethod being called.
+    private static final int MAX_ARG_REGISTERS = 7;
+    // The ArtMethod, the return address and sp.
+    private static final int EXTRA_PARAMS = 3;
+
+    /** Bridges by shorty key. Also keeps their class loaders alive, a bridge must never be unloaded. */
+    private static final Map<String, Method> sBridges = new HashMap<>();
+
+    private TypedBridges() {
+    }
+
+    /** Whether bridges can be generated here, the caller checks the process is 64-bit. */
+    @SuppressLint("ObsoleteSdkInt") public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    /**
+     * Returns the argument register the bridge of a method receives its ArtMethod in, e.g. 3
+     * for x3 (the return address and sp follow in x4 and x5), or -1 if the integer and reference
+     * arguments leave less than three registers free.
+     * hookRecord.isStatic and hookRecord.paramTypes must be filled in already.
+     */
+    public static int getArtMethodRegister(Pine.HookRecord hookRecord) {
+        int used = hookRecord.isStatic ? 0 : 1;
+        for (Class<?> paramType : hookRecord.paramTypes) {
+            if (paramType != float.class && paramType != double.class) used++;
+        }
+        return used + EXTRA_PARAMS <= MAX_ARG_REGISTERS ? used + 1 : -1;
+    }
+
+    /**
+     * Returns the bridge for methods like target, generating it the first time.
+     * hookRecord.isStatic and hookRecord.paramTypes must be filled in already.
+     * @throws IllegalArgumentException if target has no register left for its ArtMethod
+     */
+    public static Method getBridge(Pine.HookRecord hookRecord, Member target) throws Exception {
+        if (getArtMethodRegister(hookRecord) < 0)
+            throw new IllegalArgumentException("Not enough argument registers left for the bridge");
+        Class<?> returnType = target instanceof Method ? ((Method) target).getReturnType() : void.class;
+        Class<?>[] paramTypes = hookRecord.paramTypes;
+        boolean hasReceiver = !hookRecord.isStatic;
+
+        StringBuilder shorty = new StringBuilder().append(Primitives.shortyOf(returnType));
+        if (hasReceiver) shorty.append('L');
+        for (Class<?> paramType : paramTypes) shorty.append(Primitives.shortyOf(paramType));
+        // Static methods and instance methods may have the same bridge shorty.
+        String key = (hasReceiver ? "I" : "S") + shorty;
+
+        synchronized (sBridges) {
+            Method bridge = sBridges.get(key);
+            if (bridge != null) return bridge;
+
+            byte[] dex = generateDex(key, shorty.toString(), hasReceiver);
+            InMemoryDexClassLoader loader = new InMemoryDexClassLoader(ByteBuffer.wrap(dex),
+                    TypedBridges.class.getClassLoader());
+            // Initialize the class here, the entry of a static method in a not initialized class
+            // is a resolution trampoline that must not be hardcoded in our trampoline.
+            Class<?> bridgeClass = Class.forName(BRIDGE_CLASS_PREFIX + key, true, loader);
+
+            Class<?>[] bridgeParamTypes = new Class<?>[paramTypes.length + (hasReceiver ? 1 : 0)
+                    + EXTRA_PARAMS];
+            int index = 0;
+            if (hasReceiver) bridgeParamTypes[index++] = Object.class;
+            for (Class<?> paramType : paramTypes)
+                bridgeParamTypes[index++] = paramType.isPrimitive() ? paramType : Object.class;
+            while (index < bridgeParamTypes.length) bridgeParamTypes[index++] = long.class;
+            bridge = bridgeClass.getDeclaredMethod(BRIDGE_METHOD_NAME, bridgeParamTypes);
+            bridge.setAccessible(true);
+            sBridges.put(key, bridge);
+            return bridge;
+        }
+    }
+
+    private static String descriptorOf(char shorty) {
+        return shorty == 'L' ? OBJECT : String.valueOf(shorty);
+    }
+
+    private static String boxOf(char shorty) {
+        switch (shorty) {
+            case 'I': return "Ljava/lang/Integer;";
+            case 'J': return "Ljava/lang/Long;";
+            case 'Z': return "Ljava/lang/Boolean;";
+            case 'B': return "Ljava/lang/Byte;";
+            case 'C': return "Ljava/lang/Character;";
+            case 'S': return "Ljava/lang/Short;";
+            case 'F': return "Ljava/lang/Float;";
+            case 'D': return "Ljava/lang/Double;";
+            default: throw new AssertionError("Not a primitive type: " + shorty);
+        }
+    }
+
+    private static String unboxMethodOf(char shorty) {
+        switch (shorty) {
+            case 'I': return "intValue";
+            case 'J': return "longValue";
+            case 'Z': return "booleanValue";
+            case 'B': return "byteValue";
+            case 'C': return "charValue";
+            case 'S': return "shortValue";
+            case 'F': return "floatValue";
+            case 'D': return "doubleValue";
+            default: throw new AssertionError("Not a primitive type: " + shorty);
+        }
+    }
+
+    private static boolean isWide(char shorty) {
+        return shorty == 'J' || shorty == 'D';
+    }
+
+    /**
+     * shorty: return type, then the receiver (if any) and parameters. The bridge takes the
+     * ArtMethod of the hooked method, the return address and sp as longs after them.
+     */
+    static byte[] generateDex(String key, String shorty, boolean hasReceiver) {
+        String className = "L" + BRIDGE_CLASS_PREFIX.replace('.', '/') + key + ";";
+        DexBuilder dex = new DexBuilder(className, OBJECT);
+
+        char returnShorty = shorty.charAt(0);
+        int argCount = shorty.length() - 1;
+        String[] bridgeParams = new String[argCount + EXTRA_PARAMS];
+        int ins = 0;
+        for (int i = 0;i < argCount;i++) {
+            char c = shorty.charAt(i + 1);
+            bridgeParams[i] = descriptorOf(c);
+            ins += isWide(c) ? 2 : 1;
+        }
+        for (int i = argCount;i < bridgeParams.length;i++) bridgeParams[i] = "J";
+        int artMethodReg = LOCALS + ins;
+        int callerPcReg = artMethodReg + 2;
+        int callerSpReg = artMethodReg + 4;
+        ins += EXTRA_PARAMS * 2;
+        int registers = LOCALS + ins;
+        // aput-object and friends only address 256 registers.
+        if (registers > 256)
+            throw new IllegalArgumentException("Too many parameters for a typed bridge: " + shorty);
+
+        DexBuilder.MethodRef bridge = dex.method(className, BRIDGE_METHOD_NAME,
+                descriptorOf(returnShorty), bridgeParams);
+        DexBuilder.MethodRef handleCall = dex.method("Ltop/canyie/pine/Pine;", "handleCall",
+                OBJECT, HOOK_RECORD, OBJECT, "[Ljava/lang/Object;", "J", "J");
+
+        DexBuilder.MethodRef getHookRecord = dex.method("Ltop/canyie/pine/Pine;", "getHookRecord",
+                HOOK_RECORD, "J");
+
+        DexBuilder.Code code = new DexBuilder.Code(registers, ins, 7);
+        int paramNumber = argCount - (hasReceiver ? 1 : 0);
+
+        // const/16 v1, #paramNumber; new-array v0, v1, [Object
+        code.unit(0x13 | (1 << 8)).unit(paramNumber);
+        code.unit(0x23 | (1 << 12)).ref(dex.type("[Ljava/lang/Object;"));
+
+        int reg = LOCALS + (hasReceiver ? 1 : 0);
+        for (int i = 0;i < paramNumber;i++) {
+            char c = shorty.charAt(i + 1 + (hasReceiver ? 1 : 0));
+            int valueReg = reg;
+            if (c != 'L') {
+                String box = boxOf(c);
+                // invoke-static/range {v<reg> .. }, Box.valueOf(prim); move-result-object v2
+                code.unit(0x77 | ((isWide(c) ? 2 : 1) << 8))
+                        .ref(dex.method(box, "valueOf", box, String.valueOf(c))).unit(reg);
+                code.unit(0x0c | (2 << 8));
+                valueReg = 2;
+            }
+            // const/16 v1, #i; aput-object v<value>, v0, v1
+            code.unit(0x13 | (1 << 8)).unit(i);
+            code.unit(0x4d | (valueReg << 8)).unit(1 << 8);
+            reg += isWide(c) ? 2 : 1;
+        }
+
+        // invoke-static/range {v<artMethod> .. }, Pine.getHookRecord(long); move-result-object v1
+        code.unit(0x77 | (2 << 8)).ref(getHookRecord).unit(artMethodReg);
+        code.unit(0x0c | (1 << 8));
+        if (hasReceiver) {
+            // move-object/from16 v2, v<receiver>
+            code.unit(0x08 | (2 << 8)).unit(LOCALS);
+        } else {
+            // const/4 v2, #0
+            code.unit(0x12 | (2 << 8));
+        }
+        // move-object v3, v0
+        code.unit(0x07 | (3 << 8));
+        // move-wide/from16 v4, v<callerPc>; move-wide/from16 v6, v<callerSp>
+        code.unit(0x05 | (4 << 8)).unit(callerPcReg);
+        code.unit(0x05 | (6 << 8)).unit(callerSpReg);
+        // invoke-static/range {v1 .. v7}, Pine.handleCall
+        code.unit(0x77 | (7 << 8)).ref(handleCall).unit(1);
+
+        if (returnShorty == 'V') {
+            code.unit(0x0e); // return-void
+        } else if (returnShorty == 'L') {
+            code.unit(0x0c); // move-result-object v0
+            code.unit(0x11); // return-object v0
+        } else {
+            String box = boxOf(returnShorty);
+            code.unit(0x0c); // move-result-object v0
+            code.unit(0x1f).ref(dex.type(box)); // check-cast v0, Box
+            // invoke-virtual/range {v0}, Box.xxxValue()
+            code.unit(0x74 | (1 << 8)).ref(dex.method(box, unboxMethodOf(returnShorty),
+                    String.valueOf(returnShorty))).unit(0);
+            if (isWide(returnShorty)) {
+                code.unit(0x0b); // move-result-wide v0
+                code.unit(0x10); // return-wide v0
+            } else {
+                code.unit(0x0a); // move-result v0
+                code.unit(0x0f); // return v0
+            }
+        }
+
+        dex.addDirectMethod(bridge, ACC_PUBLIC_STATIC, code);
+        return dex.build();
+    }
+}
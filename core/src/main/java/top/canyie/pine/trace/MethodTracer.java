@@ -0,0 +1,358 @@
+package top.canyie.pine.trace;
+
+import top.canyie.pine.Pine;
+import top.canyie.pine.callback.MethodHook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Records entries and exits of hooked methods into a binary trace file without allocating or
+ * formatting anything per event. Each thread appends fixed-size records to its own ring buffer,
+ * a background thread copies them into the memory-mapped file. If a thread outruns the flusher,
+ * new events are dropped (see {@link #getDroppedEvents()}) rather than blocking the caller.
+ * The buffer of a thread is released once the thread has died and its events are flushed.
+ * <p>
+ * Hooks of a tracer are created with {@link #trace(Member)} or {@link #newHook(String)}, and can
+ * be mixed with any other hooks. The file is complete once {@link #stop()} returns, and can be
+ * converted to Chrome trace / Perfetto JSON with ChromeTraceConverter in the benchmark module.
+ * </p>
+ * <pre>
+ * File layout, little endian:
+ *   header   MAGIC(8) version(4) recordSize(4) recordCount(8) namesOffset(8)
+ *   records  timestamp(8, System.nanoTime()) threadId(8) hookId(4) depth(2) type(1) 0(1)
+ *   names    hookCount(4) {hookId(4) length(4) utf8}... threadCount(4) {threadId(8) length(4) utf8}...
+ * </pre>
+ * @author canyie
+ */
+public final class MethodTracer {
+    public static final long MAGIC = 0x31435254454e4950L; // "PINETRC1"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 24;
+    public static final byte TYPE_ENTER = 0;
+    public static final byte TYPE_EXIT = 1;
+
+    public static final int DEFAULT_BUFFER_RECORDS = 1 << 14;
+    private static final long FLUSH_INTERVAL_MS = 20;
+    private static final int MAP_CHUNK_SIZE = 16 << 20;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int bufferRecords;
+    private final List<String> hookNames = new ArrayList<>();
+    private final List<RingBuffer> buffers = new CopyOnWriteArrayList<>();
+    // Buffers of dead threads, flushed and released, kept for their names and dropped counts.
+    private final List<RingBuffer> retired = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<RingBuffer> localBuffer = new ThreadLocal<RingBuffer>() {
+        @Override protected RingBuffer initialValue() {
+            RingBuffer buffer = new RingBuffer(Thread.currentThread(), bufferRecords);
+            buffers.add(buffer);
+            return buffer;
+        }
+    };
+    private final Thread flusher;
+    private volatile boolean running = true;
+    private volatile IOException flushError;
+
+    // Only accessed by the flusher, or by stop() after it died.
+    private MappedByteBuffer mapped;
+    private long mappedStart;
+    private long recordCount;
+    private final ByteBuffer staging;
+
+    /**
+     * Creates the trace file and starts recording.
+     * @param bufferRecords capacity of the ring buffer of each thread, rounded up to a power of two
+     */
+    public MethodTracer(File output, int bufferRecords) throws IOException {
+        int capacity = 1;
+        while (capacity < bufferRecords) capacity <<= 1;
+        this.bufferRecords = capacity;
+        staging = ByteBuffer.allocate(capacity * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        file = new RandomAccessFile(output, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        map(0);
+        mapped.position(HEADER_SIZE);
+
+        flusher = new Thread("Pine-TraceFlusher") {
+            @Override public void run() {
+                try {
+                    while (running) {
+                        // Keep draining without sleeping while threads fill their buffers quickly.
+                        if (flushAll() > (MethodTracer.this.bufferRecords >> 2)) continue;
+                        try {
+                            Thread.sleep(FLUSH_INTERVAL_MS);
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                } catch (IOException e) {
+                    flushError = e;
+                    running = false;
+                }
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public MethodTracer(File output) throws IOException {
+        this(output, DEFAULT_BUFFER_RECORDS);
+    }
+
+    /** Hooks method with a new hook of this tracer named after it. */
+    public MethodHook.Unhook trace(Member method) {
+        MethodHook hook = newHook(method.toString());
+        if (method instanceof Method)
+            return Pine.hook((Method) method, hook);
+        else if (method instanceof Constructor)
+            return Pine.hook((Constructor<?>) method, hook);
+        else
+            throw new IllegalArgumentException("Only methods and constructors can be traced, but got " + method);
+    }
+
+    /**
+     * Creates a hook that records its calls under the given name, it can be registered on any
+     * number of methods.
+     */
+    public MethodHook newHook(String name) {
+        int id;
+        synchronized (hookNames) {
+            id = hookNames.size();
+            hookNames.add(name);
+        }
+        return new TraceHook(id);
+    }
+
+    /** Returns how many events were dropped because a ring buffer was full. */
+    public long getDroppedEvents() {
+        long dropped = 0;
+        for (RingBuffer buffer : buffers) dropped += buffer.dropped;
+        for (RingBuffer buffer : retired) dropped += buffer.dropped;
+        return dropped;
+    }
+
+    /**
+     * Stops recording, flushes the remaining events and writes the names of hooks and threads.
+     * Events recorded concurrently with this call may be lost.
+     */
+    public synchronized void stop() throws IOException {
+        if (!channel.isOpen()) return;
+        running = false;
+        flusher.interrupt();
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        try {
+            if (flushError != null) throw flushError;
+            flushAll();
+            long namesOffset = mappedStart + mapped.position();
+            mapped.force();
+            mapped = null;
+            writeTrailer(namesOffset);
+        } finally {
+            channel.close();
+            file.close();
+        }
+    }
+
+    void record(byte type, int hookId) {
+        if (!running) return;
+        localBuffer.get().put(System.nanoTime(), type, hookId);
+    }
+
+    private void writeTrailer(long namesOffset) throws IOException {
+        ByteBuffer names = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        synchronized (hookNames) {
+            names = putInt(names, hookNames.size());
+            for (int i = 0;i < hookNames.size();i++) {
+                names = putInt(names, i);
+                names = putString(names, hookNames.get(i));
+            }
+        }
+        names = putInt(names, retired.size() + buffers.size());
+        for (RingBuffer buffer : retired) names = putThread(names, buffer);
+        for (RingBuffer buffer : buffers) names = putThread(names, buffer);
+        names.flip();
+        channel.write(names, namesOffset);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(MAGIC).putInt(VERSION).putInt(RECORD_SIZE)
+                .putLong(recordCount).putLong(namesOffset).flip();
+        channel.write(header, 0);
+        channel.truncate(namesOffset + names.limit());
+        channel.force(true);
+    }
+
+    /** Returns the most records drained from one buffer. */
+    private int flushAll() throws IOException {
+        int most = 0;
+        for (RingBuffer buffer : buffers) {
+            // Checked before draining: after its owner died, nothing is published anymore.
+            boolean ownerDied = buffer.isOwnerDead();
+            int n = buffer.drain(staging);
+            if (ownerDied) {
+                buffers.remove(buffer);
+                buffer.release();
+                retired.add(buffer);
+            }
+            if (n == 0) continue;
+            staging.flip();
+            while (staging.hasRemaining()) {
+                if (!mapped.hasRemaining()) map(mappedStart + mapped.position());
+                int count = Math.min(staging.remaining(), mapped.remaining());
+                int limit = staging.limit();
+                staging.limit(staging.position() + count);
+                mapped.put(staging);
+                staging.limit(limit);
+            }
+            staging.clear();
+            recordCount += n;
+            most = Math.max(most, n);
+        }
+        return most;
+    }
+
+    private void map(long start) throws IOException {
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, start, MAP_CHUNK_SIZE);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        mappedStart = start;
+    }
+
+    private static ByteBuffer putThread(ByteBuffer buffer, RingBuffer thread) {
+        buffer = ensureRemaining(buffer, 8);
+        buffer.putLong(thread.threadId);
+        return putString(buffer, thread.threadName);
+    }
+
+    private static ByteBuffer putInt(ByteBuffer buffer, int value) {
+        buffer = ensureRemaining(buffer, 4);
+        buffer.putInt(value);
+        return buffer;
+    }
+
+    private static ByteBuffer putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        buffer = ensureRemaining(buffer, 4 + bytes.length);
+        buffer.putInt(bytes.length).put(bytes);
+        return buffer;
+    }
+
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int size) {
+        if (buffer.remaining() >= size) return buffer;
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        newBuffer.put(buffer);
+        return newBuffer;
+    }
+
+    private final class TraceHook extends MethodHook {
+        private final int id;
+
+        TraceHook(int id) {
+            this.id = id;
+        }
+
+        @Override public void beforeCall(Pine.CallFrame callFrame) {
+            record(TYPE_ENTER, id);
+        }
+
+        @Override public void afterCall(Pine.CallFrame callFrame) {
+            record(TYPE_EXIT, id);
+        }
+    }
+
+    /**
+     * Single-producer single-consumer ring of records: the owner thread writes at head, the
+     * flusher reads up to head and then advances tail. Each record takes two longs.
+     */
+    static final class RingBuffer {
+        private static final AtomicLongFieldUpdater<RingBuffer> HEAD
+                = AtomicLongFieldUpdater.newUpdater(RingBuffer.class, "head");
+        private static final AtomicLongFieldUpdater<RingBuffer> TAIL
+                = AtomicLongFieldUpdater.newUpdater(RingBuffer.class, "tail");
+
+        final long threadId;
+        final String threadName;
+        private final WeakReference<Thread> owner;
+        // null once released
+        private long[] slots;
+        private final int mask;
+        private volatile long head;
+        private volatile long tail;
+        /** Only written by the owner thread */
+        volatile long dropped;
+        // Owner thread only, the depth of the current call, maintained across dropped events.
+        private int depth;
+
+        RingBuffer(Thread owner, int capacity) {
+            this.owner = new WeakReference<>(owner);
+            threadId = owner.getId();
+            threadName = owner.getName();
+            slots = new long[capacity * 2];
+            mask = capacity - 1;
+        }
+
+        void put(long timestamp, byte type, int hookId) {
+            int depth = type == TYPE_ENTER ? this.depth++ : --this.depth;
+            long h = head;
+            if (h - tail > mask) {
+                dropped++;
+                return;
+            }
+            int i = (int) (h & mask) << 1;
+            slots[i] = timestamp;
+            slots[i + 1] = ((long) hookId << 32) | ((depth & 0xffffL) << 8) | type;
+            // Publish the slots before the new head, without a full barrier.
+            HEAD.lazySet(this, h + 1);
+        }
+
+        boolean isOwnerDead() {
+            Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+
+        /** Frees the records, only after the owner died and the last records were drained. */
+        void release() {
+            slots = null;
+        }
+
+        /** Copies all published records into out as file records, returns the count. */
+        int drain(ByteBuffer out) {
+            long t = tail;
+            long h = head;
+            for (long p = t;p < h;p++) {
+                int i = (int) (p & mask) << 1;
+                long packed = slots[i + 1];
+                out.putLong(slots[i]).putLong(threadId).putInt((int) (packed >>> 32))
+                        .putShort((short) (packed >>> 8)).put((byte) packed).put((byte) 0);
+            }
+            TAIL.lazySet(this, h);
+            return (int) (h - t);
+        }
+    }
+}
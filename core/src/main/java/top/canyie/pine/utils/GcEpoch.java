@@ -0,0 +1,35 @@
+package top.canyie.pine.utils;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Counts garbage collections observed through a weakly referenced sentinel: any GC that can move
+ * objects allocated since the previous one clears it, and {@link #get()} then re-arms it with a
+ * new object and advances the epoch. GCs are only noticed when get() is called, several GCs in
+ * between count as one, which is all callers comparing epochs need.
+ * @author canyie
+ */
+public final class GcEpoch {
+    private static volatile WeakReference<Object> sSentinel = new WeakReference<>(new Object());
+    private static volatile int sEpoch;
+
+    private GcEpoch() {
+        throw new RuntimeException("Use static methods");
+    }
+
+    /** Returns the current epoch, it differs from the previous result if a GC ran since then. */
+    public static int get() {
+        WeakReference<Object> sentinel = sSentinel;
+        if (sentinel.get() == null) {
+            synchronized (GcEpoch.class) {
+                // Another thread may have re-armed it already.
+                if (sentinel == sSentinel) {
+                    // Advance first, whoever sees the new sentinel must see the new epoch.
+                    sEpoch++;
+                    sSentinel = new WeakReference<>(new Object());
+                }
+            }
+        }
+        return sEpoch;
+    }
+}
@@ -0,0 +1,114 @@
+package top.canyie.pine.utils;
+
+/**
+ * A log-linear histogram of non-negative values (e.g. nanoseconds): values below 16 have their own
+ * bucket, larger ones are split into 4 buckets per power of two (at most 25% error) up to 2^36,
+ * anything larger falls into the last bucket, 149 counters in total. Recording is lock-free and
+ * striped like {@link StripedCounters}.
+ * @author canyie
+ */
+public final class Histogram {
+    private static final int LINEAR = 16;
+    private static final int SUB_BITS = 2;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_EXP = 36;
+    public static final int BUCKETS = LINEAR + (MAX_EXP - 4 + 1) * SUB;
+    // The extra counter holds the sum of the recorded values.
+    private static final int SUM = BUCKETS;
+
+    private final StripedCounters counters = new StripedCounters(BUCKETS + 1);
+
+    public void record(long value) {
+        int stripe = StripedCounters.currentStripe();
+        counters.add(stripe, bucketOf(value), 1);
+        counters.add(stripe, SUM, value);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0;i < BUCKETS;i++) counts[i] = counters.get(i);
+        return new Snapshot(counts, counters.get(SUM));
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR) return value < 0 ? 0 : (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        if (exp > MAX_EXP) return BUCKETS - 1;
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+        return LINEAR + (exp - 4) * SUB + sub;
+    }
+
+    /** The smallest value falling into bucket. */
+    static long lowerBoundOf(int bucket) {
+        if (bucket < LINEAR) return bucket;
+        int exp = (bucket - LINEAR) / SUB + 4;
+        int sub = (bucket - LINEAR) % SUB;
+        return (1L << exp) + ((long) sub << (exp - SUB_BITS));
+    }
+
+    /** The largest value falling into bucket. */
+    static long upperBoundOf(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowerBoundOf(bucket + 1) - 1;
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            long count = 0;
+            for (long c : counts) count += c;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns an upper bound of the value below which the given percentage (0-100) of
+         * recorded values fall, or 0 if nothing is recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(percentile / 100 * count);
+            if (rank < 1) rank = 1;
+            long seen = 0;
+            for (int i = 0;i < counts.length;i++) {
+                seen += counts[i];
+                if (seen >= rank) return upperBoundOf(i);
+            }
+            return upperBoundOf(counts.length - 1);
+        }
+
+        public long getMax() {
+            return getValueAtPercentile(100);
+        }
+
+        /** Count of values in each bucket, see {@link #getBucketLowerBound(int)}. */
+        public long[] getCounts() {
+            return counts.clone();
+        }
+
+        public static long getBucketLowerBound(int bucket) {
+            return lowerBoundOf(bucket);
+        }
+
+        @Override public String toString() {
+            return "count=" + count + " mean=" + (long) getMean() + " p50="
+                    + getValueAtPercentile(50) + " p99=" + getValueAtPercentile(99)
+                    + " max=" + getMax();
+        }
+    }
+}
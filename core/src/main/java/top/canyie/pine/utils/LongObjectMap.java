@@ -0,0 +1,137 @@
+package top.canyie.pine.utils;
+
+/**
+ * A map from non-zero long keys (e.g. ArtMethod pointers) to objects, backed by two
+ * open-addressing arrays. Unlike {@code ConcurrentHashMap<Long, V>}, it neither boxes keys nor
+ * allocates a node per entry, and {@link #get(long)} does not take a lock when the key is found.
+ * Writes are serialized on the map itself and are expected to be far rarer than reads.
+ * Removing is O(capacity), it rebuilds the table.
+ * @author canyie
+ */
+public final class LongObjectMap<V> {
+    private static final long EMPTY = 0;
+    private static final int MIN_CAPACITY = 16;
+    private volatile Table table;
+    private int size;
+
+    public LongObjectMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongObjectMap(int expectedSize) {
+        table = new Table(capacityFor(expectedSize));
+    }
+
+    public V get(long key) {
+        // Fast path without locking. A value is always stored before its key, so a key found
+        // here usually comes with its value; anything else is rechecked under the lock.
+        Table t = table;
+        Object value = t.lookup(key);
+        if (value != null) return cast(value);
+        synchronized (this) {
+            return cast(table.lookup(key));
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public synchronized V put(long key, V value) {
+        if (key == EMPTY) throw new IllegalArgumentException("key == 0");
+        if (value == null) throw new NullPointerException("value == null");
+        Table t = table;
+        int index = t.indexOf(key);
+        if (t.keys[index] == key) {
+            Object old = t.values[index];
+            t.values[index] = value;
+            return cast(old);
+        }
+        if ((size + 1) * 2 > t.keys.length) {
+            t = t.copy(t.keys.length * 2, EMPTY);
+            index = t.indexOf(key);
+            t.values[index] = value;
+            t.keys[index] = key;
+            table = t;
+        } else {
+            t.values[index] = value;
+            t.keys[index] = key;
+        }
+        size++;
+        return null;
+    }
+
+    public synchronized V remove(long key) {
+        Table t = table;
+        Object old = t.lookup(key);
+        if (old == null) return null;
+        table = t.copy(capacityFor(size - 1), key);
+        size--;
+        return cast(old);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Returns a snapshot of the values, in no particular order. */
+    public synchronized Object[] values() {
+        Object[] result = new Object[size];
+        Table t = table;
+        int i = 0;
+        for (int j = 0;j < t.keys.length;j++) {
+            if (t.keys[j] != EMPTY) result[i++] = t.values[j];
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked") private static <V> V cast(Object o) {
+        return (V) o;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) capacity <<= 1;
+        return capacity;
+    }
+
+    private static final class Table {
+        final long[] keys;
+        final Object[] values;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+
+        /** Returns the slot of key, or the empty slot where it should be inserted. */
+        int indexOf(long key) {
+            int mask = keys.length - 1;
+            // ArtMethods are allocated in arrays, their addresses are close to each other and
+            // aligned, so mix the bits before masking.
+            int index = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            for (;;) {
+                long k = keys[index];
+                if (k == key || k == EMPTY) return index;
+                index = (index + 1) & mask;
+            }
+        }
+
+        Object lookup(long key) {
+            int index = indexOf(key);
+            return keys[index] == key ? values[index] : null;
+        }
+
+        Table copy(int capacity, long skip) {
+            Table t = new Table(capacity);
+            for (int i = 0;i < keys.length;i++) {
+                long key = keys[i];
+                if (key == EMPTY || key == skip) continue;
+                int index = t.indexOf(key);
+                t.keys[index] = key;
+                t.values[index] = values[i];
+            }
+            return t;
+        }
+    }
+}
@@ -136,6 +136,70 @@ public final class Primitives {
         return Double.longBitsToDouble(ints2Long(a, b));
     }
 
+    /** Returns the shorty character of type, e.g. 'I' for int and 'L' for all references. */
+    public static char shortyOf(Class<?> type) {
+        if (!type.isPrimitive()) return 'L';
+        if (type == int.class) return 'I';
+        if (type == long.class) return 'J';
+        if (type == boolean.class) return 'Z';
+        if (type == byte.class) return 'B';
+        if (type == char.class) return 'C';
+        if (type == short.class) return 'S';
+        if (type == float.class) return 'F';
+        if (type == double.class) return 'D';
+        if (type == void.class) return 'V';
+        throw new AssertionError("Unknown primitive type " + type);
+    }
+
+    /**
+     * Unboxes value as an argument of primitive type, with the widening conversions that
+     * Method.invoke() allows. Returns the raw bits (float and double as their IEEE 754 bits).
+     */
+    public static long unboxToRawBits(Class<?> type, Object value) {
+        if (type == boolean.class) {
+            if (value instanceof Boolean) return (Boolean) value ? 1 : 0;
+        } else if (type == char.class) {
+            if (value instanceof Character) return (Character) value;
+        } else if (value instanceof Number || value instanceof Character) {
+            // char ranks as int: it only widens to int and wider types.
+            int from = numericRank(value.getClass());
+            if (from >= 0 && from <= numericRank(type)) {
+                if (type == float.class)
+                    return Float.floatToRawIntBits(value instanceof Character
+                            ? (Character) value : ((Number) value).floatValue());
+                if (type == double.class)
+                    return Double.doubleToRawLongBits(value instanceof Character
+                            ? (Character) value : ((Number) value).doubleValue());
+                return value instanceof Character ? (Character) value : ((Number) value).longValue();
+            }
+        }
+        throw new IllegalArgumentException("argument type mismatch: expected " + type
+                + ", got " + (value != null ? value.getClass().getName() : "null"));
+    }
+
+    private static int numericRank(Class<?> type) {
+        if (type == byte.class || type == Byte.class) return 0;
+        if (type == short.class || type == Short.class) return 1;
+        if (type == int.class || type == Integer.class || type == Character.class) return 2;
+        if (type == long.class || type == Long.class) return 3;
+        if (type == float.class || type == Float.class) return 4;
+        if (type == double.class || type == Double.class) return 5;
+        return -1;
+    }
+
+    /** Boxes raw bits returned from a method whose return type is the primitive type. */
+    public static Object boxRawBits(Class<?> type, long bits) {
+        if (type == int.class) return (int) bits;
+        if (type == long.class) return bits;
+        if (type == boolean.class) return bits != 0;
+        if (type == byte.class) return (byte) bits;
+        if (type == char.class) return (char) bits;
+        if (type == short.class) return (short) bits;
+        if (type == float.class) return Float.intBitsToFloat((int) bits);
+        if (type == double.class) return Double.longBitsToDouble(bits);
+        throw new AssertionError("Unknown primitive type " + type);
+    }
+
     private static Object getUnsafe() throws Exception {
         try {
             // try Unsafe.getUnsafe()
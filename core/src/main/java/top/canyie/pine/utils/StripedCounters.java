@@ -0,0 +1,81 @@
+package top.canyie.pine.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A fixed number of long counters, each split into a few stripes picked by the calling thread,
+ * so threads running on different cores rarely write to the same cache line.
+ * Like LongAdder (Android 7.0+ only), all threads share one set of counters until two of them
+ * collide on it, and reads sum the stripes and are not atomic snapshots.
+ * @author canyie
+ */
+public final class StripedCounters {
+    /** Power of two. More stripes trade memory for less contention on many-core devices. */
+    public static final int STRIPES = stripes();
+    /** Longs in a cache line (64 bytes), counters of different stripes never share one. */
+    private static final int LINE = 8;
+    private static final AtomicReferenceFieldUpdater<StripedCounters, AtomicLongArray> STRIPED
+            = AtomicReferenceFieldUpdater.newUpdater(StripedCounters.class, AtomicLongArray.class,
+            "striped");
+
+    private final int counters;
+    private final int stride;
+    private final AtomicLongArray base;
+    // Allocated on the first failed update of base, most counters are never contended.
+    private volatile AtomicLongArray striped;
+
+    public StripedCounters(int counters) {
+        this.counters = counters;
+        stride = (counters + LINE - 1) / LINE * LINE;
+        base = new AtomicLongArray(counters);
+    }
+
+    /** Index of the stripe the current thread should write to. */
+    public static int currentStripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    public void add(int counter, long delta) {
+        add(currentStripe(), counter, delta);
+    }
+
+    public void add(int stripe, int counter, long delta) {
+        AtomicLongArray striped = this.striped;
+        if (striped == null) {
+            if (STRIPES == 1) {
+                base.getAndAdd(counter, delta);
+                return;
+            }
+            long value = base.get(counter);
+            if (base.compareAndSet(counter, value, value + delta)) return;
+            striped = inflate();
+        }
+        striped.getAndAdd(stripe * stride + counter, delta);
+    }
+
+    public long get(int counter) {
+        long sum = base.get(counter);
+        AtomicLongArray striped = this.striped;
+        if (striped != null) {
+            for (int i = 0;i < STRIPES;i++) sum += striped.get(i * stride + counter);
+        }
+        return sum;
+    }
+
+    public int size() {
+        return counters;
+    }
+
+    private AtomicLongArray inflate() {
+        STRIPED.compareAndSet(this, null, new AtomicLongArray(stride * STRIPES));
+        return striped;
+    }
+
+    private static int stripes() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < cpus && stripes < 4) stripes <<= 1;
+        return stripes;
+    }
+}
@@ -0,0 +1,296 @@
+// Feeds known A64 instruction words to Arm64Relocator and checks the rewritten code,
+// including the literal each absolute load reads, with offsets at the edges of their range.
+
+#include <cstring>
+#include "test.h"
+#include "trampoline/arch/arm64_relocator.h"
+
+using namespace pine;
+
+DEFINE_TEST_MAIN_STATE;
+
+static constexpr uint64_t kPC = UINT64_C(0x7000100004);
+static constexpr uint32_t kNop = 0xD503201F;
+static constexpr uint32_t kBrX17 = 0xD61F0220;
+static constexpr uint32_t kBlrX17 = 0xD63F0220;
+
+struct Output {
+    bool ok;
+    size_t size;
+    alignas(8) uint8_t code[256];
+
+    uint32_t Inst(size_t index) const {
+        uint32_t inst;
+        memcpy(&inst, code + index * 4, sizeof(inst));
+        return inst;
+    }
+
+    // Value read by the 64-bit ldr literal at index, and its target register in reg.
+    uint64_t Literal(size_t index, uint32_t* reg = nullptr) const {
+        uint32_t inst = Inst(index);
+        EXPECT_EQ(0x58000000, inst & 0xFF000000);
+        int64_t offset = Arm64Relocator::DecodeImm19(inst);
+        size_t address = index * 4 + offset;
+        EXPECT_EQ(0, address % 8);
+        EXPECT_TRUE(address + 8 <= size);
+        if (reg) *reg = inst & 0x1F;
+        uint64_t value = 0;
+        if (address + 8 <= sizeof(code)) memcpy(&value, code + address, sizeof(value));
+        return value;
+    }
+};
+
+static Output Relocate(const uint32_t* insts, size_t count, uint64_t pc = kPC) {
+    Output out;
+    memset(out.code, 0xCC, sizeof(out.code));
+    Arm64Relocator relocator;
+    out.ok = relocator.Relocate(insts, pc, count * 4);
+    out.size = out.ok ? relocator.GetSize() : 0;
+    if (out.ok && out.size <= sizeof(out.code)) relocator.CopyTo(out.code);
+    return out;
+}
+
+static Output Relocate(uint32_t inst, uint64_t pc = kPC) {
+    return Relocate(&inst, 1, pc);
+}
+
+static uint32_t B(int64_t offset, bool link = false) {
+    return (link ? 0x94000000 : 0x14000000) | ((offset / 4) & 0x3FFFFFF);
+}
+
+static uint32_t BCond(uint32_t cond, int64_t offset) {
+    return 0x54000000 | (((offset / 4) & 0x7FFFF) << 5) | cond;
+}
+
+static uint32_t Cbz(bool nonzero, bool is64, uint32_t rt, int64_t offset) {
+    return (is64 ? 0x80000000 : 0) | (nonzero ? 0x35000000 : 0x34000000)
+           | (((offset / 4) & 0x7FFFF) << 5) | rt;
+}
+
+static uint32_t Tbz(bool nonzero, uint32_t bit, uint32_t rt, int64_t offset) {
+    return ((bit >> 5) << 31) | (nonzero ? 0x37000000 : 0x36000000) | ((bit & 0x1F) << 19)
+           | (((offset / 4) & 0x3FFF) << 5) | rt;
+}
+
+static uint32_t LdrLiteral(uint32_t opcode, uint32_t rt, int64_t offset) {
+    return opcode | (((offset / 4) & 0x7FFFF) << 5) | rt;
+}
+
+static uint32_t Adr(bool page, uint32_t rd, int64_t imm) {
+    return (page ? 0x90000000 : 0x10000000) | ((imm & 3) << 29) | (((imm >> 2) & 0x7FFFF) << 5) | rd;
+}
+
+static void TestDecoders() {
+    EXPECT_EQ(0x7FFFFFC, Arm64Relocator::DecodeImm26(B(0x7FFFFFC)));
+    EXPECT_EQ(-0x8000000, Arm64Relocator::DecodeImm26(B(-0x8000000)));
+    EXPECT_EQ(0xFFFFC, Arm64Relocator::DecodeImm19(BCond(0, 0xFFFFC)));
+    EXPECT_EQ(-0x100000, Arm64Relocator::DecodeImm19(Cbz(false, true, 0, -0x100000)));
+    EXPECT_EQ(0x7FFC, Arm64Relocator::DecodeImm14(Tbz(false, 63, 0, 0x7FFC)));
+    EXPECT_EQ(-0x8000, Arm64Relocator::DecodeImm14(Tbz(true, 0, 0, -0x8000)));
+    EXPECT_EQ(0xFFFFF, Arm64Relocator::DecodeAdrImm(Adr(false, 0, 0xFFFFF)));
+    EXPECT_EQ(-0x100000, Arm64Relocator::DecodeAdrImm(Adr(false, 0, -0x100000)));
+    EXPECT_EQ(kPC - 0x100000, Arm64Relocator::DecodeAdrTarget(Adr(false, 0, -0x100000), kPC));
+    EXPECT_EQ((kPC & ~UINT64_C(0xFFF)) + (UINT64_C(0xFFFFF) << 12),
+              Arm64Relocator::DecodeAdrTarget(Adr(true, 0, 0xFFFFF), kPC));
+    EXPECT_EQ((kPC & ~UINT64_C(0xFFF)) - (UINT64_C(1) << 32),
+              Arm64Relocator::DecodeAdrTarget(Adr(true, 0, -0x100000), kPC));
+}
+
+static void TestIsPCRelated() {
+    EXPECT_FALSE(Arm64Relocator::IsPCRelated(0xAA0103E0)); // mov x0, x1
+    EXPECT_FALSE(Arm64Relocator::IsPCRelated(0xF9400020)); // ldr x0, [x1]
+    EXPECT_FALSE(Arm64Relocator::IsPCRelated(0xA9BF7BFD)); // stp x29, x30, [sp, #-16]!
+    EXPECT_FALSE(Arm64Relocator::IsPCRelated(0xD65F03C0)); // ret
+    EXPECT_FALSE(Arm64Relocator::IsPCRelated(kBrX17));
+    EXPECT_TRUE(Arm64Relocator::IsPCRelated(B(4)));
+    EXPECT_TRUE(Arm64Relocator::IsPCRelated(B(4, true)));
+    EXPECT_TRUE(Arm64Relocator::IsPCRelated(BCond(1, 4)));
+    EXPECT_TRUE(Arm64Relocator::IsPCRelated(Cbz(true, false, 0, 4)));
+    EXPECT_TRUE(Arm64Relocator::IsPCRelated(Tbz(false, 0, 0, 4)));
+    EXPECT_TRUE(Arm64Relocator::IsPCRelated(LdrLiteral(0x58000000, 0, 4)));
+    EXPECT_TRUE(Arm64Relocator::IsPCRelated(LdrLiteral(0xD8000000, 0, 4))); // prfm
+    EXPECT_TRUE(Arm64Relocator::IsPCRelated(Adr(false, 0, 4)));
+    EXPECT_TRUE(Arm64Relocator::IsPCRelated(Adr(true, 0, 4)));
+}
+
+static void TestCopiedVerbatim() {
+    Output out = Relocate(0xAA0103E0); // mov x0, x1
+    EXPECT_TRUE(out.ok);
+    EXPECT_EQ(8, out.size);
+    EXPECT_EQ(0xAA0103E0, out.Inst(0));
+    EXPECT_EQ(kNop, out.Inst(1));
+}
+
+static void TestBranch() {
+    static const int64_t offsets[] = {0x7FFFFFC, -0x8000000, 4, -4};
+    for (int64_t offset : offsets) {
+        Output out = Relocate(B(offset));
+        EXPECT_TRUE(out.ok);
+        uint32_t reg;
+        EXPECT_EQ(kPC + offset, out.Literal(0, &reg));
+        EXPECT_EQ(17, reg);
+        EXPECT_EQ(kBrX17, out.Inst(1));
+
+        out = Relocate(B(offset, true));
+        EXPECT_TRUE(out.ok);
+        EXPECT_EQ(kPC + offset, out.Literal(0, &reg));
+        EXPECT_EQ(17, reg);
+        EXPECT_EQ(kBlrX17, out.Inst(1));
+    }
+}
+
+static void TestConditionalBranch() {
+    static const int64_t offsets[] = {0xFFFFC, -0x100000};
+    for (int64_t offset : offsets) {
+        // b.ne becomes b.eq over the jump
+        Output out = Relocate(BCond(1, offset));
+        EXPECT_TRUE(out.ok);
+        EXPECT_EQ(BCond(0, 12), out.Inst(0));
+        EXPECT_EQ(kPC + offset, out.Literal(1));
+        EXPECT_EQ(kBrX17, out.Inst(2));
+
+        // b.ge -> b.lt
+        out = Relocate(BCond(0xA, offset));
+        EXPECT_EQ(BCond(0xB, 12), out.Inst(0));
+
+        // b.al is always taken
+        out = Relocate(BCond(0xE, offset));
+        EXPECT_TRUE(out.ok);
+        EXPECT_EQ(kPC + offset, out.Literal(0));
+        EXPECT_EQ(kBrX17, out.Inst(1));
+
+        out = Relocate(Cbz(false, true, 3, offset));
+        EXPECT_TRUE(out.ok);
+        EXPECT_EQ(Cbz(true, true, 3, 12), out.Inst(0));
+        EXPECT_EQ(kPC + offset, out.Literal(1));
+        EXPECT_EQ(kBrX17, out.Inst(2));
+
+        out = Relocate(Cbz(true, false, 30, offset));
+        EXPECT_EQ(Cbz(false, false, 30, 12), out.Inst(0));
+        EXPECT_EQ(kPC + offset, out.Literal(1));
+    }
+
+    static const int64_t test_offsets[] = {0x7FFC, -0x8000};
+    for (int64_t offset : test_offsets) {
+        Output out = Relocate(Tbz(false, 3, 5, offset));
+        EXPECT_TRUE(out.ok);
+        EXPECT_EQ(Tbz(true, 3, 5, 12), out.Inst(0));
+        EXPECT_EQ(kPC + offset, out.Literal(1));
+        EXPECT_EQ(kBrX17, out.Inst(2));
+
+        // Bit numbers above 31 keep b5.
+        out = Relocate(Tbz(true, 63, 1, offset));
+        EXPECT_EQ(Tbz(false, 63, 1, 12), out.Inst(0));
+        EXPECT_EQ(kPC + offset, out.Literal(1));
+    }
+}
+
+static void TestLoadLiteral() {
+    static const int64_t offsets[] = {0xFFFFC, -0x100000};
+    static const struct {
+        uint32_t opcode;
+        uint32_t load; // [x17] form
+    } loads[] = {
+            {0x18000000, 0xB9400000}, // ldr wt
+            {0x58000000, 0xF9400000}, // ldr xt
+            {0x98000000, 0xB9800000}, // ldrsw xt
+            {0x1C000000, 0xBD400000}, // ldr st
+            {0x5C000000, 0xFD400000}, // ldr dt
+            {0x9C000000, 0x3DC00000}, // ldr qt
+    };
+    for (int64_t offset : offsets) {
+        for (auto& load : loads) {
+            Output out = Relocate(LdrLiteral(load.opcode, 2, offset));
+            EXPECT_TRUE(out.ok);
+            uint32_t reg;
+            EXPECT_EQ(kPC + offset, out.Literal(0, &reg));
+            EXPECT_EQ(17, reg);
+            EXPECT_EQ(load.load | (17 << 5) | 2, out.Inst(1));
+        }
+    }
+
+    // prfm is dropped
+    Output out = Relocate(LdrLiteral(0xD8000000, 0, 0x100));
+    EXPECT_TRUE(out.ok);
+    EXPECT_EQ(0, out.size);
+
+    // unallocated simd opc
+    EXPECT_FALSE(Relocate(LdrLiteral(0xDC000000, 0, 0x100)).ok);
+}
+
+static void TestAdr() {
+    static const int64_t imms[] = {0xFFFFF, -0x100000, 0};
+    for (int64_t imm : imms) {
+        Output out = Relocate(Adr(false, 4, imm));
+        EXPECT_TRUE(out.ok);
+        uint32_t reg;
+        EXPECT_EQ(kPC + imm, out.Literal(0, &reg));
+        EXPECT_EQ(4, reg);
+        EXPECT_EQ(16, out.size);
+
+        out = Relocate(Adr(true, 29, imm));
+        EXPECT_TRUE(out.ok);
+        EXPECT_EQ((kPC & ~UINT64_C(0xFFF)) + static_cast<uint64_t>(imm * 4096), out.Literal(0, &reg));
+        EXPECT_EQ(29, reg);
+    }
+
+    // adr may point into the copied code, it only computes an address.
+    uint32_t insts[] = {Adr(false, 0, 4), kNop};
+    EXPECT_TRUE(Relocate(insts, 2).ok);
+}
+
+static void TestTargetInsideRange() {
+    uint32_t backward[] = {kNop, B(-4)};
+    EXPECT_FALSE(Relocate(backward, 2).ok);
+    uint32_t self[] = {kNop, Cbz(false, true, 0, 0)};
+    EXPECT_FALSE(Relocate(self, 2).ok);
+    uint32_t forward[] = {Tbz(false, 0, 0, 4), kNop};
+    EXPECT_FALSE(Relocate(forward, 2).ok);
+    uint32_t load[] = {LdrLiteral(0x58000000, 0, 4), kNop};
+    EXPECT_FALSE(Relocate(load, 2).ok);
+
+    // Right past the end and right before the start are fine.
+    uint32_t past_end[] = {B(8), kNop};
+    EXPECT_TRUE(Relocate(past_end, 2).ok);
+    uint32_t before_start[] = {kNop, B(-8)};
+    EXPECT_TRUE(Relocate(before_start, 2).ok);
+}
+
+static void TestLiteralPool() {
+    // Two branches to the same target share one literal, the pool starts 8 bytes aligned.
+    uint32_t insts[] = {B(0x1000), B(0x1000 - 4), 0xAA0103E0};
+    Output out = Relocate(insts, 3);
+    EXPECT_TRUE(out.ok);
+    // ldr, br, ldr, br, mov, padding, one literal
+    EXPECT_EQ(6 * 4 + 8, out.size);
+    EXPECT_EQ(kPC + 0x1000, out.Literal(0));
+    EXPECT_EQ(kPC + 0x1000, out.Literal(2));
+    EXPECT_EQ(0xAA0103E0, out.Inst(4));
+    EXPECT_EQ(kNop, out.Inst(5));
+
+    // Jump() after Relocate(), as the backup trampoline does.
+    Arm64Relocator relocator;
+    uint32_t mov = 0xAA0103E0;
+    EXPECT_TRUE(relocator.Relocate(&mov, kPC, 4));
+    relocator.Jump(kPC + 4);
+    Output tail;
+    tail.size = relocator.GetSize();
+    EXPECT_EQ(16 + 8, tail.size);
+    relocator.CopyTo(tail.code);
+    EXPECT_EQ(mov, tail.Inst(0));
+    EXPECT_EQ(kPC + 4, tail.Literal(1));
+    EXPECT_EQ(kBrX17, tail.Inst(2));
+}
+
+int main() {
+    TestDecoders();
+    TestIsPCRelated();
+    TestCopiedVerbatim();
+    TestBranch();
+    TestConditionalBranch();
+    TestLoadLiteral();
+    TestAdr();
+    TestTargetInsideRange();
+    TestLiteralPool();
+    return pine::test::Finish("arm64_relocator_test");
+}
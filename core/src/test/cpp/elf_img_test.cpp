@@ -0,0 +1,115 @@
+// Resolves symbols of elf_img_test_lib with ElfImg and compares them with what the dynamic linker
+// finds. The library is given three times: stripped and linked with --hash-style=gnu, stripped and
+// linked with --hash-style=sysv, and unstripped. The stripped ones have no .symtab to fall back to,
+// so every answer comes from the .dynsym hash table.
+
+#include <dlfcn.h>
+#include <cstring>
+#include <fcntl.h>
+#include <unistd.h>
+#include "test.h"
+#include "android.h"
+#include "utils/elf_img.h"
+#include "utils/offset_cache.h"
+
+using namespace pine;
+
+DEFINE_TEST_MAIN_STATE;
+
+// ElfImg only needs these for the offset cache, .gnu_debugdata and relative paths, none of them is used here.
+int Android::version = 0;
+bool OffsetCache::GetSymbol(const char*, const char*, uint64_t*) { return false; }
+void OffsetCache::PutSymbol(const char*, const char*, uint64_t) {}
+bool OffsetCache::LoadSymbolIndex(const char*, std::vector<std::pair<std::string, uint64_t>>*) {
+    return false;
+}
+void OffsetCache::SaveSymbolIndex(const char*, const std::vector<std::pair<std::string, uint64_t>>&) {}
+
+static constexpr int kFirstFunction = 1000;
+static constexpr int kFunctionCount = 300;
+
+// Makes sure the linker really emitted the hash table we want to test, otherwise ElfImg would
+// silently fall back to the linear scan and the test would prove nothing.
+static bool HasSection(const char* path, uint32_t type) {
+    int fd = open(path, O_RDONLY | O_CLOEXEC);
+    if (fd == -1) return false;
+    Elf_Ehdr header;
+    bool found = false;
+    if (pread(fd, &header, sizeof(header), 0) == sizeof(header)) {
+        for (int i = 0;i < header.e_shnum && !found;i++) {
+            Elf_Shdr section;
+            if (pread(fd, &section, sizeof(section), header.e_shoff + i * header.e_shentsize)
+                    != sizeof(section)) break;
+            found = section.sh_type == type;
+        }
+    }
+    close(fd);
+    return found;
+}
+
+static void* Open(const char* path) {
+    printf("Testing %s\n", path);
+    void* handle = dlopen(path, RTLD_NOW);
+    EXPECT_TRUE(handle != nullptr);
+    return handle;
+}
+
+static void TestDynsym(const char* path, uint32_t hash_type) {
+    EXPECT_TRUE(HasSection(path, hash_type));
+    EXPECT_FALSE(HasSection(path, SHT_SYMTAB));
+    void* handle = Open(path);
+    if (handle == nullptr) return;
+    ElfImg image(path, false);
+
+    char name[64];
+    int wrong = 0;
+    for (int i = kFirstFunction;i < kFirstFunction + kFunctionCount;i++) {
+        snprintf(name, sizeof(name), "pine_test_f%d", i);
+        void* expected = dlsym(handle, name);
+        if (expected == nullptr || image.GetSymbolAddress(name) != expected) wrong++;
+    }
+    EXPECT_EQ(0, wrong);
+
+    // Misses must stop at the bloom filter or the end of a chain, not at a wrong symbol.
+    int found = 0;
+    static const char* const kMissing[] = {
+            "pine_test_f999", "pine_test_f1300", "pine_test_f", "pine_test_f10000", "pine_test",
+            "pine_test_local", "pine_test_local_addres", "pine_test_local_address_", "",
+    };
+    for (const char* missing : kMissing) {
+        if (image.GetSymbolOffset(missing) != 0) found++;
+    }
+    for (int i = 0;i < 100;i++) {
+        snprintf(name, sizeof(name), "pine_test_g%d", kFirstFunction + i);
+        if (image.GetSymbolOffset(name) != 0) found++;
+    }
+    EXPECT_EQ(0, found);
+}
+
+static void TestSymtab(const char* path) {
+    EXPECT_TRUE(HasSection(path, SHT_SYMTAB));
+    void* handle = Open(path);
+    if (handle == nullptr) return;
+    ElfImg image(path);
+
+    auto local_address = reinterpret_cast<void* (*)()>(dlsym(handle, "pine_test_local_address"));
+    EXPECT_TRUE(local_address != nullptr);
+    if (local_address != nullptr) {
+        EXPECT_EQ(reinterpret_cast<uintptr_t>(local_address()),
+                  reinterpret_cast<uintptr_t>(image.GetSymbolAddress("pine_test_local")));
+    }
+    EXPECT_EQ(reinterpret_cast<uintptr_t>(dlsym(handle, "pine_test_f1234")),
+              reinterpret_cast<uintptr_t>(image.GetSymbolAddress("pine_test_f1234")));
+    EXPECT_EQ(0, image.GetSymbolOffset("pine_test_missing"));
+}
+
+int main(int argc, char** argv) {
+    if (argc != 4) {
+        fprintf(stderr, "Usage: %s <gnu hash library> <sysv hash library> <unstripped library>\n", argv[0]);
+        return 1;
+    }
+    TestDynsym(argv[1], SHT_GNU_HASH);
+    TestDynsym(argv[2], SHT_HASH);
+    TestSymtab(argv[3]);
+    return pine::test::Finish("elf_img_test");
+}
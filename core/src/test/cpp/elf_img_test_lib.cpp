@@ -0,0 +1,30 @@
+// Shared library for elf_img_test, built once with a GNU hash table and once with a SysV one.
+// It exports enough functions that every hash bucket has a chain to walk.
+
+#define PINE_TEST_FUNCTION(n) extern "C" int pine_test_f##n() { return n; }
+#define PINE_TEST_FUNCTIONS_10(n) \
+    PINE_TEST_FUNCTION(n##0) PINE_TEST_FUNCTION(n##1) PINE_TEST_FUNCTION(n##2) \
+    PINE_TEST_FUNCTION(n##3) PINE_TEST_FUNCTION(n##4) PINE_TEST_FUNCTION(n##5) \
+    PINE_TEST_FUNCTION(n##6) PINE_TEST_FUNCTION(n##7) PINE_TEST_FUNCTION(n##8) \
+    PINE_TEST_FUNCTION(n##9)
+#define PINE_TEST_FUNCTIONS_100(n) \
+    PINE_TEST_FUNCTIONS_10(n##0) PINE_TEST_FUNCTIONS_10(n##1) PINE_TEST_FUNCTIONS_10(n##2) \
+    PINE_TEST_FUNCTIONS_10(n##3) PINE_TEST_FUNCTIONS_10(n##4) PINE_TEST_FUNCTIONS_10(n##5) \
+    PINE_TEST_FUNCTIONS_10(n##6) PINE_TEST_FUNCTIONS_10(n##7) PINE_TEST_FUNCTIONS_10(n##8) \
+    PINE_TEST_FUNCTIONS_10(n##9)
+
+// pine_test_f1000 to pine_test_f1299
+PINE_TEST_FUNCTIONS_100(10)
+PINE_TEST_FUNCTIONS_100(11)
+PINE_TEST_FUNCTIONS_100(12)
+
+// Only in .symtab, like the ART internals Pine looks up. Not mangled so the test can find it by name.
+extern "C" {
+__attribute__((noinline)) static int pine_test_local(int a) {
+    return a * 3 + 1;
+}
+}
+
+extern "C" void* pine_test_local_address() {
+    return reinterpret_cast<void*>(&pine_test_local);
+}
@@ -0,0 +1,50 @@
+#ifndef PINE_TEST_H
+#define PINE_TEST_H
+
+#include <cinttypes>
+#include <cstdio>
+
+// Minimal assertions for the host tests, a failed one is reported and the test goes on.
+// Each test executable returns the number of failures from main().
+
+namespace pine::test {
+    extern int failures;
+
+    inline void Fail(const char* file, int line, const char* what) {
+        fprintf(stderr, "%s:%d: FAILED %s\n", file, line, what);
+        failures++;
+    }
+
+    inline void FailEq(const char* file, int line, const char* what,
+                       uint64_t expected, uint64_t actual) {
+        fprintf(stderr, "%s:%d: FAILED %s: expected %#" PRIx64 ", got %#" PRIx64 "\n",
+                file, line, what, expected, actual);
+        failures++;
+    }
+
+    inline int Finish(const char* name) {
+        if (failures == 0) {
+            printf("%s: all passed\n", name);
+        } else {
+            printf("%s: %d failures\n", name, failures);
+        }
+        return failures;
+    }
+}
+
+#define DEFINE_TEST_MAIN_STATE int pine::test::failures = 0
+
+#define EXPECT_TRUE(cond) do { \
+    if (!(cond)) pine::test::Fail(__FILE__, __LINE__, #cond); \
+} while (false)
+
+#define EXPECT_FALSE(cond) EXPECT_TRUE(!(cond))
+
+#define EXPECT_EQ(expected, actual) do { \
+    uint64_t expected_ = static_cast<uint64_t>(expected); \
+    uint64_t actual_ = static_cast<uint64_t>(actual); \
+    if (expected_ != actual_) \
+        pine::test::FailEq(__FILE__, __LINE__, #actual, expected_, actual_); \
+} while (false)
+
+#endif //PINE_TEST_H
@@ -0,0 +1,337 @@
+// Feeds known Thumb-2 instruction words to Thumb2Relocator and checks the rewritten code,
+// including the literal each ldr.w reads, with offsets at the edges of their range.
+
+#include <cstring>
+#include <vector>
+#include "test.h"
+#include "trampoline/arch/thumb2_relocator.h"
+
+using namespace pine;
+
+DEFINE_TEST_MAIN_STATE;
+
+static constexpr uint32_t kPC = 0x40001000;
+static constexpr uint16_t kNop = 0xBF00;
+static constexpr uint16_t kBlxIp = 0x47E0;
+
+struct Output {
+    bool ok;
+    size_t size;
+    alignas(4) uint8_t code[256];
+
+    uint16_t Half(size_t index) const {
+        uint16_t half;
+        memcpy(&half, code + index * 2, sizeof(half));
+        return half;
+    }
+
+    uint32_t Inst32(size_t index) const {
+        return (static_cast<uint32_t>(Half(index)) << 16) | Half(index + 1);
+    }
+
+    // Value read by the ldr.w Rt, [pc, #imm] at half index, and Rt in reg.
+    uint32_t Literal(size_t index, uint32_t* reg = nullptr) const {
+        EXPECT_EQ(0xF8DF, Half(index));
+        uint16_t second = Half(index + 1);
+        size_t address = ((index * 2 + 4) & ~static_cast<size_t>(3)) + (second & 0xFFF);
+        EXPECT_EQ(0, address % 4);
+        EXPECT_TRUE(address + 4 <= size);
+        if (reg) *reg = second >> 12;
+        uint32_t value = 0;
+        if (address + 4 <= sizeof(code)) memcpy(&value, code + address, sizeof(value));
+        return value;
+    }
+};
+
+static Output Relocate(const std::vector<uint16_t>& halves, uint32_t pc = kPC) {
+    Output out;
+    memset(out.code, 0xCC, sizeof(out.code));
+    Thumb2Relocator relocator;
+    out.ok = relocator.Relocate(halves.data(), pc, halves.size() * 2);
+    out.size = out.ok ? relocator.GetSize() : 0;
+    if (out.ok && out.size <= sizeof(out.code)) relocator.CopyTo(out.code);
+    return out;
+}
+
+static std::vector<uint16_t> Halves(uint32_t inst32) {
+    return {static_cast<uint16_t>(inst32 >> 16), static_cast<uint16_t>(inst32)};
+}
+
+// b.w (0x9000), bl (0xD000) or blx (0xC000) with offset relative to pc + 4
+static uint32_t BranchT4(uint32_t op, int32_t offset) {
+    uint32_t imm = static_cast<uint32_t>(offset);
+    uint32_t s = (imm >> 24) & 1;
+    uint32_t j1 = (~((imm >> 23) & 1) ^ s) & 1;
+    uint32_t j2 = (~((imm >> 22) & 1) ^ s) & 1;
+    return 0xF0000000 | (s << 26) | (((imm >> 12) & 0x3FF) << 16) | op | (j1 << 13) | (j2 << 11)
+           | ((imm >> 1) & 0x7FF);
+}
+
+static uint32_t BranchT3(uint32_t cond, int32_t offset) {
+    uint32_t imm = static_cast<uint32_t>(offset);
+    return 0xF0008000 | (((imm >> 20) & 1) << 26) | (cond << 22) | (((imm >> 12) & 0x3F) << 16)
+           | (((imm >> 18) & 1) << 13) | (((imm >> 19) & 1) << 11) | ((imm >> 1) & 0x7FF);
+}
+
+static uint32_t AdrW(bool sub, uint32_t rd, uint32_t imm12) {
+    return (sub ? 0xF2AF0000 : 0xF20F0000) | (((imm12 >> 11) & 1) << 26)
+           | (((imm12 >> 8) & 7) << 12) | (rd << 8) | (imm12 & 0xFF);
+}
+
+static uint32_t LdrW(bool add, uint32_t rt, uint32_t imm12) {
+    return (add ? 0xF8DF0000 : 0xF85F0000) | (rt << 12) | imm12;
+}
+
+static uint16_t Cbz(bool nonzero, uint32_t rn, uint32_t offset) {
+    return static_cast<uint16_t>((nonzero ? 0xB900 : 0xB100) | (((offset >> 6) & 1) << 9)
+                                 | (((offset >> 1) & 0x1F) << 3) | rn);
+}
+
+static void TestDecoders() {
+    static const int32_t t4_offsets[] = {16777214, -16777216, 2, -2, 0x123456};
+    for (int32_t offset : t4_offsets) {
+        EXPECT_EQ(offset, Thumb2Relocator::DecodeBranchT4(BranchT4(0x9000, offset)));
+        EXPECT_EQ(offset, Thumb2Relocator::DecodeBranchT4(BranchT4(0xD000, offset)));
+    }
+    static const int32_t t3_offsets[] = {1048574, -1048576, 2, -2};
+    for (int32_t offset : t3_offsets) {
+        EXPECT_EQ(offset, Thumb2Relocator::DecodeBranchT3(BranchT3(0, offset)));
+    }
+    EXPECT_EQ(0xFFF, Thumb2Relocator::DecodeImm12(AdrW(false, 0, 0xFFF)));
+    EXPECT_EQ(0x801, Thumb2Relocator::DecodeImm12(AdrW(true, 0, 0x801)));
+}
+
+static void TestIsPCRelated() {
+    EXPECT_FALSE(Thumb2Relocator::IsPCRelated16(0x4608)); // mov r0, r1
+    EXPECT_FALSE(Thumb2Relocator::IsPCRelated16(0xB5F0)); // push {r4-r7, lr}
+    EXPECT_FALSE(Thumb2Relocator::IsPCRelated16(kNop));
+    EXPECT_FALSE(Thumb2Relocator::IsPCRelated16(0xDF01)); // svc 1
+    EXPECT_FALSE(Thumb2Relocator::IsPCRelated32(0xE92D4FF0)); // push.w {r4-r11, lr}
+    EXPECT_FALSE(Thumb2Relocator::IsPCRelated32(0xF8D00004)); // ldr.w r0, [r0, #4]
+
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated16(0xD1FE)); // bne
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated16(0xE7FE)); // b
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated16(Cbz(false, 0, 0)));
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated16(0xA001)); // adr r0
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated16(0x4801)); // ldr r0, [pc, #4]
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated16(0x4678)); // mov r0, pc
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated16(0x4478)); // add r0, pc
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated16(0xBF08)); // it eq
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated32(BranchT4(0x9000, 4)));
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated32(BranchT4(0xD000, 4)));
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated32(BranchT4(0xC000, 4)));
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated32(BranchT3(1, 4)));
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated32(AdrW(false, 0, 4)));
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated32(AdrW(true, 0, 4)));
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated32(LdrW(true, 0, 4)));
+    EXPECT_TRUE(Thumb2Relocator::IsPCRelated32(0xE8DFF001)); // tbb [pc, r1]
+}
+
+static void TestCopiedVerbatim() {
+    Output out = Relocate({0x4608, 0xE92D, 0x4FF0}); // mov r0, r1; push.w {r4-r11, lr}
+    EXPECT_TRUE(out.ok);
+    EXPECT_EQ(8, out.size);
+    EXPECT_EQ(0x4608, out.Half(0));
+    EXPECT_EQ(0xE92D4FF0, out.Inst32(1));
+    EXPECT_EQ(kNop, out.Half(3));
+}
+
+static void TestBranch16() {
+    static const int32_t cond_offsets[] = {254, -256};
+    for (int32_t offset : cond_offsets) {
+        // bne -> beq over the ldr.w pc
+        Output out = Relocate({static_cast<uint16_t>(0xD100 | ((offset >> 1) & 0xFF))});
+        EXPECT_TRUE(out.ok);
+        EXPECT_EQ(0xD001, out.Half(0));
+        uint32_t reg;
+        EXPECT_EQ((kPC + 4 + offset) | 1, out.Literal(1, &reg));
+        EXPECT_EQ(15, reg);
+    }
+
+    static const int32_t offsets[] = {2046, -2048};
+    for (int32_t offset : offsets) {
+        Output out = Relocate({static_cast<uint16_t>(0xE000 | ((offset >> 1) & 0x7FF))});
+        EXPECT_TRUE(out.ok);
+        uint32_t reg;
+        EXPECT_EQ((kPC + 4 + offset) | 1, out.Literal(0, &reg));
+        EXPECT_EQ(15, reg);
+    }
+}
+
+static void TestCompareAndBranch() {
+    static const uint32_t offsets[] = {126, 0};
+    for (uint32_t offset : offsets) {
+        // cbz r3 -> cbnz r3 over the ldr.w pc
+        Output out = Relocate({Cbz(false, 3, offset)});
+        EXPECT_TRUE(out.ok);
+        EXPECT_EQ(Cbz(true, 3, 2), out.Half(0));
+        EXPECT_EQ((kPC + 4 + offset) | 1, out.Literal(1));
+
+        out = Relocate({Cbz(true, 7, offset)});
+        EXPECT_EQ(Cbz(false, 7, 2), out.Half(0));
+        EXPECT_EQ((kPC + 4 + offset) | 1, out.Literal(1));
+    }
+}
+
+static void TestBranch32() {
+    static const int32_t offsets[] = {16777214, -16777216};
+    for (int32_t offset : offsets) {
+        Output out = Relocate(Halves(BranchT4(0x9000, offset)));
+        EXPECT_TRUE(out.ok);
+        uint32_t reg;
+        EXPECT_EQ((kPC + 4 + offset) | 1, out.Literal(0, &reg));
+        EXPECT_EQ(15, reg);
+
+        out = Relocate(Halves(BranchT4(0xD000, offset)));
+        EXPECT_TRUE(out.ok);
+        EXPECT_EQ((kPC + 4 + offset) | 1, out.Literal(0, &reg));
+        EXPECT_EQ(12, reg);
+        EXPECT_EQ(kBlxIp, out.Half(2));
+    }
+
+    // blx to arm code: word aligned target without the thumb bit, from a halfword aligned pc
+    static const int32_t blx_offsets[] = {16777212, -16777216};
+    for (int32_t offset : blx_offsets) {
+        Output out = Relocate(Halves(BranchT4(0xC000, offset)), kPC + 2);
+        EXPECT_TRUE(out.ok);
+        EXPECT_EQ(((kPC + 2 + 4) & ~3u) + offset, out.Literal(0));
+        EXPECT_EQ(kBlxIp, out.Half(2));
+    }
+
+    static const int32_t cond_offsets[] = {1048574, -1048576};
+    for (int32_t offset : cond_offsets) {
+        // bge.w -> blt over the ldr.w pc
+        Output out = Relocate(Halves(BranchT3(0xA, offset)));
+        EXPECT_TRUE(out.ok);
+        EXPECT_EQ(0xDB01, out.Half(0));
+        EXPECT_EQ((kPC + 4 + offset) | 1, out.Literal(1));
+    }
+}
+
+static void TestAddress() {
+    // adr r2, with pc + 4 not word aligned
+    Output out = Relocate({0xA2FF}, kPC + 2);
+    EXPECT_TRUE(out.ok);
+    uint32_t reg;
+    EXPECT_EQ(((kPC + 2 + 4) & ~3u) + 1020, out.Literal(0, &reg));
+    EXPECT_EQ(2, reg);
+
+    out = Relocate(Halves(AdrW(false, 9, 0xFFF)));
+    EXPECT_TRUE(out.ok);
+    EXPECT_EQ(kPC + 4 + 0xFFF, out.Literal(0, &reg));
+    EXPECT_EQ(9, reg);
+
+    out = Relocate(Halves(AdrW(true, 1, 0xFFF)), kPC + 2);
+    EXPECT_TRUE(out.ok);
+    EXPECT_EQ(((kPC + 2 + 4) & ~3u) - 0xFFF, out.Literal(0, &reg));
+    EXPECT_EQ(1, reg);
+
+    EXPECT_FALSE(Relocate(Halves(AdrW(false, 15, 4))).ok);
+}
+
+static void TestLoadLiteral() {
+    // ldr r1, [pc, #1020] -> ldr.w r1, =address; ldr.w r1, [r1]
+    Output out = Relocate({0x49FF});
+    EXPECT_TRUE(out.ok);
+    uint32_t reg;
+    EXPECT_EQ(kPC + 4 + 1020, out.Literal(0, &reg));
+    EXPECT_EQ(1, reg);
+    EXPECT_EQ(0xF8D11000, out.Inst32(2));
+
+    out = Relocate(Halves(LdrW(true, 5, 0xFFF)), kPC + 2);
+    EXPECT_TRUE(out.ok);
+    EXPECT_EQ(((kPC + 2 + 4) & ~3u) + 0xFFF, out.Literal(0, &reg));
+    EXPECT_EQ(5, reg);
+    EXPECT_EQ(0xF8D55000, out.Inst32(2));
+
+    out = Relocate(Halves(LdrW(false, 5, 0xFFF)));
+    EXPECT_TRUE(out.ok);
+    EXPECT_EQ(kPC + 4 - 0xFFF, out.Literal(0));
+
+    // ldr.w pc, <label> goes through ip
+    out = Relocate(Halves(LdrW(true, 15, 8)));
+    EXPECT_TRUE(out.ok);
+    EXPECT_EQ(kPC + 4 + 8, out.Literal(0, &reg));
+    EXPECT_EQ(12, reg);
+    EXPECT_EQ(0xF8DCF000, out.Inst32(2));
+}
+
+static void TestRegisterWithPC() {
+    // mov r4, pc
+    Output out = Relocate({0x467C});
+    EXPECT_TRUE(out.ok);
+    uint32_t reg;
+    EXPECT_EQ(kPC + 4, out.Literal(0, &reg));
+    EXPECT_EQ(4, reg);
+
+    // mov r8, pc
+    out = Relocate({0x46F8});
+    EXPECT_EQ(kPC + 4, out.Literal(0, &reg));
+    EXPECT_EQ(8, reg);
+
+    // add r0, pc -> ldr.w ip, =pc; add r0, ip
+    out = Relocate({0x4478});
+    EXPECT_TRUE(out.ok);
+    EXPECT_EQ(kPC + 4, out.Literal(0, &reg));
+    EXPECT_EQ(12, reg);
+    EXPECT_EQ(0x4460, out.Half(2));
+
+    // add r9, pc
+    out = Relocate({0x44F9});
+    EXPECT_EQ(0x44E1, out.Half(2));
+
+    EXPECT_FALSE(Relocate({0x44FC}).ok); // add ip, pc
+    EXPECT_FALSE(Relocate({0x44FD}).ok); // add sp, pc
+    EXPECT_FALSE(Relocate({0x46FF}).ok); // mov pc, pc
+}
+
+static void TestRefused() {
+    EXPECT_FALSE(Relocate({0xBF08, 0x2001}).ok); // it eq; moveq r0, #1
+    EXPECT_FALSE(Relocate({0x4778}).ok); // bx pc
+    EXPECT_FALSE(Relocate(Halves(0xE8DFF001)).ok); // tbb [pc, r1]
+    EXPECT_FALSE(Relocate(Halves(0xE8DFF011)).ok); // tbh [pc, r1, lsl #1]
+    EXPECT_FALSE(Relocate(Halves(0xE9DF0102)).ok); // ldrd r0, r1, [pc, #8]
+    EXPECT_FALSE(Relocate(Halves(0xED9F0B02)).ok); // vldr d0, [pc, #8]
+    EXPECT_FALSE(Relocate(Halves(0xF89F0008)).ok); // ldrb.w r0, [pc, #8]
+    // A 32-bit instruction cut in half
+    EXPECT_FALSE(Relocate({0x4608, 0xF8DF}).ok);
+}
+
+static void TestTargetInsideRange() {
+    EXPECT_FALSE(Relocate({kNop, 0xE7FD}).ok); // b back to the nop
+    EXPECT_FALSE(Relocate({Cbz(false, 0, 0), kNop, kNop}).ok); // to the second nop
+    std::vector<uint16_t> code = Halves(BranchT4(0x9000, -4));
+    code.insert(code.begin(), kNop);
+    EXPECT_FALSE(Relocate(code).ok);
+
+    // Right past the end is fine.
+    EXPECT_TRUE(Relocate({0xE000, kNop}).ok);
+}
+
+static void TestLiteralPool() {
+    // Two branches to one target share a literal, the pool is word aligned.
+    Output out = Relocate({0xE002, 0xE001, 0x4608});
+    EXPECT_TRUE(out.ok);
+    // ldr.w, ldr.w, mov, padding, one literal
+    EXPECT_EQ(5 * 2 + 2 + 4, out.size);
+    EXPECT_EQ((kPC + 8) | 1, out.Literal(0));
+    EXPECT_EQ((kPC + 8) | 1, out.Literal(2));
+    EXPECT_EQ(0x4608, out.Half(4));
+    EXPECT_EQ(kNop, out.Half(5));
+}
+
+int main() {
+    TestDecoders();
+    TestIsPCRelated();
+    TestCopiedVerbatim();
+    TestBranch16();
+    TestCompareAndBranch();
+    TestBranch32();
+    TestAddress();
+    TestLoadLiteral();
+    TestRegisterWithPC();
+    TestRefused();
+    TestTargetInsideRange();
+    TestLiteralPool();
+    return pine::test::Finish("thumb2_relocator_test");
+}
@@ -0,0 +1,274 @@
+// Decodes xz streams made by XZ Utils 5.4 and checks that truncated or corrupted ones are rejected.
+
+#include <cstring>
+#include <vector>
+#include "test.h"
+#include "utils/xz_decoder.h"
+
+using namespace pine;
+
+DEFINE_TEST_MAIN_STATE;
+
+// A real .gnu_debugdata: the MiniDebugInfo of a small shared library, made like the Android build does
+// (objcopy --only-keep-debug, keep the local function symbols, then xz --check=crc64 -9).
+// Decompressed it is a 2544 bytes ELF file whose .symtab has the static function pine_test_hidden.
+static const uint8_t kMiniDebugInfo[] = {
+    0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00, 0x00, 0x04, 0xe6, 0xd6, 0xb4, 0x46, 0x02, 0x00, 0x21, 0x01,
+    0x1c, 0x00, 0x00, 0x00, 0x10, 0xcf, 0x58, 0xcc, 0xe0, 0x09, 0xef, 0x02, 0x37, 0x5d, 0x00, 0x3f,
+    0x91, 0x45, 0x84, 0x68, 0x3d, 0x89, 0xa6, 0xda, 0x8a, 0xe1, 0x83, 0x32, 0x4e, 0xf1, 0xed, 0xef,
+    0x67, 0x18, 0x2a, 0xb4, 0x78, 0x6d, 0x2b, 0x38, 0xea, 0x45, 0xc6, 0x8c, 0x98, 0x64, 0xb9, 0xce,
+    0x93, 0x00, 0x31, 0x1d, 0xa5, 0xae, 0xf1, 0x36, 0x43, 0xc7, 0xdb, 0xa5, 0xfa, 0x69, 0x23, 0x5c,
+    0x6c, 0x9b, 0xff, 0x42, 0x13, 0xf8, 0xae, 0xc0, 0x3d, 0x42, 0xdd, 0xd1, 0x47, 0x98, 0x8b, 0xb9,
+    0x06, 0x3d, 0xa9, 0x8f, 0x9a, 0xad, 0x1d, 0xe5, 0x2c, 0x5a, 0x5d, 0x90, 0x71, 0x8b, 0x1e, 0xb6,
+    0x85, 0xa8, 0x10, 0x96, 0x72, 0x94, 0xe6, 0xd4, 0x70, 0x14, 0x3b, 0xc7, 0xa8, 0x7a, 0xd4, 0xa8,
+    0x17, 0x01, 0x07, 0x79, 0x1c, 0x41, 0x5f, 0x6f, 0xa5, 0x49, 0xed, 0xbf, 0xc9, 0xce, 0x80, 0x84,
+    0x72, 0x9c, 0x7d, 0xeb, 0x24, 0xe1, 0x68, 0x39, 0x2d, 0x8d, 0xc2, 0x8f, 0x54, 0x06, 0xe0, 0xb2,
+    0x33, 0x85, 0xa7, 0x4f, 0x62, 0xdc, 0x7f, 0xb5, 0x53, 0xee, 0xb8, 0x22, 0x6e, 0xb2, 0x28, 0x6d,
+    0x7c, 0x74, 0x7c, 0x33, 0xda, 0xb6, 0xd9, 0x35, 0x36, 0x5f, 0xb8, 0x73, 0x92, 0x52, 0xf3, 0xfc,
+    0x2e, 0xbd, 0x14, 0xbb, 0x98, 0xb2, 0xcf, 0xae, 0xca, 0x6a, 0x64, 0xf3, 0x2a, 0xaa, 0xe8, 0xc4,
+    0x3b, 0xa9, 0x39, 0xa6, 0x81, 0x61, 0x79, 0x33, 0xd8, 0x1b, 0xdc, 0x30, 0x17, 0x15, 0xd8, 0x07,
+    0xad, 0xf1, 0xb8, 0x0e, 0xf9, 0x23, 0x34, 0xca, 0x20, 0x42, 0x50, 0xed, 0xc7, 0x31, 0x5d, 0xed,
+    0x2f, 0x1d, 0xe1, 0x1a, 0x35, 0x70, 0x1d, 0xfb, 0x1c, 0xda, 0x78, 0x47, 0x6c, 0xc1, 0x77, 0xa7,
+    0xa0, 0xb4, 0x0c, 0x7a, 0xa3, 0x49, 0xeb, 0xfd, 0xee, 0x19, 0x2b, 0x9b, 0x2c, 0xff, 0x44, 0xa6,
+    0xfd, 0x62, 0xaa, 0xd1, 0x94, 0xad, 0x1d, 0x1b, 0xb7, 0x6a, 0x24, 0x52, 0x20, 0x4b, 0x74, 0x98,
+    0xda, 0x6e, 0x27, 0xfe, 0x88, 0x9d, 0xbc, 0x25, 0xe3, 0x23, 0xc7, 0xdf, 0xb3, 0xc7, 0x11, 0xeb,
+    0xe9, 0x21, 0xbc, 0x4f, 0xc5, 0x82, 0x68, 0x8e, 0x7a, 0x22, 0x21, 0x7f, 0xdd, 0x72, 0xb3, 0xf6,
+    0x54, 0x51, 0xa5, 0x04, 0x79, 0x2a, 0x36, 0xd1, 0x09, 0xe1, 0xf1, 0x9e, 0xbe, 0xe1, 0xa7, 0x40,
+    0xe4, 0x60, 0xdd, 0x28, 0xdd, 0xb2, 0xee, 0xba, 0x20, 0xcc, 0x96, 0xab, 0x26, 0x0f, 0xd0, 0xda,
+    0x3f, 0x88, 0x15, 0xb9, 0xf3, 0xd7, 0xd5, 0x58, 0xf4, 0xca, 0xc8, 0xee, 0x57, 0xcf, 0x5d, 0x4f,
+    0x36, 0x57, 0xcd, 0xd1, 0xcf, 0x50, 0xa0, 0x6f, 0x3c, 0xf4, 0x70, 0x4d, 0x8a, 0x87, 0xd6, 0x80,
+    0x7c, 0x73, 0xda, 0xce, 0x3f, 0x7a, 0x85, 0xe1, 0x6b, 0x3e, 0xe3, 0x4d, 0xe0, 0xfe, 0x71, 0x5f,
+    0x10, 0xb2, 0xe0, 0xa3, 0x8f, 0x3d, 0x74, 0xd0, 0x06, 0xdb, 0x8c, 0x85, 0xf0, 0x65, 0xd0, 0xb7,
+    0x94, 0x4e, 0xf3, 0xec, 0x91, 0xd5, 0x38, 0xec, 0x74, 0xd5, 0x7f, 0x82, 0x03, 0x21, 0x4f, 0x57,
+    0xe1, 0x43, 0xb8, 0x85, 0xc7, 0x36, 0x32, 0x7f, 0xc1, 0x7c, 0x25, 0x3f, 0x82, 0x0c, 0x70, 0xac,
+    0x0a, 0xfe, 0x39, 0x11, 0x29, 0x94, 0x40, 0xf5, 0x9b, 0x65, 0x6a, 0x20, 0xce, 0x8a, 0x33, 0x42,
+    0x23, 0x3c, 0xc7, 0xb8, 0x53, 0x62, 0x9b, 0xa5, 0xa1, 0x38, 0x99, 0x53, 0x9e, 0x47, 0x65, 0xd4,
+    0xc8, 0x81, 0x66, 0x78, 0x78, 0x8c, 0x68, 0x60, 0xab, 0x52, 0x79, 0xb6, 0x3f, 0x18, 0xd3, 0xe3,
+    0x8e, 0x46, 0x6a, 0xeb, 0xb8, 0xb1, 0x43, 0xca, 0x5a, 0xc1, 0xa9, 0x99, 0xc1, 0x91, 0x7f, 0xe1,
+    0x74, 0x4d, 0x82, 0x19, 0x0a, 0x86, 0xe3, 0xbc, 0x90, 0x5a, 0x1a, 0xc7, 0x13, 0x85, 0xc5, 0x6c,
+    0xa3, 0xdd, 0xa6, 0x52, 0x67, 0x82, 0x16, 0xe1, 0x1a, 0x9f, 0x64, 0x1b, 0x24, 0x07, 0xf9, 0xe0,
+    0xd6, 0xd0, 0x46, 0xb8, 0xe7, 0xb4, 0x38, 0xbd, 0x15, 0x72, 0x55, 0x30, 0xbe, 0x2b, 0xea, 0x6e,
+    0xcf, 0xeb, 0x3d, 0x59, 0xc8, 0xcd, 0x86, 0x68, 0x06, 0x98, 0x2a, 0xec, 0x60, 0x04, 0xa7, 0x9c,
+    0xcd, 0x39, 0x73, 0x98, 0x36, 0x86, 0x1f, 0x8c, 0x77, 0x75, 0x9c, 0x9d, 0x49, 0xfb, 0xbb, 0x26,
+    0xf1, 0xf8, 0xb1, 0xd7, 0xa7, 0x30, 0x00, 0x00, 0x91, 0x22, 0xd6, 0x29, 0xb0, 0x0d, 0xf6, 0x46,
+    0x00, 0x01, 0xd3, 0x04, 0xf0, 0x13, 0x00, 0x00, 0x12, 0x17, 0x79, 0x3a, 0xb1, 0xc4, 0x67, 0xfb,
+    0x02, 0x00, 0x00, 0x00, 0x00, 0x04, 0x59, 0x5a,
+};
+
+static constexpr size_t kMiniDebugInfoElfSize = 2544;
+static constexpr uint64_t kMiniDebugInfoElfHash = UINT64_C(0x35632cbe96347642);
+
+// 512 random bytes then some text, made with xz --check=crc32 --block-size=512 -6 so the stream has
+// 10 blocks and the first one is stored as an uncompressed LZMA2 chunk.
+// MakePayload() builds the same bytes.
+static const uint8_t kPayload[] = {
+    0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00, 0x00, 0x01, 0x69, 0x22, 0xde, 0x36, 0x02, 0x00, 0x21, 0x01,
+    0x16, 0x00, 0x00, 0x00, 0x74, 0x2f, 0xe5, 0xa3, 0x01, 0x01, 0xff, 0xd3, 0xa7, 0xd6, 0x0d, 0xc2,
+    0x3e, 0xcd, 0xaf, 0x20, 0xaf, 0x69, 0x96, 0x26, 0x52, 0x65, 0x7e, 0xe6, 0xbb, 0x44, 0xd0, 0x9f,
+    0x5a, 0x5b, 0x7d, 0xaa, 0xb9, 0xda, 0x5e, 0x96, 0x02, 0x64, 0x05, 0xcc, 0x1f, 0x47, 0xc1, 0xb2,
+    0x97, 0x52, 0x5b, 0x27, 0xfc, 0xea, 0xb1, 0xda, 0x90, 0xcd, 0x46, 0xd9, 0x73, 0xb2, 0x6a, 0x4f,
+    0x82, 0xaf, 0x8e, 0x47, 0xaf, 0x13, 0xe6, 0x09, 0x8a, 0x19, 0x72, 0x46, 0x3e, 0xb0, 0x0c, 0x3a,
+    0x27, 0x30, 0x0f, 0x79, 0xe5, 0xb7, 0xc8, 0x02, 0x7a, 0x94, 0xac, 0xdf, 0xdc, 0xea, 0x17, 0x59,
+    0x06, 0x7e, 0x03, 0x94, 0x7f, 0x56, 0x05, 0x1e, 0xd1, 0x94, 0x74, 0xb8, 0x6e, 0xbf, 0x94, 0x63,
+    0x00, 0x65, 0x25, 0x90, 0x1b, 0xb9, 0x9f, 0xde, 0xdb, 0xa4, 0x1a, 0xd6, 0xcc, 0x70, 0x9b, 0x91,
+    0x47, 0xfe, 0x37, 0x30, 0x07, 0x24, 0x5c, 0x9c, 0xad, 0xb6, 0x30, 0xe4, 0x74, 0x50, 0xbd, 0x48,
+    0x4f, 0xdf, 0x73, 0xb3, 0x2c, 0x86, 0x37, 0x3a, 0x15, 0x53, 0xf5, 0xe5, 0x79, 0xf5, 0x77, 0xd4,
+    0xbf, 0x50, 0xfc, 0x87, 0x03, 0xa8, 0xce, 0xd3, 0x8f, 0xcc, 0xca, 0xdb, 0x73, 0x69, 0xa3, 0x0d,
+    0x5e, 0x76, 0x4b, 0xf4, 0x81, 0x5f, 0xd0, 0x6b, 0x2b, 0x66, 0x9f, 0x81, 0x72, 0x56, 0xe7, 0x0e,
+    0x07, 0x83, 0xa3, 0xd0, 0x0a, 0xba, 0x74, 0xa0, 0x86, 0x8f, 0x62, 0xf6, 0xe9, 0x3c, 0x24, 0xe1,
+    0x93, 0xec, 0x7c, 0x2f, 0x5e, 0x32, 0xe2, 0x57, 0xb7, 0x0c, 0x74, 0x6d, 0xa3, 0x9c, 0xe5, 0x34,
+    0xd0, 0x91, 0xf8, 0x10, 0x8d, 0xdd, 0xa7, 0x6d, 0x3d, 0x25, 0x12, 0xdd, 0xaf, 0x29, 0xd4, 0x02,
+    0x6e, 0xf3, 0x4f, 0x10, 0xe4, 0x99, 0x23, 0x6b, 0xf2, 0xde, 0xcd, 0xb3, 0x54, 0xfa, 0x25, 0x48,
+    0xec, 0x61, 0x43, 0x17, 0xdd, 0x41, 0xfb, 0x30, 0xfa, 0x1e, 0xf2, 0x81, 0xfc, 0xb9, 0x07, 0xb6,
+    0x8e, 0x27, 0x8b, 0x0b, 0x11, 0xd9, 0x86, 0xa4, 0xb2, 0xe5, 0x00, 0xae, 0x29, 0xd1, 0x17, 0x5a,
+    0x46, 0xc3, 0x49, 0x80, 0x25, 0xc1, 0x3f, 0x69, 0xa0, 0x78, 0x15, 0x23, 0x61, 0xa3, 0xcc, 0x54,
+    0xab, 0x0f, 0x73, 0x64, 0xbd, 0xe4, 0x37, 0x89, 0x66, 0x94, 0x5f, 0x02, 0x21, 0xaf, 0xe9, 0x84,
+    0xe4, 0x76, 0x49, 0xb3, 0x6b, 0xe6, 0x7f, 0x26, 0xae, 0x9c, 0x8a, 0x4d, 0xcc, 0xca, 0xee, 0x3b,
+    0x9b, 0x20, 0xc4, 0x26, 0x9e, 0x57, 0xa0, 0x2d, 0x1b, 0xc9, 0x35, 0x9f, 0x9a, 0x4b, 0x84, 0xeb,
+    0xeb, 0x25, 0x01, 0xe4, 0x92, 0xe2, 0x03, 0x01, 0x3c, 0x5e, 0x5d, 0xd6, 0x88, 0x3d, 0xf2, 0xd7,
+    0x50, 0xba, 0xb8, 0x2d, 0x43, 0x7c, 0x67, 0x2f, 0x79, 0xd0, 0xce, 0xc4, 0x4b, 0x8b, 0x8b, 0xc3,
+    0x99, 0x65, 0xa8, 0x12, 0x5a, 0x95, 0x4e, 0x1e, 0x03, 0x00, 0x94, 0xe0, 0x3b, 0x35, 0x1c, 0xa1,
+    0xd7, 0x29, 0x06, 0x1f, 0x1b, 0x49, 0x6e, 0xbb, 0xc5, 0x60, 0x6d, 0xf8, 0x47, 0x7e, 0x5f, 0x49,
+    0x4b, 0xb9, 0xf2, 0x0b, 0x5c, 0x8c, 0x21, 0x2f, 0x55, 0x2e, 0x33, 0xdb, 0xe6, 0x1a, 0x6a, 0x1e,
+    0x59, 0xa5, 0xe1, 0x6c, 0x6e, 0x5f, 0xd3, 0x88, 0xe0, 0x9c, 0x53, 0x10, 0x00, 0x62, 0x1e, 0xc7,
+    0x78, 0x8e, 0x10, 0x65, 0x11, 0xfc, 0x76, 0x71, 0x1f, 0x03, 0x39, 0x81, 0xe7, 0x7f, 0x98, 0xdd,
+    0x1d, 0x52, 0xf5, 0x54, 0x62, 0x0b, 0xef, 0xda, 0x45, 0x13, 0xbf, 0x2e, 0x40, 0x9f, 0xa0, 0x95,
+    0xb3, 0x3f, 0xae, 0x84, 0xcb, 0xcb, 0x86, 0xae, 0xed, 0x03, 0xa1, 0xda, 0xf8, 0x21, 0x1b, 0x7a,
+    0x83, 0x41, 0x6e, 0xdf, 0xf6, 0x48, 0x58, 0x80, 0x0e, 0xc0, 0xea, 0xbe, 0x30, 0xc9, 0x7a, 0x15,
+    0xab, 0x12, 0xf3, 0x99, 0xb9, 0x88, 0xc4, 0x3b, 0xe6, 0x1f, 0x63, 0x00, 0x09, 0x64, 0x79, 0xb3,
+    0x02, 0x00, 0x21, 0x01, 0x16, 0x00, 0x00, 0x00, 0x74, 0x2f, 0xe5, 0xa3, 0xe0, 0x01, 0xff, 0x00,
+    0x72, 0x5d, 0x00, 0x39, 0x9e, 0x49, 0xdd, 0x58, 0x0e, 0x71, 0x6a, 0xdc, 0x06, 0xec, 0x60, 0xa4,
+    0x0d, 0xdb, 0x6b, 0xee, 0x88, 0x71, 0xa9, 0xa1, 0x05, 0x39, 0x53, 0x73, 0x20, 0x23, 0x55, 0x47,
+    0xbd, 0xd6, 0x7e, 0xf8, 0x8f, 0xe2, 0x21, 0x9a, 0xbf, 0x2c, 0x04, 0xb3, 0x81, 0xe7, 0xef, 0x16,
+    0xea, 0xe3, 0x3f, 0x64, 0x23, 0x76, 0xea, 0x5b, 0xcf, 0x66, 0xc6, 0x54, 0x34, 0xe5, 0xbe, 0x68,
+    0x12, 0x21, 0xe3, 0x4d, 0xab, 0x6a, 0xf3, 0xe0, 0x86, 0x4c, 0x1e, 0x9d, 0xa1, 0x20, 0x39, 0xdb,
+    0x79, 0xae, 0xc2, 0x01, 0xaf, 0xb8, 0x42, 0xc2, 0x0c, 0xa2, 0x3f, 0x55, 0xf0, 0x97, 0x29, 0x87,
+    0x9f, 0xc4, 0x54, 0x59, 0x4c, 0xbe, 0x92, 0x00, 0x28, 0x4c, 0x68, 0x2c, 0x4d, 0xfb, 0xb3, 0xd0,
+    0xed, 0xa1, 0x6d, 0x49, 0x00, 0x00, 0x00, 0x00, 0x6a, 0xc1, 0x85, 0xc7, 0x02, 0x00, 0x21, 0x01,
+    0x16, 0x00, 0x00, 0x00, 0x74, 0x2f, 0xe5, 0xa3, 0xe0, 0x01, 0xff, 0x00, 0x83, 0x5d, 0x00, 0x1b,
+    0x8c, 0xfd, 0x51, 0x59, 0xdd, 0x23, 0xb3, 0xd2, 0xe1, 0xef, 0xf3, 0xc4, 0xec, 0x7d, 0xba, 0x6c,
+    0xcd, 0x21, 0x92, 0x03, 0xa3, 0x07, 0x9e, 0x51, 0x81, 0x61, 0x71, 0xfa, 0x75, 0xf9, 0xaa, 0x63,
+    0xb0, 0xb4, 0x05, 0x96, 0x1a, 0x86, 0xab, 0x82, 0x27, 0x35, 0x3f, 0x1f, 0x6b, 0x6a, 0xdd, 0xcb,
+    0x97, 0x19, 0x05, 0x8e, 0x88, 0x49, 0x14, 0x32, 0x16, 0x91, 0x85, 0x4f, 0x4c, 0xd9, 0xa2, 0xc7,
+    0x94, 0x39, 0xe9, 0x1d, 0xc8, 0x70, 0xc1, 0xdd, 0x9f, 0x97, 0xc6, 0xdf, 0xc8, 0xcc, 0x32, 0xba,
+    0x36, 0x88, 0xcd, 0x46, 0x5e, 0x4a, 0x24, 0x81, 0x3f, 0xaf, 0x25, 0xc6, 0xfd, 0xf0, 0x2c, 0x0f,
+    0xca, 0x19, 0x7a, 0x1f, 0x19, 0x93, 0x10, 0x6a, 0xd6, 0x8b, 0x5b, 0x47, 0x6a, 0x6b, 0x84, 0x9f,
+    0x11, 0x91, 0x85, 0xd5, 0xba, 0x30, 0x15, 0xd9, 0x3e, 0x54, 0xb4, 0x98, 0x85, 0x14, 0xb7, 0x22,
+    0x43, 0x2a, 0x00, 0x00, 0x08, 0xa8, 0x13, 0x03, 0x02, 0x00, 0x21, 0x01, 0x16, 0x00, 0x00, 0x00,
+    0x74, 0x2f, 0xe5, 0xa3, 0xe0, 0x01, 0xff, 0x00, 0x82, 0x5d, 0x00, 0x3c, 0x9b, 0x47, 0xff, 0x6b,
+    0x55, 0x2a, 0x38, 0x9b, 0x1e, 0xed, 0x43, 0x30, 0x53, 0xd8, 0x48, 0x0b, 0x82, 0xa6, 0xae, 0x22,
+    0x95, 0x4f, 0xa0, 0x2d, 0x1f, 0x1e, 0xd6, 0xd4, 0xe2, 0x9d, 0xa9, 0x54, 0x1b, 0x91, 0x1a, 0xed,
+    0xea, 0xe9, 0xea, 0xe2, 0x5a, 0x56, 0x42, 0x86, 0x4e, 0xe8, 0x99, 0x24, 0x0a, 0xb1, 0x88, 0x4e,
+    0xc6, 0xc8, 0x7b, 0x4b, 0x8e, 0xe1, 0x71, 0xa0, 0x39, 0xb2, 0x81, 0xf7, 0xef, 0x7c, 0x6a, 0x51,
+    0xcb, 0xe9, 0x7c, 0xae, 0x6e, 0xff, 0x84, 0xf0, 0x51, 0x1b, 0x51, 0x31, 0xd8, 0x4e, 0xc9, 0xff,
+    0xde, 0x3b, 0x16, 0xd1, 0x39, 0x5d, 0xbb, 0x9e, 0x96, 0xd4, 0x31, 0x6a, 0x85, 0x54, 0xba, 0xdc,
+    0xe1, 0x6b, 0x0f, 0xc7, 0x7f, 0x27, 0xf5, 0x36, 0x8c, 0xd2, 0x6c, 0xed, 0x39, 0x73, 0xb1, 0xf1,
+    0xfe, 0x00, 0x3e, 0x5e, 0x63, 0x37, 0xb8, 0x95, 0xa7, 0x40, 0x5f, 0x16, 0x8a, 0x00, 0x00, 0x00,
+    0xe3, 0x2b, 0x57, 0x96, 0x02, 0x00, 0x21, 0x01, 0x16, 0x00, 0x00, 0x00, 0x74, 0x2f, 0xe5, 0xa3,
+    0xe0, 0x01, 0xff, 0x00, 0x6f, 0x5d, 0x00, 0x1c, 0x82, 0x8a, 0xe7, 0xf9, 0xae, 0x36, 0xcc, 0x6c,
+    0xcd, 0x81, 0xde, 0x91, 0x8d, 0x14, 0x98, 0x54, 0x1c, 0x9e, 0x3b, 0x68, 0x9c, 0xa1, 0xda, 0x51,
+    0x42, 0xb2, 0xb3, 0xe4, 0xf1, 0x03, 0xfb, 0xf1, 0x3f, 0xc4, 0x02, 0xe4, 0x24, 0x05, 0xa3, 0x11,
+    0x79, 0x24, 0x8b, 0x54, 0xf4, 0xc1, 0x78, 0x5e, 0x61, 0x52, 0x55, 0xcd, 0x34, 0xdd, 0x81, 0x6b,
+    0x9d, 0xba, 0xb2, 0x84, 0x2c, 0xb2, 0x34, 0x1c, 0xdd, 0xf3, 0xda, 0x3a, 0x71, 0x90, 0xf1, 0x36,
+    0xc5, 0x8d, 0x16, 0x1a, 0xd1, 0x18, 0x6e, 0xad, 0xbf, 0x92, 0x03, 0x1a, 0xed, 0x54, 0x27, 0x37,
+    0x35, 0xb6, 0x63, 0xae, 0x16, 0xb3, 0x5f, 0xe1, 0xea, 0x04, 0xd9, 0xb4, 0x1c, 0xbf, 0x96, 0xbe,
+    0xeb, 0x0d, 0xf9, 0x0e, 0x68, 0x00, 0x00, 0x00, 0x34, 0x63, 0xaf, 0xf9, 0x02, 0x00, 0x21, 0x01,
+    0x16, 0x00, 0x00, 0x00, 0x74, 0x2f, 0xe5, 0xa3, 0xe0, 0x01, 0xff, 0x00, 0x69, 0x5d, 0x00, 0x05,
+    0x1d, 0xcb, 0xf3, 0x25, 0x08, 0x94, 0x3e, 0xbc, 0x24, 0x5e, 0x1e, 0x88, 0x21, 0xe6, 0x2c, 0x8d,
+    0xab, 0xfd, 0xca, 0xbe, 0x6b, 0x36, 0x50, 0x23, 0x1e, 0x2a, 0x4a, 0x40, 0xab, 0x56, 0x27, 0x26,
+    0x58, 0x84, 0xb7, 0xea, 0xbf, 0xc2, 0x04, 0x3e, 0xd9, 0x81, 0xd1, 0xad, 0x51, 0x9d, 0x9f, 0xaa,
+    0x6b, 0x73, 0x85, 0xb7, 0xd5, 0x4f, 0x55, 0xa6, 0xa4, 0x23, 0x1a, 0xea, 0x6a, 0xf3, 0xeb, 0x54,
+    0x4c, 0x3a, 0x1d, 0x57, 0x72, 0x04, 0x6d, 0xdc, 0x99, 0x53, 0x07, 0x8f, 0x41, 0xfa, 0x9d, 0x14,
+    0x2c, 0x7f, 0xee, 0xaa, 0x53, 0x99, 0x2e, 0x99, 0x9d, 0x22, 0x0d, 0x54, 0x91, 0xd6, 0x13, 0x04,
+    0xc3, 0xb1, 0x4c, 0x41, 0x92, 0xf1, 0x02, 0xbb, 0x00, 0x00, 0x00, 0x00, 0x67, 0x5c, 0xdb, 0x2b,
+    0x02, 0x00, 0x21, 0x01, 0x16, 0x00, 0x00, 0x00, 0x74, 0x2f, 0xe5, 0xa3, 0xe0, 0x01, 0xff, 0x00,
+    0x80, 0x5d, 0x00, 0x2f, 0x8e, 0x02, 0x00, 0xa8, 0xc6, 0x3f, 0xf6, 0x38, 0x62, 0xfa, 0xb3, 0xad,
+    0x05, 0xce, 0x6c, 0xb5, 0x7b, 0x61, 0x45, 0x19, 0x73, 0x9e, 0xb2, 0x97, 0xb8, 0xd4, 0xe6, 0x61,
+    0xb5, 0x1c, 0x73, 0x10, 0xc0, 0x95, 0x13, 0x29, 0xcb, 0x71, 0x00, 0x0f, 0xbb, 0x87, 0x8e, 0x31,
+    0x1d, 0x11, 0x6d, 0x46, 0x07, 0xc8, 0xbd, 0xf0, 0x85, 0xd1, 0xd1, 0x9f, 0xa6, 0x08, 0x39, 0x88,
+    0x49, 0xa0, 0xa2, 0x4e, 0xfd, 0xa0, 0x65, 0xcc, 0xea, 0x35, 0xc4, 0x09, 0x76, 0x44, 0xa3, 0x25,
+    0xe1, 0xa7, 0x0c, 0xa8, 0xab, 0x98, 0x13, 0x42, 0x41, 0x7a, 0x6a, 0x88, 0xa9, 0x6b, 0xce, 0xf6,
+    0x1b, 0x80, 0x73, 0xe0, 0x64, 0xe4, 0x76, 0x71, 0x62, 0x7b, 0x80, 0x42, 0x92, 0xda, 0x82, 0x35,
+    0x42, 0x35, 0xb9, 0x24, 0x0a, 0x1a, 0x7a, 0x96, 0x6a, 0xf3, 0xfe, 0xb9, 0x8a, 0xc1, 0xaa, 0xc7,
+    0x8c, 0x3d, 0xd4, 0x00, 0xdb, 0xde, 0x88, 0x06, 0x02, 0x00, 0x21, 0x01, 0x16, 0x00, 0x00, 0x00,
+    0x74, 0x2f, 0xe5, 0xa3, 0xe0, 0x01, 0xff, 0x00, 0x82, 0x5d, 0x00, 0x39, 0x9e, 0x49, 0xdd, 0x58,
+    0x3d, 0xa6, 0x4f, 0xd2, 0xa0, 0x64, 0xfc, 0x3f, 0x32, 0xfe, 0xba, 0x10, 0x0a, 0x5a, 0x83, 0xaa,
+    0x78, 0xa4, 0x07, 0xc1, 0x54, 0xda, 0x69, 0x82, 0xf3, 0x9f, 0x2b, 0x94, 0xb0, 0xb1, 0x76, 0x8e,
+    0xe1, 0xce, 0x39, 0x6d, 0x27, 0x96, 0x56, 0xaf, 0xf0, 0xf9, 0xd5, 0x3d, 0x3f, 0xeb, 0xd9, 0x34,
+    0xc7, 0x38, 0xf8, 0x61, 0x31, 0x27, 0x60, 0xe2, 0x14, 0xf6, 0xb7, 0xba, 0x49, 0xeb, 0x5a, 0x6e,
+    0x46, 0xf2, 0x75, 0x2b, 0xdb, 0x37, 0x62, 0x54, 0x35, 0xc9, 0x5c, 0x58, 0x4f, 0x37, 0x8c, 0x8b,
+    0xe0, 0x5f, 0xf9, 0x6c, 0x45, 0x3c, 0x16, 0xdf, 0xd5, 0xfe, 0x8e, 0xb3, 0xe1, 0x47, 0x2b, 0x3f,
+    0x0b, 0xf8, 0x67, 0x44, 0x36, 0x81, 0xd7, 0x54, 0x2c, 0x73, 0xdc, 0x11, 0x07, 0xd0, 0x8d, 0x94,
+    0xa5, 0x60, 0x90, 0x31, 0x5a, 0x8f, 0x17, 0x43, 0xfc, 0xe8, 0xf0, 0xbe, 0x75, 0x00, 0x00, 0x00,
+    0x14, 0xba, 0x67, 0x59, 0x02, 0x00, 0x21, 0x01, 0x16, 0x00, 0x00, 0x00, 0x74, 0x2f, 0xe5, 0xa3,
+    0xe0, 0x01, 0xff, 0x00, 0x80, 0x5d, 0x00, 0x19, 0x8d, 0x3d, 0x51, 0x59, 0xdd, 0x23, 0xb3, 0xcd,
+    0xa7, 0x47, 0x40, 0x0f, 0x87, 0x35, 0xd6, 0x1a, 0x3b, 0x8c, 0x28, 0x0c, 0xa5, 0xe4, 0x79, 0x11,
+    0x73, 0x80, 0x65, 0x42, 0xd5, 0xea, 0x7c, 0x4c, 0x1d, 0xd9, 0x9f, 0x3e, 0xf9, 0xed, 0x18, 0x0a,
+    0xe4, 0xe2, 0x34, 0xa1, 0xba, 0xee, 0x11, 0x91, 0xb3, 0x84, 0xf5, 0x0c, 0xba, 0x22, 0x7e, 0x45,
+    0xc8, 0xea, 0x74, 0x92, 0x82, 0x60, 0x3e, 0xe3, 0xbd, 0xd5, 0x49, 0xa9, 0xa3, 0x94, 0x53, 0x6c,
+    0x68, 0x19, 0xcb, 0xd8, 0xc6, 0x5d, 0x66, 0x1b, 0x2c, 0xb5, 0x0f, 0xaa, 0xbc, 0x55, 0xd1, 0x1c,
+    0xcf, 0xaf, 0x93, 0x88, 0xf7, 0xc5, 0xee, 0xae, 0x50, 0x99, 0xb0, 0xd3, 0x98, 0xc6, 0xa7, 0x3f,
+    0x06, 0xdd, 0xd9, 0xc1, 0xa5, 0x03, 0xfc, 0xa5, 0x71, 0x14, 0x21, 0x88, 0x4e, 0xa4, 0xed, 0x5a,
+    0xc5, 0xbf, 0x14, 0xae, 0xc5, 0xa9, 0x24, 0x00, 0x4a, 0xf7, 0x04, 0xbc, 0x02, 0x00, 0x21, 0x01,
+    0x16, 0x00, 0x00, 0x00, 0x74, 0x2f, 0xe5, 0xa3, 0xe0, 0x00, 0x21, 0x00, 0x15, 0x5d, 0x00, 0x3c,
+    0x9b, 0x47, 0xff, 0x29, 0x6d, 0xaa, 0x38, 0x9b, 0x1e, 0xf7, 0x25, 0x75, 0x85, 0x2d, 0x39, 0x9d,
+    0x98, 0x06, 0xc7, 0x40, 0x00, 0x00, 0x00, 0x00, 0x2f, 0xfe, 0x22, 0x38, 0x00, 0x0a, 0x94, 0x04,
+    0x80, 0x04, 0x8a, 0x01, 0x80, 0x04, 0x9b, 0x01, 0x80, 0x04, 0x9a, 0x01, 0x80, 0x04, 0x87, 0x01,
+    0x80, 0x04, 0x81, 0x01, 0x80, 0x04, 0x98, 0x01, 0x80, 0x04, 0x9a, 0x01, 0x80, 0x04, 0x98, 0x01,
+    0x80, 0x04, 0x2d, 0x22, 0xfc, 0x0e, 0xcb, 0xf4, 0x53, 0xb2, 0x5e, 0x67, 0x0a, 0x00, 0x00, 0x00,
+    0x00, 0x01, 0x59, 0x5a,
+};
+
+static std::vector<uint8_t> MakePayload() {
+    std::vector<uint8_t> payload;
+    uint32_t seed = 12345;
+    for (int i = 0;i < 512;i++) {
+        seed = seed * 1103515245u + 12345u;
+        payload.push_back(static_cast<uint8_t>(seed >> 24));
+    }
+    char line[16];
+    for (int i = 0;i < 600;i++) {
+        int length = snprintf(line, sizeof(line), "sym_%d\n", i % 97);
+        payload.insert(payload.end(), line, line + length);
+    }
+    return payload;
+}
+
+static uint64_t Fnv1a(const std::vector<uint8_t>& data) {
+    uint64_t hash = UINT64_C(0xcbf29ce484222325);
+    for (uint8_t byte : data) {
+        hash ^= byte;
+        hash *= UINT64_C(0x100000001b3);
+    }
+    return hash;
+}
+
+static bool Decode(const uint8_t* data, size_t size, std::vector<uint8_t>* out = nullptr) {
+    std::vector<uint8_t> ignored;
+    return XzDecoder::Decode(data, size, out ? out : &ignored);
+}
+
+static void TestMiniDebugInfo() {
+    std::vector<uint8_t> elf;
+    EXPECT_TRUE(Decode(kMiniDebugInfo, sizeof(kMiniDebugInfo), &elf));
+    EXPECT_EQ(kMiniDebugInfoElfSize, elf.size());
+    EXPECT_EQ(kMiniDebugInfoElfHash, Fnv1a(elf));
+    EXPECT_TRUE(elf.size() > 4 && memcmp(elf.data(), "\177ELF", 4) == 0);
+    static const char kSymbol[] = "pine_test_hidden";
+    bool found = false;
+    for (size_t i = 0;i + sizeof(kSymbol) <= elf.size();i++) {
+        if (memcmp(elf.data() + i, kSymbol, sizeof(kSymbol)) == 0) {
+            found = true;
+            break;
+        }
+    }
+    EXPECT_TRUE(found);
+}
+
+static void TestMultiBlock() {
+    std::vector<uint8_t> expected = MakePayload();
+    std::vector<uint8_t> out;
+    EXPECT_TRUE(Decode(kPayload, sizeof(kPayload), &out));
+    EXPECT_EQ(expected.size(), out.size());
+    EXPECT_TRUE(out == expected);
+}
+
+static void TestTruncated(const uint8_t* data, size_t size) {
+    int accepted = 0;
+    for (size_t length = 0;length < size;length++) {
+        if (Decode(data, length)) accepted++;
+    }
+    EXPECT_EQ(0, accepted);
+}
+
+static void TestCorrupted(const uint8_t* data, size_t size) {
+    std::vector<uint8_t> copy(data, data + size);
+    int accepted = 0;
+    for (size_t i = 0;i < size;i++) {
+        copy[i] ^= 0x01;
+        if (Decode(copy.data(), size)) accepted++;
+        copy[i] ^= 0x80;
+        if (Decode(copy.data(), size)) accepted++;
+        copy[i] = data[i];
+    }
+    EXPECT_EQ(0, accepted);
+}
+
+static void TestNotXz() {
+    static const uint8_t kZeros[64] = {};
+    EXPECT_FALSE(Decode(kZeros, sizeof(kZeros)));
+    std::vector<uint8_t> elf;
+    Decode(kMiniDebugInfo, sizeof(kMiniDebugInfo), &elf);
+    EXPECT_FALSE(Decode(elf.data(), elf.size()));
+}
+
+int main() {
+    TestMiniDebugInfo();
+    TestMultiBlock();
+    TestTruncated(kMiniDebugInfo, sizeof(kMiniDebugInfo));
+    TestTruncated(kPayload, sizeof(kPayload));
+    TestCorrupted(kMiniDebugInfo, sizeof(kMiniDebugInfo));
+    TestCorrupted(kPayload, sizeof(kPayload));
+    TestNotXz();
+    return pine::test::Finish("xz_decoder_test");
+}
@@ -224,7 +224,6 @@ public final class XposedBridge {
 	/** @hide */
 	static final class Handler extends MethodHook {
 		private final CopyOnWriteSortedSet<XC_MethodHook> callbacks;
-		private final ThreadLocal<ExtData> extDataHolder = new ThreadLocal<>();
 
 		Handler(CopyOnWriteSortedSet<XC_MethodHook> callbacks) {
 			this.callbacks = callbacks;
@@ -238,12 +237,6 @@ public final class XposedBridge {
 			final int callbacksLength = callbacksSnapshot.length;
 			if (callbacksLength == 0) return;
 
-			ExtData extData = extDataHolder.get();
-			if (extData == null) {
-				extData = new ExtData();
-				extDataHolder.set(extData);
-			}
-
 			MethodHookParam param = new MethodHookParam();
 			param.method = callFrame.method;
 			param.thisObject = callFrame.thisObject;
@@ -280,19 +273,22 @@ public final class XposedBridge {
 					callFrame.setResult(param.getResult());
 			}
 
+			// Pine changed: Keep the state in the CallFrame instead of a ThreadLocal,
+			// which is cheaper and safe when the hooked method re-enters itself.
+			ExtData extData = new ExtData();
 			extData.callbacks = callbacksSnapshot;
 			extData.param = param;
-			extData.afterIdx = beforeIdx - 1;
+			callFrame.setObjectExtra(extData);
+			callFrame.setLongExtra(beforeIdx - 1);
 		}
 
 		@Override public void afterCall(Pine.CallFrame callFrame) {
-			ExtData extData = extDataHolder.get();
+			ExtData extData = (ExtData) callFrame.getObjectExtra();
 			if (extData == null) return;
 
 			Object[] callbacksSnapshot = extData.callbacks;
-			if (callbacksSnapshot == null) return;
 			MethodHookParam param = extData.param;
-			int afterIdx = extData.afterIdx;
+			int afterIdx = (int) callFrame.getLongExtra();
 
 			// Flush CallFrame changes to MethodHookParam
 			param.thisObject = callFrame.thisObject;
@@ -328,17 +324,11 @@ public final class XposedBridge {
 				callFrame.setThrowable(param.getThrowable());
 			else
 				callFrame.setResult(param.getResult());
-
-			// Clean up.
-			extData.callbacks = null;
-			extData.param = null;
-			extData.afterIdx = 0;
 		}
 
 		static final class ExtData {
 			Object[] callbacks;
 			MethodHookParam param;
-			int afterIdx;
 
 			ExtData() {}
 		}